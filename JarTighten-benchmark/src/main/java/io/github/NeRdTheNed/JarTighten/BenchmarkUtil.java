@@ -0,0 +1,278 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/** Shared helpers for benchmarks */
+final class BenchmarkUtil {
+    /** Words used to generate compressible synthetic file contents */
+    private static final String[] WORDS = { "java/lang/Object", "java/lang/String", "<init>", "()V", "Code", "LineNumberTable", "LocalVariableTable", "this", "StackMapTable", "SourceFile", "io/github/NeRdTheNed/JarTighten", "get", "set", "value", "(Ljava/lang/String;)V", "Exceptions", "InnerClasses" };
+
+    private BenchmarkUtil() {
+        // Static helpers only
+    }
+
+    /**
+     * Generate compressible data resembling a class file.
+     *
+     * @param random the random source
+     * @param size the size of the data
+     * @return the data
+     */
+    static byte[] syntheticData(Random random, int size) {
+        final byte[] data = new byte[size];
+        int pos = 0;
+
+        while (pos < size) {
+            if (random.nextInt(4) == 0) {
+                data[pos++] = (byte) random.nextInt(256);
+            } else {
+                final String word = WORDS[random.nextInt(WORDS.length)];
+
+                for (int i = 0; (i < word.length()) && (pos < size); i++) {
+                    data[pos++] = (byte) word.charAt(i);
+                }
+            }
+        }
+
+        return data;
+    }
+
+    /**
+     * Write a synthetic jar file with many small deflated entries, and a few large stored and deflated entries.
+     *
+     * @param path the path to write to
+     * @param smallEntries number of small entries
+     * @param largeEntries number of large entries
+     * @param largeEntrySize size of each large entry
+     */
+    static void writeSyntheticJar(Path path, int smallEntries, int largeEntries, int largeEntrySize) throws IOException {
+        final Random random = new Random(0x4A54);
+
+        try
+            (final OutputStream out = Files.newOutputStream(path);
+                    final ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.setLevel(Deflater.BEST_SPEED);
+            zip.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+            zip.write("Manifest-Version: 1.0\r\n\r\n".getBytes("UTF-8"));
+            zip.closeEntry();
+
+            for (int i = 0; i < smallEntries; i++) {
+                final ZipEntry entry = new ZipEntry("com/example/pkg" + (i % 32) + "/Class" + i + ".class");
+                entry.setTime(1_600_000_000_000L + (i * 1000L));
+                zip.putNextEntry(entry);
+                zip.write(syntheticData(random, 512 + random.nextInt(8192)));
+                zip.closeEntry();
+            }
+
+            for (int i = 0; i < largeEntries; i++) {
+                final byte[] data = syntheticData(random, largeEntrySize);
+                final ZipEntry entry = new ZipEntry("assets/large" + i + ".bin");
+
+                if ((i % 2) == 0) {
+                    final CRC32 crc = new CRC32();
+                    crc.update(data);
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(data.length);
+                    entry.setCompressedSize(data.length);
+                    entry.setCrc(crc.getValue());
+                }
+
+                zip.putNextEntry(entry);
+                zip.write(data);
+                zip.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * Generate a loadable class file with a public static method returning a string constant,
+     * padded with unused constants resembling those of a real class file.
+     * Uses class file version 49, so it doesn't need stack map frames.
+     *
+     * @param random the random source
+     * @param internalName the internal name of the class, e.g. com/example/Main
+     * @param size the approximate size of the class file
+     * @return the class file
+     */
+    static byte[] syntheticClassFile(Random random, String internalName, int size) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(size + 256);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final List<String> padding = new ArrayList<>();
+        int paddingSize = 0;
+
+        while (paddingSize < size) {
+            final StringBuilder constant = new StringBuilder();
+
+            for (int i = random.nextInt(6); i >= 0; i--) {
+                constant.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+
+            padding.add(constant.toString());
+            paddingSize += constant.length() + 3;
+        }
+
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(49);
+        out.writeShort(10 + padding.size());
+        // 1: this class name, 2: this class
+        out.writeByte(1);
+        out.writeUTF(internalName);
+        out.writeByte(7);
+        out.writeShort(1);
+        // 3: super class name, 4: super class
+        out.writeByte(1);
+        out.writeUTF("java/lang/Object");
+        out.writeByte(7);
+        out.writeShort(3);
+        // 5: method name, 6: method descriptor, 7: Code
+        out.writeByte(1);
+        out.writeUTF("value");
+        out.writeByte(1);
+        out.writeUTF("()Ljava/lang/String;");
+        out.writeByte(1);
+        out.writeUTF("Code");
+        // 8: returned string, 9: returned string constant
+        out.writeByte(1);
+        out.writeUTF(internalName.replace('/', '.'));
+        out.writeByte(8);
+        out.writeShort(8);
+
+        for (final String constant : padding) {
+            out.writeByte(1);
+            out.writeUTF(constant);
+        }
+
+        // Public, super
+        out.writeShort(0x21);
+        out.writeShort(2);
+        out.writeShort(4);
+        // No interfaces or fields
+        out.writeShort(0);
+        out.writeShort(0);
+        // One public static method: ldc #9, areturn
+        out.writeShort(1);
+        out.writeShort(0x9);
+        out.writeShort(5);
+        out.writeShort(6);
+        out.writeShort(1);
+        out.writeShort(7);
+        out.writeInt(15);
+        out.writeShort(1);
+        out.writeShort(0);
+        out.writeInt(3);
+        out.writeByte(0x12);
+        out.writeByte(9);
+        out.writeByte(0xB0);
+        out.writeShort(0);
+        out.writeShort(0);
+        // No class attributes
+        out.writeShort(0);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Write a synthetic application jar with loadable classes and resources.
+     *
+     * @param path the path to write to
+     * @param classes number of classes
+     * @param resources number of resources
+     * @param stored if true, store every entry uncompressed
+     * @return the names of the classes, in the order they were written
+     */
+    static List<String> writeSyntheticApplicationJar(Path path, int classes, int resources, boolean stored) throws IOException {
+        final Random random = new Random(0x4A54);
+        final List<String> classNames = new ArrayList<>(classes);
+
+        try
+            (final OutputStream out = Files.newOutputStream(path);
+                    final ZipOutputStream zip = new ZipOutputStream(out)) {
+            writeEntry(zip, "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\nMain-Class: com.example.app.Main\r\n\r\n".getBytes("UTF-8"), stored);
+
+            for (int i = 0; i < classes; i++) {
+                final String internalName = i == 0 ? "com/example/app/Main" : "com/example/app/pkg" + (i % 32) + "/Class" + i;
+                writeEntry(zip, internalName + ".class", syntheticClassFile(random, internalName, 512 + random.nextInt(8192)), stored);
+                classNames.add(internalName.replace('/', '.'));
+            }
+
+            for (int i = 0; i < resources; i++) {
+                writeEntry(zip, "assets/resource" + i + ".dat", syntheticData(random, 1024 + random.nextInt(64 * 1024)), stored);
+            }
+        }
+
+        return classNames;
+    }
+
+    private static void writeEntry(ZipOutputStream zip, String name, byte[] data, boolean stored) throws IOException {
+        final ZipEntry entry = new ZipEntry(name);
+
+        if (stored) {
+            final CRC32 crc = new CRC32();
+            crc.update(data);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(data.length);
+            entry.setCompressedSize(data.length);
+            entry.setCrc(crc.getValue());
+        }
+
+        zip.putNextEntry(entry);
+        zip.write(data);
+        zip.closeEntry();
+    }
+
+    /** A benchmarked operation */
+    @FunctionalInterface
+    interface Operation {
+        void run() throws Exception;
+    }
+
+    /**
+     * Run an operation several times after warming up, and return the median time.
+     *
+     * @param warmup number of untimed runs
+     * @param iterations number of timed runs
+     * @param operation the operation
+     * @return the median time in nanoseconds
+     */
+    static long medianNanos(int warmup, int iterations, Operation operation) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            operation.run();
+        }
+
+        final long[] times = new long[iterations];
+
+        for (int i = 0; i < iterations; i++) {
+            final long start = System.nanoTime();
+            operation.run();
+            times[i] = System.nanoTime() - start;
+        }
+
+        Arrays.sort(times);
+        return times[iterations / 2];
+    }
+
+    /**
+     * Format a throughput in megabytes per second.
+     *
+     * @param bytes the number of bytes processed
+     * @param nanos the time taken in nanoseconds
+     * @return the formatted throughput
+     */
+    static String throughput(long bytes, long nanos) {
+        return String.format("%10.1f MB/s", (bytes / (1024.0 * 1024.0)) / (nanos / 1_000_000_000.0));
+    }
+}
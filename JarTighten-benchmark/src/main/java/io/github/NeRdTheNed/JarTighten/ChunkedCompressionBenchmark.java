@@ -0,0 +1,52 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import software.coley.lljzip.format.compression.ZipCompressions;
+
+/**
+ * Compares compressing a large synthetic file in chunks in parallel with compressing it whole,
+ * and reports the time taken and the size lost by compressing in chunks.
+ * Usage: ChunkedCompressionBenchmark [size in megabytes] [zopfli iterations, or 0 to not use zopfli]
+ */
+public final class ChunkedCompressionBenchmark {
+    private ChunkedCompressionBenchmark() {
+        // Only used as an entry point
+    }
+
+    private static JarTighten create(int zopfliPasses, long chunkedCompressThreshold) {
+        final boolean zopfli = zopfliPasses > 0;
+        return new JarTighten.Builder()
+               .removeDirectoryEntries(false)
+               .recompressZopfli(zopfli)
+               .recompressStore(false)
+               .recompressZopfliPasses(zopfliPasses)
+               .threadGovernor(ThreadGovernor.shared(Runtime.getRuntime().availableProcessors()))
+               .chunkedCompressThreshold(chunkedCompressThreshold)
+               .build();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int size = (args.length > 0 ? Integer.parseInt(args[0]) : 32) * 1024 * 1024;
+        final int zopfliPasses = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        System.out.println("Generating synthetic data...");
+        final byte[] data = BenchmarkUtil.syntheticData(new Random(0x4A54), size);
+        final CRC32 crc32 = new CRC32();
+        crc32.update(data);
+        final int crc = (int) crc32.getValue();
+        System.out.printf("%d bytes uncompressed, %d threads, %s%n", size, Runtime.getRuntime().availableProcessors(), zopfliPasses > 0 ? "zopfli with " + zopfliPasses + " iterations" : "without zopfli");
+        final String[] names = { "whole", "chunked" };
+        final JarTighten[] instances = { create(zopfliPasses, 0), create(zopfliPasses, 1) };
+        final long[] sizes = new long[instances.length];
+
+        for (int i = 0; i < instances.length; i++) {
+            final JarTighten jarTighten = instances[i];
+            final int index = i;
+            final long nanos = BenchmarkUtil.medianNanos(1, 3, () -> sizes[index] = jarTighten.optimiseEntry(data, crc, ZipCompressions.STORED, data).compressedSize);
+            System.out.printf("  %-10s %12d bytes %10.1f ms%s%n", names[i], sizes[i], nanos / 1_000_000.0, BenchmarkUtil.throughput(size, nanos));
+        }
+
+        System.out.printf("Size lost by compressing in chunks: %d bytes (%.3f%%)%n", sizes[1] - sizes[0], ((sizes[1] - sizes[0]) * 100.0) / sizes[0]);
+    }
+}
@@ -0,0 +1,185 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.github.NeRdTheNed.deft4j.util.compression.CompressionUtil;
+import com.github.NeRdTheNed.deft4j.util.compression.CompressionUtil.Strategy;
+
+/**
+ * Measures the time from starting a JVM running the command line tool on a 1 KB jar
+ * to it starting to optimise the first entry, and until it exits.
+ * Compares initialising every enabled compressor up front, as JarTighten did before compressors were initialised lazily,
+ * with initialising them lazily, and with initialising them lazily using an application class data sharing archive on Java 13 and later.
+ * Usage: ColdStartBenchmark [runs]
+ */
+public final class ColdStartBenchmark {
+    /** Printed by JarTighten when it starts optimising the first entry, if the jartighten.traceStartup property is true */
+    private static final String FIRST_ENTRY = "JarTighten: started first entry";
+
+    private ColdStartBenchmark() {
+        // Only used as an entry point
+    }
+
+    /**
+     * Run a JVM until it exits.
+     *
+     * @param command the command to run
+     * @return the time until JarTighten started optimising the first entry, or -1 if it never did, and the time until the JVM exited
+     * @throws IOException if the JVM failed
+     */
+    private static long[] run(List<String> command) throws IOException, InterruptedException {
+        final ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        final long start = System.nanoTime();
+        final Process process = builder.start();
+        long firstEntryNanos = -1;
+        String lastLine = "";
+
+        try
+            (final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                if ((firstEntryNanos == -1) && line.startsWith(FIRST_ENTRY)) {
+                    firstEntryNanos = System.nanoTime() - start;
+                } else {
+                    lastLine = line;
+                }
+            }
+        }
+
+        final int exitCode = process.waitFor();
+        final long totalNanos = System.nanoTime() - start;
+
+        if (exitCode != 0) {
+            throw new IOException("JVM exited with " + exitCode + ": " + lastLine);
+        }
+
+        return new long[] { firstEntryNanos, totalNanos };
+    }
+
+    private static List<String> command(String classPath, List<String> jvmArgs, String mainClass, Path input, Path output) {
+        final List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmArgs);
+        command.add("-Djartighten.traceStartup=true");
+        command.add("-cp");
+        command.add(classPath);
+        command.add(mainClass);
+        command.add(input.toString());
+        command.add(output.toString());
+        command.add("--overwrite");
+        return command;
+    }
+
+    private static long median(long[] values) {
+        final long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static void measure(String name, List<String> command, int runs) throws IOException, InterruptedException {
+        final long[] firstEntryNanos = new long[runs];
+        final long[] totalNanos = new long[runs];
+
+        for (int i = 0; i < runs; i++) {
+            final long[] result = run(command);
+            firstEntryNanos[i] = result[0];
+            totalNanos[i] = result[1];
+        }
+
+        final long firstEntry = median(firstEntryNanos);
+        System.out.printf("%-30s %16s %12.1f%n", name, firstEntry < 0 ? "n/a" : String.format("%.1f", firstEntry / 1_000_000.0), median(totalNanos) / 1_000_000.0);
+    }
+
+    /** @return the feature version of this JVM, e.g. 8 or 17 */
+    private static int javaVersion() {
+        final String version = System.getProperty("java.specification.version");
+        return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if ((args.length > 0) && "eager".equals(args[0])) {
+            eager(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
+        final int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        final Path tempDir = Files.createTempDirectory("JarTighten-benchmark-");
+        final Path input = tempDir.resolve("input.jar");
+        final Path output = tempDir.resolve("output.jar");
+        final Path archive = tempDir.resolve("JarTighten.jsa");
+
+        try {
+            try
+                (final OutputStream out = Files.newOutputStream(input);
+                        final ZipOutputStream zip = new ZipOutputStream(out)) {
+                zip.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+                zip.write("Manifest-Version: 1.0\r\nMain-Class: com.example.app.Main\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+                zip.putNextEntry(new ZipEntry("com/example/app/Main.class"));
+                zip.write(BenchmarkUtil.syntheticClassFile(new Random(0x4A54), "com/example/app/Main", 1536));
+                zip.closeEntry();
+            }
+
+            final String classPath = System.getProperty("java.class.path");
+            final String mainClass = CMDMain.class.getName();
+            System.out.printf("Input: %d bytes, median of %d runs in fresh JVMs, default options%n", Files.size(input), runs);
+            System.out.printf("%-30s %16s %12s%n", "Startup", "First entry ms", "Total ms");
+            measure("eager compressors (before)", command(classPath, new ArrayList<>(), ColdStartBenchmark.class.getName(), input, output), runs);
+            measure("lazy compressors", command(classPath, new ArrayList<>(), mainClass, input, output), runs);
+
+            if (javaVersion() < 13) {
+                System.out.printf("%-30s needs Java 13 or later%n", "lazy compressors + AppCDS");
+                return;
+            }
+
+            // Class data sharing archives can only contain classes from jars
+            final List<String> jars = new ArrayList<>();
+
+            for (final String entry : classPath.split(File.pathSeparator)) {
+                if (entry.endsWith(".jar")) {
+                    jars.add(entry);
+                }
+            }
+
+            final String jarClassPath = String.join(File.pathSeparator, jars);
+            run(command(jarClassPath, Arrays.asList("-XX:ArchiveClassesAtExit=" + archive), mainClass, input, output));
+
+            if (!Files.exists(archive)) {
+                System.out.printf("%-30s failed to create archive%n", "lazy compressors + AppCDS");
+                return;
+            }
+
+            measure("lazy compressors + AppCDS", command(jarClassPath, Arrays.asList("-XX:SharedArchiveFile=" + archive), mainClass, input, output), runs);
+        } finally {
+            Files.deleteIfExists(input);
+            Files.deleteIfExists(output);
+            Files.deleteIfExists(archive);
+            Files.deleteIfExists(tempDir);
+        }
+    }
+
+    /**
+     * Run the command line tool after initialising the compressors for the default options once,
+     * as JarTighten did in its constructor before compressors were initialised lazily.
+     */
+    private static void eager(String[] args) {
+        new CompressionUtil(true, true, false, false, 20, Strategy.MULTI_CHEAP, false, false, false);
+        CMDMain.main(args);
+    }
+}
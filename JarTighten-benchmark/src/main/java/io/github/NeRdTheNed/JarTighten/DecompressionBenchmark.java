@@ -0,0 +1,92 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import software.coley.lljzip.ZipIO;
+import software.coley.lljzip.format.compression.ZipCompressions;
+import software.coley.lljzip.format.model.CentralDirectoryFileHeader;
+import software.coley.lljzip.format.model.LocalFileHeader;
+import software.coley.lljzip.format.model.ZipArchive;
+import software.coley.lljzip.util.ByteDataUtil;
+
+/**
+ * Compares the throughput of each decompression backend, with and without computing CRC32s while inflating,
+ * on a synthetic class-heavy jar and a synthetic resource-heavy jar.
+ * Usage: DecompressionBenchmark [iterations]
+ */
+public final class DecompressionBenchmark {
+    private DecompressionBenchmark() {
+        // Only used as an entry point
+    }
+
+    /** A deflated entry read into memory */
+    private static final class Entry {
+        final LocalFileHeader fileHeader;
+        final byte[] compressedData;
+        final int uncompressedSize;
+
+        Entry(LocalFileHeader fileHeader, byte[] compressedData, int uncompressedSize) {
+            this.fileHeader = fileHeader;
+            this.compressedData = compressedData;
+            this.uncompressedSize = uncompressedSize;
+        }
+    }
+
+    private static void benchmark(String name, Path jar, int iterations) throws Exception {
+        try
+            (final ZipArchive archive = ZipIO.readJvm(jar)) {
+            final List<Entry> entries = new ArrayList<>();
+            long totalSize = 0;
+
+            for (final LocalFileHeader fileHeader : archive.getLocalFiles()) {
+                if (fileHeader.getCompressionMethod() == ZipCompressions.DEFLATED) {
+                    // Entries written by ZipOutputStream only have sizes in the central directory
+                    final CentralDirectoryFileHeader cenDir = fileHeader.getLinkedDirectoryFileHeader();
+                    final int uncompressedSize = (int) (cenDir != null ? cenDir.getUncompressedSize() : fileHeader.getUncompressedSize());
+                    entries.add(new Entry(fileHeader, ByteDataUtil.toByteArray(fileHeader.getFileData()), uncompressedSize));
+                    totalSize += uncompressedSize;
+                }
+            }
+
+            System.out.printf("%s: %d deflated entries, %d bytes uncompressed, median of %d runs%n", name, entries.size(), totalSize, iterations);
+            final DecompressionBackend[] backends = { LljzipDecompressionBackend.INSTANCE, InflaterDecompressionBackend.shared() };
+            final String[] backendNames = { "lljzip", "inflater" };
+
+            for (int i = 0; i < backends.length; i++) {
+                final DecompressionBackend backend = backends[i];
+
+                for (final boolean computeCrc32 : new boolean[] { false, true }) {
+                    final long nanos = BenchmarkUtil.medianNanos(2, iterations, () -> {
+                        for (final Entry entry : entries) {
+                            backend.inflate(entry.fileHeader, entry.compressedData, entry.uncompressedSize, computeCrc32 ? new CRC32() : null);
+                        }
+                    });
+                    System.out.printf("  %-10s %-10s%s%n", backendNames[i], computeCrc32 ? "with CRC" : "", BenchmarkUtil.throughput(totalSize, nanos));
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        final Path tempDir = Files.createTempDirectory("JarTighten-benchmark-");
+        final Path classHeavy = tempDir.resolve("class-heavy.jar");
+        final Path resourceHeavy = tempDir.resolve("resource-heavy.jar");
+
+        try {
+            System.out.println("Generating synthetic jars...");
+            BenchmarkUtil.writeSyntheticJar(classHeavy, 20000, 0, 0);
+            BenchmarkUtil.writeSyntheticJar(resourceHeavy, 200, 16, 8 * 1024 * 1024);
+            benchmark("Class-heavy jar", classHeavy, iterations);
+            benchmark("Resource-heavy jar", resourceHeavy, iterations);
+        } finally {
+            Files.deleteIfExists(classHeavy);
+            Files.deleteIfExists(resourceHeavy);
+            Files.deleteIfExists(tempDir);
+        }
+    }
+}
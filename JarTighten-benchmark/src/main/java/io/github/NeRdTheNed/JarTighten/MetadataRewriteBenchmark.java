@@ -0,0 +1,88 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import com.github.NeRdTheNed.deft4j.util.compression.CompressionUtil.Strategy;
+
+/**
+ * Compares the throughput of rewriting jar metadata with a plain file copy,
+ * and with optimising the jar with recompression disabled.
+ * Usage: MetadataRewriteBenchmark [input jar] [iterations]. Generates a synthetic jar if no input is given.
+ */
+public final class MetadataRewriteBenchmark {
+    private MetadataRewriteBenchmark() {
+        // Only used as an entry point
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Path tempDir = Files.createTempDirectory("JarTighten-benchmark-");
+        final Path input;
+
+        if (args.length > 0) {
+            input = Paths.get(args[0]);
+        } else {
+            input = tempDir.resolve("synthetic.jar");
+            System.out.println("Generating synthetic jar...");
+            BenchmarkUtil.writeSyntheticJar(input, 20000, 8, 16 * 1024 * 1024);
+        }
+
+        final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        final Path output = tempDir.resolve("output.jar");
+        final long size = Files.size(input);
+        // Only header optimisations, no recompression
+        final JarTighten jarTighten = new JarTighten.Builder()
+                                     .mode(Strategy.SINGLE)
+                                     .removeTimestamps(true)
+                                     .removeComments(true)
+                                     .removeExtra(true)
+                                     .recompressJZlib(false)
+                                     .recompressStandard(false)
+                                     .recompressStore(false)
+                                     .sortEntries(true)
+                                     .recompressMultithread(false)
+                                     .recompressZopfliPasses(0)
+                                     .build();
+
+        try {
+            System.out.printf("Input: %s (%d bytes), median of %d runs%n", input, size, iterations);
+            final long copyNanos = BenchmarkUtil.medianNanos(1, iterations, () -> Files.copy(input, output, StandardCopyOption.REPLACE_EXISTING));
+            System.out.println("Files.copy              " + BenchmarkUtil.throughput(size, copyNanos));
+            final long transferNanos = BenchmarkUtil.medianNanos(1, iterations, () -> {
+                try
+                    (final FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+                            final FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    long position = 0;
+
+                    while (position < size) {
+                        position += in.transferTo(position, size - position, out);
+                    }
+                }
+            });
+            System.out.println("FileChannel.transferTo  " + BenchmarkUtil.throughput(size, transferNanos));
+            final long rewriteNanos = BenchmarkUtil.medianNanos(1, iterations, () -> jarTighten.rewriteMetadata(input, output, true));
+            System.out.println("rewriteMetadata         " + BenchmarkUtil.throughput(size, rewriteNanos));
+            final long optimiseNanos = BenchmarkUtil.medianNanos(1, iterations, () -> {
+                try
+                    (final OutputStream out = Files.newOutputStream(output)) {
+                    jarTighten.optimiseJar(input, out);
+                }
+            });
+            System.out.println("optimiseJar             " + BenchmarkUtil.throughput(size, optimiseNanos));
+            System.out.printf("rewriteMetadata runs at %.0f%% of Files.copy throughput%n", (100.0 * copyNanos) / rewriteNanos);
+        } finally {
+            Files.deleteIfExists(output);
+
+            if (args.length == 0) {
+                Files.deleteIfExists(input);
+            }
+
+            Files.deleteIfExists(tempDir);
+        }
+    }
+}
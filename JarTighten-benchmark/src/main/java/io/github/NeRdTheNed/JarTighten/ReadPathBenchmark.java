@@ -0,0 +1,309 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.jar.JarFile;
+
+import com.github.NeRdTheNed.deft4j.util.compression.CompressionUtil.Strategy;
+
+/**
+ * Measures how JarTighten's options affect reading the output jar at runtime.
+ * A synthetic application jar is tightened with each option set, then child JVMs measure
+ * the time to open it with JarFile, to load a list of classes with a URLClassLoader,
+ * the latency of reading random resources, and the time from starting the JVM to serving a first request.
+ * Each measurement runs in a fresh JVM, so results include cold start costs.
+ * Usage: ReadPathBenchmark [runs]
+ */
+public final class ReadPathBenchmark {
+    /** Number of classes in the synthetic application jar */
+    private static final int CLASSES = 3000;
+    /** Number of classes loaded, as an application loads a subset of its classes at startup */
+    private static final int LOADED_CLASSES = 1500;
+    /** Number of resources in the synthetic application jar */
+    private static final int RESOURCES = 400;
+    /** Number of random resource reads */
+    private static final int RESOURCE_READS = 2000;
+    /** Printed by child JVMs once they've served a first request */
+    private static final String READY = "READY";
+    /** Prefix of the line child JVMs print their results on */
+    private static final String RESULT = "RESULT ";
+
+    private ReadPathBenchmark() {
+        // Only used as an entry point
+    }
+
+    /** A way of producing the jar to measure */
+    private static final class OptionSet {
+        final String name;
+        /** If true, start from a jar with every entry stored */
+        final boolean storedInput;
+        /** Tightens the input jar, or null to measure the input jar */
+        final JarTighten jarTighten;
+
+        OptionSet(String name, boolean storedInput, JarTighten jarTighten) {
+            this.name = name;
+            this.storedInput = storedInput;
+            this.jarTighten = jarTighten;
+        }
+    }
+
+    private static JarTighten tighten(boolean recompress, boolean removeFileLength, boolean removeDirEntryLength, boolean removeFileNames, boolean removeEOCDInfo, boolean sortEntries, boolean zeroLocalFileHeaders) {
+        return new JarTighten.Builder()
+               .mode(Strategy.SINGLE)
+               .removeTimestamps(true)
+               .removeFileLength(removeFileLength)
+               .removeDirEntryLength(removeDirEntryLength)
+               .removeFileNames(removeFileNames)
+               .removeEOCDInfo(removeEOCDInfo)
+               .removeComments(true)
+               .removeExtra(true)
+               .recompressJZlib(recompress)
+               .recompressStandard(recompress)
+               .sortEntries(sortEntries)
+               .zeroLocalFileHeaders(zeroLocalFileHeaders)
+               .build();
+    }
+
+    private static List<OptionSet> optionSets() {
+        final List<OptionSet> optionSets = new ArrayList<>();
+        optionSets.add(new OptionSet("input, deflated", false, null));
+        optionSets.add(new OptionSet("input, stored", true, null));
+        optionSets.add(new OptionSet("recompressed", false, tighten(true, false, false, false, false, false, false)));
+        optionSets.add(new OptionSet("stored, headers only", true, tighten(false, false, false, false, false, false, false)));
+        optionSets.add(new OptionSet("-n remove file names", false, tighten(true, false, false, true, false, false, false)));
+        optionSets.add(new OptionSet("-l remove file length", false, tighten(true, true, false, false, false, false, false)));
+        optionSets.add(new OptionSet("-L remove dir entry length", false, tighten(true, false, true, false, false, false, false)));
+        optionSets.add(new OptionSet("-i remove EOCD info", false, tighten(true, false, false, false, true, false, false)));
+        optionSets.add(new OptionSet("-Z zero local headers", false, tighten(true, false, false, false, false, false, true)));
+        optionSets.add(new OptionSet("-S sort entries", false, tighten(true, false, false, false, false, true, false)));
+        optionSets.add(new OptionSet("all of the above", false, tighten(true, true, true, true, true, true, true)));
+        optionSets.add(new OptionSet("stored, all of the above", true, tighten(false, true, true, true, true, true, true)));
+        return optionSets;
+    }
+
+    /** Median results of the child JVMs for a jar */
+    private static final class Result {
+        final long startupNanos;
+        final long openNanos;
+        final long classesNanos;
+        final long resourceMedianNanos;
+        final long resourceP99Nanos;
+
+        Result(long startupNanos, long openNanos, long classesNanos, long resourceMedianNanos, long resourceP99Nanos) {
+            this.startupNanos = startupNanos;
+            this.openNanos = openNanos;
+            this.classesNanos = classesNanos;
+            this.resourceMedianNanos = resourceMedianNanos;
+            this.resourceP99Nanos = resourceP99Nanos;
+        }
+    }
+
+    /**
+     * Run a child JVM, and wait for it to exit.
+     *
+     * @param mode the child mode
+     * @param jar the jar to measure
+     * @param classList the file listing the classes to load
+     * @return the time from starting the JVM to it printing that it's ready, and the values it printed on its result line
+     * @throws IOException if the child JVM failed
+     */
+    private static long[] runChild(String mode, Path jar, Path classList) throws IOException, InterruptedException {
+        final String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        final ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), ReadPathBenchmark.class.getName(), "child", mode, jar.toString(), classList.toString());
+        builder.redirectErrorStream(true);
+        final long start = System.nanoTime();
+        final Process process = builder.start();
+        long readyNanos = -1;
+        long[] values = new long[0];
+        String lastLine = "";
+
+        try
+            (final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                if (READY.equals(line)) {
+                    readyNanos = System.nanoTime() - start;
+                } else if (line.startsWith(RESULT)) {
+                    values = Arrays.stream(line.substring(RESULT.length()).split(" ")).mapToLong(Long::parseLong).toArray();
+                } else {
+                    lastLine = line;
+                }
+            }
+        }
+
+        final int exitCode = process.waitFor();
+
+        if (exitCode != 0) {
+            throw new IOException("child JVM exited with " + exitCode + ": " + lastLine);
+        }
+
+        final long[] result = new long[values.length + 1];
+        result[0] = readyNanos;
+        System.arraycopy(values, 0, result, 1, values.length);
+        return result;
+    }
+
+    private static long median(long[] values) {
+        final long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static Result measure(Path jar, Path classList, int runs) throws IOException, InterruptedException {
+        final long[][] values = new long[5][runs];
+
+        for (int i = 0; i < runs; i++) {
+            values[0][i] = runChild("startup", jar, classList)[0];
+            final long[] measured = runChild("measure", jar, classList);
+
+            for (int j = 1; j < values.length; j++) {
+                values[j][i] = measured[j];
+            }
+        }
+
+        return new Result(median(values[0]), median(values[1]), median(values[2]), median(values[3]), median(values[4]));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if ((args.length > 0) && "child".equals(args[0])) {
+            child(args[1], Paths.get(args[2]), Paths.get(args[3]));
+            return;
+        }
+
+        final int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        final Path tempDir = Files.createTempDirectory("JarTighten-benchmark-");
+        final Path deflatedInput = tempDir.resolve("input-deflated.jar");
+        final Path storedInput = tempDir.resolve("input-stored.jar");
+        final Path output = tempDir.resolve("output.jar");
+        final Path classList = tempDir.resolve("classes.txt");
+
+        try {
+            System.out.println("Generating synthetic application jars...");
+            final List<String> classNames = BenchmarkUtil.writeSyntheticApplicationJar(deflatedInput, CLASSES, RESOURCES, false);
+            BenchmarkUtil.writeSyntheticApplicationJar(storedInput, CLASSES, RESOURCES, true);
+            // Load the main class first, then other classes in a fixed random order
+            final List<String> loadedClasses = new ArrayList<>(classNames.subList(1, classNames.size()));
+            Collections.shuffle(loadedClasses, new Random(0x4A54));
+            loadedClasses.add(0, classNames.get(0));
+            Files.write(classList, loadedClasses.subList(0, LOADED_CLASSES), StandardCharsets.UTF_8);
+            System.out.printf("%d classes (%d loaded), %d resources (%d random reads), median of %d runs in fresh JVMs%n", CLASSES, LOADED_CLASSES, RESOURCES, RESOURCE_READS, runs);
+            System.out.printf("%-26s %10s %12s %10s %12s %12s %12s%n", "Options", "Size", "Startup ms", "Open ms", "Classes ms", "Read p50 us", "Read p99 us");
+
+            for (final OptionSet optionSet : optionSets()) {
+                final Path input = optionSet.storedInput ? storedInput : deflatedInput;
+                final Path jar;
+
+                if (optionSet.jarTighten == null) {
+                    jar = input;
+                } else {
+                    try
+                        (final OutputStream out = Files.newOutputStream(output)) {
+                        optionSet.jarTighten.optimiseJar(input, out);
+                    }
+
+                    jar = output;
+                }
+
+                try {
+                    final Result result = measure(jar, classList, runs);
+                    System.out.printf("%-26s %10d %12.1f %10.2f %12.1f %12.1f %12.1f%n", optionSet.name, Files.size(jar), result.startupNanos / 1_000_000.0, result.openNanos / 1_000_000.0, result.classesNanos / 1_000_000.0, result.resourceMedianNanos / 1_000.0, result.resourceP99Nanos / 1_000.0);
+                } catch (final IOException e) {
+                    System.out.printf("%-26s %10d failed: %s%n", optionSet.name, Files.size(jar), e.getMessage());
+                }
+            }
+        } finally {
+            Files.deleteIfExists(deflatedInput);
+            Files.deleteIfExists(storedInput);
+            Files.deleteIfExists(output);
+            Files.deleteIfExists(classList);
+            Files.deleteIfExists(tempDir);
+        }
+    }
+
+    private static byte[] readResource(ClassLoader loader, String name) throws IOException {
+        try
+            (final InputStream in = loader.getResourceAsStream(name)) {
+            if (in == null) {
+                throw new IOException("Missing resource " + name);
+            }
+
+            final byte[] buffer = new byte[8192];
+            int total = 0;
+            int read;
+
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+            }
+
+            return Arrays.copyOf(buffer, Math.min(total, 16));
+        }
+    }
+
+    /**
+     * Run a measurement in a child JVM.
+     * In startup mode, serves a first request: loads the main class, calls it, and reads a resource, then prints that it's ready.
+     * In measure mode, prints the time to open the jar, to load every listed class, and the median and 99th percentile resource read times, in nanoseconds.
+     */
+    private static void child(String mode, Path jar, Path classList) throws Exception {
+        final List<String> classNames = Files.readAllLines(classList, StandardCharsets.UTF_8);
+
+        if ("startup".equals(mode)) {
+            try
+                (final URLClassLoader loader = new URLClassLoader(new URL[] { jar.toUri().toURL() }, null)) {
+                final Object value = Class.forName(classNames.get(0), true, loader).getMethod("value").invoke(null);
+                readResource(loader, "assets/resource0.dat");
+                System.out.println(value.equals(classNames.get(0)) ? READY : "Unexpected value " + value);
+            }
+
+            return;
+        }
+
+        final long openStart = System.nanoTime();
+
+        try
+            (final JarFile jarFile = new JarFile(jar.toFile())) {
+            jarFile.getManifest();
+        }
+
+        final long openNanos = System.nanoTime() - openStart;
+        final long classesNanos;
+        final long[] readNanos = new long[RESOURCE_READS];
+
+        try
+            (final URLClassLoader loader = new URLClassLoader(new URL[] { jar.toUri().toURL() }, null)) {
+            final long classesStart = System.nanoTime();
+
+            for (final String className : classNames) {
+                Class.forName(className, true, loader);
+            }
+
+            classesNanos = System.nanoTime() - classesStart;
+            final Random random = new Random(0x4A54);
+
+            for (int i = 0; i < RESOURCE_READS; i++) {
+                final String name = "assets/resource" + random.nextInt(RESOURCES) + ".dat";
+                final long readStart = System.nanoTime();
+                readResource(loader, name);
+                readNanos[i] = System.nanoTime() - readStart;
+            }
+        }
+
+        Arrays.sort(readNanos);
+        System.out.println(RESULT + openNanos + " " + classesNanos + " " + readNanos[RESOURCE_READS / 2] + " " + readNanos[(RESOURCE_READS * 99) / 100]);
+    }
+}
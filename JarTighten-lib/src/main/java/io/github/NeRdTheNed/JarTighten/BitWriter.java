@@ -0,0 +1,121 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.util.Arrays;
+
+/** Writes bits into a growable buffer, least significant bit first as deflate streams are */
+final class BitWriter {
+    private byte[] buffer;
+    /** Number of complete bytes written */
+    private int length;
+    /** Bits not yet written to the buffer */
+    private long pending;
+    /** Number of bits not yet written to the buffer */
+    private int pendingCount;
+
+    BitWriter(int initialCapacity) {
+        buffer = new byte[Math.max(16, initialCapacity)];
+    }
+
+    private void ensureCapacity(int extra) {
+        if ((length + extra) > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+
+    /**
+     * Write bits.
+     *
+     * @param value the bits to write, in the low bits
+     * @param count number of bits to write, at most 32
+     */
+    void writeBits(long value, int count) {
+        pending |= (value & ((1L << count) - 1)) << pendingCount;
+        pendingCount += count;
+
+        if (pendingCount >= 32) {
+            ensureCapacity(4);
+            buffer[length++] = (byte) pending;
+            buffer[length++] = (byte) (pending >>> 8);
+            buffer[length++] = (byte) (pending >>> 16);
+            buffer[length++] = (byte) (pending >>> 24);
+            pending >>>= 32;
+            pendingCount -= 32;
+        }
+    }
+
+    private void flushWholeBytes() {
+        ensureCapacity(8);
+
+        while (pendingCount >= 8) {
+            buffer[length++] = (byte) pending;
+            pending >>>= 8;
+            pendingCount -= 8;
+        }
+    }
+
+    /** Pad with zero bits up to the next byte boundary. */
+    void alignToByte() {
+        flushWholeBytes();
+
+        if (pendingCount > 0) {
+            writeBits(0, 8 - pendingCount);
+            flushWholeBytes();
+        }
+    }
+
+    /**
+     * Write whole bytes. Must be aligned to a byte boundary.
+     *
+     * @param data the bytes to write
+     * @param offset the offset of the first byte
+     * @param count number of bytes to write
+     */
+    void writeBytes(byte[] data, int offset, int count) {
+        flushWholeBytes();
+
+        if (pendingCount != 0) {
+            throw new IllegalStateException("Not aligned to a byte boundary");
+        }
+
+        ensureCapacity(count);
+        System.arraycopy(data, offset, buffer, length, count);
+        length += count;
+    }
+
+    /**
+     * Copy a range of bits.
+     *
+     * @param source the bits to copy from
+     * @param startBit the bit offset of the first bit to copy
+     * @param endBit the bit offset after the last bit to copy
+     */
+    void copyBits(byte[] source, long startBit, long endBit) {
+        ensureCapacity((int) ((endBit - startBit) >>> 3) + 8);
+        long position = startBit;
+
+        while (position < endBit) {
+            final int count = (int) Math.min(32, endBit - position);
+            writeBits(readBits(source, position, count), count);
+            position += count;
+        }
+    }
+
+    private static long readBits(byte[] source, long position, int count) {
+        final int byteIndex = (int) (position >>> 3);
+        final int shift = (int) (position & 7);
+        final int bytes = (shift + count + 7) >>> 3;
+        long value = 0;
+
+        for (int i = 0; i < bytes; i++) {
+            value |= (long) (source[byteIndex + i] & 0xFF) << (8 * i);
+        }
+
+        return (value >>> shift) & ((1L << count) - 1);
+    }
+
+    /** @return the written bits, padded with zero bits to a whole number of bytes */
+    byte[] toByteArray() {
+        alignToByte();
+        return Arrays.copyOf(buffer, length);
+    }
+}
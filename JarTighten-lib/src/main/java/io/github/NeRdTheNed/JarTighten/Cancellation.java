@@ -0,0 +1,78 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cancels an optimisation, either when requested or after a timeout.
+ * Optimisations check for cancellation between entries and between compressors,
+ * and throw a {@link CancellationException} once cancelled.
+ * Cancellation is best-effort: a compressor which is already running (e.g. a zopfli or deflate stream optimisation pass on a large entry)
+ * isn't interrupted, so a call can finish some time after its timeout.
+ * Create a new instance for each call, as the timeout starts when the instance is created.
+ */
+public final class Cancellation {
+    /** Never cancelled */
+    public static final Cancellation NONE = new Cancellation(false, 0);
+
+    /** False if this can never be cancelled */
+    private final boolean cancellable;
+    /** Time this times out at, as a {@link System#nanoTime()} value, or 0 if it never times out */
+    private final long deadline;
+    /** True if cancelled */
+    private volatile boolean cancelled;
+
+    private Cancellation(boolean cancellable, long deadline) {
+        this.cancellable = cancellable;
+        this.deadline = deadline;
+    }
+
+    /** Creates a cancellation which is only cancelled when requested. */
+    public Cancellation() {
+        this(true, 0);
+    }
+
+    /**
+     * Creates a cancellation which is cancelled when requested, or after the given timeout.
+     *
+     * @param timeout the timeout, starting now
+     * @param unit the unit of the timeout
+     * @return the cancellation
+     */
+    public static Cancellation withTimeout(long timeout, TimeUnit unit) {
+        // 0 means no deadline
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        return new Cancellation(true, deadline != 0 ? deadline : 1);
+    }
+
+    /** Request cancellation. Does nothing for {@link #NONE}. */
+    public void cancel() {
+        if (cancellable) {
+            cancelled = true;
+        }
+    }
+
+    private boolean isTimedOut() {
+        return (deadline != 0) && ((System.nanoTime() - deadline) >= 0);
+    }
+
+    /** @return true if cancellation was requested or the timeout has passed */
+    public boolean isCancelled() {
+        return cancelled || isTimedOut();
+    }
+
+    /**
+     * Throw an exception if cancelled.
+     *
+     * @throws CancellationException if cancellation was requested or the timeout has passed
+     */
+    public void check() {
+        if (cancelled) {
+            throw new CancellationException("Optimisation was cancelled");
+        }
+
+        if (isTimedOut()) {
+            throw new CancellationException("Optimisation timed out");
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses large files in parallel, in the same way as pigz.
+ * The data is split into chunks which are compressed concurrently, and the chunks are joined into one deflate stream.
+ * Each chunk is compressed with every enabled compressor. If the standard Java deflate implementation is enabled,
+ * each chunk is also compressed with it primed with the data before the chunk, so matches can cross chunk boundaries.
+ * The smallest output is used for each chunk.
+ * Joined streams are usually slightly larger than compressing the whole file at once, so if the standard Java deflate implementation is enabled,
+ * the whole file is also compressed with it at once, to be compared with the joined stream.
+ */
+final class ChunkedCompressor {
+    /** Minimum size of each chunk, in bytes */
+    private static final int MIN_CHUNK_SIZE = 1024 * 1024;
+    /** Number of chunks to aim for per thread, so threads finishing early can take more work */
+    private static final int CHUNKS_PER_THREAD = 2;
+
+    /** Compresses a chunk with every enabled compressor */
+    @FunctionalInterface
+    interface ChunkEncoder {
+        /**
+         * @param chunk the uncompressed chunk
+         * @return the output of each compressor, which may contain nulls for compressors which failed
+         */
+        List<byte[]> compress(byte[] chunk) throws IOException;
+    }
+
+    private final ThreadGovernor governor;
+    /** If true, also compress each chunk primed with the data before it, and the whole file at once, with the standard Java deflate implementation */
+    private final boolean useStandard;
+    /** Stream to print warnings and errors to */
+    private final PrintStream log;
+
+    /**
+     * @param governor the governor to compress chunks in parallel with
+     * @param useStandard if true, also compress each chunk primed with the data before it, and the whole file at once, with the standard Java deflate implementation
+     * @param log stream to print warnings and errors to
+     */
+    ChunkedCompressor(ThreadGovernor governor, boolean useStandard, PrintStream log) {
+        this.governor = governor;
+        this.useStandard = useStandard;
+        this.log = log;
+    }
+
+    /** The smallest output for a chunk */
+    private static final class Chunk {
+        final byte[] compressedData;
+        final List<DeflateBlocks.Block> blocks;
+        final long bits;
+
+        Chunk(byte[] compressedData, List<DeflateBlocks.Block> blocks, long bits) {
+            this.compressedData = compressedData;
+            this.blocks = blocks;
+            this.bits = bits;
+        }
+    }
+
+    /** The joined deflate stream, and the whole file compressed at once to compare it with */
+    static final class Result {
+        /** The joined deflate stream */
+        final byte[] joined;
+        /** The number of chunks the data was split into */
+        final int chunks;
+        /** The whole file compressed at once with the standard Java deflate implementation, or null if it isn't enabled */
+        final byte[] whole;
+
+        Result(byte[] joined, int chunks, byte[] whole) {
+            this.joined = joined;
+            this.chunks = chunks;
+            this.whole = whole;
+        }
+    }
+
+    /**
+     * Get the size of each chunk for data of the given size.
+     *
+     * @param size the size of the data
+     * @return the chunk size
+     */
+    int chunkSize(int size) {
+        final long chunks = (long) governor.getThreads() * CHUNKS_PER_THREAD;
+        return (int) Math.max(MIN_CHUNK_SIZE, (size + chunks - 1) / chunks);
+    }
+
+    /**
+     * Compress data in chunks in parallel.
+     *
+     * @param uncompressedData the data to compress
+     * @param encoder compresses each chunk with every enabled compressor
+     * @param cancellation cancels compressing the data
+     * @return the joined deflate stream and the whole file compressed at once if enabled, or null if the data fits in one chunk or the joined stream wasn't valid
+     */
+    Result compress(byte[] uncompressedData, ChunkEncoder encoder, Cancellation cancellation) throws IOException, ExecutionException {
+        final int chunkSize = chunkSize(uncompressedData.length);
+
+        if (uncompressedData.length <= chunkSize) {
+            return null;
+        }
+
+        // Compressing the whole file at once can't be split, so start it before the chunks
+        final ForkJoinTask<byte[]> wholeTask = useStandard ? governor.submit(() -> deflatePrimed(uncompressedData, 0, uncompressedData.length)) : null;
+        final List<Callable<Chunk>> tasks = new ArrayList<>();
+
+        for (int start = 0; start < uncompressedData.length; start += chunkSize) {
+            final int chunkStart = start;
+            final int chunkEnd = Math.min(uncompressedData.length, start + chunkSize);
+            tasks.add(() -> {
+                cancellation.check();
+                return compressChunk(uncompressedData, chunkStart, chunkEnd, encoder);
+            });
+        }
+
+        final List<Chunk> chunks;
+
+        try {
+            chunks = governor.invokeAll(tasks);
+        } catch (final ExecutionException e) {
+            // Don't start compressing the whole file if compressing a chunk failed
+            if (wholeTask != null) {
+                wholeTask.cancel(false);
+            }
+
+            throw e;
+        }
+
+        long bits = 0;
+
+        for (final Chunk chunk : chunks) {
+            bits += chunk.bits;
+        }
+
+        final BitWriter out = new BitWriter((int) (bits >>> 3) + 16);
+
+        for (int i = 0; i < chunks.size(); i++) {
+            final Chunk chunk = chunks.get(i);
+            final boolean lastChunk = i == (chunks.size() - 1);
+
+            for (int j = 0; j < chunk.blocks.size(); j++) {
+                DeflateBlocks.writeBlock(out, chunk.compressedData, chunk.blocks.get(j), lastChunk && (j == (chunk.blocks.size() - 1)));
+            }
+        }
+
+        final byte[] joined = out.toByteArray();
+        boolean valid;
+
+        try {
+            valid = Arrays.equals(InflaterDecompressionBackend.shared().inflate(null, joined, uncompressedData.length, null), uncompressedData);
+        } catch (final IOException e) {
+            valid = false;
+        }
+
+        if (!valid) {
+            if (wholeTask != null) {
+                wholeTask.cancel(false);
+            }
+
+            return null;
+        }
+
+        return new Result(joined, chunks.size(), wholeTask != null ? ThreadGovernor.join(wholeTask) : null);
+    }
+
+    private Chunk compressChunk(byte[] uncompressedData, int start, int end, ChunkEncoder encoder) throws IOException {
+        final byte[] chunkData = Arrays.copyOfRange(uncompressedData, start, end);
+        final List<byte[]> candidates = new ArrayList<>(encoder.compress(chunkData));
+        final int firstPrimedCandidate = candidates.size();
+
+        if (useStandard && (start > 0)) {
+            candidates.add(deflatePrimed(uncompressedData, start, end));
+        }
+
+        Chunk smallest = null;
+
+        for (int i = 0; i < candidates.size(); i++) {
+            final byte[] candidate = candidates.get(i);
+
+            if (candidate == null) {
+                continue;
+            }
+
+            final List<DeflateBlocks.Block> blocks;
+
+            try {
+                // Only the primed candidate may refer back to the data before the chunk
+                blocks = DeflateBlocks.parse(candidate, i >= firstPrimedCandidate ? Math.min(start, DeflateBlocks.WINDOW_SIZE) : 0);
+            } catch (final DataFormatException e) {
+                // TODO Handle errors more gracefully
+                e.printStackTrace(log);
+                continue;
+            }
+
+            if (blocks.get(blocks.size() - 1).uncompressedEnd != chunkData.length) {
+                continue;
+            }
+
+            long bits = 0;
+
+            for (final DeflateBlocks.Block block : blocks) {
+                bits += block.sizeBits();
+            }
+
+            if ((smallest == null) || (bits < smallest.bits)) {
+                smallest = new Chunk(candidate, blocks, bits);
+            }
+        }
+
+        if (smallest == null) {
+            throw new IOException("Every compressor failed");
+        }
+
+        return smallest;
+    }
+
+    /** Compress a chunk with the standard Java deflate implementation, using the data before it as a preset dictionary. */
+    private static byte[] deflatePrimed(byte[] uncompressedData, int start, int end) {
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+
+        try {
+            final int windowStart = Math.max(0, start - DeflateBlocks.WINDOW_SIZE);
+
+            if (start > windowStart) {
+                deflater.setDictionary(uncompressedData, windowStart, start - windowStart);
+            }
+
+            deflater.setInput(uncompressedData, start, end - start);
+            deflater.finish();
+            byte[] output = new byte[(end - start) + ((end - start) >>> 3) + 64];
+            int length = 0;
+
+            while (!deflater.finished()) {
+                if (length == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+
+                length += deflater.deflate(output, length, output.length - length);
+            }
+
+            return Arrays.copyOf(output, length);
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+import software.coley.lljzip.format.model.LocalFileHeader;
+
+/** Inflates deflated entries before they're recompressed */
+public interface DecompressionBackend {
+    /**
+     * Inflate the data of a deflated entry.
+     * May be called from several threads at once, so only the given compressed data should be read, not the archive.
+     *
+     * @param fileHeader the local file header of the entry
+     * @param compressedData the compressed data of the entry
+     * @param uncompressedSize the expected uncompressed size, used to size the output buffer. May be 0 or wrong if unknown.
+     * @param crc32 if not null, updated with the uncompressed data while inflating
+     * @return the uncompressed data
+     */
+    byte[] inflate(LocalFileHeader fileHeader, byte[] compressedData, int uncompressedSize, CRC32 crc32) throws IOException;
+
+    /**
+     * Get a built-in backend by name.
+     *
+     * @param name the name of the backend, either lljzip or inflater
+     * @return the backend
+     */
+    static DecompressionBackend forName(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+        case "lljzip":
+            return LljzipDecompressionBackend.INSTANCE;
+
+        case "inflater":
+            return InflaterDecompressionBackend.shared();
+
+        default:
+            throw new IllegalArgumentException("Unknown decompressor " + name + ", valid values: lljzip, inflater");
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+/**
+ * Finds the blocks of a raw deflate stream, and writes blocks into new streams.
+ * Blocks are decoded to find where they end and how much data they produce, but their data isn't kept.
+ */
+final class DeflateBlocks {
+    /** Stored block type */
+    static final int TYPE_STORED = 0;
+    /** Maximum number of bits in a code */
+    private static final int MAX_BITS = 15;
+    /** Maximum back reference distance */
+    static final int WINDOW_SIZE = 32768;
+
+    private static final short[] LENGTH_BASE = { 3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258 };
+    private static final short[] LENGTH_EXTRA = { 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0 };
+    private static final short[] DIST_BASE = { 1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577 };
+    private static final short[] DIST_EXTRA = { 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13 };
+    /** Order code length code lengths are written in */
+    private static final short[] CODE_LENGTH_ORDER = { 16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15 };
+
+    private static final Huffman FIXED_LITERALS;
+    private static final Huffman FIXED_DISTANCES;
+
+    static {
+        final short[] lengths = new short[288];
+
+        for (int i = 0; i < 144; i++) {
+            lengths[i] = 8;
+        }
+
+        for (int i = 144; i < 256; i++) {
+            lengths[i] = 9;
+        }
+
+        for (int i = 256; i < 280; i++) {
+            lengths[i] = 7;
+        }
+
+        for (int i = 280; i < 288; i++) {
+            lengths[i] = 8;
+        }
+
+        FIXED_LITERALS = new Huffman(lengths, 288);
+        final short[] distLengths = new short[30];
+
+        for (int i = 0; i < 30; i++) {
+            distLengths[i] = 5;
+        }
+
+        FIXED_DISTANCES = new Huffman(distLengths, 30);
+    }
+
+    private DeflateBlocks() {
+        // Static helpers only
+    }
+
+    /** A block in a deflate stream */
+    static final class Block {
+        /** Bit offset of the block header */
+        final long startBit;
+        /** Bit offset after the end of the block */
+        final long endBit;
+        /** Block type */
+        final int type;
+        /** Offset of the data of a stored block, or -1 if the block isn't stored */
+        final int storedDataOffset;
+        /** Offset in the uncompressed data of the first byte this block produces */
+        final long uncompressedStart;
+        /** Offset in the uncompressed data after the last byte this block produces */
+        final long uncompressedEnd;
+
+        Block(long startBit, long endBit, int type, int storedDataOffset, long uncompressedStart, long uncompressedEnd) {
+            this.startBit = startBit;
+            this.endBit = endBit;
+            this.type = type;
+            this.storedDataOffset = storedDataOffset;
+            this.uncompressedStart = uncompressedStart;
+            this.uncompressedEnd = uncompressedEnd;
+        }
+
+        /** @return the size of the block in bits */
+        long sizeBits() {
+            return endBit - startBit;
+        }
+    }
+
+    /** Canonical Huffman decoding table */
+    private static final class Huffman {
+        /** Number of codes of each length */
+        final short[] count = new short[MAX_BITS + 1];
+        /** Symbols ordered by code */
+        final short[] symbol;
+
+        Huffman(short[] lengths, int n) {
+            symbol = new short[n];
+
+            for (int i = 0; i < n; i++) {
+                count[lengths[i]]++;
+            }
+
+            final short[] offsets = new short[MAX_BITS + 1];
+
+            for (int len = 1; len < MAX_BITS; len++) {
+                offsets[len + 1] = (short) (offsets[len] + count[len]);
+            }
+
+            for (int i = 0; i < n; i++) {
+                if (lengths[i] != 0) {
+                    symbol[offsets[lengths[i]]++] = (short) i;
+                }
+            }
+        }
+
+        /** @return true if the code lengths don't describe more codes than fit */
+        boolean isValid() {
+            int left = 1;
+
+            for (int len = 1; len <= MAX_BITS; len++) {
+                left <<= 1;
+                left -= count[len];
+
+                if (left < 0) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+
+    /** Reads bits from a deflate stream, least significant bit first */
+    private static final class BitReader {
+        private final byte[] data;
+        private int bytePos;
+        private long bitBuffer;
+        private int bitCount;
+
+        BitReader(byte[] data) {
+            this.data = data;
+        }
+
+        /** @return the current position in bits */
+        long position() {
+            return ((long) bytePos * 8) - bitCount;
+        }
+
+        int bits(int n) throws DataFormatException {
+            while (bitCount < n) {
+                if (bytePos >= data.length) {
+                    throw new DataFormatException("Unexpected end of deflate stream");
+                }
+
+                bitBuffer |= (long) (data[bytePos++] & 0xFF) << bitCount;
+                bitCount += 8;
+            }
+
+            final int value = (int) (bitBuffer & ((1L << n) - 1));
+            bitBuffer >>>= n;
+            bitCount -= n;
+            return value;
+        }
+
+        /** Discard bits up to the next byte boundary */
+        void alignToByte() {
+            bitBuffer = 0;
+            bitCount = 0;
+        }
+
+        int decode(Huffman huffman) throws DataFormatException {
+            int code = 0;
+            int first = 0;
+            int index = 0;
+
+            for (int len = 1; len <= MAX_BITS; len++) {
+                code |= bits(1);
+                final int count = huffman.count[len];
+
+                if ((code - count) < first) {
+                    return huffman.symbol[index + (code - first)];
+                }
+
+                index += count;
+                first += count;
+                first <<= 1;
+                code <<= 1;
+            }
+
+            throw new DataFormatException("Invalid Huffman code");
+        }
+    }
+
+    /**
+     * Find the blocks of a raw deflate stream.
+     *
+     * @param data the deflate stream
+     * @return the blocks, in order
+     * @throws DataFormatException if the stream is invalid
+     */
+    static List<Block> parse(byte[] data) throws DataFormatException {
+        return parse(data, 0);
+    }
+
+    /**
+     * Find the blocks of a raw deflate stream compressed with a preset dictionary.
+     *
+     * @param data the deflate stream
+     * @param dictionaryLength the length of the preset dictionary, which the stream may refer back to
+     * @return the blocks, in order
+     * @throws DataFormatException if the stream is invalid
+     */
+    static List<Block> parse(byte[] data, int dictionaryLength) throws DataFormatException {
+        final List<Block> blocks = new ArrayList<>();
+        final BitReader in = new BitReader(data);
+        long uncompressed = 0;
+        boolean last;
+
+        do {
+            final long startBit = in.position();
+            last = in.bits(1) == 1;
+            final int type = in.bits(2);
+            final long uncompressedStart = uncompressed;
+            int storedDataOffset = -1;
+
+            switch (type) {
+            case TYPE_STORED:
+                in.alignToByte();
+                final int length = in.bits(16);
+
+                if (length != (~in.bits(16) & 0xFFFF)) {
+                    throw new DataFormatException("Stored block length doesn't match its complement");
+                }
+
+                storedDataOffset = (int) (in.position() >>> 3);
+
+                if ((storedDataOffset + length) > data.length) {
+                    throw new DataFormatException("Unexpected end of deflate stream");
+                }
+
+                in.bytePos = storedDataOffset + length;
+                uncompressed += length;
+                break;
+
+            case 1:
+                uncompressed = decodeCodes(in, FIXED_LITERALS, FIXED_DISTANCES, uncompressed, dictionaryLength);
+                break;
+
+            case 2:
+                uncompressed = decodeDynamic(in, uncompressed, dictionaryLength);
+                break;
+
+            default:
+                throw new DataFormatException("Invalid block type");
+            }
+
+            blocks.add(new Block(startBit, in.position(), type, storedDataOffset, uncompressedStart, uncompressed));
+        } while (!last);
+
+        return blocks;
+    }
+
+    private static long decodeDynamic(BitReader in, long uncompressed, int dictionaryLength) throws DataFormatException {
+        final int literalCount = in.bits(5) + 257;
+        final int distanceCount = in.bits(5) + 1;
+        final int codeLengthCount = in.bits(4) + 4;
+
+        if ((literalCount > 286) || (distanceCount > 30)) {
+            throw new DataFormatException("Too many codes");
+        }
+
+        final short[] lengths = new short[literalCount + distanceCount];
+
+        for (int i = 0; i < codeLengthCount; i++) {
+            lengths[CODE_LENGTH_ORDER[i]] = (short) in.bits(3);
+        }
+
+        final Huffman codeLengths = new Huffman(lengths, 19);
+
+        if (!codeLengths.isValid()) {
+            throw new DataFormatException("Invalid code length codes");
+        }
+
+        int index = 0;
+        java.util.Arrays.fill(lengths, (short) 0);
+
+        while (index < (literalCount + distanceCount)) {
+            final int symbol = in.decode(codeLengths);
+
+            if (symbol < 16) {
+                lengths[index++] = (short) symbol;
+            } else {
+                short repeated = 0;
+                final int repeat;
+
+                if (symbol == 16) {
+                    if (index == 0) {
+                        throw new DataFormatException("Repeat with no previous length");
+                    }
+
+                    repeated = lengths[index - 1];
+                    repeat = 3 + in.bits(2);
+                } else if (symbol == 17) {
+                    repeat = 3 + in.bits(3);
+                } else {
+                    repeat = 11 + in.bits(7);
+                }
+
+                if ((index + repeat) > (literalCount + distanceCount)) {
+                    throw new DataFormatException("Too many code lengths");
+                }
+
+                for (int i = 0; i < repeat; i++) {
+                    lengths[index++] = repeated;
+                }
+            }
+        }
+
+        if (lengths[256] == 0) {
+            throw new DataFormatException("No end of block code");
+        }
+
+        final Huffman literals = new Huffman(lengths, literalCount);
+        final short[] distanceLengths = java.util.Arrays.copyOfRange(lengths, literalCount, literalCount + distanceCount);
+        final Huffman distances = new Huffman(distanceLengths, distanceCount);
+
+        if (!literals.isValid() || !distances.isValid()) {
+            throw new DataFormatException("Invalid codes");
+        }
+
+        return decodeCodes(in, literals, distances, uncompressed, dictionaryLength);
+    }
+
+    private static long decodeCodes(BitReader in, Huffman literals, Huffman distances, long uncompressed, int dictionaryLength) throws DataFormatException {
+        while (true) {
+            final int symbol = in.decode(literals);
+
+            if (symbol < 256) {
+                uncompressed++;
+            } else if (symbol == 256) {
+                return uncompressed;
+            } else {
+                final int lengthSymbol = symbol - 257;
+
+                if (lengthSymbol >= LENGTH_BASE.length) {
+                    throw new DataFormatException("Invalid length code");
+                }
+
+                final int length = LENGTH_BASE[lengthSymbol] + in.bits(LENGTH_EXTRA[lengthSymbol]);
+                final int distanceSymbol = in.decode(distances);
+
+                if (distanceSymbol >= DIST_BASE.length) {
+                    throw new DataFormatException("Invalid distance code");
+                }
+
+                final int distance = DIST_BASE[distanceSymbol] + in.bits(DIST_EXTRA[distanceSymbol]);
+
+                if (distance > (uncompressed + dictionaryLength)) {
+                    throw new DataFormatException("Distance too far back");
+                }
+
+                uncompressed += length;
+            }
+        }
+    }
+
+    /**
+     * Write a block to a new stream. Stored blocks are written again, as their padding depends on where they start.
+     *
+     * @param out the stream to write to
+     * @param source the stream containing the block
+     * @param block the block
+     * @param last if true, mark the block as the last block
+     */
+    static void writeBlock(BitWriter out, byte[] source, Block block, boolean last) {
+        out.writeBits(last ? 1 : 0, 1);
+
+        if (block.type == TYPE_STORED) {
+            final int length = (int) (block.uncompressedEnd - block.uncompressedStart);
+            writeStoredBody(out, source, block.storedDataOffset, length);
+        } else {
+            out.copyBits(source, block.startBit + 1, block.endBit);
+        }
+    }
+
+    /**
+     * Write a stored block which isn't the last block.
+     *
+     * @param out the stream to write to
+     * @param data the data to store, at most 65535 bytes
+     */
+    static void writeStoredBlock(BitWriter out, byte[] data) {
+        out.writeBits(0, 1);
+        writeStoredBody(out, data, 0, data.length);
+    }
+
+    private static void writeStoredBody(BitWriter out, byte[] data, int offset, int length) {
+        out.writeBits(TYPE_STORED, 2);
+        out.alignToByte();
+        out.writeBits(length, 16);
+        out.writeBits(~length & 0xFFFF, 16);
+        out.writeBytes(data, offset, length);
+    }
+}
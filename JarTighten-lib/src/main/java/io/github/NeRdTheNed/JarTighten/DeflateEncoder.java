@@ -0,0 +1,36 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.io.IOException;
+
+/**
+ * An additional deflate encoder, found with {@link java.util.ServiceLoader}.
+ * Register implementations in {@code META-INF/services/io.github.NeRdTheNed.JarTighten.DeflateEncoder},
+ * then enable them by name with {@code --encoder} or {@code compressors=} in policy rules.
+ * Output from each enabled encoder is verified, then competes with the built-in compressors for the smallest output.
+ */
+public interface DeflateEncoder {
+    /** How long an encoder takes, used to decide when to run it */
+    enum Cost {
+        /** Comparable to standard deflate */
+        CHEAP,
+        /** Comparable to Zopfli */
+        EXPENSIVE
+    }
+
+    /** @return the name used to enable this encoder. Names of built-in compressors can't be used. */
+    String getName();
+
+    /** @return how long this encoder takes */
+    Cost getCost();
+
+    /** @return true if {@link #compress(byte[])} may be called from several threads at once */
+    boolean isThreadSafe();
+
+    /**
+     * Compress data.
+     *
+     * @param uncompressedData the data to compress
+     * @return the data as a raw deflate stream, without a zlib or gzip wrapper
+     */
+    byte[] compress(byte[] uncompressedData) throws IOException;
+}
@@ -0,0 +1,141 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.function.Supplier;
+
+import com.github.NeRdTheNed.deft4j.util.compression.CompressionUtil;
+
+/** Finds and runs deflate encoders */
+final class DeflateEncoders {
+    /** Names of the built-in compressors, which can't be used by other encoders */
+    static final List<String> BUILT_IN_NAMES = Collections.unmodifiableList(Arrays.asList("zopfli", "jzopfli", "jzlib", "standard"));
+
+    private DeflateEncoders() {
+        // Static helpers only
+    }
+
+    /** Encoders found with ServiceLoader, loaded when first used */
+    private static final class Loaded {
+        static final Map<String, DeflateEncoder> ENCODERS = load();
+
+        private static Map<String, DeflateEncoder> load() {
+            final Map<String, DeflateEncoder> encoders = new LinkedHashMap<>();
+
+            for (final DeflateEncoder encoder : ServiceLoader.load(DeflateEncoder.class, DeflateEncoder.class.getClassLoader())) {
+                final String name = encoder.getName().toLowerCase(Locale.ROOT);
+
+                // The first encoder found with each name is used
+                if (!BUILT_IN_NAMES.contains(name)) {
+                    encoders.putIfAbsent(name, encoder);
+                }
+            }
+
+            return encoders;
+        }
+    }
+
+    /**
+     * Find an encoder by name.
+     *
+     * @param name the name of the encoder
+     * @return the encoder
+     * @throws IllegalArgumentException if no encoder has the given name
+     */
+    static DeflateEncoder find(String name) {
+        final DeflateEncoder encoder = Loaded.ENCODERS.get(name.toLowerCase(Locale.ROOT));
+
+        if (encoder == null) {
+            throw new IllegalArgumentException("Unknown compressor " + name + ", valid values: " + String.join(", ", BUILT_IN_NAMES) + (Loaded.ENCODERS.isEmpty() ? "" : ", " + String.join(", ", Loaded.ENCODERS.keySet())));
+        }
+
+        return encoder;
+    }
+
+    /**
+     * Find encoders by name.
+     *
+     * @param names the names of the encoders
+     * @return the encoders
+     * @throws IllegalArgumentException if no encoder has one of the given names
+     */
+    static List<DeflateEncoder> find(List<String> names) {
+        final List<DeflateEncoder> encoders = new ArrayList<>(names.size());
+
+        for (final String name : names) {
+            final DeflateEncoder encoder = find(name);
+
+            if (!encoders.contains(encoder)) {
+                encoders.add(encoder);
+            }
+        }
+
+        return encoders;
+    }
+
+    /**
+     * Compress data with an encoder, verifying that the output decompresses to the input.
+     * Encoders which aren't thread-safe only compress one input at a time.
+     *
+     * @param encoder the encoder
+     * @param uncompressedData the data to compress
+     * @return the compressed data
+     */
+    static byte[] compress(DeflateEncoder encoder, byte[] uncompressedData) throws IOException {
+        final byte[] compressedData;
+
+        if (encoder.isThreadSafe()) {
+            compressedData = encoder.compress(uncompressedData);
+        } else {
+            synchronized (encoder) {
+                compressedData = encoder.compress(uncompressedData);
+            }
+        }
+
+        if (!(encoder instanceof BuiltIn) && !Arrays.equals(uncompressedData, InflaterDecompressionBackend.shared().inflate(null, compressedData, uncompressedData.length, null))) {
+            throw new IOException("Encoder " + encoder.getName() + " produced output which doesn't decompress to its input");
+        }
+
+        return compressedData;
+    }
+
+    /** A built-in compressor, which initialises its compressor library when first used */
+    static final class BuiltIn implements DeflateEncoder {
+        private final String name;
+        private final Cost cost;
+        private final Lazy<CompressionUtil> compressionUtil;
+
+        BuiltIn(String name, Cost cost, Supplier<CompressionUtil> compressionUtil) {
+            this.name = name;
+            this.cost = cost;
+            this.compressionUtil = new Lazy<>(compressionUtil);
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public Cost getCost() {
+            return cost;
+        }
+
+        @Override
+        public boolean isThreadSafe() {
+            return true;
+        }
+
+        @Override
+        public byte[] compress(byte[] uncompressedData) throws IOException {
+            return compressionUtil.get().compress(uncompressedData, false);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import com.github.NeRdTheNed.deft4j.util.compression.CompressionUtil;
+import com.github.NeRdTheNed.deft4j.util.compression.CompressionUtil.Strategy;
+
+/** The optimisation settings for an entry, after applying any matching policy rules to the default settings */
+final class EntryPolicy {
+    /** Recompress files with CafeUndZopfli, uses compressed output if smaller */
+    final boolean recompressZopfli;
+    /** Recompress files with jzopfli, uses compressed output if smaller */
+    final boolean recompressJZopfli;
+    /** Recompress files with JZlib, uses compressed output if smaller */
+    final boolean recompressJZlib;
+    /** Recompress files with standard Java deflate implementation, uses compressed output if smaller */
+    final boolean recompressStandard;
+    /** Check uncompressed size, stores uncompressed if smaller */
+    final boolean recompressStore;
+    /** Determines which compression strategies are run for each compressor */
+    final Strategy mode;
+    /** Zopfli iterations */
+    final int recompressZopfliPasses;
+    /** Remove file length from local file headers */
+    final boolean removeFileLength;
+    /** Remove file length from central directory entries */
+    final boolean removeDirEntryLength;
+    /** Remove file names from local file headers */
+    final boolean removeFileNames;
+    /** Alignment in bytes of the data of stored files, or 0 or 1 to not align them */
+    final int alignment;
+    /** Enabled encoders other than the built-in compressors */
+    final List<DeflateEncoder> extraEncoders;
+    /** True if any built-in deflate compressor is enabled */
+    final boolean recompressBuiltIn;
+    /** True if any deflate compressor is enabled */
+    final boolean recompressDeflate;
+    /** Compressor for the enabled built-in deflate compressors, created when first used */
+    private final Lazy<CompressionUtil> compressionUtil;
+    /** An encoder for each enabled deflate compressor, to run in parallel, with expensive encoders first */
+    final List<DeflateEncoder> encoders;
+    /** Encoded settings recorded in fingerprints, or null if entries can't be fingerprinted because other encoders are enabled or the mode is unknown */
+    final byte[] fingerprintSettings;
+    /** Description of every setting which affects how entries are compressed, used as part of result cache keys */
+    final String compressionSettings;
+
+    EntryPolicy(boolean recompressZopfli, boolean recompressJZopfli, boolean recompressJZlib, boolean recompressStandard, boolean recompressStore, Strategy mode, int recompressZopfliPasses, boolean removeFileLength, boolean removeDirEntryLength, boolean removeFileNames, boolean recursiveStore, boolean optimiseDeflateStreamExisting, boolean optimiseDeflateStreamRecompress, boolean compareDeflateStreamBits, boolean mergeBlocks, List<DeflateEncoder> extraEncoders, int alignment) {
+        this.recompressZopfli = recompressZopfli;
+        this.recompressJZopfli = recompressJZopfli;
+        this.recompressJZlib = recompressJZlib;
+        this.recompressStandard = recompressStandard;
+        this.recompressStore = recompressStore;
+        this.mode = mode;
+        this.recompressZopfliPasses = recompressZopfliPasses;
+        this.removeFileLength = removeFileLength;
+        this.removeDirEntryLength = removeDirEntryLength;
+        this.removeFileNames = removeFileNames;
+        this.extraEncoders = extraEncoders;
+        this.alignment = checkAlignment(alignment);
+        recompressBuiltIn = recompressStandard || recompressZopfli || recompressJZopfli || recompressJZlib;
+        recompressDeflate = recompressBuiltIn || !extraEncoders.isEmpty();
+        // Compressor libraries are only initialised once an entry needs them, as most runs on small jars never use some of them
+        compressionUtil = new Lazy<>(() -> new CompressionUtil(recompressStandard, recompressJZlib, recompressJZopfli, recompressZopfli, recompressZopfliPasses, mode, optimiseDeflateStreamRecompress, compareDeflateStreamBits, mergeBlocks));
+        encoders = new ArrayList<>();
+
+        if (recompressZopfli) {
+            encoders.add(new DeflateEncoders.BuiltIn("zopfli", DeflateEncoder.Cost.EXPENSIVE, () -> new CompressionUtil(false, false, false, true, recompressZopfliPasses, mode, optimiseDeflateStreamRecompress, compareDeflateStreamBits, mergeBlocks)));
+        }
+
+        if (recompressJZopfli) {
+            encoders.add(new DeflateEncoders.BuiltIn("jzopfli", DeflateEncoder.Cost.EXPENSIVE, () -> new CompressionUtil(false, false, true, false, recompressZopfliPasses, mode, optimiseDeflateStreamRecompress, compareDeflateStreamBits, mergeBlocks)));
+        }
+
+        if (recompressStandard) {
+            encoders.add(new DeflateEncoders.BuiltIn("standard", DeflateEncoder.Cost.CHEAP, () -> new CompressionUtil(true, false, false, false, recompressZopfliPasses, mode, optimiseDeflateStreamRecompress, compareDeflateStreamBits, mergeBlocks)));
+        }
+
+        if (recompressJZlib) {
+            encoders.add(new DeflateEncoders.BuiltIn("jzlib", DeflateEncoder.Cost.CHEAP, () -> new CompressionUtil(false, true, false, false, recompressZopfliPasses, mode, optimiseDeflateStreamRecompress, compareDeflateStreamBits, mergeBlocks)));
+        }
+
+        encoders.addAll(extraEncoders);
+        // Start expensive encoders first, so cheap encoders run alongside them instead of after them
+        encoders.sort(Comparator.comparing(encoder -> encoder.getCost() != DeflateEncoder.Cost.EXPENSIVE));
+        final StringBuilder extraEncoderNames = new StringBuilder();
+
+        for (final DeflateEncoder encoder : extraEncoders) {
+            extraEncoderNames.append(extraEncoderNames.length() == 0 ? "" : ",").append(encoder.getName());
+        }
+
+        fingerprintSettings = !extraEncoders.isEmpty() ? null : Fingerprint.settings(recompressZopfli, recompressJZopfli, recompressJZlib, recompressStandard, recompressStore, mode, recompressZopfliPasses, recursiveStore, optimiseDeflateStreamExisting, optimiseDeflateStreamRecompress, compareDeflateStreamBits, mergeBlocks);
+        compressionSettings = "zopfli=" + recompressZopfli + ",jzopfli=" + recompressJZopfli + ",jzlib=" + recompressJZlib + ",standard=" + recompressStandard + ",store=" + recompressStore + ",recursiveStore=" + recursiveStore + ",mode=" + mode + ",passes=" + recompressZopfliPasses + ",optimiseExisting=" + optimiseDeflateStreamExisting + ",optimiseRecompress=" + optimiseDeflateStreamRecompress + ",compareBits=" + compareDeflateStreamBits + ",mergeBlocks=" + mergeBlocks + ",encoders=" + extraEncoderNames;
+    }
+
+    /** @return the compressor for the enabled built-in deflate compressors */
+    CompressionUtil compressionUtil() {
+        return compressionUtil.get();
+    }
+
+    /**
+     * Check that an alignment is valid.
+     *
+     * @param alignment the alignment in bytes
+     * @return the alignment
+     * @throws IllegalArgumentException if the alignment isn't 0 or a power of two up to 32768
+     */
+    static int checkAlignment(int alignment) {
+        if ((alignment < 0) || (alignment > 32768) || ((alignment & (alignment - 1)) != 0)) {
+            throw new IllegalArgumentException("Alignment must be 0 or a power of two up to 32768, was " + alignment);
+        }
+
+        return alignment;
+    }
+}
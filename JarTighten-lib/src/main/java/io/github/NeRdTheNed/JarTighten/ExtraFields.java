@@ -0,0 +1,129 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.util.Arrays;
+
+/** Helpers for reading and writing fields in zip extra data */
+final class ExtraFields {
+    /** Extra field header ID used by zipalign to pad local file headers */
+    static final int ALIGNMENT_HEADER_ID = 0xD935;
+    /** Length of the smallest alignment field: the header, and the 2 byte alignment */
+    private static final int MIN_ALIGNMENT_FIELD_LENGTH = 6;
+    /** Maximum length of extra data */
+    private static final int MAX_EXTRA_LENGTH = 0xFFFF;
+
+    private ExtraFields() {
+        // Static helpers only
+    }
+
+    /**
+     * Find a field in extra data.
+     *
+     * @param extra the extra data
+     * @param headerId the header ID of the field
+     * @return the data of the first field with the header ID, or null if there isn't one
+     */
+    static byte[] find(byte[] extra, int headerId) {
+        int pos = 0;
+
+        while ((pos + 4) <= extra.length) {
+            final int id = (extra[pos] & 0xFF) | ((extra[pos + 1] & 0xFF) << 8);
+            final int length = (extra[pos + 2] & 0xFF) | ((extra[pos + 3] & 0xFF) << 8);
+
+            if ((pos + 4 + length) > extra.length) {
+                break;
+            }
+
+            if (id == headerId) {
+                return Arrays.copyOfRange(extra, pos + 4, pos + 4 + length);
+            }
+
+            pos += 4 + length;
+        }
+
+        return null;
+    }
+
+    /**
+     * Remove every field with a header ID from extra data.
+     *
+     * @param extra the extra data
+     * @param headerId the header ID of the fields to remove
+     * @return the extra data without the fields
+     */
+    static byte[] strip(byte[] extra, int headerId) {
+        final byte[] stripped = new byte[extra.length];
+        int pos = 0;
+        int strippedLength = 0;
+
+        while (pos < extra.length) {
+            if ((pos + 4) > extra.length) {
+                // Keep trailing data which isn't a complete field as it is
+                System.arraycopy(extra, pos, stripped, strippedLength, extra.length - pos);
+                strippedLength += extra.length - pos;
+                break;
+            }
+
+            final int id = (extra[pos] & 0xFF) | ((extra[pos + 1] & 0xFF) << 8);
+            final int fieldLength = Math.min(4 + ((extra[pos + 2] & 0xFF) | ((extra[pos + 3] & 0xFF) << 8)), extra.length - pos);
+
+            if (id != headerId) {
+                System.arraycopy(extra, pos, stripped, strippedLength, fieldLength);
+                strippedLength += fieldLength;
+            }
+
+            pos += fieldLength;
+        }
+
+        return strippedLength == extra.length ? extra : Arrays.copyOf(stripped, strippedLength);
+    }
+
+    /**
+     * Append a field to extra data.
+     *
+     * @param extra the extra data
+     * @param headerId the header ID of the field
+     * @param data the data of the field
+     * @return the extra data with the field
+     */
+    static byte[] append(byte[] extra, int headerId, byte[] data) {
+        final byte[] appended = Arrays.copyOf(extra, extra.length + 4 + data.length);
+        appended[extra.length] = (byte) headerId;
+        appended[extra.length + 1] = (byte) (headerId >>> 8);
+        appended[extra.length + 2] = (byte) data.length;
+        appended[extra.length + 3] = (byte) (data.length >>> 8);
+        System.arraycopy(data, 0, appended, extra.length + 4, data.length);
+        return appended;
+    }
+
+    /**
+     * Pad extra data with an alignment field in the same format as zipalign,
+     * so that the data following it starts at a multiple of the alignment.
+     * Any existing alignment fields should be removed first.
+     *
+     * @param extra the extra data
+     * @param extraOffset the offset the extra data is written at
+     * @param alignment the alignment in bytes
+     * @return the padded extra data, or the extra data as it is if it's already aligned or can't be aligned
+     */
+    static byte[] align(byte[] extra, long extraOffset, int alignment) {
+        final long dataOffset = extraOffset + extra.length;
+        int padding = (int) ((alignment - (dataOffset % alignment)) % alignment);
+
+        if (padding == 0) {
+            return extra;
+        }
+
+        while (padding < MIN_ALIGNMENT_FIELD_LENGTH) {
+            padding += alignment;
+        }
+
+        if ((extra.length + padding) > MAX_EXTRA_LENGTH) {
+            return extra;
+        }
+
+        final byte[] data = new byte[padding - 4];
+        data[0] = (byte) alignment;
+        data[1] = (byte) (alignment >>> 8);
+        return append(extra, ALIGNMENT_HEADER_ID, data);
+    }
+}
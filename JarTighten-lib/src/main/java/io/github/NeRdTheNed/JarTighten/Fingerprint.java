@@ -0,0 +1,212 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import com.github.NeRdTheNed.deft4j.util.compression.CompressionUtil.Strategy;
+
+/**
+ * Records the settings an entry was optimised with in a central directory extra field,
+ * so that later runs can skip entries which were already optimised with settings at least as strong.
+ * The field also records a checksum of the entry's CRC32, sizes and compression method,
+ * so entries changed by other tools aren't skipped, without reading their compressed data.
+ */
+final class Fingerprint {
+    /** Extra field header ID ("JT") */
+    static final int HEADER_ID = 0x544A;
+    /** Length of the settings part of a fingerprint */
+    private static final int SETTINGS_LENGTH = 4;
+    /** Length of a fingerprint, without the extra field header */
+    static final int DATA_LENGTH = SETTINGS_LENGTH + 4;
+    /** Version of the fingerprint format, stored in the upper bits of the flags byte. Version 1 checksummed the compressed data. */
+    private static final int VERSION = 2;
+
+    private static final int COMPRESSOR_STANDARD = 1;
+    private static final int COMPRESSOR_JZLIB = 1 << 1;
+    private static final int COMPRESSOR_JZOPFLI = 1 << 2;
+    private static final int COMPRESSOR_ZOPFLI = 1 << 3;
+    private static final int COMPRESSOR_STORE = 1 << 4;
+    private static final int OPTIMISE_RECOMPRESSED = 1 << 5;
+    private static final int MERGE_BLOCKS = 1 << 6;
+    private static final int COMPARE_BITS = 1 << 7;
+    private static final int FLAG_OPTIMISE_EXISTING = 1 << 2;
+    private static final int FLAG_RECURSIVE_STORE = 1 << 3;
+    private static final int MODE_MASK = 3;
+
+    private Fingerprint() {
+        // Static helpers only
+    }
+
+    /**
+     * Get the strength of a mode, which doesn't depend on the order of {@link Strategy}.
+     *
+     * @param mode the mode
+     * @return the strength, or -1 if unknown
+     */
+    static int modeStrength(Strategy mode) {
+        switch (mode) {
+        case SINGLE:
+            return 0;
+
+        case MULTI_CHEAP:
+            return 1;
+
+        case EXTENSIVE:
+            return 2;
+
+        default:
+            return -1;
+        }
+    }
+
+    /**
+     * Encode the settings which affect how an entry is compressed.
+     *
+     * @return the encoded settings, or null if the settings can't be fingerprinted
+     */
+    static byte[] settings(boolean recompressZopfli, boolean recompressJZopfli, boolean recompressJZlib, boolean recompressStandard, boolean recompressStore, Strategy mode, int recompressZopfliPasses, boolean recursiveStore, boolean optimiseDeflateStreamExisting, boolean optimiseDeflateStreamRecompress, boolean compareDeflateStreamBits, boolean mergeBlocks) {
+        int compressors = 0;
+        compressors |= recompressStandard ? COMPRESSOR_STANDARD : 0;
+        compressors |= recompressJZlib ? COMPRESSOR_JZLIB : 0;
+        compressors |= recompressJZopfli ? COMPRESSOR_JZOPFLI : 0;
+        compressors |= recompressZopfli ? COMPRESSOR_ZOPFLI : 0;
+        compressors |= recompressStore ? COMPRESSOR_STORE : 0;
+        compressors |= optimiseDeflateStreamRecompress ? OPTIMISE_RECOMPRESSED : 0;
+        compressors |= mergeBlocks ? MERGE_BLOCKS : 0;
+        compressors |= compareDeflateStreamBits ? COMPARE_BITS : 0;
+        final int strength = modeStrength(mode);
+
+        if (strength < 0) {
+            return null;
+        }
+
+        int flags = strength & MODE_MASK;
+        flags |= optimiseDeflateStreamExisting ? FLAG_OPTIMISE_EXISTING : 0;
+        flags |= recursiveStore ? FLAG_RECURSIVE_STORE : 0;
+        flags |= VERSION << 4;
+        final int passes = Math.min(Math.max(recompressZopfliPasses, 0), 0xFFFF);
+        return new byte[] { (byte) compressors, (byte) flags, (byte) passes, (byte) (passes >>> 8) };
+    }
+
+    /**
+     * Create a fingerprint for an entry compressed with the given settings.
+     *
+     * @param settings the encoded settings
+     * @param crc32 the CRC32 of the uncompressed data
+     * @param compressedSize the compressed size
+     * @param uncompressedSize the uncompressed size
+     * @param compressionMethod the compression method
+     * @return the fingerprint
+     */
+    static byte[] create(byte[] settings, int crc32, int compressedSize, int uncompressedSize, int compressionMethod) {
+        final byte[] fingerprint = Arrays.copyOf(settings, DATA_LENGTH);
+        final int checksum = checksum(crc32, compressedSize, uncompressedSize, compressionMethod);
+        fingerprint[SETTINGS_LENGTH] = (byte) checksum;
+        fingerprint[SETTINGS_LENGTH + 1] = (byte) (checksum >>> 8);
+        fingerprint[SETTINGS_LENGTH + 2] = (byte) (checksum >>> 16);
+        fingerprint[SETTINGS_LENGTH + 3] = (byte) (checksum >>> 24);
+        return fingerprint;
+    }
+
+    /** Checksum the values of an entry which are recorded in the central directory */
+    private static int checksum(int crc32, int compressedSize, int uncompressedSize, int compressionMethod) {
+        final byte[] values = new byte[14];
+
+        for (int i = 0; i < 4; i++) {
+            values[i] = (byte) (crc32 >>> (i * 8));
+            values[4 + i] = (byte) (compressedSize >>> (i * 8));
+            values[8 + i] = (byte) (uncompressedSize >>> (i * 8));
+        }
+
+        values[12] = (byte) compressionMethod;
+        values[13] = (byte) (compressionMethod >>> 8);
+        final CRC32 checksum = new CRC32();
+        checksum.update(values);
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * Check if a recorded fingerprint was created with settings at least as strong as the given settings.
+     * Every compressor and option enabled in the given settings must have been enabled,
+     * with a mode at least as strong and at least as many zopfli iterations.
+     *
+     * @param recorded the recorded fingerprint
+     * @param settings the encoded current settings
+     * @return true if the recorded settings are at least as strong
+     */
+    static boolean isAtLeastAsStrong(byte[] recorded, byte[] settings) {
+        if (((recorded[1] & 0xFF) >>> 4) != VERSION) {
+            return false;
+        }
+
+        final int recordedCompressors = recorded[0] & 0xFF;
+        final int currentCompressors = settings[0] & 0xFF;
+        final int recordedFlags = recorded[1] & 0xFF & ~MODE_MASK;
+        final int currentFlags = settings[1] & 0xFF & ~MODE_MASK;
+
+        if (((recordedCompressors & currentCompressors) != currentCompressors) || ((recordedFlags & currentFlags) != currentFlags)) {
+            return false;
+        }
+
+        if ((recorded[1] & MODE_MASK) < (settings[1] & MODE_MASK)) {
+            return false;
+        }
+
+        if ((currentCompressors & (COMPRESSOR_ZOPFLI | COMPRESSOR_JZOPFLI)) != 0) {
+            final int recordedPasses = (recorded[2] & 0xFF) | ((recorded[3] & 0xFF) << 8);
+            final int currentPasses = (settings[2] & 0xFF) | ((settings[3] & 0xFF) << 8);
+            return recordedPasses >= currentPasses;
+        }
+
+        return true;
+    }
+
+    /**
+     * Check if a recorded fingerprint was created for an entry with the given values.
+     * Only needs the values from the central directory, so the compressed data isn't read.
+     *
+     * @param recorded the recorded fingerprint
+     * @param crc32 the CRC32 of the uncompressed data
+     * @param compressedSize the compressed size
+     * @param uncompressedSize the uncompressed size
+     * @param compressionMethod the compression method
+     * @return true if the checksum of the values matches
+     */
+    static boolean matchesEntry(byte[] recorded, int crc32, int compressedSize, int uncompressedSize, int compressionMethod) {
+        final int checksum = checksum(crc32, compressedSize, uncompressedSize, compressionMethod);
+        final int recordedChecksum = (recorded[SETTINGS_LENGTH] & 0xFF) | ((recorded[SETTINGS_LENGTH + 1] & 0xFF) << 8) | ((recorded[SETTINGS_LENGTH + 2] & 0xFF) << 16) | ((recorded[SETTINGS_LENGTH + 3] & 0xFF) << 24);
+        return checksum == recordedChecksum;
+    }
+
+    /**
+     * Find a fingerprint in an extra field.
+     *
+     * @param extra the extra field
+     * @return the fingerprint, or null if there isn't one
+     */
+    static byte[] find(byte[] extra) {
+        final byte[] fingerprint = ExtraFields.find(extra, HEADER_ID);
+        return (fingerprint != null) && (fingerprint.length == DATA_LENGTH) ? fingerprint : null;
+    }
+
+    /**
+     * Remove any fingerprints from an extra field.
+     *
+     * @param extra the extra field
+     * @return the extra field without fingerprints
+     */
+    static byte[] strip(byte[] extra) {
+        return ExtraFields.strip(extra, HEADER_ID);
+    }
+
+    /**
+     * Append a fingerprint to an extra field.
+     *
+     * @param extra the extra field, without any fingerprints
+     * @param fingerprint the fingerprint
+     * @return the extra field with the fingerprint
+     */
+    static byte[] append(byte[] extra, byte[] fingerprint) {
+        return ExtraFields.append(extra, HEADER_ID, fingerprint);
+    }
+}
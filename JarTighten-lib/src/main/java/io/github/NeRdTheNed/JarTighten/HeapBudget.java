@@ -0,0 +1,140 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A limit on the estimated heap used by entries being optimised at the same time.
+ * Entries only start if their estimated working set fits within the budget,
+ * and entries too large to fit only start once nothing else is running.
+ */
+public final class HeapBudget {
+    /** Budgets shared by every instance in this JVM, by limit */
+    private static final ConcurrentHashMap<Long, HeapBudget> SHARED = new ConcurrentHashMap<>();
+    /** Estimated extra heap used by each expensive compressor such as zopfli, per byte of input */
+    private static final int ZOPFLI_BYTES_PER_BYTE = 4;
+    /** Estimated fixed heap used by each compressor */
+    private static final long COMPRESSOR_OVERHEAD = 1024 * 1024;
+    /** Interval to check for cancellation while waiting, in milliseconds */
+    private static final long CANCELLATION_CHECK_MILLIS = 100;
+
+    /** Maximum estimated heap used by entries being optimised at the same time, in bytes */
+    private final long limit;
+    /** Estimated heap used by entries currently being optimised, in bytes */
+    private long used;
+    /** Number of threads waiting for their entry to fit */
+    private int waiting;
+
+    /**
+     * Creates a heap budget.
+     * Prefer {@link #shared(long)} to share the budget with other users of the same limit.
+     *
+     * @param limit maximum estimated heap used by entries being optimised at the same time, in bytes
+     */
+    public HeapBudget(long limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Heap budget must be positive, was " + limit);
+        }
+
+        this.limit = limit;
+    }
+
+    /**
+     * Get the heap budget for a limit shared by every user of the same limit in this JVM.
+     *
+     * @param limit maximum estimated heap used by entries being optimised at the same time, in bytes
+     * @return the shared heap budget
+     */
+    public static HeapBudget shared(long limit) {
+        return SHARED.computeIfAbsent(limit, HeapBudget::new);
+    }
+
+    /**
+     * Get a shared heap budget of half the maximum heap size of this JVM.
+     *
+     * @return the shared heap budget
+     */
+    public static HeapBudget automatic() {
+        return shared(Math.max(1, Runtime.getRuntime().maxMemory() / 2));
+    }
+
+    /** @return the maximum estimated heap used by entries being optimised at the same time, in bytes */
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Estimate the heap used while optimising an entry:
+     * the uncompressed and compressed data, and an output buffer and working memory for each enabled compressor.
+     * Expensive compressors are assumed to use as much working memory as zopfli.
+     *
+     * @param policy the settings for the entry
+     * @param uncompressedSize the uncompressed size of the entry
+     * @param compressedSize the compressed size of the entry
+     * @return the estimated heap used, in bytes
+     */
+    static long estimateWorkingSet(EntryPolicy policy, long uncompressedSize, long compressedSize) {
+        final long uncompressed = Math.max(0, uncompressedSize);
+        long estimate = uncompressed + Math.max(0, compressedSize);
+
+        for (final DeflateEncoder encoder : policy.encoders) {
+            estimate += uncompressed + COMPRESSOR_OVERHEAD;
+
+            if (encoder.getCost() == DeflateEncoder.Cost.EXPENSIVE) {
+                estimate += uncompressed * ZOPFLI_BYTES_PER_BYTE;
+            }
+        }
+
+        return estimate;
+    }
+
+    private boolean fits(long bytes) {
+        return (used == 0) || ((used + bytes) <= limit);
+    }
+
+    /**
+     * Reserve heap for an entry if it fits within the budget, and no other thread is waiting for its entry to fit.
+     *
+     * @param bytes the estimated heap used by the entry
+     * @return true if the heap was reserved
+     */
+    synchronized boolean tryAcquire(long bytes) {
+        if ((waiting == 0) && fits(bytes)) {
+            used += bytes;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Reserve heap for an entry, waiting until it fits within the budget or nothing else is running.
+     *
+     * @param bytes the estimated heap used by the entry
+     * @param cancellation cancels waiting
+     */
+    synchronized void acquire(long bytes, Cancellation cancellation) throws InterruptedException {
+        waiting++;
+
+        try {
+            while (!fits(bytes)) {
+                cancellation.check();
+                // Wake up periodically to check for cancellation
+                wait(CANCELLATION_CHECK_MILLIS);
+            }
+
+            used += bytes;
+        } finally {
+            waiting--;
+        }
+    }
+
+    /**
+     * Release heap reserved for an entry.
+     *
+     * @param bytes the estimated heap used by the entry
+     */
+    synchronized void release(long bytes) {
+        used -= bytes;
+        notifyAll();
+    }
+}
@@ -0,0 +1,147 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import software.coley.lljzip.format.model.LocalFileHeader;
+
+/**
+ * Inflates entries with pooled {@link Inflater}s, which use the JDK's native zlib.
+ * Output is written into a buffer sized from the expected uncompressed size,
+ * so entries with correct sizes are inflated without copying.
+ * The expected size isn't trusted for the first allocation, as it may be wrong
+ * (e.g. JarTighten writes {@link Integer#MAX_VALUE} when removing central directory lengths),
+ * so the buffer starts at most as large as the compressed data could inflate to and grows as it fills.
+ */
+public final class InflaterDecompressionBackend implements DecompressionBackend {
+    /** Backend shared by every user in this JVM */
+    private static final InflaterDecompressionBackend SHARED = new InflaterDecompressionBackend(Runtime.getRuntime().availableProcessors() * 2);
+    /** Initial output buffer size if the uncompressed size is unknown */
+    private static final int MIN_BUFFER_SIZE = 8192;
+    /** Largest initial output buffer size, larger entries grow the buffer while inflating */
+    private static final int MAX_INITIAL_BUFFER_SIZE = 64 * 1024 * 1024;
+    /** Largest ratio of uncompressed to compressed size a deflate stream can have */
+    private static final int MAX_DEFLATE_RATIO = 1032;
+    /** Largest array size which can be allocated on most VMs */
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    /** Maximum number of idle inflaters kept for reuse */
+    private final int maxPooled;
+    /** Idle inflaters */
+    private final ConcurrentLinkedQueue<Inflater> pool = new ConcurrentLinkedQueue<>();
+    /** Number of idle inflaters */
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * Creates a backend with its own pool of inflaters.
+     * Prefer {@link #shared()} to share inflaters with other users.
+     *
+     * @param maxPooled maximum number of idle inflaters kept for reuse
+     */
+    public InflaterDecompressionBackend(int maxPooled) {
+        this.maxPooled = maxPooled;
+    }
+
+    /** @return the backend shared by every user in this JVM */
+    public static InflaterDecompressionBackend shared() {
+        return SHARED;
+    }
+
+    /**
+     * Get the size of the first output buffer to inflate into.
+     *
+     * @param uncompressedSize the expected uncompressed size, may be 0 or wrong if unknown
+     * @param compressedLength the length of the compressed data
+     * @return the initial buffer size
+     */
+    static int initialBufferSize(int uncompressedSize, int compressedLength) {
+        if (uncompressedSize <= 0) {
+            return (int) Math.min(MAX_INITIAL_BUFFER_SIZE, Math.max(MIN_BUFFER_SIZE, compressedLength * 4L));
+        }
+
+        final long bound = Math.min(MAX_INITIAL_BUFFER_SIZE, Math.max(MIN_BUFFER_SIZE, compressedLength * (long) MAX_DEFLATE_RATIO));
+        return (int) Math.min(uncompressedSize, bound);
+    }
+
+    private Inflater borrow() {
+        final Inflater inflater = pool.poll();
+
+        if (inflater == null) {
+            return new Inflater(true);
+        }
+
+        pooled.decrementAndGet();
+        return inflater;
+    }
+
+    private void giveBack(Inflater inflater) {
+        if (pooled.incrementAndGet() <= maxPooled) {
+            inflater.reset();
+            pool.offer(inflater);
+        } else {
+            pooled.decrementAndGet();
+            // Free native memory now instead of waiting for the inflater to be collected
+            inflater.end();
+        }
+    }
+
+    @Override
+    public byte[] inflate(LocalFileHeader fileHeader, byte[] compressedData, int uncompressedSize, CRC32 crc32) throws IOException {
+        final Inflater inflater = borrow();
+
+        try {
+            inflater.setInput(compressedData);
+            byte[] output = new byte[initialBufferSize(uncompressedSize, compressedData.length)];
+            int length = 0;
+            boolean addedDummyByte = false;
+
+            while (!inflater.finished()) {
+                if (length == output.length) {
+                    if (length == MAX_ARRAY_SIZE) {
+                        throw new ZipException("Inflated entry is too large to fit in an array");
+                    }
+
+                    // The expected size was wrong, or larger than the initial buffer
+                    output = Arrays.copyOf(output, (int) Math.min(MAX_ARRAY_SIZE, Math.max(MIN_BUFFER_SIZE, output.length * 2L)));
+                }
+
+                final int inflated = inflater.inflate(output, length, output.length - length);
+
+                if (inflated == 0) {
+                    if (inflater.needsDictionary()) {
+                        throw new ZipException("Deflate stream requires a preset dictionary");
+                    }
+
+                    if (inflater.needsInput()) {
+                        if (addedDummyByte) {
+                            throw new EOFException("Unexpected end of deflate stream");
+                        }
+
+                        // Raw inflaters may need an extra byte of input to finish
+                        inflater.setInput(new byte[1]);
+                        addedDummyByte = true;
+                    }
+                } else if (crc32 != null) {
+                    crc32.update(output, length, inflated);
+                }
+
+                length += inflated;
+            }
+
+            return length == output.length ? output : Arrays.copyOf(output, length);
+        } catch (final DataFormatException e) {
+            final ZipException zipException = new ZipException("Invalid deflate stream: " + e.getMessage());
+            zipException.initCause(e);
+            throw zipException;
+        } finally {
+            giveBack(inflater);
+        }
+    }
+}
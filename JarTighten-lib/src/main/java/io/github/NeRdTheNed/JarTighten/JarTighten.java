@@ -1,18 +1,45 @@
 package io.github.NeRdTheNed.JarTighten;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.zip.CRC32;
+import java.util.zip.ZipException;
 
 import com.github.NeRdTheNed.deft4j.Deft;
 import com.github.NeRdTheNed.deft4j.util.compression.CompressionUtil;
@@ -20,35 +47,30 @@ import com.github.NeRdTheNed.deft4j.util.compression.CompressionUtil.Strategy;
 
 import software.coley.lljzip.ZipIO;
 import software.coley.lljzip.format.ZipPatterns;
-import software.coley.lljzip.format.compression.DeflateDecompressor;
 import software.coley.lljzip.format.compression.ZipCompressions;
 import software.coley.lljzip.format.model.AbstractZipFileHeader;
 import software.coley.lljzip.format.model.CentralDirectoryFileHeader;
-import software.coley.lljzip.format.model.EndOfCentralDirectory;
 import software.coley.lljzip.format.model.LocalFileHeader;
 import software.coley.lljzip.format.model.ZipArchive;
+import software.coley.lljzip.util.BufferData;
 import software.coley.lljzip.util.ByteDataUtil;
 
 /**
  * Jar file size optimiser, including optimisations based on quirks of Java's zip parsing implementation.
+ * Instances are immutable and thread-safe, so one instance can optimise several jar files at the same time.
  */
 public class JarTighten {
-    /** Files to exclude from optimisations which might hide them from standard zip libraries */
-    private final List<String> excludes;
+    /** Rules overriding settings for matching paths, starting with the rules for excluded files */
+    private final List<PathPolicy> policies;
+    /** Compiled matcher for the policy rules */
+    private final PathPolicyMatcher policyMatcher;
     /**
      * Determines which compression strategies are run for each compressor.
      * Improves compression at the cost of running each selected compressor multiple times.
      */
-    @SuppressWarnings("unused")
     private final Strategy mode;
     /** Remove timestamps */
     private final boolean removeTimestamps;
-    /** Remove file length from local file headers */
-    private final boolean removeFileLength;
-    /** Remove file length from central directory entries */
-    private final boolean removeDirEntryLength;
-    /** Remove file names from local file headers */
-    private final boolean removeFileNames;
     /** Remove info from the EOCD */
     private final boolean removeEOCDInfo;
     /** Remove file comments and zip comment */
@@ -60,16 +82,12 @@ public class JarTighten {
     /** Deduplicate local file header entries with the same compressed contents */
     private final boolean deduplicateEntries;
     /** Recompress files with CafeUndZopfli, uses compressed output if smaller */
-    @SuppressWarnings("unused")
     private final boolean recompressZopfli;
     /** Recompress files with jzopfli, uses compressed output if smaller */
-    @SuppressWarnings("unused")
     private final boolean recompressJZopflii;
     /** Recompress files with JZlib, uses compressed output if smaller */
-    @SuppressWarnings("unused")
     private final boolean recompressJZlib;
     /** Recompress files with standard Java deflate implementation, uses compressed output if smaller */
-    @SuppressWarnings("unused")
     private final boolean recompressStandard;
     /** Check uncompressed size, stores uncompressed if smaller */
     private final boolean recompressStore;
@@ -88,47 +106,513 @@ public class JarTighten {
     /** Run each compressor in a separate thread. May improve performance. */
     private final boolean recompressMultithread;
     /** Zopfli iterations. More iterations increases time spent optimising files. */
-    @SuppressWarnings("unused")
     private final int recompressZopfliPasses;
     /** Mark the output jar file as executable on certain operating systems if not already set. Increases file size by 4 bytes. */
     private final boolean makeExecutableJar;
     /** Try merging deflate blocks. May majorly increase time spent optimising files. */
     private final boolean mergeBlocks;
+    /** Cache of previously optimised entries, may be shared between instances. Null if not caching. */
+    private final ResultCache resultCache;
+    /** Number of worker processes to recompress entries in, or 0 to recompress entries in this process */
+    private final int shardWorkers;
+    /** Class path to start worker processes with. Null to use the class path JarTighten was loaded from. */
+    private final String shardWorkerClassPath;
+    /** Limit on the threads used for compression, may be shared between instances. Null to only use recompressMultithread. */
+    private final ThreadGovernor threadGovernor;
+    /** Limit on the estimated heap used by entries optimised in parallel. Null to use half the maximum heap size. */
+    private final HeapBudget heapBudget;
+    /** Record the settings entries were optimised with, and skip entries already optimised with settings at least as strong */
+    private final boolean fingerprintEntries;
+    /** Backend used to inflate deflated entries */
+    private final DecompressionBackend decompressionBackend;
+    /** Check the CRC32 of each entry while decompressing it, and keep entries which don't match as they are */
+    private final boolean verifyCrc32;
+    /** Names of encoders other than the built-in compressors to recompress files with, found with {@link java.util.ServiceLoader} */
+    private final List<String> extraEncoders;
+    /** Alignment in bytes of the data of stored files, or 0 or 1 to not align them */
+    private final int alignment;
+    /** Compressed size in bytes above which existing deflate streams are optimised in parallel, split at block boundaries, or 0 to never split streams */
+    private final long parallelOptimiseThreshold;
+    /** Uncompressed size in bytes above which files are split into chunks which are compressed in parallel, or 0 to never split files */
+    private final long chunkedCompressThreshold;
+    /** Stream warnings and errors are printed to */
+    private final PrintStream log;
 
-    /** Creates a JarTighten instance with the given options. */
+    /**
+     * Creates a JarTighten instance with the given options.
+     *
+     * @deprecated use {@link Builder} instead, which also supports options added since this constructor
+     */
+    @Deprecated
     public JarTighten(List<String> excludes, Strategy mode, boolean removeTimestamps, boolean removeFileLength, boolean removeDirEntryLength, boolean removeFileNames, boolean removeEOCDInfo, boolean removeComments, boolean removeExtra, boolean removeDirectoryEntries, boolean deduplicateEntries, boolean recompressZopfli, boolean recompressJZopflii, boolean recompressJZlib, boolean recompressStandard, boolean recompressStore, boolean recursiveStore, boolean sortEntries, boolean zeroLocalFileHeaders, boolean optimiseDeflateStreamExisting, boolean optimiseDeflateStreamRecompress, boolean compareDeflateStreamBits, boolean recompressMultithread, int recompressZopfliPasses, boolean makeExecutableJar, boolean mergeBlocks) {
-        this.excludes = excludes;
-        this.mode = mode;
-        this.removeTimestamps = removeTimestamps;
-        this.removeFileLength = removeFileLength;
-        this.removeDirEntryLength = removeDirEntryLength;
-        this.removeFileNames = removeFileNames;
-        this.removeEOCDInfo = removeEOCDInfo;
-        this.removeComments = removeComments;
-        this.removeExtra = removeExtra;
-        this.removeDirectoryEntries = removeDirectoryEntries;
-        this.deduplicateEntries = deduplicateEntries;
-        this.recompressZopfli = recompressZopfli;
-        this.recompressJZopflii = recompressJZopflii;
-        this.recompressJZlib = recompressJZlib;
-        this.recompressStandard = recompressStandard;
-        this.recompressStore = recompressStore;
-        this.recursiveStore = recursiveStore;
-        this.sortEntries = sortEntries;
-        this.zeroLocalFileHeaders = zeroLocalFileHeaders;
-        this.optimiseDeflateStreamExisting = optimiseDeflateStreamExisting;
-        this.optimiseDeflateStreamRecompress = optimiseDeflateStreamRecompress;
-        this.compareDeflateStreamBits = compareDeflateStreamBits;
-        this.mergeBlocks = mergeBlocks;
-        recompressDeflate = recompressStandard || recompressZopfli || recompressJZopflii || recompressJZlib ;
-        compressionUtil = new CompressionUtil(recompressStandard, recompressJZlib, recompressJZopflii, recompressZopfli, recompressZopfliPasses, mode, optimiseDeflateStreamRecompress, compareDeflateStreamBits, mergeBlocks);
-        this.recompressMultithread = recompressMultithread;
-        this.recompressZopfliPasses = recompressZopfliPasses;
-        this.makeExecutableJar = makeExecutableJar;
-    }
-
-    private final boolean recompressDeflate;
-    private final CompressionUtil compressionUtil;
+        this(new Builder().excludes(excludes).mode(mode).removeTimestamps(removeTimestamps).removeFileLength(removeFileLength).removeDirEntryLength(removeDirEntryLength).removeFileNames(removeFileNames).removeEOCDInfo(removeEOCDInfo).removeComments(removeComments).removeExtra(removeExtra).removeDirectoryEntries(removeDirectoryEntries).deduplicateEntries(deduplicateEntries).recompressZopfli(recompressZopfli).recompressJZopfli(recompressJZopflii).recompressJZlib(recompressJZlib).recompressStandard(recompressStandard).recompressStore(recompressStore).recursiveStore(recursiveStore).sortEntries(sortEntries).zeroLocalFileHeaders(zeroLocalFileHeaders).optimiseDeflateStreamExisting(optimiseDeflateStreamExisting).optimiseDeflateStreamRecompress(optimiseDeflateStreamRecompress).compareDeflateStreamBits(compareDeflateStreamBits).recompressMultithread(recompressMultithread).recompressZopfliPasses(recompressZopfliPasses).makeExecutableJar(makeExecutableJar).mergeBlocks(mergeBlocks));
+    }
+
+    /** Creates a JarTighten instance with the options of the given builder. */
+    private JarTighten(Builder builder) {
+        policies = new ArrayList<>();
+
+        for (final String exclude : builder.excludes) {
+            policies.add(PathPolicy.exclude(exclude));
+        }
+
+        policies.addAll(builder.policies);
+        policyMatcher = new PathPolicyMatcher(policies);
+        mode = builder.mode;
+        removeTimestamps = builder.removeTimestamps;
+        removeEOCDInfo = builder.removeEOCDInfo;
+        removeComments = builder.removeComments;
+        removeExtra = builder.removeExtra;
+        removeDirectoryEntries = builder.removeDirectoryEntries;
+        deduplicateEntries = builder.deduplicateEntries;
+        recompressZopfli = builder.recompressZopfli;
+        recompressJZopflii = builder.recompressJZopfli;
+        recompressJZlib = builder.recompressJZlib;
+        recompressStandard = builder.recompressStandard;
+        recompressStore = builder.recompressStore;
+        recursiveStore = builder.recursiveStore;
+        sortEntries = builder.sortEntries;
+        zeroLocalFileHeaders = builder.zeroLocalFileHeaders;
+        optimiseDeflateStreamExisting = builder.optimiseDeflateStreamExisting;
+        optimiseDeflateStreamRecompress = builder.optimiseDeflateStreamRecompress;
+        compareDeflateStreamBits = builder.compareDeflateStreamBits;
+        mergeBlocks = builder.mergeBlocks;
+        recompressMultithread = builder.recompressMultithread;
+        recompressZopfliPasses = builder.recompressZopfliPasses;
+        makeExecutableJar = builder.makeExecutableJar;
+        resultCache = builder.resultCache;
+        shardWorkers = builder.shardWorkers;
+        shardWorkerClassPath = builder.shardWorkerClassPath;
+        threadGovernor = builder.threadGovernor;
+        heapBudget = builder.heapBudget;
+        fingerprintEntries = builder.fingerprintEntries;
+        decompressionBackend = builder.decompressionBackend != null ? builder.decompressionBackend : LljzipDecompressionBackend.INSTANCE;
+        verifyCrc32 = builder.verifyCrc32;
+        extraEncoders = builder.extraEncoders != null ? builder.extraEncoders : Collections.emptyList();
+        alignment = builder.alignment;
+        parallelOptimiseThreshold = builder.parallelOptimiseThreshold;
+        chunkedCompressThreshold = builder.chunkedCompressThreshold;
+        log = builder.log;
+        defaultPolicy = new EntryPolicy(recompressZopfli, recompressJZopflii, recompressJZlib, recompressStandard, recompressStore, mode, recompressZopfliPasses, builder.removeFileLength, builder.removeDirEntryLength, builder.removeFileNames, recursiveStore, optimiseDeflateStreamExisting, optimiseDeflateStreamRecompress, compareDeflateStreamBits, mergeBlocks, DeflateEncoders.find(extraEncoders), alignment);
+    }
+
+    /**
+     * Builds JarTighten instances. Every option starts with the same default as the command line tool,
+     * so only options which differ need to be set.
+     */
+    public static final class Builder {
+        private List<String> excludes = Collections.emptyList();
+        private List<PathPolicy> policies = Collections.emptyList();
+        private Strategy mode = Strategy.MULTI_CHEAP;
+        private boolean removeTimestamps = false;
+        private boolean removeFileLength = false;
+        private boolean removeDirEntryLength = false;
+        private boolean removeFileNames = false;
+        private boolean removeEOCDInfo = false;
+        private boolean removeComments = false;
+        private boolean removeExtra = false;
+        private boolean removeDirectoryEntries = true;
+        private boolean deduplicateEntries = false;
+        private boolean recompressZopfli = false;
+        private boolean recompressJZopfli = false;
+        private boolean recompressJZlib = true;
+        private boolean recompressStandard = true;
+        private boolean recompressStore = true;
+        private boolean recursiveStore = false;
+        private boolean sortEntries = false;
+        private boolean zeroLocalFileHeaders = false;
+        private boolean optimiseDeflateStreamExisting = false;
+        private boolean optimiseDeflateStreamRecompress = false;
+        private boolean compareDeflateStreamBits = false;
+        private boolean recompressMultithread = true;
+        private int recompressZopfliPasses = 20;
+        private boolean makeExecutableJar = false;
+        private boolean mergeBlocks = false;
+        private ResultCache resultCache = null;
+        private int shardWorkers = 0;
+        private String shardWorkerClassPath = null;
+        private ThreadGovernor threadGovernor = null;
+        private HeapBudget heapBudget = null;
+        private boolean fingerprintEntries = false;
+        private DecompressionBackend decompressionBackend = null;
+        private boolean verifyCrc32 = false;
+        private List<String> extraEncoders = Collections.emptyList();
+        private int alignment = 0;
+        private long parallelOptimiseThreshold = 0;
+        private long chunkedCompressThreshold = 0;
+        private PrintStream log = System.err;
+
+        /** Exact paths of files to exclude from optimisations which might hide them from standard zip libraries. Use {@link #policies(List)} for glob patterns. Defaults to empty. */
+        public Builder excludes(List<String> excludes) {
+            this.excludes = excludes;
+            return this;
+        }
+
+        /** Rules overriding settings for matching paths. Defaults to empty. */
+        public Builder policies(List<PathPolicy> policies) {
+            this.policies = policies;
+            return this;
+        }
+
+        /** Determines which compression strategies are run for each compressor. Defaults to MULTI_CHEAP. */
+        public Builder mode(Strategy mode) {
+            this.mode = mode;
+            return this;
+        }
+
+        /** Remove timestamps. Defaults to false. */
+        public Builder removeTimestamps(boolean removeTimestamps) {
+            this.removeTimestamps = removeTimestamps;
+            return this;
+        }
+
+        /** Remove file length from local file headers. Defaults to false. */
+        public Builder removeFileLength(boolean removeFileLength) {
+            this.removeFileLength = removeFileLength;
+            return this;
+        }
+
+        /** Remove file length from central directory entries. Defaults to false. */
+        public Builder removeDirEntryLength(boolean removeDirEntryLength) {
+            this.removeDirEntryLength = removeDirEntryLength;
+            return this;
+        }
+
+        /** Remove file names from local file headers. Defaults to false. */
+        public Builder removeFileNames(boolean removeFileNames) {
+            this.removeFileNames = removeFileNames;
+            return this;
+        }
+
+        /** Remove info from the EOCD. Defaults to false. */
+        public Builder removeEOCDInfo(boolean removeEOCDInfo) {
+            this.removeEOCDInfo = removeEOCDInfo;
+            return this;
+        }
+
+        /** Remove file comments and zip comment. Defaults to false. */
+        public Builder removeComments(boolean removeComments) {
+            this.removeComments = removeComments;
+            return this;
+        }
+
+        /** Remove extra field. Defaults to false. */
+        public Builder removeExtra(boolean removeExtra) {
+            this.removeExtra = removeExtra;
+            return this;
+        }
+
+        /** Remove directory entries. Defaults to true. */
+        public Builder removeDirectoryEntries(boolean removeDirectoryEntries) {
+            this.removeDirectoryEntries = removeDirectoryEntries;
+            return this;
+        }
+
+        /** Deduplicate local file header entries with the same compressed contents. Defaults to false. */
+        public Builder deduplicateEntries(boolean deduplicateEntries) {
+            this.deduplicateEntries = deduplicateEntries;
+            return this;
+        }
+
+        /** Recompress files with CafeUndZopfli, uses compressed output if smaller. Defaults to false. */
+        public Builder recompressZopfli(boolean recompressZopfli) {
+            this.recompressZopfli = recompressZopfli;
+            return this;
+        }
+
+        /** Recompress files with jzopfli, uses compressed output if smaller. Defaults to false. */
+        public Builder recompressJZopfli(boolean recompressJZopfli) {
+            this.recompressJZopfli = recompressJZopfli;
+            return this;
+        }
+
+        /** Recompress files with JZlib, uses compressed output if smaller. Defaults to true. */
+        public Builder recompressJZlib(boolean recompressJZlib) {
+            this.recompressJZlib = recompressJZlib;
+            return this;
+        }
+
+        /** Recompress files with standard Java deflate implementation, uses compressed output if smaller. Defaults to true. */
+        public Builder recompressStandard(boolean recompressStandard) {
+            this.recompressStandard = recompressStandard;
+            return this;
+        }
+
+        /** Check uncompressed size, stores uncompressed if smaller. Defaults to true. */
+        public Builder recompressStore(boolean recompressStore) {
+            this.recompressStore = recompressStore;
+            return this;
+        }
+
+        /** Store the contents of all embedded zip or jar files uncompressed recursively and compress, uses compressed output if smaller. Defaults to false. */
+        public Builder recursiveStore(boolean recursiveStore) {
+            this.recursiveStore = recursiveStore;
+            return this;
+        }
+
+        /** Sort zip entries in the way they're expected to be in a jar file. Defaults to false. */
+        public Builder sortEntries(boolean sortEntries) {
+            this.sortEntries = sortEntries;
+            return this;
+        }
+
+        /** Replace every value that the JVM doesn't read in local file headers with zeros. Overrides other options. Defaults to false. */
+        public Builder zeroLocalFileHeaders(boolean zeroLocalFileHeaders) {
+            this.zeroLocalFileHeaders = zeroLocalFileHeaders;
+            return this;
+        }
+
+        /** Optimise existing deflate streams. Defaults to false. */
+        public Builder optimiseDeflateStreamExisting(boolean optimiseDeflateStreamExisting) {
+            this.optimiseDeflateStreamExisting = optimiseDeflateStreamExisting;
+            return this;
+        }
+
+        /** Optimise recompressed deflate streams. Defaults to false. */
+        public Builder optimiseDeflateStreamRecompress(boolean optimiseDeflateStreamRecompress) {
+            this.optimiseDeflateStreamRecompress = optimiseDeflateStreamRecompress;
+            return this;
+        }
+
+        /** Compare sizes of deflate streams in bits instead of bytes. Defaults to false. */
+        public Builder compareDeflateStreamBits(boolean compareDeflateStreamBits) {
+            this.compareDeflateStreamBits = compareDeflateStreamBits;
+            return this;
+        }
+
+        /** Run each compressor in a separate thread. Defaults to true. */
+        public Builder recompressMultithread(boolean recompressMultithread) {
+            this.recompressMultithread = recompressMultithread;
+            return this;
+        }
+
+        /** Zopfli iterations. Defaults to 20. */
+        public Builder recompressZopfliPasses(int recompressZopfliPasses) {
+            this.recompressZopfliPasses = recompressZopfliPasses;
+            return this;
+        }
+
+        /** Mark the output jar file as executable on certain operating systems if not already set. Defaults to false. */
+        public Builder makeExecutableJar(boolean makeExecutableJar) {
+            this.makeExecutableJar = makeExecutableJar;
+            return this;
+        }
+
+        /** Try merging deflate blocks. Defaults to false. */
+        public Builder mergeBlocks(boolean mergeBlocks) {
+            this.mergeBlocks = mergeBlocks;
+            return this;
+        }
+
+        /** Cache of previously optimised entries, may be shared between instances. Null to not cache entries. Defaults to null. */
+        public Builder resultCache(ResultCache resultCache) {
+            this.resultCache = resultCache;
+            return this;
+        }
+
+        /** Number of worker processes to recompress entries in, or 0 to recompress entries in this process. Defaults to 0. */
+        public Builder shardWorkers(int shardWorkers) {
+            this.shardWorkers = shardWorkers;
+            return this;
+        }
+
+        /** Class path to start worker processes with. Null to use the class path JarTighten was loaded from. Defaults to null. */
+        public Builder shardWorkerClassPath(String shardWorkerClassPath) {
+            this.shardWorkerClassPath = shardWorkerClassPath;
+            return this;
+        }
+
+        /** Limit on the threads used for compression, may be shared between instances. Null to only use recompressMultithread. Defaults to null. */
+        public Builder threadGovernor(ThreadGovernor threadGovernor) {
+            this.threadGovernor = threadGovernor;
+            return this;
+        }
+
+        /** Limit on the estimated heap used by entries optimised in parallel. Null to use half the maximum heap size. Defaults to null. */
+        public Builder heapBudget(HeapBudget heapBudget) {
+            this.heapBudget = heapBudget;
+            return this;
+        }
+
+        /** Record the settings entries were optimised with, and skip entries already optimised with settings at least as strong. Defaults to false. */
+        public Builder fingerprintEntries(boolean fingerprintEntries) {
+            this.fingerprintEntries = fingerprintEntries;
+            return this;
+        }
+
+        /** Backend used to inflate deflated entries. Null to use lljzip. Defaults to null. */
+        public Builder decompressionBackend(DecompressionBackend decompressionBackend) {
+            this.decompressionBackend = decompressionBackend;
+            return this;
+        }
+
+        /** Check the CRC32 of each entry while decompressing it. Defaults to false. */
+        public Builder verifyCrc32(boolean verifyCrc32) {
+            this.verifyCrc32 = verifyCrc32;
+            return this;
+        }
+
+        /** Names of encoders other than the built-in compressors to recompress files with. Defaults to empty. */
+        public Builder extraEncoders(List<String> extraEncoders) {
+            this.extraEncoders = extraEncoders;
+            return this;
+        }
+
+        /** Alignment in bytes of the data of stored files, or 0 to not align them. Defaults to 0. */
+        public Builder alignment(int alignment) {
+            this.alignment = alignment;
+            return this;
+        }
+
+        /** Compressed size in bytes above which existing deflate streams are optimised in parallel, or 0 to never split streams. Defaults to 0. */
+        public Builder parallelOptimiseThreshold(long parallelOptimiseThreshold) {
+            this.parallelOptimiseThreshold = parallelOptimiseThreshold;
+            return this;
+        }
+
+        /** Uncompressed size in bytes above which files are compressed in chunks in parallel, or 0 to never split files. Defaults to 0. */
+        public Builder chunkedCompressThreshold(long chunkedCompressThreshold) {
+            this.chunkedCompressThreshold = chunkedCompressThreshold;
+            return this;
+        }
+
+        /** Stream to print warnings and errors to, such as files which couldn't be recompressed. Defaults to {@link System#err}. */
+        public Builder log(PrintStream log) {
+            this.log = log;
+            return this;
+        }
+
+        /** @return a new instance with the options of this builder */
+        public JarTighten build() {
+            return new JarTighten(this);
+        }
+    }
+
+
+    /**
+     * Write the settings which affect how entries are compressed,
+     * so that an equivalent instance can be created in a worker process.
+     *
+     * @param out the output to write to
+     */
+    void writeCompressionSettings(DataOutputStream out) throws IOException {
+        out.writeUTF(mode.name());
+        out.writeBoolean(recompressZopfli);
+        out.writeBoolean(recompressJZopflii);
+        out.writeBoolean(recompressJZlib);
+        out.writeBoolean(recompressStandard);
+        out.writeBoolean(recompressStore);
+        out.writeBoolean(recursiveStore);
+        out.writeBoolean(optimiseDeflateStreamExisting);
+        out.writeBoolean(optimiseDeflateStreamRecompress);
+        out.writeBoolean(compareDeflateStreamBits);
+        out.writeBoolean(recompressMultithread);
+        out.writeInt(recompressZopfliPasses);
+        out.writeBoolean(mergeBlocks);
+        out.writeInt(extraEncoders.size());
+
+        for (final String encoder : extraEncoders) {
+            out.writeUTF(encoder);
+        }
+
+        out.writeLong(parallelOptimiseThreshold);
+        out.writeLong(chunkedCompressThreshold);
+
+        // Exact path rules only change header settings
+        final List<PathPolicy> globPolicies = policies.stream().filter(policy -> !policy.exact).collect(Collectors.toList());
+        out.writeInt(globPolicies.size());
+
+        for (final PathPolicy policy : globPolicies) {
+            out.writeUTF(policy.toString());
+        }
+    }
+
+    /**
+     * Create an instance with the compression settings written by {@link #writeCompressionSettings(DataOutputStream)}.
+     *
+     * @param in the input to read from
+     * @return an instance with the same compression settings
+     */
+    static JarTighten readCompressionSettings(DataInputStream in) throws IOException {
+        final Strategy mode = Strategy.valueOf(in.readUTF());
+        final boolean recompressZopfli = in.readBoolean();
+        final boolean recompressJZopfli = in.readBoolean();
+        final boolean recompressJZlib = in.readBoolean();
+        final boolean recompressStandard = in.readBoolean();
+        final boolean recompressStore = in.readBoolean();
+        final boolean recursiveStore = in.readBoolean();
+        final boolean optimiseDeflateStreamExisting = in.readBoolean();
+        final boolean optimiseDeflateStreamRecompress = in.readBoolean();
+        final boolean compareDeflateStreamBits = in.readBoolean();
+        final boolean recompressMultithread = in.readBoolean();
+        final int recompressZopfliPasses = in.readInt();
+        final boolean mergeBlocks = in.readBoolean();
+        final int encoderCount = in.readInt();
+        final List<String> extraEncoders = new ArrayList<>(encoderCount);
+
+        for (int i = 0; i < encoderCount; i++) {
+            extraEncoders.add(in.readUTF());
+        }
+
+        final long parallelOptimiseThreshold = in.readLong();
+        final long chunkedCompressThreshold = in.readLong();
+
+        final int policyCount = in.readInt();
+        final List<PathPolicy> policies = new ArrayList<>(policyCount);
+
+        for (int i = 0; i < policyCount; i++) {
+            policies.add(PathPolicy.parse(in.readUTF()));
+        }
+
+        return new Builder().policies(policies).mode(mode).recompressZopfli(recompressZopfli).recompressJZopfli(recompressJZopfli).recompressJZlib(recompressJZlib).recompressStandard(recompressStandard).recompressStore(recompressStore).recursiveStore(recursiveStore).optimiseDeflateStreamExisting(optimiseDeflateStreamExisting).optimiseDeflateStreamRecompress(optimiseDeflateStreamRecompress).compareDeflateStreamBits(compareDeflateStreamBits).recompressMultithread(recompressMultithread).recompressZopfliPasses(recompressZopfliPasses).mergeBlocks(mergeBlocks).extraEncoders(extraEncoders).parallelOptimiseThreshold(parallelOptimiseThreshold).chunkedCompressThreshold(chunkedCompressThreshold).build();
+    }
+
+    /** Settings for entries which don't match any policy rules */
+    private final EntryPolicy defaultPolicy;
+    /** Settings for each combination of matching policy rules */
+    private final ConcurrentHashMap<String, EntryPolicy> resolvedPolicies = new ConcurrentHashMap<>();
+
+    private static <T> T firstSet(List<PathPolicy> policies, int[] matches, Function<PathPolicy, T> getter, T defaultValue) {
+        for (final int match : matches) {
+            final T value = getter.apply(policies.get(match));
+
+            if (value != null) {
+                return value;
+            }
+        }
+
+        return defaultValue;
+    }
+
+    /**
+     * Get the settings for the entry with the given path.
+     * Each setting is taken from the first matching policy rule which sets it, or the default settings if no rules set it.
+     *
+     * @param fileName the path of the entry
+     * @return the settings for the entry
+     */
+    private EntryPolicy resolvePolicy(String fileName) {
+        final int[] matches = policyMatcher.match(fileName);
+
+        if (matches.length == 0) {
+            return defaultPolicy;
+        }
+
+        return resolvedPolicies.computeIfAbsent(Arrays.toString(matches), key -> new EntryPolicy(
+                   firstSet(policies, matches, p -> p.recompressZopfli, defaultPolicy.recompressZopfli),
+                   firstSet(policies, matches, p -> p.recompressJZopfli, defaultPolicy.recompressJZopfli),
+                   firstSet(policies, matches, p -> p.recompressJZlib, defaultPolicy.recompressJZlib),
+                   firstSet(policies, matches, p -> p.recompressStandard, defaultPolicy.recompressStandard),
+                   firstSet(policies, matches, p -> p.recompressStore, defaultPolicy.recompressStore),
+                   firstSet(policies, matches, p -> p.mode, defaultPolicy.mode),
+                   firstSet(policies, matches, p -> p.recompressZopfliPasses, defaultPolicy.recompressZopfliPasses),
+                   firstSet(policies, matches, p -> p.removeFileLength, defaultPolicy.removeFileLength),
+                   firstSet(policies, matches, p -> p.removeDirEntryLength, defaultPolicy.removeDirEntryLength),
+                   firstSet(policies, matches, p -> p.removeFileNames, defaultPolicy.removeFileNames),
+                   recursiveStore, optimiseDeflateStreamExisting, optimiseDeflateStreamRecompress, compareDeflateStreamBits, mergeBlocks,
+                   DeflateEncoders.find(firstSet(policies, matches, p -> p.extraEncoders, extraEncoders)),
+                   firstSet(policies, matches, p -> p.alignment, alignment)));
+    }
 
     private static final class EntryData {
         final int crc32;
@@ -136,17 +620,24 @@ public class JarTighten {
         final int compressedSize;
         final int compressionMethod;
         final int offset;
+        final String fileName;
+        final EntryPolicy policy;
+        /** Fingerprint to record in the central directory, or null to not record one */
+        final byte[] fingerprint;
 
-        public EntryData(int crc32, int uncompressedSize, int compressedSize, int compressionMethod, int offset) {
+        public EntryData(int crc32, int uncompressedSize, int compressedSize, int compressionMethod, int offset, String fileName, EntryPolicy policy, byte[] fingerprint) {
             this.crc32 = crc32;
             this.uncompressedSize = uncompressedSize;
             this.compressedSize = compressedSize;
             this.compressionMethod = compressionMethod;
             this.offset = offset;
+            this.fileName = fileName;
+            this.policy = policy;
+            this.fingerprint = fingerprint;
         }
     }
 
-    private static final class CompressionResult {
+    static final class CompressionResult {
         final int compressionMethod;
         final byte[] compressedData;
         final int crc32;
@@ -162,6 +653,48 @@ public class JarTighten {
         }
     }
 
+    /** An entry to be written, with its settings and input values */
+    static final class PendingEntry {
+        final LocalFileHeader fileHeader;
+        final CentralDirectoryFileHeader cenDir;
+        final String fileName;
+        final EntryPolicy policy;
+        final int crc32;
+        final int uncompressedSize;
+        final int compressedSize;
+        final int compressionMethod;
+        /** Fingerprint recorded in the central directory, or null if there isn't one */
+        final byte[] recordedFingerprint;
+        /** True if the recorded fingerprint shows the entry was already optimised with settings at least as strong */
+        final boolean alreadyOptimised;
+
+        PendingEntry(LocalFileHeader fileHeader, EntryPolicy policy, boolean checkFingerprint) {
+            this.fileHeader = fileHeader;
+            this.policy = policy;
+            cenDir = fileHeader.getLinkedDirectoryFileHeader();
+            fileName = fileHeader.getFileNameAsString();
+            crc32 = fileHeader.getCrc32();
+            compressionMethod = fileHeader.getCompressionMethod();
+
+            if (cenDir != null) {
+                compressedSize = (int) cenDir.getCompressedSize();
+                uncompressedSize = (int) cenDir.getUncompressedSize();
+            } else {
+                compressedSize = (int) fileHeader.getCompressedSize();
+                uncompressedSize = (int) fileHeader.getUncompressedSize();
+            }
+
+            recordedFingerprint = checkFingerprint && (cenDir != null) ? Fingerprint.find(ByteDataUtil.toByteArray(cenDir.getExtraField())) : null;
+            // Only checks values from the central directory, so the compressed data isn't read
+            alreadyOptimised = (recordedFingerprint != null) && policy.recompressDeflate && (policy.fingerprintSettings != null) && Fingerprint.isAtLeastAsStrong(recordedFingerprint, policy.fingerprintSettings) && Fingerprint.matchesEntry(recordedFingerprint, crc32, compressedSize, uncompressedSize, compressionMethod);
+        }
+
+        /** @return true if the entry should be recompressed */
+        boolean recompresses() {
+            return policy.recompressDeflate && !alreadyOptimised;
+        }
+    }
+
     /** Zip time constant, used when removing timestamps */
     private static final int EARLIEST_TIME = 0x6020;
 
@@ -171,6 +704,15 @@ public class JarTighten {
     /** Zip version 2.0, minimum required version for deflate compression */
     private static final int ZIP_VERSION_2_0 = 0x14;
 
+    /** If true, print a line when the first entry starts being optimised, to measure startup time with */
+    private static final boolean TRACE_STARTUP = Boolean.getBoolean("jartighten.traceStartup");
+
+    /** If true, print diagnostics about splitting large files to be optimised or compressed in parallel */
+    private static final boolean VERBOSE = Boolean.getBoolean("jartighten.verbose");
+
+    /** True once the first entry in this JVM has started being optimised */
+    private static final AtomicBoolean STARTED_FIRST_ENTRY = new AtomicBoolean();
+
     /**
      * Write a short to the output stream as bytes in LE order.
      *
@@ -213,22 +755,20 @@ public class JarTighten {
         return false;
     }
 
-    /** Cached CRC32 calculator */
-    private final CRC32 crc32Calc = new CRC32();
-
     /**
      * Create a zip file with its contents and all embedded zip or jar files stored uncompressed recursively from the given input.
      *
      * @param zipInZip the input zip file
+     * @param cancellation cancels optimising the zip file
      * @return the recursively stored zip file
      */
-    private CompressionResult asRecursiveStoredZip(ZipArchive zipInZip) throws IOException {
+    private CompressionResult asRecursiveStoredZip(ZipArchive zipInZip, Cancellation cancellation) throws IOException {
         final ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        optimiseJar(true, zipInZip, bos);
+        optimiseJar(true, zipInZip, bos, cancellation);
         final byte[] storedJar = bos.toByteArray();
+        final CRC32 crc32Calc = new CRC32();
         crc32Calc.update(storedJar);
         final int crc32 = (int) crc32Calc.getValue();
-        crc32Calc.reset();
         final int uncompressedSize = storedJar.length;
         return new CompressionResult(ZipCompressions.STORED, storedJar, crc32, uncompressedSize, uncompressedSize);
     }
@@ -252,9 +792,230 @@ public class JarTighten {
         return compareCompressedSizes(compressed1, compressed2, method1, method2) < 0;
     }
 
+    /**
+     * Compress data with an encoder, optimising the output if enabled.
+     * Built-in compressors already optimise their own output.
+     *
+     * @param encoder the encoder
+     * @param uncompressedData the input uncompressed data
+     * @return the compressed data, or null if the encoder failed
+     */
+    private byte[] compressWith(DeflateEncoder encoder, byte[] uncompressedData) {
+        final byte[] compressedData;
+
+        try {
+            compressedData = DeflateEncoders.compress(encoder, uncompressedData);
+        } catch (final Exception e) {
+            // Other compressors may still succeed
+            // TODO Handle errors more gracefully
+            e.printStackTrace(log);
+            return null;
+        }
+
+        if (optimiseDeflateStreamRecompress && !(encoder instanceof DeflateEncoders.BuiltIn)) {
+            try {
+                final byte[] optimisedData = Deft.optimiseDeflateStream(compressedData, mergeBlocks);
+
+                if (isCompressedSizeSmaller(optimisedData, compressedData, ZipCompressions.DEFLATED, ZipCompressions.DEFLATED)) {
+                    return optimisedData;
+                }
+            } catch (final Exception e) {
+                // TODO Handle errors more gracefully
+                e.printStackTrace(log);
+            }
+        }
+
+        return compressedData;
+    }
+
+    /**
+     * Compress data with every enabled deflate compressor on the calling thread, cheap encoders before expensive encoders.
+     *
+     * @param uncompressedData the input uncompressed data
+     * @param policy the settings for the input file
+     * @param multithread if true, run each built-in compressor in a separate thread
+     * @param cancellation cancels compressing the data
+     * @return the output of each compressor, null for compressors which failed
+     */
+    private List<byte[]> compressSerially(byte[] uncompressedData, EntryPolicy policy, boolean multithread, Cancellation cancellation) throws IOException {
+        final List<byte[]> results = new ArrayList<>();
+
+        for (final DeflateEncoder encoder : policy.extraEncoders) {
+            if (encoder.getCost() == DeflateEncoder.Cost.CHEAP) {
+                cancellation.check();
+                results.add(compressWith(encoder, uncompressedData));
+            }
+        }
+
+        if (policy.recompressBuiltIn) {
+            cancellation.check();
+            results.add(policy.compressionUtil().compress(uncompressedData, multithread));
+        }
+
+        for (final DeflateEncoder encoder : policy.extraEncoders) {
+            if (encoder.getCost() == DeflateEncoder.Cost.EXPENSIVE) {
+                cancellation.check();
+                results.add(compressWith(encoder, uncompressedData));
+            }
+        }
+
+        return results;
+    }
+
+    /** @return the governor to run parallel work within a single file on, or null if it should run on the calling thread */
+    private ThreadGovernor parallelGovernor() {
+        final ThreadGovernor governor = threadGovernor != null ? threadGovernor : recompressMultithread ? ThreadGovernor.shared(Runtime.getRuntime().availableProcessors()) : null;
+        return (governor != null) && governor.isParallel() ? governor : null;
+    }
+
+    /**
+     * @param uncompressedSize the uncompressed size of a file
+     * @return true if the file is large enough to be compressed in chunks
+     */
+    private boolean compressesInChunks(long uncompressedSize) {
+        return (chunkedCompressThreshold > 0) && (uncompressedSize >= chunkedCompressThreshold);
+    }
+
+    /**
+     * Compress data with every enabled deflate compressor, and return the smallest output.
+     * Files larger than the chunked compress threshold are split into chunks which are compressed in parallel.
+     * If the standard Java deflate implementation is enabled, the whole file is also compressed with it at once, and the smaller output is used.
+     * Otherwise, if the thread governor can run tasks in parallel, each expensive encoder runs as a separate task,
+     * while cheap encoders run one after another on the calling thread (or also as separate tasks if every encoder is cheap).
+     * If the thread governor can't run tasks in parallel, cheap encoders run before expensive encoders.
+     *
+     * @param fileName the input file name, or null if it has no name
+     * @param uncompressedData the input uncompressed data
+     * @param policy the settings for the input file
+     * @param cancellation cancels compressing the data
+     * @return the smallest compressed data
+     */
+    private byte[] compressDeflate(String fileName, byte[] uncompressedData, EntryPolicy policy, Cancellation cancellation) throws IOException, ExecutionException {
+        cancellation.check();
+        final ThreadGovernor chunkGovernor = compressesInChunks(uncompressedData.length) ? parallelGovernor() : null;
+
+        if (chunkGovernor != null) {
+            final ChunkedCompressor.Result chunked = new ChunkedCompressor(chunkGovernor, policy.recompressStandard, log).compress(uncompressedData, chunk -> compressSerially(chunk, policy, false, cancellation), cancellation);
+
+            if (chunked != null) {
+                if (VERBOSE && (chunked.whole != null)) {
+                    // Only compared with the standard Java deflate implementation, as other compressors can't compress the whole file in parallel
+                    log.println("JarTighten: compressed " + (fileName != null ? fileName : "a file") + " in " + chunked.chunks + " chunks to " + chunked.joined.length + " bytes, "
+                                + String.format(Locale.ROOT, "%+.2f%%", ((chunked.joined.length - chunked.whole.length) * 100.0) / chunked.whole.length)
+                                + " compared to " + chunked.whole.length + " bytes compressing it whole with only the standard Java deflate implementation");
+                }
+
+                return smallest(Arrays.asList(chunked.joined, chunked.whole));
+            }
+        }
+
+        final List<byte[]> results;
+
+        if ((threadGovernor == null) || !threadGovernor.isParallel() || (policy.encoders.size() < 2)) {
+            results = compressSerially(uncompressedData, policy, (threadGovernor == null) && recompressMultithread, cancellation);
+        } else {
+            final List<DeflateEncoder> cheapEncoders = new ArrayList<>();
+            final List<Callable<List<byte[]>>> tasks = new ArrayList<>();
+
+            for (final DeflateEncoder encoder : policy.encoders) {
+                if (encoder.getCost() == DeflateEncoder.Cost.EXPENSIVE) {
+                    tasks.add(() -> {
+                        cancellation.check();
+                        return Collections.singletonList(compressWith(encoder, uncompressedData));
+                    });
+                } else {
+                    cheapEncoders.add(encoder);
+                }
+            }
+
+            if (tasks.isEmpty()) {
+                for (final DeflateEncoder encoder : cheapEncoders) {
+                    tasks.add(() -> {
+                        cancellation.check();
+                        return Collections.singletonList(compressWith(encoder, uncompressedData));
+                    });
+                }
+            } else if (!cheapEncoders.isEmpty()) {
+                // The first task runs on the calling thread, so cheap encoders don't take threads from expensive encoders
+                tasks.add(0, () -> {
+                    final List<byte[]> cheapResults = new ArrayList<>();
+
+                    for (final DeflateEncoder encoder : cheapEncoders) {
+                        cancellation.check();
+                        cheapResults.add(compressWith(encoder, uncompressedData));
+                    }
+
+                    return cheapResults;
+                });
+            }
+
+            results = new ArrayList<>();
+
+            try {
+                for (final List<byte[]> taskResults : threadGovernor.invokeAll(tasks)) {
+                    results.addAll(taskResults);
+                }
+            } catch (final ExecutionException e) {
+                cancellation.check();
+                throw e;
+            }
+        }
+
+        return smallest(results);
+    }
+
+    /**
+     * @param results deflate streams of the same data, which may contain nulls for compressors which failed
+     * @return the smallest deflate stream
+     */
+    private byte[] smallest(List<byte[]> results) throws IOException {
+        byte[] smallest = null;
+
+        for (final byte[] compressed : results) {
+            if ((compressed != null) && ((smallest == null) || isCompressedSizeSmaller(compressed, smallest, ZipCompressions.DEFLATED, ZipCompressions.DEFLATED))) {
+                smallest = compressed;
+            }
+        }
+
+        if (smallest == null) {
+            throw new IOException("Every compressor failed");
+        }
+
+        return smallest;
+    }
+
+    /**
+     * Optimise an existing deflate stream.
+     * Streams larger than the parallel optimise threshold are split at block boundaries and optimised in parallel.
+     *
+     * @param compressedData the deflate stream
+     * @param uncompressedData the data the stream decompresses to
+     * @param cancellation cancels optimising the stream
+     * @return the optimised stream
+     */
+    private byte[] optimiseExistingStream(byte[] compressedData, byte[] uncompressedData, Cancellation cancellation) throws IOException, ExecutionException {
+        final ThreadGovernor governor = parallelGovernor();
+
+        if ((governor != null) && (parallelOptimiseThreshold > 0) && (compressedData.length >= parallelOptimiseThreshold)) {
+            final ParallelStreamOptimiser optimiser = new ParallelStreamOptimiser(governor, mergeBlocks, log);
+            final byte[] optimisedData = optimiser.optimise(compressedData, uncompressedData, cancellation);
+
+            if (VERBOSE && (optimiser.unmergedRanges() > 0)) {
+                log.println("JarTighten: " + optimiser.unmergedRanges() + " ranges of a deflate stream were optimised without merging blocks, as the data before them was merged into their first block");
+            }
+
+            if (optimisedData != null) {
+                return optimisedData;
+            }
+        }
+
+        return Deft.optimiseDeflateStream(compressedData, mergeBlocks);
+    }
+
     /**
      * Find the smallest way to store the given input file.
      *
+     * @param fileName the input file name, or null if it has no name
      * @param uncompressedData the input uncompressed data
      * @param crc32 the input crc32
      * @param uncompressedSize the input uncompressed size
@@ -262,12 +1023,14 @@ public class JarTighten {
      * @param compressionMethod the input compression method
      * @param compressedData the input compressed data
      * @param zipLike if true, the input file is a zip-based format
+     * @param policy the settings for the input file
+     * @param cancellation cancels optimising the input file
      * @return the best compressed result with the configured settings
      */
-    private CompressionResult findSmallestOutput(byte[] uncompressedData, int crc32, int uncompressedSize, int compressedSize, int compressionMethod, byte[] compressedData, boolean zipLike) {
+    private CompressionResult findSmallestOutput(String fileName, byte[] uncompressedData, int crc32, int uncompressedSize, int compressedSize, int compressionMethod, byte[] compressedData, boolean zipLike, EntryPolicy policy, Cancellation cancellation) {
         if (optimiseDeflateStreamExisting && (compressionMethod == ZipCompressions.DEFLATED)) {
             try {
-                final byte[] optimisedData = Deft.optimiseDeflateStream(compressedData, mergeBlocks);
+                final byte[] optimisedData = optimiseExistingStream(compressedData, uncompressedData, cancellation);
                 // TODO Verify data integrity
 
                 if (isCompressedSizeSmaller(optimisedData, compressedData, ZipCompressions.DEFLATED, ZipCompressions.DEFLATED)) {
@@ -275,15 +1038,17 @@ public class JarTighten {
                     compressedSize = optimisedData.length;
                     //compressionMethod = ZipCompressions.DEFLATED;
                 }
+            } catch (final CancellationException e) {
+                throw e;
             } catch (final Exception e) {
                 // TODO Handle errors more gracefully
-                e.printStackTrace();
+                e.printStackTrace(log);
             }
         }
 
-        if (recompressDeflate) {
+        if (policy.recompressDeflate) {
             try {
-                final byte[] recompressedData = compressionUtil.compress(uncompressedData, recompressMultithread);
+                final byte[] recompressedData = compressDeflate(fileName, uncompressedData, policy, cancellation);
                 // TODO Verify data integrity
 
                 if (isCompressedSizeSmaller(recompressedData, compressedData, ZipCompressions.DEFLATED, compressionMethod)) {
@@ -291,13 +1056,15 @@ public class JarTighten {
                     compressedSize = recompressedData.length;
                     compressionMethod = ZipCompressions.DEFLATED;
                 }
+            } catch (final CancellationException e) {
+                throw e;
             } catch (final Exception e) {
                 // TODO Handle errors more gracefully
-                e.printStackTrace();
+                e.printStackTrace(log);
             }
         }
 
-        if (recompressStore && isCompressedSizeSmaller(uncompressedData, compressedData, ZipCompressions.STORED, compressionMethod)) {
+        if (policy.recompressStore && isCompressedSizeSmaller(uncompressedData, compressedData, ZipCompressions.STORED, compressionMethod)) {
             compressedData = uncompressedData;
             compressedSize = uncompressedData.length;
             compressionMethod = ZipCompressions.STORED;
@@ -309,10 +1076,10 @@ public class JarTighten {
 
                 try
                     (final ZipArchive zipInZip = ZipIO.readJvm(uncompressedData)) {
-                    uncomZip = asRecursiveStoredZip(zipInZip);
+                    uncomZip = asRecursiveStoredZip(zipInZip, cancellation);
                 }
 
-                final CompressionResult comUncomZip = findSmallestOutput(uncomZip.compressedData, uncomZip.crc32, uncomZip.uncompressedSize, uncomZip.uncompressedSize, ZipCompressions.STORED, uncomZip.compressedData, false);
+                final CompressionResult comUncomZip = findSmallestOutput(fileName, uncomZip.compressedData, uncomZip.crc32, uncomZip.uncompressedSize, uncomZip.uncompressedSize, ZipCompressions.STORED, uncomZip.compressedData, false, policy, cancellation);
 
                 if (isCompressedSizeSmaller(comUncomZip.compressedData, compressedData, comUncomZip.compressionMethod, compressionMethod)) {
                     compressedData = comUncomZip.compressedData;
@@ -321,18 +1088,17 @@ public class JarTighten {
                     crc32 = comUncomZip.crc32;
                     uncompressedSize = comUncomZip.uncompressedSize;
                 }
+            } catch (final CancellationException e) {
+                throw e;
             } catch (final Exception e) {
                 // TODO Handle errors more gracefully
-                e.printStackTrace();
+                e.printStackTrace(log);
             }
         }
 
         return new CompressionResult(compressionMethod, compressedData, crc32, uncompressedSize, compressedSize);
     }
 
-    /** Cached decompressor */
-    private final DeflateDecompressor decomp = DeflateDecompressor.INSTANCE;
-
     /**
      * Decompress the data for the given LocalFileHeader,
      * or return the uncompressed data if the compression method is store.
@@ -340,22 +1106,49 @@ public class JarTighten {
      * @param fileHeader the local file header
      * @param compressionMethod the compression method
      * @param compressedData compressed data
+     * @param uncompressedSize the expected uncompressed size
+     * @param crc32 the expected crc32, checked if verifying CRC32s
      * @return uncompressed data
      */
-    private byte[] decompressData(LocalFileHeader fileHeader, int compressionMethod, byte[] compressedData) throws IOException {
+    byte[] decompressData(LocalFileHeader fileHeader, int compressionMethod, byte[] compressedData, int uncompressedSize, int crc32) throws IOException {
+        final CRC32 crc32Calc = verifyCrc32 ? new CRC32() : null;
         final byte[] uncompressedData;
 
         if (compressionMethod == ZipCompressions.DEFLATED) {
-            uncompressedData = ByteDataUtil.toByteArray(decomp.decompress(fileHeader, fileHeader.getFileData()));
-        } else if (compressionMethod == ZipCompressions.STORED) {
-            uncompressedData = compressedData;
+            uncompressedData = decompressionBackend.inflate(fileHeader, compressedData, uncompressedSize, crc32Calc);
         } else {
-            uncompressedData = ByteDataUtil.toByteArray(ZipCompressions.decompress(fileHeader));
+            if (compressionMethod == ZipCompressions.STORED) {
+                uncompressedData = compressedData;
+            } else {
+                uncompressedData = ByteDataUtil.toByteArray(ZipCompressions.decompress(fileHeader));
+            }
+
+            if (crc32Calc != null) {
+                crc32Calc.update(uncompressedData);
+            }
+        }
+
+        if ((crc32Calc != null) && ((int) crc32Calc.getValue() != crc32)) {
+            throw new ZipException("CRC32 mismatch for " + fileHeader.getFileNameAsString() + ": expected " + Integer.toHexString(crc32) + ", was " + Integer.toHexString((int) crc32Calc.getValue()));
         }
 
         return uncompressedData;
     }
 
+    /**
+     * Find the smallest way to store the given input file with the default settings,
+     * without treating it as a zip-based format.
+     *
+     * @param uncompressedData the input uncompressed data
+     * @param crc32 the input crc32
+     * @param compressionMethod the input compression method
+     * @param compressedData the input compressed data
+     * @return the best compressed result with the configured settings
+     */
+    CompressionResult optimiseEntry(byte[] uncompressedData, int crc32, int compressionMethod, byte[] compressedData) {
+        return findSmallestOutput(null, uncompressedData, crc32, uncompressedData.length, compressedData.length, compressionMethod, compressedData, false, defaultPolicy, Cancellation.NONE);
+    }
+
     /**
      * Checks if the local file header may contain a zip based file.
      *
@@ -363,25 +1156,73 @@ public class JarTighten {
      * @return if the file is possibly a zip based file
      */
     private static boolean isFilePossiblyZipLike(LocalFileHeader fileHeader) {
-        final String localFileName = fileHeader.getFileNameAsString();
-        return (localFileName != null) && (localFileName.endsWith(".jar") || localFileName.endsWith(".zip"));
+        return isFilePossiblyZipLike(fileHeader.getFileNameAsString());
     }
 
     /**
-     * Find the smallest way to store the given input file.
+     * Checks if the file name may be of a zip based file.
+     *
+     * @param fileName the file name
+     * @return if the file is possibly a zip based file
+     */
+    private static boolean isFilePossiblyZipLike(String fileName) {
+        return (fileName != null) && (fileName.endsWith(".jar") || fileName.endsWith(".zip"));
+    }
+
+    /**
+     * Find the smallest way to store the given input file, reusing cached results if possible.
      *
-     * @param fileHeader the input file header
+     * @param fileName the input file name
+     * @param uncompressedData the input uncompressed data
      * @param crc32 the input crc32
      * @param uncompressedSize the input uncompressed size
      * @param compressedSize the input compressed size
      * @param compressionMethod the input compression method
      * @param compressedData the input compressed data
+     * @param cancellation cancels optimising the input file
+     * @return the best compressed result with the configured settings
+     */
+    CompressionResult optimiseEntry(String fileName, byte[] uncompressedData, int crc32, int uncompressedSize, int compressedSize, int compressionMethod, byte[] compressedData, Cancellation cancellation) {
+        if (TRACE_STARTUP && !STARTED_FIRST_ENTRY.getAndSet(true)) {
+            System.err.println("JarTighten: started first entry " + fileName);
+        }
+
+        final EntryPolicy policy = resolvePolicy(fileName);
+        // Whether an entry is stored recursively depends on its name, so it's part of the cache key
+        final boolean zipLike = recursiveStore && isFilePossiblyZipLike(fileName);
+        ResultCache.Key cacheKey = null;
+
+        if (resultCache != null) {
+            // Splitting large streams or files can give different output, so the thresholds are part of the cache key
+            cacheKey = ResultCache.key(policy.compressionSettings + ",zipLike=" + zipLike + ",parallelOptimiseThreshold=" + parallelOptimiseThreshold + ",chunkedCompressThreshold=" + chunkedCompressThreshold, uncompressedData);
+            final CompressionResult cached = resultCache.get(cacheKey);
+
+            if (cached != null) {
+                // The input data may have been compressed differently since the result was cached
+                return isCompressedSizeSmaller(compressedData, cached.compressedData, compressionMethod, cached.compressionMethod) ? new CompressionResult(compressionMethod, compressedData, crc32, uncompressedSize, compressedSize) : cached;
+            }
+        }
+
+        final CompressionResult result = findSmallestOutput(fileName, uncompressedData, crc32, uncompressedSize, compressedSize, compressionMethod, compressedData, zipLike, policy, cancellation);
+
+        if (cacheKey != null) {
+            resultCache.put(cacheKey, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Find the smallest way to store the given input file.
+     *
+     * @param entry the input file
+     * @param compressedData the input compressed data
+     * @param cancellation cancels optimising the input file
      * @return the best compressed result with the configured settings
      */
-    private CompressionResult findSmallestOutput(LocalFileHeader fileHeader, int crc32, int uncompressedSize, int compressedSize, int compressionMethod, byte[] compressedData) throws IOException {
-        final byte[] uncompressedData = decompressData(fileHeader, compressionMethod, compressedData);
-        final boolean zipLike = recursiveStore && isFilePossiblyZipLike(fileHeader);
-        return findSmallestOutput(uncompressedData, crc32, uncompressedSize, compressedSize, compressionMethod, compressedData, zipLike);
+    private CompressionResult findSmallestOutput(PendingEntry entry, byte[] compressedData, Cancellation cancellation) throws IOException {
+        final byte[] uncompressedData = decompressData(entry.fileHeader, entry.compressionMethod, compressedData, entry.uncompressedSize, entry.crc32);
+        return optimiseEntry(entry.fileName, uncompressedData, entry.crc32, entry.uncompressedSize, entry.compressedSize, entry.compressionMethod, compressedData, cancellation);
     }
 
     /**
@@ -392,24 +1233,122 @@ public class JarTighten {
      * @param uncompressedSize the input uncompressed size
      * @param compressionMethod the input compression method
      * @param compressedData the input compressed data
+     * @param cancellation cancels storing embedded zip files
      * @return a stored CompressionResult from the given input
      */
-    private CompressionResult asStored(LocalFileHeader fileHeader, int crc32, int uncompressedSize, int compressionMethod, byte[] compressedData) throws IOException {
-        final byte[] uncompressedData = decompressData(fileHeader, compressionMethod, compressedData);
+    private CompressionResult asStored(LocalFileHeader fileHeader, int crc32, int uncompressedSize, int compressionMethod, byte[] compressedData, Cancellation cancellation) throws IOException {
+        final byte[] uncompressedData = decompressData(fileHeader, compressionMethod, compressedData, uncompressedSize, crc32);
 
         if (recursiveStore && isFilePossiblyZipLike(fileHeader)) {
             try
                 (final ZipArchive zipInZip = ZipIO.readJvm(uncompressedData)) {
-                return asRecursiveStoredZip(zipInZip);
+                return asRecursiveStoredZip(zipInZip, cancellation);
+            } catch (final CancellationException e) {
+                throw e;
             } catch (final Exception e) {
                 // TODO Handle errors more gracefully
-                e.printStackTrace();
+                e.printStackTrace(log);
             }
         }
 
         return new CompressionResult(ZipCompressions.STORED, uncompressedData, crc32, uncompressedSize, uncompressedSize);
     }
 
+    /**
+     * Read the compressed data of an entry.
+     *
+     * @param entry the entry
+     * @return the compressed data
+     */
+    static byte[] readCompressedData(PendingEntry entry) {
+        return ByteDataUtil.toByteArray(entry.fileHeader.getFileData());
+    }
+
+    /**
+     * Decompress the data of an entry read with {@link #readCompressedData(PendingEntry)}, while other entries are read or decompressed in parallel.
+     * Deflated and stored data is decompressed without holding the archive lock.
+     * Other compression methods are decompressed from the archive, so the lock is held while decompressing them.
+     *
+     * @param entry the entry
+     * @param compressedData the compressed data of the entry
+     * @param archiveLock lock for reading entry data from the archive
+     * @return uncompressed data
+     */
+    byte[] decompressEntry(PendingEntry entry, byte[] compressedData, Object archiveLock) throws IOException {
+        if ((entry.compressionMethod == ZipCompressions.DEFLATED) || (entry.compressionMethod == ZipCompressions.STORED)) {
+            return decompressData(entry.fileHeader, entry.compressionMethod, compressedData, entry.uncompressedSize, entry.crc32);
+        }
+
+        synchronized (archiveLock) {
+            return decompressData(entry.fileHeader, entry.compressionMethod, compressedData, entry.uncompressedSize, entry.crc32);
+        }
+    }
+
+    /**
+     * Find the best way to store an entry with the configured settings.
+     * If optimising fails, the entry is stored as it is.
+     *
+     * @param entry the entry
+     * @param forceRecursiveStore if true, store the contents of the entry and all embedded zip or jar files uncompressed recursively
+     * @param cancellation cancels optimising the entry
+     * @return the result for the entry
+     */
+    CompressionResult processEntry(PendingEntry entry, boolean forceRecursiveStore, Cancellation cancellation) {
+        final byte[] fileData = readCompressedData(entry);
+
+        if (forceRecursiveStore) {
+            try {
+                return asStored(entry.fileHeader, entry.crc32, entry.uncompressedSize, entry.compressionMethod, fileData, cancellation);
+            } catch (final CancellationException e) {
+                throw e;
+            } catch (final Exception e) {
+                // TODO Handle errors more gracefully
+                e.printStackTrace(log);
+            }
+        } else if (entry.recompresses()) {
+            try {
+                return findSmallestOutput(entry, fileData, cancellation);
+            } catch (final CancellationException e) {
+                throw e;
+            } catch (final Exception e) {
+                // TODO Handle errors more gracefully
+                e.printStackTrace(log);
+            }
+        }
+
+        return new CompressionResult(entry.compressionMethod, fileData, entry.crc32, entry.uncompressedSize, entry.compressedSize);
+    }
+
+    /**
+     * Start finding the best way to store an entry on the thread governor's threads.
+     * The heap reserved for the entry is released when the task finishes.
+     *
+     * @param entry the entry
+     * @param budget the heap budget the entry's working set was reserved from
+     * @param workingSet the heap reserved for the entry
+     * @param archiveLock lock for reading entry data from the archive
+     * @param cancellation cancels optimising the entry
+     * @return the task, which may be joined for the result
+     */
+    private ForkJoinTask<CompressionResult> submitEntry(PendingEntry entry, HeapBudget budget, long workingSet, Object archiveLock, Cancellation cancellation) {
+        return threadGovernor.submit(() -> {
+            try {
+                cancellation.check();
+                final byte[] compressedData;
+
+                synchronized (archiveLock) {
+                    compressedData = readCompressedData(entry);
+                }
+
+                final byte[] uncompressedData = decompressEntry(entry, compressedData, archiveLock);
+
+                return optimiseEntry(entry.fileName, uncompressedData, entry.crc32, entry.uncompressedSize, entry.compressedSize, entry.compressionMethod, compressedData, cancellation);
+            } finally {
+                budget.release(workingSet);
+            }
+        });
+    }
+
     /**
      * A comparator for ordering entries in a Jar file.
      * Java expects either the first entry to be the manifest,
@@ -427,8 +1366,17 @@ public class JarTighten {
          */
         @Override
         public int compare(AbstractZipFileHeader e1, AbstractZipFileHeader e2) {
-            final String e1name = e1.getFileNameAsString();
-            final String e2name = e2.getFileNameAsString();
+            return compareNames(e1.getFileNameAsString(), e2.getFileNameAsString());
+        }
+
+        /**
+         * Sorts file names in the same order as entries.
+         *
+         * @param e1name the first file name
+         * @param e2name the second file name
+         * @return the order
+         */
+        static int compareNames(String e1name, String e2name) {
             final boolean isE1ManifestFolder = "META-INF/".equals(e1name);
             final boolean isE2ManifestFolder = "META-INF/".equals(e2name);
 
@@ -463,171 +1411,532 @@ public class JarTighten {
         }
     }
 
+    /**
+     * Collect the entries to write, in the order they are written.
+     * Skips directory entries and duplicate entries if configured to remove them.
+     *
+     * @param archive the input ZipArchive
+     * @param checkFingerprints if true, read fingerprints recorded in the central directory
+     * @param skipRemoved if false, keep directory entries and duplicate entries even if configured to remove them
+     * @return the entries to write
+     */
+    private List<PendingEntry> collectEntries(ZipArchive archive, boolean checkFingerprints, boolean skipRemoved) {
+        final Comparator<AbstractZipFileHeader> sorter = new JarFileSorter();
+        final List<PendingEntry> entries = new ArrayList<>();
+        final HashSet<Integer> seenCrc32s = new HashSet<>();
+
+        for (final LocalFileHeader fileHeader : sortEntries ? archive.getLocalFiles().stream().sorted(sorter).collect(Collectors.toList()) : archive.getLocalFiles()) {
+            final PendingEntry entry = new PendingEntry(fileHeader, resolvePolicy(fileHeader.getFileNameAsString()), checkFingerprints);
+
+            if (skipRemoved && ((removeDirectoryEntries && (entry.uncompressedSize == 0)) || (deduplicateEntries && !seenCrc32s.add(entry.crc32)))) {
+                continue;
+            }
+
+            entries.add(entry);
+        }
+
+        return entries;
+    }
+
+    /**
+     * Write the local file header for an entry.
+     *
+     * @param outputStream output stream for the header to be written to
+     * @param fileHeader the input local file header
+     * @param fileNameStr the file name
+     * @param policy the settings for the entry
+     * @param compressionMethod the output compression method
+     * @param crc32 the output crc32
+     * @param realUncompressedSize the output uncompressed size
+     * @param realCompressedSize the output compressed size
+     * @param offset the offset the header is written at
+     * @return the length of the header
+     */
+    private int writeLocalFileHeader(OutputStream outputStream, ZipHeaders.Local fileHeader, String fileNameStr, EntryPolicy policy, int compressionMethod, int crc32, int realUncompressedSize, int realCompressedSize, int offset) throws IOException {
+        // Header
+        writeIntLE(outputStream, ZipPatterns.LOCAL_FILE_HEADER_QUAD);
+        // Minimum version
+        int versionNeeded = fileHeader.versionNeeded;
+
+        // If deflate compression is used, make sure that the version needed field is at least 2.0
+        if ((compressionMethod == ZipCompressions.DEFLATED) && (versionNeeded < ZIP_VERSION_2_0)) {
+            versionNeeded = ZIP_VERSION_2_0;
+        }
+
+        writeShortLE(outputStream, zeroLocalFileHeaders ? 0 : versionNeeded);
+        // General purpose bit flag
+        int bitFlag = fileHeader.flags;
+        // Clear the "Data Descriptor" / EXTSIG flag
+        // TODO Option to keep this?
+        bitFlag &= ~(1 << 3);
+        writeShortLE(outputStream, zeroLocalFileHeaders ? 0 : bitFlag);
+        // Compression method
+        writeShortLE(outputStream, zeroLocalFileHeaders ? 0 : compressionMethod);
+        // Last modification time
+        final int lastModFileTime = removeTimestamps ? EARLIEST_TIME : fileHeader.time;
+        writeShortLE(outputStream, zeroLocalFileHeaders ? 0 : lastModFileTime);
+        // Last modification date
+        final int lastModFileDate = removeTimestamps ? EARLIEST_DATE : fileHeader.date;
+        writeShortLE(outputStream, zeroLocalFileHeaders ? 0 : lastModFileDate);
+        // CRC32
+        writeIntLE(outputStream, zeroLocalFileHeaders ? 0 : crc32);
+        // Compressed size
+        final int localCompressedSize = policy.removeFileLength ? 0 : realCompressedSize;
+        writeIntLE(outputStream, zeroLocalFileHeaders ? 0 : localCompressedSize);
+        // Uncompressed size
+        final int localUncompressedSize = policy.removeFileLength ? 0 : realUncompressedSize;
+        writeIntLE(outputStream, zeroLocalFileHeaders ? 0 : localUncompressedSize);
+        // File name optimisation
+        final boolean isManifest = "META-INF/".equals(fileNameStr) || "META-INF/MANIFEST.MF".equals(fileNameStr);
+        final int fileNameLength;
+        final byte[] fileName;
+
+        if (zeroLocalFileHeaders || policy.removeFileNames) {
+            if (isManifest) {
+                // For some reason, the manifest requires the correct file name length offset,
+                // but not the correct name.
+                fileNameLength = fileHeader.fileName.length;
+                fileName = new byte[fileNameLength];
+            } else {
+                fileNameLength = 0;
+                fileName = new byte[] { };
+            }
+        } else {
+            fileNameLength = fileHeader.fileName.length;
+            fileName = fileHeader.fileName;
+        }
+
+        // File name length
+        writeShortLE(outputStream, fileNameLength);
+        // Get extra
+        int extraFieldLength = zeroLocalFileHeaders || removeExtra ? 0 : fileHeader.extra.length;
+        byte[] extra = zeroLocalFileHeaders || removeExtra ? new byte[] { } : fileHeader.extra;
+
+        if (makeExecutableJar && (offset == 0) && !checkForExtraSignature(extra, (short) 0xCAFE)) {
+            extraFieldLength += 4;
+            final int currentSize = extra.length;
+            extra = Arrays.copyOf(extra, currentSize + 4);
+            extra[currentSize + 0] = (byte) 0xFE;
+            extra[currentSize + 1] = (byte) 0xCA;
+            extra[currentSize + 2] = 0;
+            extra[currentSize + 3] = 0;
+        }
+
+        // Pad the extra field so stored data starts at a multiple of the alignment.
+        // This is done last, so the padding accounts for every other change to the header.
+        if ((compressionMethod == ZipCompressions.STORED) && (policy.alignment > 1)) {
+            extra = ExtraFields.align(ExtraFields.strip(extra, ExtraFields.ALIGNMENT_HEADER_ID), (offset & 0xFFFFFFFFL) + 30 + fileNameLength, policy.alignment);
+            extraFieldLength = extra.length;
+        }
+
+        // Extra field length
+        writeShortLE(outputStream, extraFieldLength);
+        // File name
+        outputStream.write(fileName);
+        // Extra field
+        outputStream.write(extra);
+        return 30 + fileNameLength + extraFieldLength;
+    }
+
+    /**
+     * Record a written entry, so that its central directory entry can be written.
+     *
+     * @param mapToEntryData the written entries, by their offset in the input or their crc32 if deduplicating entries
+     * @param entry the input entry
+     * @param entryData the written entry
+     */
+    private void putEntryData(HashMap<Integer, EntryData> mapToEntryData, PendingEntry entry, EntryData entryData) {
+        if (deduplicateEntries) {
+            mapToEntryData.put(entryData.crc32, entryData);
+
+            if (entryData.crc32 != entry.crc32) {
+                mapToEntryData.put(entry.crc32, entryData);
+            }
+        } else if (entry.cenDir != null) {
+            mapToEntryData.put((int) entry.cenDir.getRelativeOffsetOfLocalHeader(), entryData);
+        } else if (entry.fileHeader.hasOffset()) {
+            mapToEntryData.put((int) entry.fileHeader.offset(), entryData);
+        } else {
+            log.println("File " + entry.fileName + " somehow had no offset?");
+        }
+    }
+
+    /** Receives the result for each entry, in the order entries are written */
+    @FunctionalInterface
+    private interface ResultConsumer {
+        /**
+         * @param entry the entry
+         * @param result the result for the entry
+         */
+        void accept(PendingEntry entry, CompressionResult result) throws IOException;
+    }
+
+    /**
+     * Find the best way to store each entry, passing the results to the consumer in the same order as the entries.
+     * Entries may be recompressed in worker processes or in parallel ahead of the entry being consumed.
+     *
+     * @param entries the entries
+     * @param forceRecursiveStore if true, store the contents of every entry and all embedded zip or jar files uncompressed recursively
+     * @param cancellation cancels optimising the entries
+     * @param consumer receives the result for each entry
+     */
+    private void forEachResult(List<PendingEntry> entries, boolean forceRecursiveStore, Cancellation cancellation, ResultConsumer consumer) throws IOException {
+        // Entries which are recompressed by worker processes
+        final HashMap<PendingEntry, Future<CompressionResult>> shardedResults = new HashMap<>();
+        ShardCoordinator shardCoordinator = null;
+
+        if (!forceRecursiveStore && (shardWorkers > 0)) {
+            final List<PendingEntry> shardedEntries = entries.stream().filter(PendingEntry::recompresses).collect(Collectors.toList());
+            shardCoordinator = new ShardCoordinator(this, shardWorkers, shardWorkerClassPath, cancellation);
+            final List<Future<CompressionResult>> futures = shardCoordinator.start(shardedEntries);
+
+            for (int i = 0; i < shardedEntries.size(); i++) {
+                shardedResults.put(shardedEntries.get(i), futures.get(i));
+            }
+        }
+
+        try {
+            // Entries which are recompressed in parallel on the thread governor's threads
+            final List<PendingEntry> parallelEntries;
+
+            if (!forceRecursiveStore && (shardWorkers <= 0) && (threadGovernor != null) && threadGovernor.isParallel()) {
+                parallelEntries = entries.stream().filter(PendingEntry::recompresses).collect(Collectors.toList());
+            } else {
+                parallelEntries = Collections.emptyList();
+            }
+
+            final HashMap<PendingEntry, ForkJoinTask<CompressionResult>> parallelResults = new HashMap<>();
+            // Only start a limited number of entries ahead of the entry being written, to limit memory usage
+            final int parallelWindow = threadGovernor != null ? threadGovernor.getThreads() * 2 : 0;
+            final HeapBudget budget = parallelEntries.isEmpty() ? null : heapBudget != null ? heapBudget : HeapBudget.automatic();
+            // Lock for reading entry data from the archive while entries are optimised in parallel
+            final Object archiveLock = new Object();
+            int nextParallelEntry = 0;
+
+            for (final PendingEntry entry : entries) {
+                cancellation.check();
+
+                while ((nextParallelEntry < parallelEntries.size()) && (parallelResults.size() < parallelWindow)) {
+                    final PendingEntry parallelEntry = parallelEntries.get(nextParallelEntry);
+                    final long workingSet = HeapBudget.estimateWorkingSet(parallelEntry.policy, parallelEntry.uncompressedSize & 0xFFFFFFFFL, parallelEntry.compressedSize & 0xFFFFFFFFL);
+
+                    if (parallelEntry == entry) {
+                        // Entries before this one have all been written, so it can always start once it fits
+                        try {
+                            budget.acquire(workingSet, cancellation);
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted while waiting for heap budget");
+                        }
+                    } else if (!budget.tryAcquire(workingSet)) {
+                        break;
+                    }
+
+                    parallelResults.put(parallelEntry, submitEntry(parallelEntry, budget, workingSet, archiveLock, cancellation));
+                    nextParallelEntry++;
+                }
+
+                final ForkJoinTask<CompressionResult> parallelResult = parallelResults.remove(entry);
+                final Future<CompressionResult> shardedResult = shardedResults.get(entry);
+                CompressionResult result = null;
+
+                if (shardedResult != null) {
+                    try {
+                        result = shardedResult.get();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for worker processes");
+                    } catch (final ExecutionException e) {
+                        cancellation.check();
+                        // TODO Handle errors more gracefully
+                        e.printStackTrace(log);
+                    }
+                }
+
+                if (parallelResult != null) {
+                    try {
+                        result = ThreadGovernor.join(parallelResult);
+                    } catch (final ExecutionException e) {
+                        cancellation.check();
+                        // TODO Handle errors more gracefully
+                        e.printStackTrace(log);
+                    }
+                }
+
+                if (result == null) {
+                    result = processEntry(entry, forceRecursiveStore, cancellation);
+                }
+
+                consumer.accept(entry, result);
+            }
+        } finally {
+            if (shardCoordinator != null) {
+                // Stops the worker processes early if an entry couldn't be written
+                shardCoordinator.close();
+            }
+        }
+    }
+
+    /**
+     * Get the fingerprint to record for an entry.
+     *
+     * @param fingerprint if false, don't record fingerprints
+     * @param entry the entry, with the settings it was optimised with
+     * @param result the result for the entry
+     * @return the fingerprint, or null if not recording one
+     */
+    private byte[] fingerprintFor(boolean fingerprint, PendingEntry entry, CompressionResult result) {
+        if (!fingerprint) {
+            return null;
+        }
+
+        if (entry.alreadyOptimised) {
+            return entry.recordedFingerprint;
+        }
+
+        if (entry.policy.recompressDeflate && (entry.policy.fingerprintSettings != null) && !compressesInChunks(result.uncompressedSize)) {
+            return Fingerprint.create(entry.policy.fingerprintSettings, result.crc32, result.compressedSize, result.uncompressedSize, result.compressionMethod);
+        }
+
+        // Not recompressed, or compressed in chunks, which may compress smaller without chunks
+        return null;
+    }
+
+    /**
+     * Write an entry's local file header and compressed data.
+     *
+     * @param outputStream output stream for the entry to be written to
+     * @param entry the entry
+     * @param result the result for the entry
+     * @param entryFingerprint the fingerprint to record for the entry, or null to not record one
+     * @param mapToEntryData the written entries, by their offset in the input or their crc32 if deduplicating entries
+     * @param offset the offset the entry is written at
+     * @return the offset after the entry
+     */
+    private int writeEntry(OutputStream outputStream, PendingEntry entry, CompressionResult result, byte[] entryFingerprint, HashMap<Integer, EntryData> mapToEntryData, int offset) throws IOException {
+        final int compressionMethod = result.compressionMethod;
+        final byte[] fileData = result.compressedData;
+        final int crc32 = result.crc32;
+        final int realUncompressedSize = result.uncompressedSize;
+        final int realCompressedSize = result.compressedSize;
+        final int headerLength = writeLocalFileHeader(outputStream, ZipHeaders.Local.of(entry.fileHeader), entry.fileName, entry.policy, compressionMethod, crc32, realUncompressedSize, realCompressedSize, offset);
+        // Compressed data
+        // TODO This feels wrong?
+        outputStream.write(fileData, 0, realCompressedSize);
+        putEntryData(mapToEntryData, entry, new EntryData(crc32, realUncompressedSize, realCompressedSize, compressionMethod, offset, entry.fileName, entry.policy, entryFingerprint));
+        return offset + headerLength + realCompressedSize;
+    }
+
     /**
      * Optimises a ZipArchive, with the configured settings.
      *
      * @param forceRecursiveStore if true, store the contents of this and all embedded zip or jar files uncompressed recursively
      * @param archive the ZipArchive to optimise
      * @param outputStream output stream for optimised jar to be written to
+     * @param cancellation cancels optimising the jar
      * @return true, if successful
      */
-    private boolean optimiseJar(boolean forceRecursiveStore, ZipArchive archive, OutputStream outputStream) throws IOException {
+    private boolean optimiseJar(boolean forceRecursiveStore, ZipArchive archive, OutputStream outputStream, Cancellation cancellation) throws IOException {
         final HashMap<Integer, EntryData> mapToEntryData = new HashMap<>();
-        int offset = 0;
-        final Comparator<AbstractZipFileHeader> sorter = new JarFileSorter();
+        // Offset the next entry is written at
+        final int[] offset = { 0 };
+        // Embedded zip files stored recursively aren't optimised with the configured settings, so they don't get fingerprints
+        final boolean fingerprint = fingerprintEntries && !forceRecursiveStore;
+        final List<PendingEntry> entries = collectEntries(archive, fingerprint, true);
 
         // Local file headers:
-        for (final LocalFileHeader fileHeader : sortEntries ? archive.getLocalFiles().stream().sorted(sorter).collect(Collectors.toList()) : archive.getLocalFiles()) {
-            int crc32 = fileHeader.getCrc32();
-            final int originalCrc32 = crc32;
-            int realCompressedSize = (int) fileHeader.getCompressedSize();
-            int realUncompressedSize = (int) fileHeader.getUncompressedSize();
-            final CentralDirectoryFileHeader cenDir = fileHeader.getLinkedDirectoryFileHeader();
-
-            if (cenDir != null) {
-                realCompressedSize = (int) cenDir.getCompressedSize();
-                realUncompressedSize = (int) cenDir.getUncompressedSize();
+        forEachResult(entries, forceRecursiveStore, cancellation, (entry, result) -> {
+            if (deduplicateEntries && mapToEntryData.containsKey(entry.crc32)) {
+                return;
             }
 
-            if ((removeDirectoryEntries && (realUncompressedSize == 0)) || (deduplicateEntries && mapToEntryData.containsKey(crc32))) {
+            offset[0] = writeEntry(outputStream, entry, result, fingerprintFor(fingerprint, entry, result), mapToEntryData, offset[0]);
+        });
+
+        writeCentralDirectory(ZipHeaders.of(archive), mapToEntryData, offset[0], outputStream);
+        return true;
+    }
+
+    /** The result for an entry shared between outputs, with the fingerprint to record for it */
+    private static final class SharedResult {
+        final CompressionResult result;
+        final byte[] fingerprint;
+
+        SharedResult(CompressionResult result, byte[] fingerprint) {
+            this.result = result;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    /**
+     * Write a jar file using results found by another instance, with the header and metadata options of this instance.
+     *
+     * @param archive the input ZipArchive
+     * @param entries the entries to write, collected by this instance
+     * @param results the result for each local file header
+     * @param outputStream output stream for the jar to be written to
+     * @param cancellation cancels writing the jar
+     * @return true, if successful
+     */
+    private boolean writeSharedResults(ZipArchive archive, List<PendingEntry> entries, Map<LocalFileHeader, SharedResult> results, OutputStream outputStream, Cancellation cancellation) throws IOException {
+        final HashMap<Integer, EntryData> mapToEntryData = new HashMap<>();
+        int offset = 0;
+
+        // Local file headers:
+        for (final PendingEntry entry : entries) {
+            cancellation.check();
+
+            if (deduplicateEntries && mapToEntryData.containsKey(entry.crc32)) {
                 continue;
             }
 
-            int compressionMethod = fileHeader.getCompressionMethod();
-            byte[] fileData = ByteDataUtil.toByteArray(fileHeader.getFileData());
+            final SharedResult shared = results.get(entry.fileHeader);
+            offset = writeEntry(outputStream, entry, shared.result, fingerprintEntries ? shared.fingerprint : null, mapToEntryData, offset);
+        }
 
-            if (forceRecursiveStore) {
-                try {
-                    final CompressionResult stored = asStored(fileHeader, crc32, realUncompressedSize, compressionMethod, fileData);
-                    compressionMethod = stored.compressionMethod;
-                    fileData = stored.compressedData;
-                    crc32 = stored.crc32;
-                    realUncompressedSize = stored.uncompressedSize;
-                    realCompressedSize = stored.compressedSize;
-                } catch (final Exception e) {
-                    // TODO Handle errors more gracefully
-                    e.printStackTrace();
-                }
-            } else if (recompressDeflate) {
-                try {
-                    final CompressionResult newBest = findSmallestOutput(fileHeader, crc32, realUncompressedSize, realCompressedSize, compressionMethod, fileData);
-                    compressionMethod = newBest.compressionMethod;
-                    fileData = newBest.compressedData;
-                    crc32 = newBest.crc32;
-                    realUncompressedSize = newBest.uncompressedSize;
-                    realCompressedSize = newBest.compressedSize;
-                } catch (final Exception e) {
-                    // TODO Handle errors more gracefully
-                    e.printStackTrace();
-                }
+        writeCentralDirectory(ZipHeaders.of(archive), mapToEntryData, offset, outputStream);
+        return true;
+    }
+
+    /**
+     * Optimises a ZipArchive once, and writes it to several outputs with different header and metadata options.
+     * Every entry is decompressed and recompressed once with the compression options of this instance,
+     * then each output is written in parallel with the header and metadata options of its profile,
+     * such as removing file names, timestamps, or directory entries, or zeroing local file headers.
+     * The compression options of the profiles are ignored. The results for every entry are kept in memory until every output is written.
+     *
+     * @param archive the ZipArchive to optimise
+     * @param profiles the instance whose header and metadata options are used for each output
+     * @param outputStreams output stream for each optimised jar to be written to, in the same order as the profiles
+     * @param cancellation cancels optimising the jar
+     * @return true, if every output was written successfully
+     * @throws CancellationException if cancelled before finishing
+     */
+    public boolean optimiseJar(ZipArchive archive, List<JarTighten> profiles, List<OutputStream> outputStreams, Cancellation cancellation) throws IOException {
+        if (profiles.size() != outputStreams.size()) {
+            throw new IllegalArgumentException("Expected one output stream per profile, got " + outputStreams.size() + " output streams for " + profiles.size() + " profiles");
+        }
+
+        // Profiles may keep entries this instance would remove, so every entry is optimised
+        final List<PendingEntry> entries = collectEntries(archive, fingerprintEntries, false);
+        final Map<LocalFileHeader, SharedResult> results = new IdentityHashMap<>();
+        forEachResult(entries, false, cancellation, (entry, result) -> results.put(entry.fileHeader, new SharedResult(result, fingerprintFor(true, entry, result))));
+        final List<Callable<Boolean>> writers = new ArrayList<>();
+
+        for (int i = 0; i < profiles.size(); i++) {
+            final JarTighten profile = profiles.get(i);
+            final OutputStream outputStream = outputStreams.get(i);
+            // Entries are collected before writing in parallel, as collecting them reads the archive
+            final List<PendingEntry> profileEntries = profile.collectEntries(archive, false, true);
+            writers.add(() -> profile.writeSharedResults(archive, profileEntries, results, outputStream, cancellation));
+        }
+
+        final ThreadGovernor governor = parallelGovernor();
+        boolean succeeded = true;
+
+        try {
+            for (final boolean written : (governor != null ? governor : new ThreadGovernor(1)).invokeAll(writers)) {
+                succeeded &= written;
             }
+        } catch (final ExecutionException e) {
+            cancellation.check();
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException("Writing an output failed", e.getCause());
+        }
 
-            final boolean exclude = excludes.contains(fileHeader.getFileNameAsString());
-            // Header
-            writeIntLE(outputStream, ZipPatterns.LOCAL_FILE_HEADER_QUAD);
-            // Minimum version
-            int versionNeeded = fileHeader.getVersionNeededToExtract();
+        return succeeded;
+    }
 
-            // If deflate compression is used, make sure that the version needed field is at least 2.0
-            if ((compressionMethod == ZipCompressions.DEFLATED) && (versionNeeded < ZIP_VERSION_2_0)) {
-                versionNeeded = ZIP_VERSION_2_0;
+    /**
+     * Optimises a jar file once, and writes it to several output files with different header and metadata options.
+     *
+     * @param input the input jar file
+     * @param profiles the instance whose header and metadata options are used for each output
+     * @param outputs the output jar files, in the same order as the profiles
+     * @param overwrite if true, overwrite existing output files
+     * @return true, if every output was written successfully
+     * @see #optimiseJar(ZipArchive, List, List, Cancellation)
+     */
+    public boolean optimiseJar(Path input, List<JarTighten> profiles, List<Path> outputs, boolean overwrite) throws IOException {
+        if (!Files.isRegularFile(input)) {
+            return false;
+        }
+
+        // Check every output before creating any files, so nothing is left behind
+        for (final Path output : outputs) {
+            if (Files.isRegularFile(output) && !overwrite) {
+                return false;
             }
+        }
 
-            writeShortLE(outputStream, zeroLocalFileHeaders ? 0 : versionNeeded);
-            // General purpose bit flag
-            int bitFlag = fileHeader.getGeneralPurposeBitFlag();
-            // Clear the "Data Descriptor" / EXTSIG flag
-            // TODO Option to keep this?
-            bitFlag &= ~(1 << 3);
-            writeShortLE(outputStream, zeroLocalFileHeaders ? 0 : bitFlag);
-            // Compression method
-            writeShortLE(outputStream, zeroLocalFileHeaders ? 0 : compressionMethod);
-            // Last modification time
-            final int lastModFileTime = removeTimestamps ? EARLIEST_TIME : fileHeader.getLastModFileTime();
-            writeShortLE(outputStream, zeroLocalFileHeaders ? 0 : lastModFileTime);
-            // Last modification date
-            final int lastModFileDate = removeTimestamps ? EARLIEST_DATE : fileHeader.getLastModFileDate();
-            writeShortLE(outputStream, zeroLocalFileHeaders ? 0 : lastModFileDate);
-            // CRC32
-            writeIntLE(outputStream, zeroLocalFileHeaders ? 0 : crc32);
-            // Compressed size
-            final int localCompressedSize = removeFileLength && !exclude ? 0 : realCompressedSize;
-            writeIntLE(outputStream, zeroLocalFileHeaders ? 0 : localCompressedSize);
-            // Uncompressed size
-            final int localUncompressedSize = removeFileLength && !exclude ? 0 : realUncompressedSize;
-            writeIntLE(outputStream, zeroLocalFileHeaders ? 0 : localUncompressedSize);
-            // File name optimisation
-            final String fileNameStr = fileHeader.getFileNameAsString();
-            final boolean isManifest = "META-INF/".equals(fileNameStr) || "META-INF/MANIFEST.MF".equals(fileNameStr);
-            final int fileNameLength;
-            final byte[] fileName;
-
-            if (zeroLocalFileHeaders || (removeFileNames && !exclude)) {
-                if (isManifest) {
-                    // For some reason, the manifest requires the correct file name length offset,
-                    // but not the correct name.
-                    fileNameLength = fileHeader.getFileNameLength();
-                    fileName = new byte[fileNameLength];
-                } else {
-                    fileNameLength = 0;
-                    fileName = new byte[] { };
-                }
-            } else {
-                fileNameLength = fileHeader.getFileNameLength();
-                fileName = ByteDataUtil.toByteArray(fileHeader.getFileName());
+        final List<Path> tempPaths = new ArrayList<>();
+        final List<OutputStream> outputStreams = new ArrayList<>();
+
+        try {
+            for (final Path output : outputs) {
+                // Outputs are written to temporary files next to them first, as an output may be the input
+                final Path tempPath = Files.createTempFile(output.toAbsolutePath().getParent(), "JarTighten-temp-", ".jar");
+                tempPaths.add(tempPath);
+                outputStreams.add(new BufferedOutputStream(Files.newOutputStream(tempPath)));
             }
 
-            // File name length
-            writeShortLE(outputStream, fileNameLength);
-            // Get extra
-            int extraFieldLength = zeroLocalFileHeaders || removeExtra ? 0 : fileHeader.getExtraFieldLength();
-            byte[] extra = zeroLocalFileHeaders || removeExtra ? new byte[] { } : ByteDataUtil.toByteArray(fileHeader.getExtraField());
+            final boolean returnVal;
 
-            if (makeExecutableJar && (offset == 0) && !checkForExtraSignature(extra, (short) 0xCAFE)) {
-                extraFieldLength += 4;
-                final int currentSize = extra.length;
-                extra = Arrays.copyOf(extra, currentSize + 4);
-                extra[currentSize + 0] = (byte) 0xFE;
-                extra[currentSize + 1] = (byte) 0xCA;
-                extra[currentSize + 2] = 0;
-                extra[currentSize + 3] = 0;
+            try
+                (final ZipArchive archive = ZipIO.readJvm(input)) {
+                returnVal = optimiseJar(archive, profiles, outputStreams, Cancellation.NONE);
             }
 
-            // Extra field length
-            writeShortLE(outputStream, extraFieldLength);
-            // File name
-            outputStream.write(fileName);
-            // Extra field
-            outputStream.write(extra);
-            // Compressed data
-            // TODO This feels wrong?
-            outputStream.write(fileData, 0, realCompressedSize);
-            final EntryData entryData = new EntryData(crc32, realUncompressedSize, realCompressedSize, compressionMethod, offset);
+            // Close the outputs before moving them, so errors flushing them aren't ignored
+            while (!outputStreams.isEmpty()) {
+                outputStreams.remove(outputStreams.size() - 1).close();
+            }
 
-            if (deduplicateEntries) {
-                mapToEntryData.put(crc32, entryData);
+            if (returnVal) {
+                for (int i = 0; i < outputs.size(); i++) {
+                    Files.move(tempPaths.get(i), outputs.get(i), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
 
-                if (crc32 != originalCrc32) {
-                    mapToEntryData.put(originalCrc32, entryData);
+            return returnVal;
+        } finally {
+            // Close any outputs left open by an exception, so their temporary files can be deleted
+            for (final OutputStream outputStream : outputStreams) {
+                try {
+                    outputStream.close();
+                } catch (final IOException e) {
+                    // TODO Handle errors more gracefully
+                    e.printStackTrace(log);
                 }
-            } else if (cenDir != null) {
-                mapToEntryData.put((int) cenDir.getRelativeOffsetOfLocalHeader(), entryData);
-            } else if (fileHeader.hasOffset()) {
-                mapToEntryData.put((int) fileHeader.offset(), entryData);
-            } else {
-                System.err.println("File " + fileHeader.getFileNameAsString() + " somehow had no offset?");
             }
 
-            offset += 30 + fileNameLength + extraFieldLength + realCompressedSize;
+            for (final Path tempPath : tempPaths) {
+                try {
+                    Files.deleteIfExists(tempPath);
+                } catch (final Exception e) {
+                    log.println("Issue deleting temporary file " + tempPath);
+                    e.printStackTrace(log);
+                }
+            }
         }
+    }
 
-        final int startCentral = offset;
+    /**
+     * Write the central directory and end of central directory record.
+     *
+     * @param headers the input headers
+     * @param mapToEntryData the written entries, by their offset in the input or their crc32 if deduplicating entries
+     * @param startCentral the offset the central directory is written at
+     * @param outputStream output stream for the central directory to be written to
+     */
+    private void writeCentralDirectory(ZipHeaders headers, HashMap<Integer, EntryData> mapToEntryData, int startCentral, OutputStream outputStream) throws IOException {
+        final Comparator<ZipHeaders.Central> sorter = (e1, e2) -> JarFileSorter.compareNames(e1.fileNameString, e2.fileNameString);
+        int offset = startCentral;
         int centralEntries = 0;
 
         // Central directory file headers:
-        for (final CentralDirectoryFileHeader centralDir : sortEntries ? archive.getCentralDirectories().stream().sorted(sorter).collect(Collectors.toList()) : archive.getCentralDirectories()) {
-            final int crc32 = centralDir.getCrc32();
-            final int key = deduplicateEntries ? crc32 : (int) centralDir.getRelativeOffsetOfLocalHeader();
+        for (final ZipHeaders.Central centralDir : sortEntries ? headers.centralDirectories.stream().sorted(sorter).collect(Collectors.toList()) : headers.centralDirectories) {
+            final int crc32 = centralDir.crc32;
+            final int key = deduplicateEntries ? crc32 : (int) centralDir.localHeaderOffset;
 
             if (!mapToEntryData.containsKey(key)) {
                 continue;
@@ -636,16 +1945,16 @@ public class JarTighten {
             final EntryData entryData = mapToEntryData.get(key);
             final int uncompressedSize = entryData.uncompressedSize;
 
-            if (removeDirectoryEntries && ((uncompressedSize == 0) || (centralDir.getUncompressedSize() == 0L))) {
+            if (removeDirectoryEntries && ((uncompressedSize == 0) || (centralDir.uncompressedSize == 0L))) {
                 continue;
             }
 
             // Header
             writeIntLE(outputStream, ZipPatterns.CENTRAL_DIRECTORY_FILE_HEADER_QUAD);
             // Made by
-            writeShortLE(outputStream, centralDir.getVersionMadeBy());
+            writeShortLE(outputStream, centralDir.versionMadeBy);
             // Minimum version
-            int versionNeeded = centralDir.getVersionNeededToExtract();
+            int versionNeeded = centralDir.versionNeeded;
 
             // If deflate compression is used, make sure that the version needed field is at least 2.0
             if ((entryData.compressionMethod == ZipCompressions.DEFLATED) && (versionNeeded < ZIP_VERSION_2_0)) {
@@ -654,7 +1963,7 @@ public class JarTighten {
 
             writeShortLE(outputStream, versionNeeded);
             // General purpose bit flag
-            int bitFlag = centralDir.getGeneralPurposeBitFlag();
+            int bitFlag = centralDir.flags;
             // Clear the "Data Descriptor" / EXTSIG flag
             // TODO Option to keep this?
             bitFlag &= ~(1 << 3);
@@ -662,61 +1971,67 @@ public class JarTighten {
             // Compression method
             writeShortLE(outputStream, entryData.compressionMethod);
             // Last modification time
-            final int lastModFileTime = removeTimestamps ? EARLIEST_TIME : centralDir.getLastModFileTime();
+            final int lastModFileTime = removeTimestamps ? EARLIEST_TIME : centralDir.time;
             writeShortLE(outputStream, lastModFileTime);
             // Last modification date
-            final int lastModFileDate = removeTimestamps ? EARLIEST_DATE : centralDir.getLastModFileDate();
+            final int lastModFileDate = removeTimestamps ? EARLIEST_DATE : centralDir.date;
             writeShortLE(outputStream, lastModFileDate);
             // CRC32
             writeIntLE(outputStream, entryData.crc32);
             // Sizes
-            final String fileNameStr = centralDir.getFileNameAsString();
+            final String fileNameStr = centralDir.fileNameString;
             final boolean isManifest = "META-INF/".equals(fileNameStr) || "META-INF/MANIFEST.MF".equals(fileNameStr);
-            final boolean exclude = excludes.contains(fileNameStr);
+            // Deduplicated entries may have a different name to the entry the data was written for
+            final EntryPolicy policy = fileNameStr != null && fileNameStr.equals(entryData.fileName) ? entryData.policy : resolvePolicy(fileNameStr);
             // Compressed size
-            final int dirCompressedSize = removeDirEntryLength && !isManifest && !exclude && (entryData.compressionMethod == ZipCompressions.DEFLATED) ? Integer.MAX_VALUE : entryData.compressedSize;
+            final int dirCompressedSize = policy.removeDirEntryLength && !isManifest && (entryData.compressionMethod == ZipCompressions.DEFLATED) ? Integer.MAX_VALUE : entryData.compressedSize;
             writeIntLE(outputStream, dirCompressedSize);
             // Uncompressed size
-            final int dirUncompressedSize = removeDirEntryLength && !isManifest && !exclude ? Integer.MAX_VALUE : uncompressedSize;
+            final int dirUncompressedSize = policy.removeDirEntryLength && !isManifest ? Integer.MAX_VALUE : uncompressedSize;
             writeIntLE(outputStream, dirUncompressedSize);
             // File name length
-            final int fileNameLength = centralDir.getFileNameLength();
+            final int fileNameLength = centralDir.fileName.length;
             writeShortLE(outputStream, fileNameLength);
+            // Get extra, replacing any recorded fingerprint
+            byte[] extra = removeExtra ? new byte[] { } : Fingerprint.strip(centralDir.extra);
+
+            if (entryData.fingerprint != null) {
+                extra = Fingerprint.append(extra, entryData.fingerprint);
+            }
+
             // Extra field length
-            final int extraFieldLength = removeExtra ? 0 : centralDir.getExtraFieldLength();
+            final int extraFieldLength = extra.length;
             writeShortLE(outputStream, extraFieldLength);
             // File comment length
-            final int fileCommentLength = removeComments ? 0 : centralDir.getFileCommentLength();
+            final int fileCommentLength = removeComments ? 0 : centralDir.comment.length;
             writeShortLE(outputStream, fileCommentLength);
             // Disk number where file starts
-            writeShortLE(outputStream, centralDir.getDiskNumberStart());
+            writeShortLE(outputStream, centralDir.diskNumberStart);
             // Internal file attributes
-            writeShortLE(outputStream, centralDir.getInternalFileAttributes());
+            writeShortLE(outputStream, centralDir.internalAttributes);
             // External file attributes
-            writeIntLE(outputStream, centralDir.getExternalFileAttributes());
+            writeIntLE(outputStream, centralDir.externalAttributes);
             // Relative offset of local file header
             writeIntLE(outputStream, entryData.offset);
             // File name
-            final byte[] fileName = ByteDataUtil.toByteArray(centralDir.getFileName());
-            outputStream.write(fileName);
+            outputStream.write(centralDir.fileName);
             // Extra field
-            final byte[] extra = removeExtra ? new byte[] { } : ByteDataUtil.toByteArray(centralDir.getExtraField());
             outputStream.write(extra);
             // File comment
-            final byte[] fileComment = removeComments ? new byte[] { } : ByteDataUtil.toByteArray(centralDir.getFileComment());
+            final byte[] fileComment = removeComments ? new byte[] { } : centralDir.comment;
             outputStream.write(fileComment);
             centralEntries++;
             offset += 46 + fileNameLength + extraFieldLength + fileCommentLength;
         }
 
         // End of central directory record:
-        final EndOfCentralDirectory end = archive.getEnd();
+        final ZipHeaders.End end = headers.end;
         // Header
         writeIntLE(outputStream, ZipPatterns.END_OF_CENTRAL_DIRECTORY_QUAD);
         // Disk number
-        writeShortLE(outputStream, removeEOCDInfo ? Integer.MAX_VALUE : end != null ? end.getDiskNumber() : 0);
+        writeShortLE(outputStream, removeEOCDInfo ? Integer.MAX_VALUE : end != null ? end.diskNumber : 0);
         // Central directory start disk
-        writeShortLE(outputStream, removeEOCDInfo ? Integer.MAX_VALUE : end != null ? end.getCentralDirectoryStartDisk() : 0);
+        writeShortLE(outputStream, removeEOCDInfo ? Integer.MAX_VALUE : end != null ? end.centralDirectoryStartDisk : 0);
         // TODO What is this?
         writeShortLE(outputStream, removeEOCDInfo ? 0 : centralEntries);
         // Central directory entries
@@ -726,11 +2041,10 @@ public class JarTighten {
         // Central directory offset
         writeIntLE(outputStream, startCentral);
         // Comment length
-        writeShortLE(outputStream, (end == null) || removeComments ? 0 : end.getZipCommentLength());
+        writeShortLE(outputStream, (end == null) || removeComments ? 0 : end.commentLength);
         // Comment
-        final byte[] zipComment = (end == null) || removeComments ? new byte[] { } : ByteDataUtil.toByteArray(end.getZipComment());
+        final byte[] zipComment = (end == null) || removeComments ? new byte[] { } : end.comment;
         outputStream.write(zipComment);
-        return true;
     }
 
     /**
@@ -741,7 +2055,227 @@ public class JarTighten {
      * @return true, if successful
      */
     public boolean optimiseJar(ZipArchive archive, OutputStream outputStream) throws IOException {
-        return optimiseJar(false, archive, outputStream);
+        return optimiseJar(false, archive, outputStream, Cancellation.NONE);
+    }
+
+    /**
+     * Optimises a ZipArchive, with the configured settings.
+     *
+     * @param archive the ZipArchive to optimise
+     * @param outputStream output stream for optimised jar to be written to
+     * @param cancellation cancels optimising the jar
+     * @return true, if successful
+     * @throws CancellationException if cancelled before finishing
+     */
+    public boolean optimiseJar(ZipArchive archive, OutputStream outputStream, Cancellation cancellation) throws IOException {
+        return optimiseJar(false, archive, outputStream, cancellation);
+    }
+
+    /**
+     * Optimises a jar file in memory, with the configured settings.
+     *
+     * @param input the input jar file, from its position to its limit. The position of the buffer is not changed.
+     * @param output channel for the optimised jar to be written to
+     * @param cancellation cancels optimising the jar
+     * @return true, if successful
+     * @throws CancellationException if cancelled before finishing
+     */
+    public boolean optimiseJar(ByteBuffer input, WritableByteChannel output, Cancellation cancellation) throws IOException {
+        final BufferedOutputStream outputStream = new BufferedOutputStream(Channels.newOutputStream(output), CHANNEL_BUFFER_SIZE);
+        final boolean returnVal = optimiseJar(input, outputStream, cancellation);
+        // The channel is owned by the caller, so it's flushed but not closed
+        outputStream.flush();
+        return returnVal;
+    }
+
+    /** Size of the buffer used when writing to a channel */
+    private static final int CHANNEL_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Optimises a jar file in memory, with the configured settings.
+     *
+     * @param input the input jar file, from its position to its limit. The position of the buffer is not changed.
+     * @param outputStream output stream for optimised jar to be written to
+     * @param cancellation cancels optimising the jar
+     * @return true, if successful
+     */
+    private boolean optimiseJar(ByteBuffer input, OutputStream outputStream, Cancellation cancellation) throws IOException {
+        final byte[] inputBytes;
+
+        if (input.hasArray() && (input.arrayOffset() == 0) && (input.position() == 0) && (input.limit() == input.array().length)) {
+            inputBytes = input.array();
+        } else {
+            inputBytes = new byte[input.remaining()];
+            input.duplicate().get(inputBytes);
+        }
+
+        try
+            (final ZipArchive archive = ZipIO.readJvm(inputBytes)) {
+            return optimiseJar(false, archive, outputStream, cancellation);
+        }
+    }
+
+    /** A ByteArrayOutputStream which can wrap its contents in a ByteBuffer without copying them */
+    private static final class ByteBufferOutputStream extends ByteArrayOutputStream {
+        ByteBufferOutputStream(int size) {
+            super(size);
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /**
+     * Optimises a jar file in memory, with the configured settings.
+     *
+     * @param input the input jar file, from its position to its limit. The position of the buffer is not changed.
+     * @param cancellation cancels optimising the jar
+     * @return the optimised jar file, or null if unsuccessful
+     * @throws CancellationException if cancelled before finishing
+     */
+    public ByteBuffer optimiseJar(ByteBuffer input, Cancellation cancellation) throws IOException {
+        final ByteBufferOutputStream outputStream = new ByteBufferOutputStream(input.remaining());
+        return optimiseJar(input, outputStream, cancellation) ? outputStream.toByteBuffer() : null;
+    }
+
+    /**
+     * Optimises a jar file in memory, with the configured settings.
+     *
+     * @param input the input jar file
+     * @param cancellation cancels optimising the jar
+     * @return the optimised jar file, or null if unsuccessful
+     * @throws CancellationException if cancelled before finishing
+     */
+    public ByteBuffer optimiseJar(byte[] input, Cancellation cancellation) throws IOException {
+        return optimiseJar(ByteBuffer.wrap(input), cancellation);
+    }
+
+    /**
+     * Optimises a jar file at the given path, with the configured settings.
+     *
+     * @param input the input jar file
+     * @param outputStream output stream for optimised jar to be written to
+     * @return true, if successful
+     */
+    public boolean optimiseJar(Path input, OutputStream outputStream) throws IOException {
+        if (!Files.isRegularFile(input)) {
+            return false;
+        }
+
+        try
+            (final ZipArchive archive = ZipIO.readJvm(input)) {
+            return optimiseJar(archive, outputStream);
+        }
+    }
+
+    /** Inputs read from a stream which are larger than this are spilled to a temporary file instead of being buffered in memory */
+    private static final int STREAM_SPILL_THRESHOLD = 64 * 1024 * 1024;
+
+    /**
+     * Optimises a jar file read from the given input stream, with the configured settings.
+     * As the central directory is at the end of a zip file, the input is read fully before optimising,
+     * either into memory or into a temporary file if it is large.
+     * The optimised jar is written to the output stream as it is produced.
+     *
+     * @param inputStream input stream to read the jar file from
+     * @param outputStream output stream for optimised jar to be written to
+     * @return true, if successful
+     */
+    public boolean optimiseJar(InputStream inputStream, OutputStream outputStream) throws IOException {
+        return optimiseJar(inputStream, outputStream, STREAM_SPILL_THRESHOLD);
+    }
+
+    /**
+     * Optimises a jar file read from the given input stream, spilling it to a temporary file if it is larger than the given size.
+     *
+     * @param inputStream input stream to read the jar file from
+     * @param outputStream output stream for optimised jar to be written to
+     * @param spillThreshold inputs larger than this many bytes are spilled to a temporary file
+     * @return true, if successful
+     * @see #optimiseJar(InputStream, OutputStream)
+     */
+    boolean optimiseJar(InputStream inputStream, OutputStream outputStream, int spillThreshold) throws IOException {
+        final ByteBufferOutputStream buffer = new ByteBufferOutputStream(32);
+        final byte[] readBuffer = new byte[8192];
+        int read;
+
+        while ((read = inputStream.read(readBuffer)) != -1) {
+            buffer.write(readBuffer, 0, read);
+
+            if (buffer.size() > spillThreshold) {
+                // Spill to a temporary file, which is memory mapped when read
+                final Path spillPath = Files.createTempFile("JarTighten-spill-", ".jar");
+                spillPath.toFile().deleteOnExit();
+
+                try {
+                    try
+                        (final OutputStream spillStream = Files.newOutputStream(spillPath)) {
+                        buffer.writeTo(spillStream);
+
+                        while ((read = inputStream.read(readBuffer)) != -1) {
+                            spillStream.write(readBuffer, 0, read);
+                        }
+                    }
+
+                    return optimiseJar(spillPath, outputStream);
+                } finally {
+                    try {
+                        Files.deleteIfExists(spillPath);
+                    } catch (final Exception e) {
+                        log.println("Issue deleting temporary file " + spillPath);
+                        e.printStackTrace(log);
+                    }
+                }
+            }
+        }
+
+        // Read the buffered input in place, instead of copying it
+        try
+            (final ZipArchive archive = ZipIO.readJvm(BufferData.wrap(buffer.toByteBuffer()))) {
+            return optimiseJar(archive, outputStream);
+        }
+    }
+
+    /**
+     * Optimises a jar file read from the given input stream, with the configured settings.
+     * The optimised jar is written to a temporary file next to the output file first,
+     * and only replaces the output file if successful, so a failed run never leaves a partially written output file.
+     *
+     * @param inputStream input stream to read the jar file from
+     * @param output the output jar file
+     * @param overwrite if true, overwrite existing output file
+     * @return true, if successful
+     * @see #optimiseJar(InputStream, OutputStream)
+     */
+    public boolean optimiseJar(InputStream inputStream, Path output, boolean overwrite) throws IOException {
+        if (Files.isRegularFile(output) && !overwrite) {
+            return false;
+        }
+
+        final Path tempPath = Files.createTempFile(output.toAbsolutePath().getParent(), "JarTighten-temp-", ".jar");
+
+        try {
+            final boolean returnVal;
+
+            try
+                (final OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(tempPath))) {
+                returnVal = optimiseJar(inputStream, outputStream);
+            }
+
+            if (returnVal) {
+                Files.move(tempPath, output, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            return returnVal;
+        } finally {
+            try {
+                Files.deleteIfExists(tempPath);
+            } catch (final Exception e) {
+                log.println("Issue deleting temporary file " + tempPath);
+                e.printStackTrace(log);
+            }
+        }
     }
 
     /**
@@ -753,6 +2287,38 @@ public class JarTighten {
      * @return true, if successful
      */
     public boolean optimiseJar(Path input, Path output, boolean overwrite) throws IOException {
+        return writeToPath(input, output, overwrite, outputPath -> {
+            try
+                (final ZipArchive archive = ZipIO.readJvm(input);
+                        final FileOutputStream outputStream = new FileOutputStream(outputPath.toFile())) {
+                return optimiseJar(archive, outputStream);
+            }
+        });
+    }
+
+    /** Writes an output jar file to a path */
+    @FunctionalInterface
+    private interface JarWriter {
+        /**
+         * Write the output jar file.
+         *
+         * @param outputPath the path to write to
+         * @return true, if successful
+         */
+        boolean write(Path outputPath) throws IOException;
+    }
+
+    /**
+     * Write an output jar file for the given input,
+     * writing to a temporary file first if the input and output are the same file.
+     *
+     * @param input the input jar file
+     * @param output the output jar file
+     * @param overwrite if true, overwrite existing output file
+     * @param writer writes the output jar file
+     * @return true, if successful
+     */
+    private boolean writeToPath(Path input, Path output, boolean overwrite, JarWriter writer) throws IOException {
         if (!Files.isRegularFile(input)) {
             return false;
         }
@@ -774,13 +2340,7 @@ public class JarTighten {
             }
         }
 
-        final boolean returnVal;
-
-        try
-            (final ZipArchive archive = ZipIO.readJvm(input);
-                    final FileOutputStream outputStream = new FileOutputStream(possibleTempPath.toFile())) {
-            returnVal = optimiseJar(archive, outputStream);
-        }
+        final boolean returnVal = writer.write(possibleTempPath);
 
         if (handleSame) {
             if (returnVal) {
@@ -790,12 +2350,132 @@ public class JarTighten {
             try {
                 Files.deleteIfExists(possibleTempPath);
             } catch (final Exception e) {
-                System.err.println("Issue deleting temporary file " + possibleTempPath);
-                e.printStackTrace();
+                log.println("Issue deleting temporary file " + possibleTempPath);
+                e.printStackTrace(log);
             }
         }
 
         return returnVal;
     }
 
+    /** Compressed data smaller than this is copied through the header buffer, instead of with a separate channel transfer */
+    private static final int SMALL_PAYLOAD_SIZE = 16 * 1024;
+    /** Buffered headers and small entries are written once they're larger than this */
+    private static final int HEADER_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Rewrites the headers of a jar file at the given path, with the configured settings,
+     * without decompressing or recompressing any entries.
+     * Only the end of central directory record, the central directory and the local file headers are read,
+     * and compressed data is transferred directly from the input file to the output channel,
+     * so only options which change local file headers, the central directory, or the end of central directory record have any effect.
+     *
+     * @param input the input jar file
+     * @param output channel for the rewritten jar to be written to
+     * @return true, if successful
+     */
+    public boolean rewriteMetadata(Path input, WritableByteChannel output) throws IOException {
+        if (!Files.isRegularFile(input)) {
+            return false;
+        }
+
+        try
+            (final FileChannel inputChannel = FileChannel.open(input, StandardOpenOption.READ)) {
+            // Only the headers are read, the archive is never parsed as a whole
+            final ZipHeaders headers = ZipHeaders.read(inputChannel);
+            final List<ZipHeaders.LocalFile> localFiles = headers.readLocalFiles(inputChannel);
+
+            if (sortEntries) {
+                localFiles.sort((e1, e2) -> JarFileSorter.compareNames(e1.fileName, e2.fileName));
+            }
+
+            final HashMap<Integer, EntryData> mapToEntryData = new HashMap<>();
+            final OutputStream outputStream = Channels.newOutputStream(output);
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream(HEADER_BUFFER_SIZE);
+            final ByteBuffer smallPayload = ByteBuffer.allocate(SMALL_PAYLOAD_SIZE);
+            int offset = 0;
+
+            for (final ZipHeaders.LocalFile localFile : localFiles) {
+                final ZipHeaders.Central central = localFile.central;
+                final int crc32 = central.crc32;
+                final int uncompressedSize = (int) central.uncompressedSize;
+                final int compressedSize = (int) central.compressedSize;
+
+                if ((removeDirectoryEntries && (uncompressedSize == 0)) || (deduplicateEntries && mapToEntryData.containsKey(crc32))) {
+                    continue;
+                }
+
+                final EntryPolicy policy = resolvePolicy(localFile.fileName);
+                final int headerLength = writeLocalFileHeader(buffer, localFile.local, localFile.fileName, policy, central.compressionMethod, crc32, uncompressedSize, compressedSize, offset);
+                final long size = compressedSize & 0xFFFFFFFFL;
+                long position = localFile.dataPosition;
+
+                if (size < SMALL_PAYLOAD_SIZE) {
+                    smallPayload.clear();
+                    smallPayload.limit((int) size);
+
+                    while (smallPayload.hasRemaining()) {
+                        final int read = inputChannel.read(smallPayload, position);
+
+                        if (read < 0) {
+                            throw new EOFException("Compressed data for " + localFile.fileName + " extends past the end of " + input);
+                        }
+
+                        position += read;
+                    }
+
+                    buffer.write(smallPayload.array(), 0, (int) size);
+                } else {
+                    buffer.writeTo(outputStream);
+                    buffer.reset();
+                    long remaining = size;
+
+                    while (remaining > 0) {
+                        final long transferred = inputChannel.transferTo(position, remaining, output);
+
+                        if (transferred <= 0) {
+                            throw new EOFException("Compressed data for " + localFile.fileName + " extends past the end of " + input);
+                        }
+
+                        position += transferred;
+                        remaining -= transferred;
+                    }
+                }
+
+                // Recorded fingerprints are kept, as the compressed data is unchanged
+                final byte[] fingerprint = fingerprintEntries ? Fingerprint.find(central.extra) : null;
+                mapToEntryData.put(deduplicateEntries ? crc32 : (int) central.localHeaderOffset, new EntryData(crc32, uncompressedSize, compressedSize, central.compressionMethod, offset, localFile.fileName, policy, fingerprint));
+                offset += headerLength + compressedSize;
+
+                if (buffer.size() > HEADER_BUFFER_SIZE) {
+                    buffer.writeTo(outputStream);
+                    buffer.reset();
+                }
+            }
+
+            writeCentralDirectory(headers, mapToEntryData, offset, buffer);
+            buffer.writeTo(outputStream);
+        }
+
+        return true;
+    }
+
+    /**
+     * Rewrites the headers of a jar file at the given path, with the configured settings,
+     * without decompressing or recompressing any entries.
+     *
+     * @param input the input jar file
+     * @param output the output jar file
+     * @param overwrite if true, overwrite existing output file
+     * @return true, if successful
+     * @see #rewriteMetadata(Path, WritableByteChannel)
+     */
+    public boolean rewriteMetadata(Path input, Path output, boolean overwrite) throws IOException {
+        return writeToPath(input, output, overwrite, outputPath -> {
+            try
+                (final FileChannel outputChannel = FileChannel.open(outputPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                return rewriteMetadata(input, outputChannel);
+            }
+        });
+    }
 }
@@ -0,0 +1,37 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.util.function.Supplier;
+
+/**
+ * A value created when it's first used, so creating it doesn't slow down startup if it's never used.
+ * Safe to use from several threads, and the value is only created once.
+ */
+final class Lazy<T> {
+    /** Creates the value, or null once it has been created */
+    private Supplier<T> supplier;
+    /** The value, or null if it hasn't been created */
+    private volatile T value;
+
+    Lazy(Supplier<T> supplier) {
+        this.supplier = supplier;
+    }
+
+    /** @return the value, created if this is the first time it's used */
+    T get() {
+        T result = value;
+
+        if (result == null) {
+            synchronized (this) {
+                result = value;
+
+                if (result == null) {
+                    result = supplier.get();
+                    value = result;
+                    supplier = null;
+                }
+            }
+        }
+
+        return result;
+    }
+}
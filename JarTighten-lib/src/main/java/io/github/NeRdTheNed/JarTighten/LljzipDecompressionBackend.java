@@ -0,0 +1,30 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+import software.coley.lljzip.format.compression.DeflateDecompressor;
+import software.coley.lljzip.format.model.LocalFileHeader;
+import software.coley.lljzip.util.BufferData;
+import software.coley.lljzip.util.ByteDataUtil;
+
+/** Inflates entries with lljzip's pure Java decompressor */
+public final class LljzipDecompressionBackend implements DecompressionBackend {
+    /** Shared instance */
+    public static final LljzipDecompressionBackend INSTANCE = new LljzipDecompressionBackend();
+
+    private LljzipDecompressionBackend() {
+        // Use INSTANCE
+    }
+
+    @Override
+    public byte[] inflate(LocalFileHeader fileHeader, byte[] compressedData, int uncompressedSize, CRC32 crc32) throws IOException {
+        final byte[] uncompressedData = ByteDataUtil.toByteArray(DeflateDecompressor.INSTANCE.decompress(fileHeader, BufferData.wrap(compressedData)));
+
+        if (crc32 != null) {
+            crc32.update(uncompressedData);
+        }
+
+        return uncompressedData;
+    }
+}
@@ -0,0 +1,351 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.github.NeRdTheNed.deft4j.util.compression.CompressionUtil.Strategy;
+
+import io.github.NeRdTheNed.JarTighten.JarTighten.CompressionResult;
+import software.coley.lljzip.ZipIO;
+import software.coley.lljzip.format.model.CentralDirectoryFileHeader;
+import software.coley.lljzip.format.model.LocalFileHeader;
+import software.coley.lljzip.format.model.ZipArchive;
+import software.coley.lljzip.util.ByteDataUtil;
+
+/**
+ * Finds compression settings with a good trade-off between output size and time spent,
+ * by optimising a representative sample of entries from a jar file with each candidate configuration.
+ */
+public final class OptionTuner {
+    /** A candidate configuration of the settings which affect compression */
+    public static final class Candidate {
+        final Strategy mode;
+        final boolean recompressZopfli;
+        final boolean recompressJZopfli;
+        final int recompressZopfliPasses;
+        final boolean optimiseDeflateStreams;
+        final boolean mergeBlocks;
+        final boolean compareDeflateStreamBits;
+
+        public Candidate(Strategy mode, boolean recompressZopfli, boolean recompressJZopfli, int recompressZopfliPasses, boolean optimiseDeflateStreams, boolean mergeBlocks, boolean compareDeflateStreamBits) {
+            this.mode = mode;
+            this.recompressZopfli = recompressZopfli;
+            this.recompressJZopfli = recompressJZopfli;
+            this.recompressZopfliPasses = recompressZopfliPasses;
+            this.optimiseDeflateStreams = optimiseDeflateStreams;
+            this.mergeBlocks = mergeBlocks;
+            this.compareDeflateStreamBits = compareDeflateStreamBits;
+        }
+
+        /** Create a JarTighten instance which compresses entries with this configuration on a single thread */
+        JarTighten createJarTighten() {
+            return new JarTighten.Builder()
+                   .mode(mode)
+                   .removeDirectoryEntries(false)
+                   .recompressZopfli(recompressZopfli)
+                   .recompressJZopfli(recompressJZopfli)
+                   .optimiseDeflateStreamExisting(optimiseDeflateStreams)
+                   .optimiseDeflateStreamRecompress(optimiseDeflateStreams)
+                   .compareDeflateStreamBits(compareDeflateStreamBits)
+                   .recompressMultithread(false)
+                   .recompressZopfliPasses(recompressZopfliPasses)
+                   .mergeBlocks(mergeBlocks)
+                   .build();
+        }
+
+        /**
+         * Get the command line flags for this configuration.
+         *
+         * @return the command line flags
+         */
+        public String toCommandLineFlags() {
+            final StringBuilder flags = new StringBuilder("--mode=" + mode);
+
+            if (recompressZopfli) {
+                flags.append(" --recompress-zopfli");
+            }
+
+            if (recompressJZopfli) {
+                flags.append(" --recompress-jzopfli");
+            }
+
+            if (recompressZopfli || recompressJZopfli) {
+                flags.append(" --zopfli-iter=").append(recompressZopfliPasses);
+            }
+
+            if (optimiseDeflateStreams) {
+                flags.append(" --optimise-existing-streams --optimise-recompressed-streams");
+            }
+
+            if (mergeBlocks) {
+                flags.append(" --merge-blocks");
+            }
+
+            if (compareDeflateStreamBits) {
+                flags.append(" --compare-size-bits");
+            }
+
+            return flags.toString();
+        }
+
+        /**
+         * Get a Gradle jartighten block for this configuration.
+         *
+         * @return the Gradle jartighten block
+         */
+        public String toGradleBlock() {
+            final StringBuilder block = new StringBuilder("jartighten {\n");
+            block.append("    mode = '").append(mode).append("'\n");
+            block.append("    recompressZopfli = ").append(recompressZopfli).append('\n');
+            block.append("    recompressJZopfli = ").append(recompressJZopfli).append('\n');
+
+            if (recompressZopfli || recompressJZopfli) {
+                block.append("    recompressZopfliPasses = ").append(recompressZopfliPasses).append('\n');
+            }
+
+            block.append("    optimiseDeflateStreamExisting = ").append(optimiseDeflateStreams).append('\n');
+            block.append("    optimiseDeflateStreamRecompress = ").append(optimiseDeflateStreams).append('\n');
+            block.append("    mergeBlocks = ").append(mergeBlocks).append('\n');
+            block.append("    compareDeflateStreamBits = ").append(compareDeflateStreamBits).append('\n');
+            return block.append('}').toString();
+        }
+
+        @Override
+        public String toString() {
+            return toCommandLineFlags();
+        }
+    }
+
+    /** The measured size and time of a candidate configuration */
+    public static final class Result {
+        /** The candidate configuration */
+        public final Candidate candidate;
+        /** Total size of the optimised sample entries */
+        public final long sampleSize;
+        /** Total uncompressed size of the sample entries */
+        public final long sampleUncompressedSize;
+        /** Time spent optimising the sample entries in seconds */
+        public final double sampleSeconds;
+        /** Estimated size of the optimised entries of the whole jar */
+        public final long estimatedSize;
+        /** Estimated time spent optimising the whole jar in seconds */
+        public final double estimatedSeconds;
+
+        Result(Candidate candidate, long sampleSize, long sampleUncompressedSize, double sampleSeconds, double scale) {
+            this.candidate = candidate;
+            this.sampleSize = sampleSize;
+            this.sampleUncompressedSize = sampleUncompressedSize;
+            this.sampleSeconds = sampleSeconds;
+            estimatedSize = (long) (sampleSize * scale);
+            estimatedSeconds = sampleSeconds * scale;
+        }
+    }
+
+    /** A sampled entry */
+    private static final class SampleEntry {
+        final byte[] uncompressedData;
+        final byte[] compressedData;
+        final int crc32;
+        final int compressionMethod;
+
+        SampleEntry(byte[] uncompressedData, byte[] compressedData, int crc32, int compressionMethod) {
+            this.uncompressedData = uncompressedData;
+            this.compressedData = compressedData;
+            this.crc32 = crc32;
+            this.compressionMethod = compressionMethod;
+        }
+    }
+
+    /** Maximum number of entries to sample */
+    private final int sampleCount;
+    /** Number of candidates to measure at the same time */
+    private final int threads;
+
+    /**
+     * Creates a tuner with the given settings.
+     *
+     * @param sampleCount maximum number of entries to sample
+     * @param threads number of candidates to measure at the same time
+     */
+    public OptionTuner(int sampleCount, int threads) {
+        this.sampleCount = Math.max(1, sampleCount);
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Get the default candidate configurations, ranging from cheap compression only to every expensive option.
+     *
+     * @return the default candidates
+     */
+    public static List<Candidate> defaultCandidates() {
+        final List<Candidate> candidates = new ArrayList<>();
+
+        for (final Strategy mode : Strategy.values()) {
+            candidates.add(new Candidate(mode, false, false, 20, false, false, false));
+            candidates.add(new Candidate(mode, false, false, 20, true, false, false));
+            candidates.add(new Candidate(mode, false, false, 20, true, true, false));
+
+            for (final int passes : new int[] { 20, 60 }) {
+                candidates.add(new Candidate(mode, true, false, passes, false, false, false));
+                candidates.add(new Candidate(mode, true, false, passes, true, true, true));
+                candidates.add(new Candidate(mode, true, true, passes, false, false, false));
+                candidates.add(new Candidate(mode, true, true, passes, true, true, true));
+            }
+        }
+
+        return candidates;
+    }
+
+    private static long uncompressedSize(LocalFileHeader fileHeader) {
+        final CentralDirectoryFileHeader cenDir = fileHeader.getLinkedDirectoryFileHeader();
+        return cenDir != null ? cenDir.getUncompressedSize() : fileHeader.getUncompressedSize();
+    }
+
+    private static long cpuTimeNanos(ThreadMXBean threadBean) {
+        return threadBean.isCurrentThreadCpuTimeSupported() ? threadBean.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * Optimise the sample entries with a candidate configuration, measuring the total output size and time spent.
+     */
+    private static Result measure(Candidate candidate, List<SampleEntry> sample, long sampleUncompressedSize, double scale) {
+        final JarTighten jarTighten = candidate.createJarTighten();
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        final long start = cpuTimeNanos(threadBean);
+        long size = 0;
+
+        for (final SampleEntry entry : sample) {
+            final CompressionResult result = jarTighten.optimiseEntry(entry.uncompressedData, entry.crc32, entry.compressionMethod, entry.compressedData);
+            size += result.compressedSize;
+        }
+
+        final double seconds = (cpuTimeNanos(threadBean) - start) / 1.0E9;
+        return new Result(candidate, size, sampleUncompressedSize, seconds, scale);
+    }
+
+    /**
+     * Measure each candidate configuration on a sample of entries from the given jar.
+     * Entries are sampled evenly across the range of entry sizes.
+     * Each candidate is measured on a single thread, by the CPU time of that thread if supported.
+     *
+     * @param jar the jar file to sample
+     * @param candidates the candidate configurations
+     * @return the measured results, in the same order as the candidates
+     */
+    public List<Result> measure(Path jar, List<Candidate> candidates) throws IOException, InterruptedException {
+        final JarTighten decompressor = candidates.get(0).createJarTighten();
+        final List<SampleEntry> entries = new ArrayList<>();
+        long totalUncompressedSize = 0;
+
+        try
+            (final ZipArchive archive = ZipIO.readJvm(jar)) {
+            final List<LocalFileHeader> fileHeaders = new ArrayList<>();
+
+            for (final LocalFileHeader fileHeader : archive.getLocalFiles()) {
+                final long uncompressedSize = uncompressedSize(fileHeader);
+
+                if (uncompressedSize > 0) {
+                    fileHeaders.add(fileHeader);
+                    totalUncompressedSize += uncompressedSize;
+                }
+            }
+
+            fileHeaders.sort(Comparator.comparingLong(OptionTuner::uncompressedSize));
+            final int count = Math.min(sampleCount, fileHeaders.size());
+
+            for (int i = 0; i < count; i++) {
+                final LocalFileHeader fileHeader = fileHeaders.get((int) (((long) i * fileHeaders.size()) / count));
+
+                try {
+                    final int compressionMethod = fileHeader.getCompressionMethod();
+                    final byte[] compressedData = ByteDataUtil.toByteArray(fileHeader.getFileData());
+                    final byte[] uncompressedData = decompressor.decompressData(fileHeader, compressionMethod, compressedData, (int) uncompressedSize(fileHeader), fileHeader.getCrc32());
+                    entries.add(new SampleEntry(uncompressedData, compressedData, fileHeader.getCrc32(), compressionMethod));
+                } catch (final Exception e) {
+                    // TODO Handle errors more gracefully
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        long sampleUncompressedSize = 0;
+
+        for (final SampleEntry entry : entries) {
+            sampleUncompressedSize += entry.uncompressedData.length;
+        }
+
+        final double scale = sampleUncompressedSize > 0 ? (double) totalUncompressedSize / sampleUncompressedSize : 1;
+        final long finalSampleUncompressedSize = sampleUncompressedSize;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try {
+            final List<Future<Result>> futures = new ArrayList<>();
+
+            for (final Candidate candidate : candidates) {
+                futures.add(executor.submit(() -> measure(candidate, entries, finalSampleUncompressedSize, scale)));
+            }
+
+            final List<Result> results = new ArrayList<>();
+
+            for (final Future<Result> future : futures) {
+                results.add(future.get());
+            }
+
+            return results;
+        } catch (final ExecutionException e) {
+            throw new IOException("Issue measuring candidate configuration", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Find the results which are not both larger and slower than any other result.
+     *
+     * @param results the measured results
+     * @return the Pareto frontier, ordered from fastest to slowest
+     */
+    public static List<Result> paretoFrontier(List<Result> results) {
+        final List<Result> sorted = new ArrayList<>(results);
+        sorted.sort(Comparator.<Result>comparingDouble(result -> result.sampleSeconds).thenComparingLong(result -> result.sampleSize));
+        final List<Result> frontier = new ArrayList<>();
+        long smallest = Long.MAX_VALUE;
+
+        for (final Result result : sorted) {
+            if (result.sampleSize < smallest) {
+                frontier.add(result);
+                smallest = result.sampleSize;
+            }
+        }
+
+        return frontier;
+    }
+
+    /**
+     * Recommend the result with the smallest output which is estimated to optimise the whole jar within the given time.
+     *
+     * @param frontier the Pareto frontier, ordered from fastest to slowest
+     * @param budgetSeconds the time budget for optimising the whole jar in seconds
+     * @return the recommended result, or the fastest result if none fit the time budget
+     */
+    public static Result recommend(List<Result> frontier, double budgetSeconds) {
+        Result recommended = frontier.get(0);
+
+        for (final Result result : frontier) {
+            if (result.estimatedSeconds <= budgetSeconds) {
+                recommended = result;
+            }
+        }
+
+        return recommended;
+    }
+}
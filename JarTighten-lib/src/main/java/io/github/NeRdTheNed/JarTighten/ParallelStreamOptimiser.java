@@ -0,0 +1,269 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+
+import com.github.NeRdTheNed.deft4j.Deft;
+
+/**
+ * Optimises a large deflate stream in parallel.
+ * The stream is split at block boundaries into ranges of blocks, and each range is optimised as its own stream.
+ * As blocks can refer back to data produced by earlier blocks, each range is preceded by a stored block
+ * containing the data before it, which is removed again once the range is optimised.
+ * If merging blocks, the blocks on either side of each range boundary are then optimised together,
+ * and the ranges are stitched back together into one stream.
+ * Merging blocks can merge the stored block into the first block of a range, so it can't be removed again.
+ * These ranges are optimised again without merging blocks, and the number of them is recorded.
+ */
+final class ParallelStreamOptimiser {
+    /** Minimum compressed size of each range of blocks, in bytes */
+    private static final long MIN_RANGE_SIZE = 1024 * 1024;
+    /** Number of ranges to aim for per thread, so threads finishing early can take more work */
+    private static final int RANGES_PER_THREAD = 4;
+
+    private final ThreadGovernor governor;
+    private final boolean mergeBlocks;
+    /** Stream to print warnings and errors to */
+    private final PrintStream log;
+    /** Number of ranges optimised without merging blocks by the last call to optimise */
+    private int unmergedRanges;
+
+    /**
+     * @param governor the governor to run ranges in parallel with
+     * @param mergeBlocks if true, try merging blocks within and across ranges
+     * @param log stream to print warnings and errors to
+     */
+    ParallelStreamOptimiser(ThreadGovernor governor, boolean mergeBlocks, PrintStream log) {
+        this.governor = governor;
+        this.mergeBlocks = mergeBlocks;
+        this.log = log;
+    }
+
+    /** A block from a stream, and where its data is in the uncompressed data of the whole stream */
+    private static final class Piece {
+        /** The stream containing the block */
+        final byte[] source;
+        final DeflateBlocks.Block block;
+        /** Offset in the uncompressed data of the whole stream of the first byte this block produces */
+        final long start;
+
+        Piece(byte[] source, DeflateBlocks.Block block, long start) {
+            this.source = source;
+            this.block = block;
+            this.start = start;
+        }
+
+        long end() {
+            return start + (block.uncompressedEnd - block.uncompressedStart);
+        }
+    }
+
+    /**
+     * Optimise a deflate stream in parallel.
+     *
+     * @param compressedData the deflate stream
+     * @param uncompressedData the data the stream decompresses to
+     * @param cancellation cancels optimising the stream
+     * @return the optimised stream, or null if the stream couldn't be split or the optimised stream wasn't valid
+     */
+    byte[] optimise(byte[] compressedData, byte[] uncompressedData, Cancellation cancellation) throws IOException, ExecutionException {
+        final List<DeflateBlocks.Block> blocks;
+
+        try {
+            blocks = DeflateBlocks.parse(compressedData);
+        } catch (final DataFormatException e) {
+            throw new IOException("Invalid deflate stream", e);
+        }
+
+        if (blocks.get(blocks.size() - 1).uncompressedEnd != uncompressedData.length) {
+            throw new IOException("Deflate stream doesn't match uncompressed data");
+        }
+
+        final List<List<Piece>> ranges = split(compressedData, blocks);
+
+        if (ranges.size() < 2) {
+            return null;
+        }
+
+        final List<Callable<List<Piece>>> tasks = new ArrayList<>(ranges.size());
+        // Number of ranges optimised without merging blocks, as the data before the range was merged into their first block
+        final AtomicInteger unmerged = new AtomicInteger();
+
+        for (final List<Piece> range : ranges) {
+            tasks.add(() -> {
+                cancellation.check();
+                List<Piece> optimised = optimiseRange(range, uncompressedData, mergeBlocks);
+
+                if ((optimised == null) && mergeBlocks) {
+                    unmerged.incrementAndGet();
+                    cancellation.check();
+                    optimised = optimiseRange(range, uncompressedData, false);
+                }
+
+                return (optimised != null) && (bits(optimised) < bits(range)) ? optimised : range;
+            });
+        }
+
+        final List<List<Piece>> optimisedRanges = governor.invokeAll(tasks);
+
+        unmergedRanges = unmerged.get();
+
+        if (mergeBlocks) {
+            mergeBoundaries(optimisedRanges, uncompressedData, cancellation);
+        }
+
+        final BitWriter out = new BitWriter(compressedData.length);
+        final List<Piece> pieces = new ArrayList<>();
+
+        for (final List<Piece> range : optimisedRanges) {
+            pieces.addAll(range);
+        }
+
+        for (int i = 0; i < pieces.size(); i++) {
+            final Piece piece = pieces.get(i);
+            DeflateBlocks.writeBlock(out, piece.source, piece.block, i == (pieces.size() - 1));
+        }
+
+        final byte[] stitched = out.toByteArray();
+
+        try {
+            if (!Arrays.equals(InflaterDecompressionBackend.shared().inflate(null, stitched, uncompressedData.length, null), uncompressedData)) {
+                return null;
+            }
+        } catch (final IOException e) {
+            return null;
+        }
+
+        return stitched;
+    }
+
+    /** @return the number of ranges the last call to optimise optimised without merging blocks, as the data before them was merged into their first block */
+    int unmergedRanges() {
+        return unmergedRanges;
+    }
+
+    /** Split blocks into ranges of roughly equal compressed size. */
+    private List<List<Piece>> split(byte[] compressedData, List<DeflateBlocks.Block> blocks) {
+        final long targetBits = Math.max(MIN_RANGE_SIZE, compressedData.length / ((long) governor.getThreads() * RANGES_PER_THREAD)) * 8;
+        final List<List<Piece>> ranges = new ArrayList<>();
+        List<Piece> range = new ArrayList<>();
+        long rangeBits = 0;
+
+        for (final DeflateBlocks.Block block : blocks) {
+            if (!range.isEmpty() && (rangeBits >= targetBits)) {
+                ranges.add(range);
+                range = new ArrayList<>();
+                rangeBits = 0;
+            }
+
+            range.add(new Piece(compressedData, block, block.uncompressedStart));
+            rangeBits += block.sizeBits();
+        }
+
+        ranges.add(range);
+        return ranges;
+    }
+
+    /**
+     * Merge the blocks on either side of each range boundary, if smaller.
+     * Boundaries are handled in order, so a block merged at one boundary isn't merged again at the next.
+     */
+    private void mergeBoundaries(List<List<Piece>> ranges, byte[] uncompressedData, Cancellation cancellation) {
+        for (int i = 1; i < ranges.size(); i++) {
+            cancellation.check();
+            final List<Piece> before = ranges.get(i - 1);
+            final List<Piece> after = ranges.get(i);
+
+            if (before.isEmpty() || after.isEmpty()) {
+                continue;
+            }
+
+            final List<Piece> boundary = Arrays.asList(before.get(before.size() - 1), after.get(0));
+
+            try {
+                final List<Piece> merged = optimiseRange(boundary, uncompressedData, true);
+
+                if ((merged != null) && (bits(merged) < bits(boundary))) {
+                    before.remove(before.size() - 1);
+                    after.remove(0);
+                    before.addAll(merged);
+                }
+            } catch (final IOException e) {
+                // TODO Handle errors more gracefully
+                e.printStackTrace(log);
+            }
+        }
+    }
+
+    /**
+     * Optimise a range of blocks as its own stream, preceded by a stored block of the data before the range.
+     *
+     * @return the optimised blocks, or null if the optimised stream couldn't be split where the range starts
+     */
+    private static List<Piece> optimiseRange(List<Piece> range, byte[] uncompressedData, boolean mergeBlocks) throws IOException {
+        final long rangeStart = range.get(0).start;
+        final long rangeEnd = range.get(range.size() - 1).end();
+        final int windowLength = (int) Math.min(DeflateBlocks.WINDOW_SIZE, rangeStart);
+        final BitWriter out = new BitWriter((int) (bits(range) >>> 3) + windowLength + 16);
+
+        if (windowLength > 0) {
+            DeflateBlocks.writeStoredBlock(out, Arrays.copyOfRange(uncompressedData, (int) rangeStart - windowLength, (int) rangeStart));
+        }
+
+        for (int i = 0; i < range.size(); i++) {
+            final Piece piece = range.get(i);
+            DeflateBlocks.writeBlock(out, piece.source, piece.block, i == (range.size() - 1));
+        }
+
+        final byte[] optimised = Deft.optimiseDeflateStream(out.toByteArray(), mergeBlocks);
+
+        if (optimised == null) {
+            return null;
+        }
+
+        final List<DeflateBlocks.Block> blocks;
+
+        try {
+            blocks = DeflateBlocks.parse(optimised);
+        } catch (final DataFormatException e) {
+            throw new IOException("Optimised deflate stream is invalid", e);
+        }
+
+        final List<Piece> pieces = new ArrayList<>();
+
+        for (final DeflateBlocks.Block block : blocks) {
+            if (block.uncompressedStart < windowLength) {
+                // The data before the range should be produced by blocks which are removed
+                if (block.uncompressedEnd > windowLength) {
+                    return null;
+                }
+            } else if ((block.uncompressedEnd > block.uncompressedStart) || (block.type != DeflateBlocks.TYPE_STORED)) {
+                pieces.add(new Piece(optimised, block, (rangeStart - windowLength) + block.uncompressedStart));
+            }
+        }
+
+        if (pieces.isEmpty() || (pieces.get(pieces.size() - 1).end() != rangeEnd)) {
+            return null;
+        }
+
+        return pieces;
+    }
+
+    /** @return the size in bits of the given blocks */
+    private static long bits(List<Piece> pieces) {
+        long bits = 0;
+
+        for (final Piece piece : pieces) {
+            bits += piece.block.sizeBits();
+        }
+
+        return bits;
+    }
+}
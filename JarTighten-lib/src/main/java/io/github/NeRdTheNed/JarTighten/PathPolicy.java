@@ -0,0 +1,250 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.github.NeRdTheNed.deft4j.util.compression.CompressionUtil.Strategy;
+
+/**
+ * A rule which overrides optimisation settings for entries with matching paths.
+ * Rules are written as a path pattern followed by any number of key=value settings, for example:
+ *
+ * <pre>
+ * *.class compressors=zopfli,jzopfli passes=50 mode=EXTENSIVE
+ * *.png compressors=none
+ * generated/ compressors=jzlib
+ * *.so align=4096
+ * META-INF/services/ exclude
+ * </pre>
+ *
+ * Patterns ending in / match everything in that directory, patterns without a / match file names in any directory,
+ * and all other patterns match the whole path. * matches anything except /, ** matches anything, and ? matches a single character.
+ * When several rules match an entry, each setting is taken from the first matching rule which sets it.
+ * Compressors may also name any {@link DeflateEncoder} found with {@link java.util.ServiceLoader}.
+ */
+public final class PathPolicy {
+    /** The path pattern as written */
+    final String pattern;
+    /** If true, the pattern is an exact path instead of a glob */
+    final boolean exact;
+    /** The rule as written, used to describe the rule */
+    private final String source;
+
+    /** Recompress files with CafeUndZopfli, or null to use the default */
+    final Boolean recompressZopfli;
+    /** Recompress files with jzopfli, or null to use the default */
+    final Boolean recompressJZopfli;
+    /** Recompress files with JZlib, or null to use the default */
+    final Boolean recompressJZlib;
+    /** Recompress files with standard Java deflate implementation, or null to use the default */
+    final Boolean recompressStandard;
+    /** Check uncompressed size, or null to use the default */
+    final Boolean recompressStore;
+    /** Compression strategies to run for each compressor, or null to use the default */
+    final Strategy mode;
+    /** Zopfli iterations, or null to use the default */
+    final Integer recompressZopfliPasses;
+    /** Remove file length from local file headers, or null to use the default */
+    final Boolean removeFileLength;
+    /** Remove file length from central directory entries, or null to use the default */
+    final Boolean removeDirEntryLength;
+    /** Remove file names from local file headers, or null to use the default */
+    final Boolean removeFileNames;
+    /** Names of encoders other than the built-in compressors to recompress files with, or null to use the default */
+    final List<String> extraEncoders;
+    /** Alignment in bytes of the data of stored files, or null to use the default */
+    final Integer alignment;
+
+    private PathPolicy(String pattern, boolean exact, String source, Boolean recompressZopfli, Boolean recompressJZopfli, Boolean recompressJZlib, Boolean recompressStandard, Boolean recompressStore, Strategy mode, Integer recompressZopfliPasses, Boolean removeFileLength, Boolean removeDirEntryLength, Boolean removeFileNames, List<String> extraEncoders, Integer alignment) {
+        this.pattern = pattern;
+        this.exact = exact;
+        this.source = source;
+        this.recompressZopfli = recompressZopfli;
+        this.recompressJZopfli = recompressJZopfli;
+        this.recompressJZlib = recompressJZlib;
+        this.recompressStandard = recompressStandard;
+        this.recompressStore = recompressStore;
+        this.mode = mode;
+        this.recompressZopfliPasses = recompressZopfliPasses;
+        this.removeFileLength = removeFileLength;
+        this.removeDirEntryLength = removeDirEntryLength;
+        this.removeFileNames = removeFileNames;
+        this.extraEncoders = extraEncoders;
+        this.alignment = alignment;
+    }
+
+    /**
+     * Create a rule which excludes the file with the given exact path from optimisations which might hide it from standard zip libraries.
+     *
+     * @param fileName the path of the file to exclude
+     * @return the rule
+     */
+    public static PathPolicy exclude(String fileName) {
+        return new PathPolicy(fileName, true, fileName + " exclude", null, null, null, null, null, null, null, false, false, false, null, null);
+    }
+
+    private static Boolean parseBoolean(String key, String value) {
+        if ("true".equalsIgnoreCase(value)) {
+            return true;
+        }
+
+        if ("false".equalsIgnoreCase(value)) {
+            return false;
+        }
+
+        throw new IllegalArgumentException("Invalid value " + value + " for " + key + ", expected true or false");
+    }
+
+    /**
+     * Parse a rule.
+     *
+     * @param rule the rule, as a path pattern followed by settings
+     * @return the parsed rule
+     */
+    public static PathPolicy parse(String rule) {
+        final String[] parts = rule.trim().split("\\s+");
+
+        if (parts[0].isEmpty()) {
+            throw new IllegalArgumentException("Policy rule has no path pattern");
+        }
+
+        Boolean recompressZopfli = null;
+        Boolean recompressJZopfli = null;
+        Boolean recompressJZlib = null;
+        Boolean recompressStandard = null;
+        Boolean recompressStore = null;
+        Strategy mode = null;
+        Integer recompressZopfliPasses = null;
+        Boolean removeFileLength = null;
+        Boolean removeDirEntryLength = null;
+        Boolean removeFileNames = null;
+        List<String> extraEncoders = null;
+        Integer alignment = null;
+
+        for (int i = 1; i < parts.length; i++) {
+            final String part = parts[i];
+            final int split = part.indexOf('=');
+            final String key = (split < 0 ? part : part.substring(0, split)).toLowerCase(Locale.ROOT);
+            final String value = split < 0 ? "true" : part.substring(split + 1);
+
+            switch (key) {
+            case "compressors":
+                recompressZopfli = false;
+                recompressJZopfli = false;
+                recompressJZlib = false;
+                recompressStandard = false;
+                extraEncoders = new ArrayList<>();
+
+                for (final String compressor : value.toLowerCase(Locale.ROOT).split(",")) {
+                    switch (compressor) {
+                    case "zopfli":
+                        recompressZopfli = true;
+                        break;
+
+                    case "jzopfli":
+                        recompressJZopfli = true;
+                        break;
+
+                    case "jzlib":
+                        recompressJZlib = true;
+                        break;
+
+                    case "standard":
+                        recompressStandard = true;
+                        break;
+
+                    case "none":
+                    case "":
+                        break;
+
+                    default:
+                        try {
+                            // Check the encoder exists when parsing instead of when optimising
+                            DeflateEncoders.find(compressor);
+                        } catch (final IllegalArgumentException e) {
+                            throw new IllegalArgumentException(e.getMessage() + " in policy rule " + rule, e);
+                        }
+
+                        extraEncoders.add(compressor);
+                        break;
+                    }
+                }
+
+                break;
+
+            case "store":
+                recompressStore = parseBoolean(key, value);
+                break;
+
+            case "mode":
+                mode = Strategy.valueOf(value.toUpperCase(Locale.ROOT));
+                break;
+
+            case "passes":
+            case "iter":
+                recompressZopfliPasses = Integer.parseInt(value);
+                break;
+
+            case "remove-file-length":
+                removeFileLength = parseBoolean(key, value);
+                break;
+
+            case "remove-dir-entry-length":
+                removeDirEntryLength = parseBoolean(key, value);
+                break;
+
+            case "remove-file-names":
+                removeFileNames = parseBoolean(key, value);
+                break;
+
+            case "align":
+                alignment = EntryPolicy.checkAlignment(Integer.parseInt(value));
+                break;
+
+            case "exclude":
+                if (parseBoolean(key, value)) {
+                    removeFileLength = false;
+                    removeDirEntryLength = false;
+                    removeFileNames = false;
+                }
+
+                break;
+
+            default:
+                throw new IllegalArgumentException("Unknown setting " + key + " in policy rule " + rule);
+            }
+        }
+
+        return new PathPolicy(parts[0], false, rule.trim(), recompressZopfli, recompressJZopfli, recompressJZlib, recompressStandard, recompressStore, mode, recompressZopfliPasses, removeFileLength, removeDirEntryLength, removeFileNames, extraEncoders, alignment);
+    }
+
+    /**
+     * Parse a file of rules, one per line. Empty lines and lines starting with # are ignored.
+     *
+     * @param file the file to parse
+     * @return the parsed rules
+     */
+    public static List<PathPolicy> parseFile(Path file) throws IOException {
+        final List<PathPolicy> rules = new ArrayList<>();
+
+        for (final String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            final String trimmed = line.trim();
+
+            if (!trimmed.isEmpty() && !trimmed.startsWith("#")) {
+                rules.add(parse(trimmed));
+            }
+        }
+
+        return rules;
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+}
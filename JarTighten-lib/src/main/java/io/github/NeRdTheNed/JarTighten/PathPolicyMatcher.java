@@ -0,0 +1,197 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Matches paths against a list of policy rules.
+ * Rules are indexed in tries by the literal prefix or suffix of their patterns,
+ * so only rules which can possibly match a path are checked against it.
+ */
+final class PathPolicyMatcher {
+    /** No rules matched */
+    private static final int[] NO_MATCHES = new int[0];
+
+    /** A rule compiled to a matcher */
+    private static final class CompiledRule {
+        /** Index of the rule in the list of rules */
+        final int index;
+        /** The exact path to match, or null if matching with a regex */
+        final String exact;
+        /** The regex to match, or null if matching an exact path */
+        final Pattern regex;
+
+        CompiledRule(int index, String exact, Pattern regex) {
+            this.index = index;
+            this.exact = exact;
+            this.regex = regex;
+        }
+
+        boolean matches(String path) {
+            return exact != null ? exact.equals(path) : regex.matcher(path).matches();
+        }
+    }
+
+    /** A trie node */
+    private static final class Node {
+        final HashMap<Character, Node> children = new HashMap<>();
+        final List<CompiledRule> rules = new ArrayList<>();
+    }
+
+    /** Trie of rules with a literal prefix */
+    private final Node prefixes = new Node();
+    /** Trie of rules with no literal prefix but a literal suffix, indexed by the reversed suffix */
+    private final Node suffixes = new Node();
+    /** Rules with no literal prefix or suffix */
+    private final List<CompiledRule> others = new ArrayList<>();
+    /** True if there are no rules */
+    private final boolean empty;
+
+    /**
+     * Compile a list of rules.
+     *
+     * @param rules the rules to compile
+     */
+    PathPolicyMatcher(List<PathPolicy> rules) {
+        for (int i = 0; i < rules.size(); i++) {
+            final PathPolicy rule = rules.get(i);
+
+            if (rule.exact) {
+                insert(prefixes, rule.pattern, new CompiledRule(i, rule.pattern, null));
+            } else {
+                compileGlob(i, rule.pattern);
+            }
+        }
+
+        empty = rules.isEmpty();
+    }
+
+    private static void insert(Node root, CharSequence key, CompiledRule rule) {
+        Node node = root;
+
+        for (int i = 0; i < key.length(); i++) {
+            node = node.children.computeIfAbsent(key.charAt(i), c -> new Node());
+        }
+
+        node.rules.add(rule);
+    }
+
+    private static boolean isWildcard(char c) {
+        return (c == '*') || (c == '?');
+    }
+
+    /**
+     * Compile a glob pattern to a regex, and index it by its literal prefix or suffix.
+     *
+     * @param index the index of the rule
+     * @param pattern the glob pattern
+     */
+    private void compileGlob(int index, String pattern) {
+        String glob = pattern.startsWith("/") ? pattern.substring(1) : pattern;
+
+        if (glob.endsWith("/")) {
+            glob = glob + "**";
+        } else if (glob.indexOf('/') < 0) {
+            glob = "**/" + glob;
+        }
+
+        final StringBuilder regex = new StringBuilder();
+        int firstWildcard = -1;
+        int lastWildcard = -1;
+
+        for (int i = 0; i < glob.length(); i++) {
+            final char c = glob.charAt(i);
+
+            if (isWildcard(c)) {
+                if (firstWildcard < 0) {
+                    firstWildcard = i;
+                }
+
+                lastWildcard = i;
+            }
+
+            if ((c == '*') && ((i + 1) < glob.length()) && (glob.charAt(i + 1) == '*')) {
+                i++;
+                lastWildcard = i;
+
+                if (((i + 1) < glob.length()) && (glob.charAt(i + 1) == '/')) {
+                    // **/ matches any number of directories, including none
+                    i++;
+                    lastWildcard = i;
+                    regex.append("(?:.*/)?");
+                } else {
+                    regex.append(".*");
+                }
+            } else if (c == '*') {
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+
+        final CompiledRule rule = new CompiledRule(index, null, Pattern.compile(regex.toString()));
+
+        if (firstWildcard < 0) {
+            insert(prefixes, glob, new CompiledRule(index, glob, null));
+        } else if (firstWildcard > 0) {
+            insert(prefixes, glob.substring(0, firstWildcard), rule);
+        } else if (lastWildcard < (glob.length() - 1)) {
+            insert(suffixes, new StringBuilder(glob.substring(lastWildcard + 1)).reverse(), rule);
+        } else {
+            others.add(rule);
+        }
+    }
+
+    private static void collect(Node root, String path, boolean reversed, List<CompiledRule> candidates) {
+        Node node = root;
+        final int length = path.length();
+        candidates.addAll(node.rules);
+
+        for (int i = 0; i < length; i++) {
+            node = node.children.get(path.charAt(reversed ? length - 1 - i : i));
+
+            if (node == null) {
+                return;
+            }
+
+            candidates.addAll(node.rules);
+        }
+    }
+
+    /**
+     * Find the rules matching a path.
+     *
+     * @param path the path to match
+     * @return the indexes of the matching rules, in ascending order
+     */
+    int[] match(String path) {
+        if (empty || (path == null)) {
+            return NO_MATCHES;
+        }
+
+        final List<CompiledRule> candidates = new ArrayList<>(others);
+        collect(prefixes, path, false, candidates);
+        collect(suffixes, path, true, candidates);
+        final int[] matches = new int[candidates.size()];
+        int count = 0;
+
+        for (final CompiledRule candidate : candidates) {
+            if (candidate.matches(path)) {
+                matches[count++] = candidate.index;
+            }
+        }
+
+        if (count == 0) {
+            return NO_MATCHES;
+        }
+
+        final int[] result = Arrays.copyOf(matches, count);
+        Arrays.sort(result);
+        return result;
+    }
+}
@@ -0,0 +1,126 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.github.NeRdTheNed.JarTighten.JarTighten.CompressionResult;
+
+/**
+ * An in-memory cache of optimised entries, keyed by the compression settings used and the uncompressed contents of the entry.
+ * Can be shared between JarTighten instances and threads, so that unchanged entries are not recompressed on later runs.
+ * The least recently used results are evicted once the total size of the cached compressed data exceeds the configured limit.
+ */
+public final class ResultCache {
+    /** Cache key for an entry */
+    static final class Key {
+        private final String settings;
+        private final int uncompressedSize;
+        private final byte[] digest;
+        private final int hash;
+
+        Key(String settings, int uncompressedSize, byte[] digest) {
+            this.settings = settings;
+            this.uncompressedSize = uncompressedSize;
+            this.digest = digest;
+            hash = (((31 * settings.hashCode()) + uncompressedSize) * 31) + Arrays.hashCode(digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            final Key other = (Key) obj;
+            return (uncompressedSize == other.uncompressedSize) && settings.equals(other.settings) && Arrays.equals(digest, other.digest);
+        }
+    }
+
+    /** Maximum total size of cached compressed data in bytes */
+    private final long maxBytes;
+    /** Cached results, in access order */
+    private final LinkedHashMap<Key, CompressionResult> results = new LinkedHashMap<>(16, 0.75F, true);
+    /** Total size of cached compressed data in bytes */
+    private long cachedBytes = 0;
+
+    /**
+     * Creates an empty result cache.
+     *
+     * @param maxBytes maximum total size of cached compressed data in bytes
+     */
+    public ResultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Create the cache key for an entry.
+     *
+     * @param settings the settings which affect how entries are compressed
+     * @param uncompressedData the uncompressed contents of the entry
+     * @return the cache key
+     */
+    static Key key(String settings, byte[] uncompressedData) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return new Key(settings, uncompressedData.length, digest.digest(uncompressedData));
+        } catch (final NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Get a cached result.
+     *
+     * @param key the cache key
+     * @return the cached result, or null if not cached
+     */
+    synchronized CompressionResult get(Key key) {
+        return results.get(key);
+    }
+
+    /**
+     * Cache a result, evicting the least recently used results if needed.
+     *
+     * @param key the cache key
+     * @param result the result to cache
+     */
+    synchronized void put(Key key, CompressionResult result) {
+        if (result.compressedSize > maxBytes) {
+            return;
+        }
+
+        final CompressionResult previous = results.put(key, result);
+
+        if (previous != null) {
+            cachedBytes -= previous.compressedSize;
+        }
+
+        cachedBytes += result.compressedSize;
+        final Iterator<Map.Entry<Key, CompressionResult>> iterator = results.entrySet().iterator();
+
+        while ((cachedBytes > maxBytes) && iterator.hasNext()) {
+            cachedBytes -= iterator.next().getValue().compressedSize;
+            iterator.remove();
+        }
+    }
+
+    /** Remove all cached results. */
+    public synchronized void clear() {
+        results.clear();
+        cachedBytes = 0;
+    }
+}
@@ -0,0 +1,362 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+import com.github.NeRdTheNed.deft4j.Deft;
+
+import io.github.NeRdTheNed.JarTighten.JarTighten.CompressionResult;
+import io.github.NeRdTheNed.JarTighten.JarTighten.PendingEntry;
+import software.coley.lljzip.ZipIO;
+
+/**
+ * Recompresses entries in worker JVM processes, so that each worker has its own heap and garbage collector.
+ * Entries are sent to workers in batches over their standard input and output.
+ * If a worker crashes, it is restarted and the entries of its batch without results are tried again.
+ * If the same batch fails too many times, its entries are completed with the failure,
+ * so they are recompressed in this process instead, while other batches still use workers.
+ * Closing the coordinator cancels the entries without results and stops the worker processes.
+ */
+final class ShardCoordinator implements AutoCloseable {
+    /** Target total uncompressed size of a batch */
+    private static final long BATCH_SIZE = 8L * 1024 * 1024;
+    /** Maximum number of entries in a batch */
+    private static final int BATCH_MAX_ENTRIES = 64;
+    /** Number of times a batch is sent to a worker before its entries are recompressed in this process */
+    private static final int MAX_BATCH_ATTEMPTS = 2;
+
+    /** The instance to recompress entries for */
+    private final JarTighten jarTighten;
+    /** Number of worker processes */
+    private final int workers;
+    /** Class path to start worker processes with */
+    private final String classPath;
+    /** Cancels recompressing the entries */
+    private final Cancellation cancellation;
+    /** Lock for reading entry data from the archive */
+    private final Object readLock = new Object();
+    /** The results for each entry, or null if not started */
+    private List<CompletableFuture<CompressionResult>> results;
+    /** The running worker processes */
+    private final Set<Process> processes = new LinkedHashSet<>();
+    /** True once closed */
+    private volatile boolean closed;
+
+    /**
+     * @param jarTighten the instance to recompress entries for
+     * @param workers number of worker processes
+     * @param classPath class path to start worker processes with, or null to use the class path JarTighten was loaded from
+     * @param cancellation cancels recompressing the entries
+     */
+    ShardCoordinator(JarTighten jarTighten, int workers, String classPath, Cancellation cancellation) {
+        this.jarTighten = jarTighten;
+        this.workers = workers;
+        this.classPath = classPath != null ? classPath : defaultClassPath();
+        this.cancellation = cancellation;
+    }
+
+    /** Indexes of entries to send to a worker together */
+    private static final class Batch {
+        final List<Integer> entries;
+        /** Number of times this batch has already failed */
+        final int failures;
+
+        Batch(List<Integer> entries, int failures) {
+            this.entries = entries;
+            this.failures = failures;
+        }
+    }
+
+    /**
+     * Get the class path JarTighten and its dependencies were loaded from,
+     * so worker processes can be started when JarTighten isn't on the class path of this process (e.g. in a Gradle plugin).
+     */
+    static String defaultClassPath() {
+        final Set<String> paths = new LinkedHashSet<>();
+
+        for (final Class<?> clazz : new Class<?>[] { JarTighten.class, ZipIO.class, Deft.class }) {
+            final CodeSource codeSource = clazz.getProtectionDomain().getCodeSource();
+
+            if (codeSource != null) {
+                addPath(paths, codeSource.getLocation());
+            }
+        }
+
+        for (ClassLoader loader = JarTighten.class.getClassLoader(); loader != null; loader = loader.getParent()) {
+            if (loader instanceof URLClassLoader) {
+                for (final URL url : ((URLClassLoader) loader).getURLs()) {
+                    addPath(paths, url);
+                }
+            }
+        }
+
+        final String processClassPath = System.getProperty("java.class.path");
+
+        if ((processClassPath != null) && !processClassPath.isEmpty()) {
+            paths.addAll(Arrays.asList(processClassPath.split(File.pathSeparator)));
+        }
+
+        return String.join(File.pathSeparator, paths);
+    }
+
+    private static void addPath(Set<String> paths, URL url) {
+        if ((url == null) || !"file".equals(url.getProtocol())) {
+            return;
+        }
+
+        try {
+            paths.add(Paths.get(url.toURI()).toString());
+        } catch (final URISyntaxException | IllegalArgumentException e) {
+            // Not a local file
+        }
+    }
+
+    /**
+     * Start recompressing the given entries in worker processes.
+     *
+     * @param entries the entries to recompress
+     * @return the results for each entry, in the same order as the entries
+     */
+    List<Future<CompressionResult>> start(List<PendingEntry> entries) {
+        final List<CompletableFuture<CompressionResult>> results = new ArrayList<>(entries.size());
+        this.results = results;
+        final LinkedBlockingDeque<Batch> batches = new LinkedBlockingDeque<>();
+        List<Integer> batch = new ArrayList<>();
+        long batchSize = 0;
+
+        for (int i = 0; i < entries.size(); i++) {
+            results.add(new CompletableFuture<>());
+            final long size = Math.max(0, entries.get(i).uncompressedSize);
+
+            if (!batch.isEmpty() && (((batchSize + size) > BATCH_SIZE) || (batch.size() >= BATCH_MAX_ENTRIES))) {
+                batches.add(new Batch(batch, 0));
+                batch = new ArrayList<>();
+                batchSize = 0;
+            }
+
+            batch.add(i);
+            batchSize += size;
+        }
+
+        if (!batch.isEmpty()) {
+            batches.add(new Batch(batch, 0));
+        }
+
+        final int threads = Math.min(workers, batches.size());
+
+        for (int i = 0; i < threads; i++) {
+            final Thread thread = new Thread(() -> runWorker(entries, results, batches), "JarTighten-shard-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        return new ArrayList<>(results);
+    }
+
+    /**
+     * Cancel the entries without results and stop the worker processes.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        if (results != null) {
+            for (final CompletableFuture<CompressionResult> result : results) {
+                result.cancel(false);
+            }
+        }
+
+        synchronized (processes) {
+            for (final Process process : processes) {
+                process.destroyForcibly();
+            }
+
+            processes.clear();
+        }
+    }
+
+    /** Start a worker process with the same heap settings as this process */
+    private Process startWorker() throws IOException {
+        final List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+
+        for (final String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (arg.startsWith("-Xmx") || arg.startsWith("-Xss")) {
+                command.add(arg);
+            }
+        }
+
+        command.add("-cp");
+        command.add(classPath);
+        command.add(ShardWorker.class.getName());
+        final Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+
+        synchronized (processes) {
+            if (closed) {
+                process.destroyForcibly();
+                throw new IOException("Shard coordinator was closed");
+            }
+
+            processes.add(process);
+        }
+
+        return process;
+    }
+
+    private void stopWorker(Process process, DataOutputStream out) {
+        try {
+            out.writeInt(0);
+            out.close();
+            process.waitFor(10, TimeUnit.SECONDS);
+        } catch (final IOException e) {
+            // The worker has already exited
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            process.destroy();
+
+            synchronized (processes) {
+                processes.remove(process);
+            }
+        }
+    }
+
+    /**
+     * Read the data of an entry to send to a worker.
+     * If the entry can't be read, its result is completed exceptionally.
+     *
+     * @return the task, or null if the entry can't be read
+     */
+    private ShardWorker.Task createTask(int index, PendingEntry entry, CompletableFuture<CompressionResult> result) {
+        try {
+            final byte[] compressedData;
+
+            synchronized (readLock) {
+                compressedData = JarTighten.readCompressedData(entry);
+            }
+
+            final byte[] uncompressedData = jarTighten.decompressEntry(entry, compressedData, readLock);
+            return new ShardWorker.Task(index, entry.fileName, entry.crc32, entry.uncompressedSize, entry.compressedSize, entry.compressionMethod, compressedData, uncompressedData);
+        } catch (final Exception e) {
+            result.completeExceptionally(e);
+            return null;
+        }
+    }
+
+    /**
+     * Send batches to a worker process until there are none left, restarting the worker if it crashes.
+     * A batch which fails is tried again, and after too many failures its entries are completed with the failure.
+     */
+    private void runWorker(List<PendingEntry> entries, List<CompletableFuture<CompressionResult>> results, LinkedBlockingDeque<Batch> batches) {
+        Process process = null;
+        DataOutputStream out = null;
+        DataInputStream in = null;
+        Batch batch;
+
+        while (!closed && ((batch = batches.pollFirst()) != null)) {
+            if (cancellation.isCancelled()) {
+                for (final int index : batch.entries) {
+                    results.get(index).cancel(false);
+                }
+
+                continue;
+            }
+
+            try {
+                if (process == null) {
+                    process = startWorker();
+                    out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+                    in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+                    out.writeInt(ShardWorker.PROTOCOL_MAGIC);
+                    jarTighten.writeCompressionSettings(out);
+                }
+
+                final List<ShardWorker.Task> tasks = new ArrayList<>(batch.entries.size());
+
+                for (final int index : batch.entries) {
+                    final ShardWorker.Task task = createTask(index, entries.get(index), results.get(index));
+
+                    if (task != null) {
+                        tasks.add(task);
+                    }
+                }
+
+                if (tasks.isEmpty()) {
+                    continue;
+                }
+
+                out.writeInt(tasks.size());
+
+                for (final ShardWorker.Task task : tasks) {
+                    task.write(out);
+                }
+
+                out.flush();
+
+                for (final ShardWorker.Task task : tasks) {
+                    results.get(task.id).complete(ShardWorker.readResult(in, task.id));
+                }
+            } catch (final Exception e) {
+                if (closed) {
+                    // The worker process was stopped by closing the coordinator
+                    break;
+                }
+
+                if (process != null) {
+                    process.destroyForcibly();
+
+                    synchronized (processes) {
+                        processes.remove(process);
+                    }
+
+                    process = null;
+                }
+
+                final List<Integer> remaining = new ArrayList<>();
+
+                for (final int index : batch.entries) {
+                    if (!results.get(index).isDone()) {
+                        remaining.add(index);
+                    }
+                }
+
+                if ((batch.failures + 1) < MAX_BATCH_ATTEMPTS) {
+                    // Try the entries without results again in a new worker
+                    if (!remaining.isEmpty()) {
+                        batches.offerFirst(new Batch(remaining, batch.failures + 1));
+                    }
+                } else {
+                    // The batch fails deterministically, so only its entries are recompressed in this process
+                    final IOException failure = new IOException("JarTighten worker process failed " + MAX_BATCH_ATTEMPTS + " times on a batch of " + batch.entries.size() + " entries", e);
+
+                    for (final int index : remaining) {
+                        results.get(index).completeExceptionally(failure);
+                    }
+                }
+            }
+        }
+
+        if ((process != null) && !closed) {
+            stopWorker(process, out);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import io.github.NeRdTheNed.JarTighten.JarTighten.CompressionResult;
+
+/**
+ * Worker process which recompresses batches of entries sent by a {@link ShardCoordinator}.
+ * Reads the compression settings and then batches of entries from standard input,
+ * and writes the results for each batch to standard output.
+ */
+public final class ShardWorker {
+    /** Sent by the coordinator before the settings */
+    static final int PROTOCOL_MAGIC = 0x4A545357;
+
+    /** An entry sent to a worker */
+    static final class Task {
+        final int id;
+        final String fileName;
+        final int crc32;
+        final int uncompressedSize;
+        final int compressedSize;
+        final int compressionMethod;
+        final byte[] compressedData;
+        final byte[] uncompressedData;
+
+        Task(int id, String fileName, int crc32, int uncompressedSize, int compressedSize, int compressionMethod, byte[] compressedData, byte[] uncompressedData) {
+            this.id = id;
+            this.fileName = fileName;
+            this.crc32 = crc32;
+            this.uncompressedSize = uncompressedSize;
+            this.compressedSize = compressedSize;
+            this.compressionMethod = compressionMethod;
+            this.compressedData = compressedData;
+            this.uncompressedData = uncompressedData;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(id);
+            out.writeUTF(fileName != null ? fileName : "");
+            out.writeInt(crc32);
+            out.writeInt(uncompressedSize);
+            out.writeInt(compressedSize);
+            out.writeInt(compressionMethod);
+            writeBytes(out, compressedData, compressedData.length);
+
+            if (uncompressedData == compressedData) {
+                // Stored data is only sent once
+                out.writeInt(-1);
+            } else {
+                writeBytes(out, uncompressedData, uncompressedData.length);
+            }
+        }
+
+        static Task read(DataInputStream in) throws IOException {
+            final int id = in.readInt();
+            final String fileName = in.readUTF();
+            final int crc32 = in.readInt();
+            final int uncompressedSize = in.readInt();
+            final int compressedSize = in.readInt();
+            final int compressionMethod = in.readInt();
+            final byte[] compressedData = readBytes(in, in.readInt());
+            final int uncompressedLength = in.readInt();
+            final byte[] uncompressedData = uncompressedLength < 0 ? compressedData : readBytes(in, uncompressedLength);
+            return new Task(id, fileName, crc32, uncompressedSize, compressedSize, compressionMethod, compressedData, uncompressedData);
+        }
+    }
+
+    private ShardWorker() {
+        // Only used as an entry point
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes, int length) throws IOException {
+        out.writeInt(length);
+        out.write(bytes, 0, length);
+    }
+
+    private static byte[] readBytes(DataInputStream in, int length) throws IOException {
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    static void writeResult(DataOutputStream out, int id, CompressionResult result) throws IOException {
+        out.writeInt(id);
+        out.writeInt(result.compressionMethod);
+        out.writeInt(result.crc32);
+        out.writeInt(result.uncompressedSize);
+        writeBytes(out, result.compressedData, result.compressedSize);
+    }
+
+    static CompressionResult readResult(DataInputStream in, int expectedId) throws IOException {
+        final int id = in.readInt();
+
+        if (id != expectedId) {
+            throw new IOException("Worker returned result for entry " + id + ", expected " + expectedId);
+        }
+
+        final int compressionMethod = in.readInt();
+        final int crc32 = in.readInt();
+        final int uncompressedSize = in.readInt();
+        final int compressedSize = in.readInt();
+        final byte[] compressedData = readBytes(in, compressedSize);
+        return new CompressionResult(compressionMethod, compressedData, crc32, uncompressedSize, compressedSize);
+    }
+
+    public static void main(String[] args) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        // Anything else printed to standard output would corrupt the results
+        System.setOut(System.err);
+
+        if (in.readInt() != PROTOCOL_MAGIC) {
+            throw new IOException("Not started by a JarTighten coordinator");
+        }
+
+        final JarTighten jarTighten = JarTighten.readCompressionSettings(in);
+        int count;
+
+        while ((count = in.readInt()) > 0) {
+            // Read the whole batch before writing any results, as the coordinator doesn't read results until it has sent the batch
+            final Task[] tasks = new Task[count];
+
+            for (int i = 0; i < count; i++) {
+                tasks[i] = Task.read(in);
+            }
+
+            for (final Task task : tasks) {
+                CompressionResult result;
+
+                try {
+                    result = jarTighten.optimiseEntry(task.fileName, task.uncompressedData, task.crc32, task.uncompressedSize, task.compressedSize, task.compressionMethod, task.compressedData, Cancellation.NONE);
+                } catch (final Exception e) {
+                    // TODO Handle errors more gracefully
+                    e.printStackTrace();
+                    result = new CompressionResult(task.compressionMethod, task.compressedData, task.crc32, task.uncompressedSize, task.compressedSize);
+                }
+
+                writeResult(out, task.id, result);
+            }
+
+            out.flush();
+        }
+    }
+}
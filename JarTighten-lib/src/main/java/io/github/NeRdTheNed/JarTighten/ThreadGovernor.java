@@ -0,0 +1,162 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A limit on the number of threads used for compression, backed by one long-lived thread pool.
+ * Every JarTighten instance using the same governor shares its threads,
+ * so running several instances at once in the same JVM doesn't oversubscribe the CPU.
+ * Tasks waiting on other tasks help run queued tasks instead of blocking a thread.
+ */
+public final class ThreadGovernor {
+    /** Governors shared by every instance in this JVM, by thread budget */
+    private static final ConcurrentHashMap<Integer, ThreadGovernor> SHARED = new ConcurrentHashMap<>();
+
+    /** Maximum number of threads running compression tasks at once */
+    private final int threads;
+    /** The thread pool, or null if running tasks serially */
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates a governor with its own thread pool.
+     * Prefer {@link #shared(int)} to share threads with other users of the same budget.
+     *
+     * @param threads maximum number of threads running compression tasks at once, 1 to run tasks serially on the calling thread
+     */
+    public ThreadGovernor(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread budget must be at least 1, was " + threads);
+        }
+
+        this.threads = threads;
+
+        if (threads == 1) {
+            pool = null;
+        } else {
+            final AtomicInteger threadCount = new AtomicInteger();
+            pool = new ForkJoinPool(threads, p -> {
+                final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+                thread.setName("JarTighten-compress-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }, null, false);
+        }
+    }
+
+    /**
+     * Get the governor for a thread budget shared by every user of the same budget in this JVM.
+     *
+     * @param threads maximum number of threads running compression tasks at once
+     * @return the shared governor
+     */
+    public static ThreadGovernor shared(int threads) {
+        return SHARED.computeIfAbsent(threads, ThreadGovernor::new);
+    }
+
+    /** @return the maximum number of threads running compression tasks at once */
+    public int getThreads() {
+        return threads;
+    }
+
+    /** @return true if tasks can run in parallel */
+    boolean isParallel() {
+        return pool != null;
+    }
+
+    /** @return true if the current thread is one of this governor's threads */
+    private boolean inPool() {
+        return (pool != null) && (ForkJoinTask.getPool() == pool);
+    }
+
+    /**
+     * Start running a task. Runs the task immediately on the calling thread if running tasks serially.
+     *
+     * @param task the task to run
+     * @return the task, which may be joined for its result
+     */
+    <T> ForkJoinTask<T> submit(Callable<T> task) {
+        final ForkJoinTask<T> forkJoinTask = ForkJoinTask.adapt(task);
+
+        if (pool == null) {
+            forkJoinTask.invoke();
+        } else if (inPool()) {
+            forkJoinTask.fork();
+        } else {
+            pool.execute(forkJoinTask);
+        }
+
+        return forkJoinTask;
+    }
+
+    /**
+     * Run every task and wait for their results.
+     * The calling thread runs one of the tasks itself instead of waiting idle.
+     *
+     * @param tasks the tasks to run
+     * @return the result of each task, in the same order as the tasks
+     * @throws ExecutionException if any task threw an exception
+     */
+    <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws ExecutionException {
+        final List<T> results = new ArrayList<>(tasks.size());
+
+        if ((pool == null) || (tasks.size() < 2)) {
+            for (final Callable<T> task : tasks) {
+                try {
+                    results.add(task.call());
+                } catch (final Exception e) {
+                    throw new ExecutionException(e);
+                }
+            }
+
+            return results;
+        }
+
+        final List<ForkJoinTask<T>> forked = new ArrayList<>(tasks.size());
+
+        for (int i = 1; i < tasks.size(); i++) {
+            forked.add(submit(tasks.get(i)));
+        }
+
+        try {
+            results.add(tasks.get(0).call());
+        } catch (final Exception e) {
+            throw new ExecutionException(e);
+        }
+
+        for (final ForkJoinTask<T> task : forked) {
+            results.add(join(task));
+        }
+
+        return results;
+    }
+
+    /**
+     * Wait for the result of a task, running other queued tasks while waiting if called from one of this governor's threads.
+     *
+     * @param task the task to wait for
+     * @return the result of the task
+     * @throws ExecutionException if the task threw an exception
+     */
+    static <T> T join(ForkJoinTask<T> task) throws ExecutionException {
+        try {
+            return task.join();
+        } catch (final RuntimeException e) {
+            // Unwrap the exceptions the task was wrapped in
+            Throwable cause = e;
+
+            while ((cause instanceof RuntimeException) && (cause.getCause() != null)) {
+                cause = cause.getCause();
+            }
+
+            throw new ExecutionException(cause);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+
+import software.coley.lljzip.format.ZipPatterns;
+import software.coley.lljzip.format.model.CentralDirectoryFileHeader;
+import software.coley.lljzip.format.model.EndOfCentralDirectory;
+import software.coley.lljzip.format.model.LocalFileHeader;
+import software.coley.lljzip.format.model.ZipArchive;
+import software.coley.lljzip.util.ByteDataUtil;
+
+/**
+ * The header fields of a zip file which are copied to the output, without any entry data.
+ * These are either taken from an archive parsed by lljzip, or read directly from the end of central directory record,
+ * the central directory and the local file headers of a file, so headers can be rewritten without parsing the whole archive.
+ * Like the JVM, values in local file headers other than the file name and extra field are taken from the central directory.
+ */
+final class ZipHeaders {
+    /** Length of the end of central directory record, without its comment */
+    private static final int END_LENGTH = 22;
+    /** Length of a central directory file header, without its variable length fields */
+    private static final int CENTRAL_LENGTH = 46;
+    /** Length of a local file header, without its variable length fields */
+    private static final int LOCAL_LENGTH = 30;
+    /** Maximum length of the zip file comment */
+    private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+
+    /** Fields of a local file header which are copied to the output */
+    static final class Local {
+        final int versionNeeded;
+        final int flags;
+        final int time;
+        final int date;
+        final byte[] fileName;
+        final byte[] extra;
+
+        Local(int versionNeeded, int flags, int time, int date, byte[] fileName, byte[] extra) {
+            this.versionNeeded = versionNeeded;
+            this.flags = flags;
+            this.time = time;
+            this.date = date;
+            this.fileName = fileName;
+            this.extra = extra;
+        }
+
+        static Local of(LocalFileHeader fileHeader) {
+            return new Local(fileHeader.getVersionNeededToExtract(), fileHeader.getGeneralPurposeBitFlag(), fileHeader.getLastModFileTime(), fileHeader.getLastModFileDate(), ByteDataUtil.toByteArray(fileHeader.getFileName()), ByteDataUtil.toByteArray(fileHeader.getExtraField()));
+        }
+    }
+
+    /** Fields of a central directory file header */
+    static final class Central {
+        final int versionMadeBy;
+        final int versionNeeded;
+        final int flags;
+        final int compressionMethod;
+        final int time;
+        final int date;
+        final int crc32;
+        final long compressedSize;
+        final long uncompressedSize;
+        final int diskNumberStart;
+        final int internalAttributes;
+        final int externalAttributes;
+        /** Offset of the local file header, as recorded in the central directory */
+        final long localHeaderOffset;
+        final byte[] fileName;
+        final byte[] extra;
+        final byte[] comment;
+        final String fileNameString;
+
+        Central(int versionMadeBy, int versionNeeded, int flags, int compressionMethod, int time, int date, int crc32, long compressedSize, long uncompressedSize, int diskNumberStart, int internalAttributes, int externalAttributes, long localHeaderOffset, byte[] fileName, byte[] extra, byte[] comment, String fileNameString) {
+            this.versionMadeBy = versionMadeBy;
+            this.versionNeeded = versionNeeded;
+            this.flags = flags;
+            this.compressionMethod = compressionMethod;
+            this.time = time;
+            this.date = date;
+            this.crc32 = crc32;
+            this.compressedSize = compressedSize;
+            this.uncompressedSize = uncompressedSize;
+            this.diskNumberStart = diskNumberStart;
+            this.internalAttributes = internalAttributes;
+            this.externalAttributes = externalAttributes;
+            this.localHeaderOffset = localHeaderOffset;
+            this.fileName = fileName;
+            this.extra = extra;
+            this.comment = comment;
+            this.fileNameString = fileNameString;
+        }
+
+        static Central of(CentralDirectoryFileHeader centralDir) {
+            return new Central(centralDir.getVersionMadeBy(), centralDir.getVersionNeededToExtract(), centralDir.getGeneralPurposeBitFlag(), centralDir.getCompressionMethod(), centralDir.getLastModFileTime(), centralDir.getLastModFileDate(), centralDir.getCrc32(), centralDir.getCompressedSize(), centralDir.getUncompressedSize(), centralDir.getDiskNumberStart(), centralDir.getInternalFileAttributes(), centralDir.getExternalFileAttributes(), centralDir.getRelativeOffsetOfLocalHeader(), ByteDataUtil.toByteArray(centralDir.getFileName()), ByteDataUtil.toByteArray(centralDir.getExtraField()), ByteDataUtil.toByteArray(centralDir.getFileComment()), centralDir.getFileNameAsString());
+        }
+    }
+
+    /** Fields of the end of central directory record which are copied to the output */
+    static final class End {
+        final int diskNumber;
+        final int centralDirectoryStartDisk;
+        /** Length of the zip file comment, as recorded in the end of central directory record */
+        final int commentLength;
+        final byte[] comment;
+
+        End(int diskNumber, int centralDirectoryStartDisk, int commentLength, byte[] comment) {
+            this.diskNumber = diskNumber;
+            this.centralDirectoryStartDisk = centralDirectoryStartDisk;
+            this.commentLength = commentLength;
+            this.comment = comment;
+        }
+
+        static End of(EndOfCentralDirectory end) {
+            return new End(end.getDiskNumber(), end.getCentralDirectoryStartDisk(), end.getZipCommentLength(), ByteDataUtil.toByteArray(end.getZipComment()));
+        }
+    }
+
+    /** A local file, with the central directory file header it was found from */
+    static final class LocalFile {
+        final Central central;
+        final Local local;
+        /** The file name from the local file header */
+        final String fileName;
+        /** Position of the compressed data in the file */
+        final long dataPosition;
+
+        LocalFile(Central central, Local local, String fileName, long dataPosition) {
+            this.central = central;
+            this.local = local;
+            this.fileName = fileName;
+            this.dataPosition = dataPosition;
+        }
+    }
+
+    /** The central directory file headers, in the order they're stored */
+    final List<Central> centralDirectories;
+    /** The end of central directory record, or null if there isn't one */
+    final End end;
+    /** Position in the file of offset 0 in the archive, which is more than 0 if data was prepended to the archive */
+    private final long baseOffset;
+
+    private ZipHeaders(List<Central> centralDirectories, End end, long baseOffset) {
+        this.centralDirectories = centralDirectories;
+        this.end = end;
+        this.baseOffset = baseOffset;
+    }
+
+    /**
+     * Get the headers of an archive parsed by lljzip.
+     *
+     * @param archive the archive
+     * @return the headers
+     */
+    static ZipHeaders of(ZipArchive archive) {
+        final List<Central> centralDirectories = new ArrayList<>();
+
+        for (final CentralDirectoryFileHeader centralDir : archive.getCentralDirectories()) {
+            centralDirectories.add(Central.of(centralDir));
+        }
+
+        final EndOfCentralDirectory end = archive.getEnd();
+        return new ZipHeaders(centralDirectories, end != null ? End.of(end) : null, 0);
+    }
+
+    /**
+     * Read the end of central directory record and the central directory of a zip file.
+     * Like the JVM, the central directory is found from the end of central directory record,
+     * and offsets are relative to the start of the archive if data was prepended to it.
+     *
+     * @param channel the zip file
+     * @return the headers
+     */
+    static ZipHeaders read(FileChannel channel) throws IOException {
+        final long size = channel.size();
+
+        if (size < END_LENGTH) {
+            throw new IOException("Not a zip file, too short to contain an end of central directory record");
+        }
+
+        final int tailLength = (int) Math.min(size, END_LENGTH + MAX_COMMENT_LENGTH);
+        final long tailPosition = size - tailLength;
+        final ByteBuffer tail = read(channel, tailPosition, tailLength);
+        int endPos = -1;
+
+        for (int i = tailLength - END_LENGTH; i >= 0; i--) {
+            if (tail.getInt(i) == ZipPatterns.END_OF_CENTRAL_DIRECTORY_QUAD) {
+                endPos = i;
+                break;
+            }
+        }
+
+        if (endPos < 0) {
+            throw new IOException("Not a zip file, no end of central directory record found");
+        }
+
+        final int commentLength = unsignedShort(tail, endPos + 20);
+        final byte[] comment = new byte[Math.min(commentLength, tailLength - endPos - END_LENGTH)];
+        tail.position(endPos + END_LENGTH);
+        tail.get(comment);
+        final End end = new End(unsignedShort(tail, endPos + 4), unsignedShort(tail, endPos + 6), commentLength, comment);
+        final long centralSize = tail.getInt(endPos + 12) & 0xFFFFFFFFL;
+        final long centralOffset = tail.getInt(endPos + 16) & 0xFFFFFFFFL;
+        final long centralPosition = (tailPosition + endPos) - centralSize;
+        final long baseOffset = centralPosition - centralOffset;
+
+        if ((centralPosition < 0) || (baseOffset < 0) || (centralSize > Integer.MAX_VALUE)) {
+            throw new IOException("Invalid central directory size " + centralSize + " or offset " + centralOffset);
+        }
+
+        final ByteBuffer central = read(channel, centralPosition, (int) centralSize);
+        final List<Central> centralDirectories = new ArrayList<>();
+        int pos = 0;
+
+        while ((pos + CENTRAL_LENGTH) <= central.limit()) {
+            if (central.getInt(pos) != ZipPatterns.CENTRAL_DIRECTORY_FILE_HEADER_QUAD) {
+                throw new IOException("Invalid central directory file header at " + (centralPosition + pos));
+            }
+
+            final int fileNameLength = unsignedShort(central, pos + 28);
+            final int extraLength = unsignedShort(central, pos + 30);
+            final int fileCommentLength = unsignedShort(central, pos + 32);
+
+            if ((pos + CENTRAL_LENGTH + fileNameLength + extraLength + fileCommentLength) > central.limit()) {
+                throw new EOFException("Central directory file header at " + (centralPosition + pos) + " extends past the end of the central directory");
+            }
+
+            central.position(pos + CENTRAL_LENGTH);
+            final byte[] fileName = new byte[fileNameLength];
+            central.get(fileName);
+            final byte[] extra = new byte[extraLength];
+            central.get(extra);
+            final byte[] fileComment = new byte[fileCommentLength];
+            central.get(fileComment);
+            centralDirectories.add(new Central(unsignedShort(central, pos + 4), unsignedShort(central, pos + 6), unsignedShort(central, pos + 8), unsignedShort(central, pos + 10), unsignedShort(central, pos + 12), unsignedShort(central, pos + 14), central.getInt(pos + 16), central.getInt(pos + 20) & 0xFFFFFFFFL, central.getInt(pos + 24) & 0xFFFFFFFFL, unsignedShort(central, pos + 34), unsignedShort(central, pos + 36), central.getInt(pos + 38), central.getInt(pos + 42) & 0xFFFFFFFFL, fileName, extra, fileComment, new String(fileName, StandardCharsets.UTF_8)));
+            pos += CENTRAL_LENGTH + fileNameLength + extraLength + fileCommentLength;
+        }
+
+        return new ZipHeaders(centralDirectories, end, baseOffset);
+    }
+
+    /**
+     * Read the local file header of each file in the central directory, in the order they're stored in the file.
+     * Files with more than one central directory file header are only read once.
+     *
+     * @param channel the zip file the headers were read from
+     * @return the local files
+     */
+    List<LocalFile> readLocalFiles(FileChannel channel) throws IOException {
+        final List<Central> byOffset = new ArrayList<>(centralDirectories);
+        Collections.sort(byOffset, Comparator.comparingLong(central -> central.localHeaderOffset));
+        final HashSet<Long> seenOffsets = new HashSet<>();
+        final List<LocalFile> localFiles = new ArrayList<>(byOffset.size());
+        final ByteBuffer header = ByteBuffer.allocate(LOCAL_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+
+        for (final Central central : byOffset) {
+            if (!seenOffsets.add(central.localHeaderOffset)) {
+                continue;
+            }
+
+            final long position = baseOffset + central.localHeaderOffset;
+            header.clear();
+            readFully(channel, header, position);
+
+            if (header.getInt(0) != ZipPatterns.LOCAL_FILE_HEADER_QUAD) {
+                throw new IOException("Invalid local file header for " + central.fileNameString + " at " + position);
+            }
+
+            final int fileNameLength = unsignedShort(header, 26);
+            final int extraLength = unsignedShort(header, 28);
+            final ByteBuffer variable = read(channel, position + LOCAL_LENGTH, fileNameLength + extraLength);
+            final byte[] fileName = new byte[fileNameLength];
+            variable.get(fileName);
+            final byte[] extra = new byte[extraLength];
+            variable.get(extra);
+            final Local local = new Local(central.versionNeeded, central.flags, central.time, central.date, fileName, extra);
+            localFiles.add(new LocalFile(central, local, new String(fileName, StandardCharsets.UTF_8), position + LOCAL_LENGTH + fileNameLength + extraLength));
+        }
+
+        return localFiles;
+    }
+
+    private static int unsignedShort(ByteBuffer buffer, int index) {
+        return buffer.getShort(index) & 0xFFFF;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, buffer, position);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long readPosition = position;
+
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, readPosition);
+
+            if (read < 0) {
+                throw new EOFException("Unexpected end of zip file at " + readPosition);
+            }
+
+            readPosition += read;
+        }
+    }
+}
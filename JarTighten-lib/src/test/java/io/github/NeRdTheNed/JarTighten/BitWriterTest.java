@@ -0,0 +1,114 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class BitWriterTest {
+    /** Read bits least significant bit first */
+    private static long readBits(byte[] data, long position, int count) {
+        long value = 0;
+
+        for (int i = 0; i < count; i++) {
+            final long bit = position + i;
+            value |= (long) ((data[(int) (bit >>> 3)] >>> (bit & 7)) & 1) << i;
+        }
+
+        return value;
+    }
+
+    @Test
+    void writesBitsLeastSignificantFirst() {
+        final BitWriter out = new BitWriter(0);
+        out.writeBits(1, 1);
+        out.writeBits(0, 2);
+        out.writeBits(0b10110, 5);
+        out.writeBits(0xFFFF_FFFFL, 32);
+        assertArrayEquals(new byte[] { (byte) 0b1011_0001, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF }, out.toByteArray());
+    }
+
+    @Test
+    void roundTripsRandomWidths() {
+        final Random random = new Random(1);
+        final int count = 10_000;
+        final long[] values = new long[count];
+        final int[] widths = new int[count];
+        // Start with a small buffer so it has to grow
+        final BitWriter out = new BitWriter(1);
+
+        for (int i = 0; i < count; i++) {
+            widths[i] = 1 + random.nextInt(32);
+            values[i] = random.nextLong() & ((1L << widths[i]) - 1);
+            // Bits above the width are ignored
+            out.writeBits(values[i] | (random.nextLong() << widths[i]), widths[i]);
+        }
+
+        final byte[] written = out.toByteArray();
+        long position = 0;
+
+        for (int i = 0; i < count; i++) {
+            assertEquals(values[i], readBits(written, position, widths[i]));
+            position += widths[i];
+        }
+
+        assertEquals((position + 7) >>> 3, written.length);
+        // Padding is zero bits
+        assertEquals(0, readBits(written, position, (int) ((written.length * 8L) - position)));
+    }
+
+    @Test
+    void copiesBitsAtEveryAlignment() {
+        final Random random = new Random(2);
+        final byte[] source = new byte[256];
+        random.nextBytes(source);
+
+        for (int destinationOffset = 0; destinationOffset < 8; destinationOffset++) {
+            for (int startBit = 0; startBit < 16; startBit++) {
+                for (final int length : new int[] { 0, 1, 7, 8, 9, 31, 32, 33, 64, 65, 1000 }) {
+                    final BitWriter out = new BitWriter(0);
+                    out.writeBits(0, destinationOffset);
+                    out.copyBits(source, startBit, startBit + length);
+                    final byte[] written = out.toByteArray();
+
+                    for (int i = 0; i < length; i++) {
+                        assertEquals(readBits(source, startBit + i, 1), readBits(written, destinationOffset + i, 1));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void copiesToEndOfSource() {
+        final byte[] source = { 0x12, 0x34, 0x56 };
+        final BitWriter out = new BitWriter(0);
+        out.writeBits(1, 3);
+        out.copyBits(source, 4, 24);
+        final byte[] written = out.toByteArray();
+        assertEquals(1, readBits(written, 0, 3));
+        assertEquals(readBits(source, 4, 20), readBits(written, 3, 20));
+    }
+
+    @Test
+    void alignsToByteBoundary() {
+        final BitWriter out = new BitWriter(0);
+        out.alignToByte();
+        out.writeBits(0b101, 3);
+        out.alignToByte();
+        out.alignToByte();
+        out.writeBytes(new byte[] { 1, 2, 3 }, 1, 2);
+        out.writeBits(1, 1);
+        assertArrayEquals(new byte[] { 0b101, 2, 3, 1 }, out.toByteArray());
+    }
+
+    @Test
+    void rejectsUnalignedBytes() {
+        final BitWriter out = new BitWriter(0);
+        out.writeBits(1, 3);
+        assertThrows(IllegalStateException.class, () -> out.writeBytes(new byte[] { 1 }, 0, 1));
+    }
+}
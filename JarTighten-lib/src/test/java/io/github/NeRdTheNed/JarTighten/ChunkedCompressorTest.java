@@ -0,0 +1,98 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.Deflater;
+
+import org.junit.jupiter.api.Test;
+
+class ChunkedCompressorTest {
+    private static final ThreadGovernor GOVERNOR = new ThreadGovernor(4);
+
+    @Test
+    void stitchesChunksIntoOneStream() throws Exception {
+        final ChunkedCompressor compressor = new ChunkedCompressor(GOVERNOR, false, System.err);
+        final byte[] data = DeflateTestUtil.testData((compressor.chunkSize(0) * 3) + 12345, 1);
+
+        for (final int level : new int[] { Deflater.NO_COMPRESSION, Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION }) {
+            final ChunkedCompressor.Result result = compressor.compress(data, chunk -> Collections.singletonList(DeflateTestUtil.deflate(chunk, level, 0)), Cancellation.NONE);
+            assertNotNull(result);
+            assertArrayEquals(data, DeflateTestUtil.inflate(result.joined));
+            assertEquals(4, result.chunks);
+            // Each of the 4 chunks has at least one block
+            assertTrue(DeflateBlocks.parse(result.joined).size() >= 4);
+            // The whole file is only compressed at once if the standard Java deflate implementation is enabled
+            assertNull(result.whole);
+        }
+    }
+
+    @Test
+    void comparesWithWholeFileIfStandardIsEnabled() throws Exception {
+        final ChunkedCompressor compressor = new ChunkedCompressor(GOVERNOR, true, System.err);
+        final byte[] data = DeflateTestUtil.testData((compressor.chunkSize(0) * 2) + 1, 6);
+        final ChunkedCompressor.Result result = compressor.compress(data, chunk -> Collections.singletonList(DeflateTestUtil.deflate(chunk, Deflater.BEST_SPEED, 0)), Cancellation.NONE);
+        assertNotNull(result);
+        assertArrayEquals(data, DeflateTestUtil.inflate(result.joined));
+        assertArrayEquals(data, DeflateTestUtil.inflate(result.whole));
+    }
+
+    @Test
+    void primedChunksReferToEarlierChunks() throws Exception {
+        final ChunkedCompressor unprimed = new ChunkedCompressor(GOVERNOR, false, System.err);
+        final ChunkedCompressor primed = new ChunkedCompressor(GOVERNOR, true, System.err);
+        final int chunkSize = primed.chunkSize(0);
+        // Every chunk repeats the same data, so primed chunks can refer back to the previous chunk
+        final byte[] block = DeflateTestUtil.testData(20_000, 2);
+        final byte[] data = new byte[(chunkSize * 2) + 5000];
+
+        for (int i = 0; i < data.length; i += block.length) {
+            System.arraycopy(block, 0, data, i, Math.min(block.length, data.length - i));
+        }
+
+        final ChunkedCompressor.ChunkEncoder storeOnly = chunk -> Collections.singletonList(DeflateTestUtil.deflate(chunk, Deflater.NO_COMPRESSION, 0));
+        final byte[] unprimedJoined = unprimed.compress(data, storeOnly, Cancellation.NONE).joined;
+        final byte[] primedJoined = primed.compress(data, storeOnly, Cancellation.NONE).joined;
+        assertArrayEquals(data, DeflateTestUtil.inflate(unprimedJoined));
+        assertArrayEquals(data, DeflateTestUtil.inflate(primedJoined));
+        assertTrue(primedJoined.length < unprimedJoined.length);
+    }
+
+    @Test
+    void skipsFailedAndInvalidOutputs() throws Exception {
+        final ChunkedCompressor compressor = new ChunkedCompressor(GOVERNOR, false, System.err);
+        final byte[] data = DeflateTestUtil.testData((compressor.chunkSize(0) * 2) + 1, 3);
+        final byte[] joined = compressor.compress(data, chunk -> Arrays.asList(null, new byte[] { 7 }, DeflateTestUtil.deflate(chunk, Deflater.BEST_SPEED, 0)), Cancellation.NONE).joined;
+        assertArrayEquals(data, DeflateTestUtil.inflate(joined));
+    }
+
+    @Test
+    void failsIfEveryCompressorFails() {
+        final ChunkedCompressor compressor = new ChunkedCompressor(GOVERNOR, false, System.err);
+        final byte[] data = DeflateTestUtil.testData((compressor.chunkSize(0) * 2) + 1, 4);
+        assertThrows(ExecutionException.class, () -> compressor.compress(data, chunk -> Collections.singletonList(null), Cancellation.NONE));
+    }
+
+    @Test
+    void doesntSplitDataWhichFitsInOneChunk() throws Exception {
+        final ChunkedCompressor compressor = new ChunkedCompressor(GOVERNOR, true, System.err);
+        final byte[] data = DeflateTestUtil.testData(compressor.chunkSize(0), 5);
+        assertNull(compressor.compress(data, chunk -> Collections.singletonList(DeflateTestUtil.deflate(chunk, Deflater.BEST_SPEED, 0)), Cancellation.NONE));
+    }
+
+    @Test
+    void splitsLargeDataBetweenThreads() {
+        final ChunkedCompressor compressor = new ChunkedCompressor(GOVERNOR, false, System.err);
+        final int minChunkSize = compressor.chunkSize(0);
+        assertEquals(minChunkSize, compressor.chunkSize(minChunkSize * 2));
+        // At most 2 chunks per thread
+        assertEquals((Integer.MAX_VALUE / 8) + 1, compressor.chunkSize(Integer.MAX_VALUE));
+    }
+}
@@ -0,0 +1,108 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.Test;
+
+import software.coley.lljzip.ZipIO;
+import software.coley.lljzip.format.compression.ZipCompressions;
+import software.coley.lljzip.format.model.LocalFileHeader;
+import software.coley.lljzip.format.model.ZipArchive;
+import software.coley.lljzip.util.ByteDataUtil;
+
+class DecompressionBackendTest {
+    private static final DecompressionBackend LLJZIP = LljzipDecompressionBackend.INSTANCE;
+    private static final DecompressionBackend INFLATER = new InflaterDecompressionBackend(2);
+
+    /** A jar with files compressed at every level, including empty, stored-block only and multi-block deflate streams */
+    private static byte[] jar() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try
+            (final ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            final int[] sizes = { 0, 1, 1000, 100_000, 1_000_000 };
+
+            for (int level = Deflater.NO_COMPRESSION; level <= Deflater.BEST_COMPRESSION; level += 3) {
+                zip.setLevel(level);
+
+                for (final int size : sizes) {
+                    zip.putNextEntry(new ZipEntry("level" + level + "/File" + size + ".class"));
+                    zip.write(DeflateTestUtil.testData(size, size + level));
+                    zip.closeEntry();
+                }
+            }
+        }
+
+        return bytes.toByteArray();
+    }
+
+    @Test
+    void inflaterMatchesLljzip() throws Exception {
+        try
+            (final ZipArchive archive = ZipIO.readJvm(jar())) {
+            for (final LocalFileHeader fileHeader : archive.getLocalFiles()) {
+                assertEquals(ZipCompressions.DEFLATED, fileHeader.getCompressionMethod());
+                final byte[] compressedData = ByteDataUtil.toByteArray(fileHeader.getFileData());
+                final int uncompressedSize = (int) fileHeader.getUncompressedSize();
+                final CRC32 lljzipCrc32 = new CRC32();
+                final byte[] expected = LLJZIP.inflate(fileHeader, compressedData, uncompressedSize, lljzipCrc32);
+                assertEquals(uncompressedSize, expected.length, fileHeader.getFileNameAsString());
+                assertEquals(fileHeader.getCrc32(), (int) lljzipCrc32.getValue(), fileHeader.getFileNameAsString());
+
+                // The expected size is only a hint, as it may be missing or wrong
+                for (final int expectedSize : new int[] { uncompressedSize, 0, uncompressedSize / 3, uncompressedSize + 1, Integer.MAX_VALUE }) {
+                    final CRC32 inflaterCrc32 = new CRC32();
+                    assertArrayEquals(expected, INFLATER.inflate(fileHeader, compressedData, expectedSize, inflaterCrc32), fileHeader.getFileNameAsString() + " with expected size " + expectedSize);
+                    assertEquals(lljzipCrc32.getValue(), inflaterCrc32.getValue(), fileHeader.getFileNameAsString());
+                }
+            }
+        }
+    }
+
+    @Test
+    void optimisesTheSameWithEitherBackend() throws Exception {
+        final byte[] jar = jar();
+        // Empty files would be removed as directory entries
+        final byte[] lljzip = TestJars.toArray(new JarTighten.Builder().removeDirectoryEntries(false).decompressionBackend(LLJZIP).build().optimiseJar(jar, Cancellation.NONE));
+        final byte[] inflater = TestJars.toArray(new JarTighten.Builder().removeDirectoryEntries(false).decompressionBackend(INFLATER).verifyCrc32(true).build().optimiseJar(jar, Cancellation.NONE));
+        assertArrayEquals(lljzip, inflater);
+        assertEquals(TestJars.files(jar).keySet(), TestJars.files(inflater).keySet());
+    }
+
+    @Test
+    void inflaterRejectsInvalidStreams() throws Exception {
+        final byte[] data = DeflateTestUtil.testData(10_000, 1);
+        final byte[] compressedData = DeflateTestUtil.deflate(data, Deflater.BEST_COMPRESSION, 0);
+        assertThrows(IOException.class, () -> INFLATER.inflate(null, Arrays.copyOf(compressedData, compressedData.length / 2), data.length, null));
+        assertThrows(IOException.class, () -> INFLATER.inflate(null, new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF }, data.length, null));
+        // Inflaters are still usable after a failure
+        assertArrayEquals(data, INFLATER.inflate(null, compressedData, data.length, null));
+    }
+
+    @Test
+    void findsBackendsByName() {
+        assertSame(LljzipDecompressionBackend.INSTANCE, DecompressionBackend.forName("lljzip"));
+        assertSame(InflaterDecompressionBackend.shared(), DecompressionBackend.forName("Inflater"));
+        assertThrows(IllegalArgumentException.class, () -> DecompressionBackend.forName("zlib"));
+    }
+
+    @Test
+    void boundsInitialBufferSize() {
+        assertEquals(1000, InflaterDecompressionBackend.initialBufferSize(1000, 500));
+        // Sizes which can't be right for the compressed length aren't trusted
+        assertTrue(InflaterDecompressionBackend.initialBufferSize(Integer.MAX_VALUE, 10) < 1024 * 1024);
+        assertTrue(InflaterDecompressionBackend.initialBufferSize(0, 10) > 0);
+    }
+}
@@ -0,0 +1,196 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+import org.junit.jupiter.api.Test;
+
+class DeflateBlocksTest {
+    /** Check that blocks are contiguous, and cover the whole stream and all of its data */
+    private static void assertContiguous(List<DeflateBlocks.Block> blocks, byte[] compressedData, int uncompressedLength) {
+        assertEquals(0, blocks.get(0).startBit);
+        assertEquals(0, blocks.get(0).uncompressedStart);
+
+        for (int i = 1; i < blocks.size(); i++) {
+            assertEquals(blocks.get(i - 1).endBit, blocks.get(i).startBit);
+            assertEquals(blocks.get(i - 1).uncompressedEnd, blocks.get(i).uncompressedStart);
+        }
+
+        final DeflateBlocks.Block last = blocks.get(blocks.size() - 1);
+        assertEquals(uncompressedLength, last.uncompressedEnd);
+        assertTrue((last.endBit > ((compressedData.length - 1) * 8L)) && (last.endBit <= (compressedData.length * 8L)), "Last block should end in the last byte");
+    }
+
+    /** Rewrite blocks into a new stream, after the given number of empty fixed Huffman blocks to shift the bit alignment */
+    private static byte[] rewrite(byte[] compressedData, List<DeflateBlocks.Block> blocks, int emptyBlocks) {
+        final BitWriter out = new BitWriter(compressedData.length);
+
+        for (int i = 0; i < emptyBlocks; i++) {
+            // Not last, fixed Huffman codes, end of block code
+            out.writeBits(0, 1);
+            out.writeBits(1, 2);
+            out.writeBits(0, 7);
+        }
+
+        for (int i = 0; i < blocks.size(); i++) {
+            DeflateBlocks.writeBlock(out, compressedData, blocks.get(i), i == (blocks.size() - 1));
+        }
+
+        return out.toByteArray();
+    }
+
+    @Test
+    void parsesEveryBlockType() throws DataFormatException {
+        final byte[] data = DeflateTestUtil.testData(300_000, 1);
+
+        for (final int level : new int[] { Deflater.NO_COMPRESSION, Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION }) {
+            for (final int flushEvery : new int[] { 0, 10_000, 65_536 }) {
+                final byte[] compressedData = DeflateTestUtil.deflate(data, level, flushEvery);
+                final List<DeflateBlocks.Block> blocks = DeflateBlocks.parse(compressedData);
+                assertContiguous(blocks, compressedData, data.length);
+
+                for (final DeflateBlocks.Block block : blocks) {
+                    assertEquals(block.type == DeflateBlocks.TYPE_STORED, block.storedDataOffset >= 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    void parsesStoredBlockData() throws DataFormatException {
+        final byte[] data = DeflateTestUtil.testData(200_000, 2);
+        final byte[] compressedData = DeflateTestUtil.deflate(data, Deflater.NO_COMPRESSION, 0);
+        final List<DeflateBlocks.Block> blocks = DeflateBlocks.parse(compressedData);
+        assertTrue(blocks.size() > 1, "Stored blocks hold at most 65535 bytes");
+
+        for (final DeflateBlocks.Block block : blocks) {
+            assertEquals(DeflateBlocks.TYPE_STORED, block.type);
+            final int length = (int) (block.uncompressedEnd - block.uncompressedStart);
+            assertArrayEquals(Arrays.copyOfRange(data, (int) block.uncompressedStart, (int) block.uncompressedEnd), Arrays.copyOfRange(compressedData, block.storedDataOffset, block.storedDataOffset + length));
+        }
+    }
+
+    @Test
+    void parsesEmptyStream() throws DataFormatException, IOException {
+        final byte[] compressedData = DeflateTestUtil.deflate(new byte[0], Deflater.DEFAULT_COMPRESSION, 0);
+        final List<DeflateBlocks.Block> blocks = DeflateBlocks.parse(compressedData);
+        assertContiguous(blocks, compressedData, 0);
+        assertArrayEquals(new byte[0], DeflateTestUtil.inflate(rewrite(compressedData, blocks, 1)));
+    }
+
+    @Test
+    void rewritesBlocksAtEveryBitAlignment() throws DataFormatException, IOException {
+        final byte[] data = DeflateTestUtil.testData(150_000, 3);
+
+        for (final int level : new int[] { Deflater.NO_COMPRESSION, Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION }) {
+            final byte[] compressedData = DeflateTestUtil.deflate(data, level, 20_000);
+            final List<DeflateBlocks.Block> blocks = DeflateBlocks.parse(compressedData);
+
+            // Each empty fixed Huffman block is 10 bits, so this covers every even bit offset
+            for (int emptyBlocks = 0; emptyBlocks < 4; emptyBlocks++) {
+                final byte[] rewritten = rewrite(compressedData, blocks, emptyBlocks);
+                assertArrayEquals(data, DeflateTestUtil.inflate(rewritten));
+                assertContiguous(DeflateBlocks.parse(rewritten), rewritten, data.length);
+            }
+        }
+    }
+
+    @Test
+    void splitsAndStitchesStreams() throws DataFormatException, IOException {
+        final byte[] data = DeflateTestUtil.testData(400_000, 4);
+        final byte[] first = DeflateTestUtil.deflate(data, Deflater.BEST_COMPRESSION, 30_000);
+        final List<DeflateBlocks.Block> blocks = DeflateBlocks.parse(first);
+        assertTrue(blocks.size() > 2);
+
+        for (final int split : new int[] { 1, blocks.size() / 2, blocks.size() - 1 }) {
+            // Replace the blocks after the split with blocks from a stream compressed differently, starting at the same data
+            final int splitOffset = (int) blocks.get(split).uncompressedStart;
+            final byte[] dictionary = Arrays.copyOfRange(data, Math.max(0, splitOffset - DeflateBlocks.WINDOW_SIZE), splitOffset);
+            final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+            final byte[] second = new byte[data.length];
+            final int secondLength;
+
+            try {
+                deflater.setDictionary(dictionary);
+                deflater.setInput(data, splitOffset, data.length - splitOffset);
+                deflater.finish();
+                secondLength = deflater.deflate(second);
+                assertTrue(deflater.finished());
+            } finally {
+                deflater.end();
+            }
+
+            final byte[] secondStream = Arrays.copyOf(second, secondLength);
+            final List<DeflateBlocks.Block> secondBlocks = DeflateBlocks.parse(secondStream, dictionary.length);
+            final BitWriter out = new BitWriter(first.length + secondLength);
+
+            for (int i = 0; i < split; i++) {
+                DeflateBlocks.writeBlock(out, first, blocks.get(i), false);
+            }
+
+            for (int i = 0; i < secondBlocks.size(); i++) {
+                DeflateBlocks.writeBlock(out, secondStream, secondBlocks.get(i), i == (secondBlocks.size() - 1));
+            }
+
+            assertArrayEquals(data, DeflateTestUtil.inflate(out.toByteArray()));
+        }
+    }
+
+    @Test
+    void writesStoredBlocks() throws IOException {
+        final byte[] data = DeflateTestUtil.testData(65_535, 5);
+        final BitWriter out = new BitWriter(16);
+        // Start the stored block part way through a byte
+        out.writeBits(0, 1);
+        out.writeBits(1, 2);
+        out.writeBits(0, 7);
+        DeflateBlocks.writeStoredBlock(out, data);
+        DeflateBlocks.writeStoredBlock(out, new byte[0]);
+        // Last, fixed Huffman codes, end of block code
+        out.writeBits(1, 1);
+        out.writeBits(1, 2);
+        out.writeBits(0, 7);
+        assertArrayEquals(data, DeflateTestUtil.inflate(out.toByteArray()));
+    }
+
+    @Test
+    void checksDistancesAgainstDictionary() throws DataFormatException {
+        final byte[] dictionary = DeflateTestUtil.testData(DeflateBlocks.WINDOW_SIZE, 6);
+        final byte[] data = Arrays.copyOf(dictionary, 10_000);
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        final byte[] compressedData = new byte[20_000];
+        final int length;
+
+        try {
+            deflater.setDictionary(dictionary);
+            deflater.setInput(data);
+            deflater.finish();
+            length = deflater.deflate(compressedData);
+        } finally {
+            deflater.end();
+        }
+
+        final byte[] stream = Arrays.copyOf(compressedData, length);
+        assertThrows(DataFormatException.class, () -> DeflateBlocks.parse(stream));
+        assertContiguous(DeflateBlocks.parse(stream, dictionary.length), stream, data.length);
+        assertArrayEquals(data, DeflateTestUtil.inflate(dictionary, stream, data.length));
+    }
+
+    @Test
+    void rejectsInvalidStreams() {
+        final byte[] compressedData = DeflateTestUtil.deflate(DeflateTestUtil.testData(50_000, 7), Deflater.BEST_COMPRESSION, 0);
+        assertThrows(DataFormatException.class, () -> DeflateBlocks.parse(Arrays.copyOf(compressedData, compressedData.length / 2)));
+        // Block type 3 is reserved
+        assertThrows(DataFormatException.class, () -> DeflateBlocks.parse(new byte[] { 7 }));
+        // Stored block length doesn't match its complement
+        assertThrows(DataFormatException.class, () -> DeflateBlocks.parse(new byte[] { 1, 5, 0, 0, 0, 1, 2, 3, 4, 5 }));
+    }
+}
@@ -0,0 +1,136 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** Helpers for creating test data and deflate streams */
+final class DeflateTestUtil {
+    private DeflateTestUtil() {
+        // Static helpers only
+    }
+
+    /**
+     * Create data which is partly compressible, so deflate streams of it contain back references and literals.
+     *
+     * @param length the length of the data
+     * @param seed the random seed
+     * @return the data
+     */
+    static byte[] testData(int length, long seed) {
+        final Random random = new Random(seed);
+        final byte[] data = new byte[length];
+        final String[] words = { "class", "public", "static", "final", "void", "return", "import", "java/lang/Object", "<init>", "()V" };
+        int pos = 0;
+
+        while (pos < length) {
+            if (random.nextInt(8) == 0) {
+                // Incompressible run
+                final int run = Math.min(length - pos, 1 + random.nextInt(64));
+
+                for (int i = 0; i < run; i++) {
+                    data[pos++] = (byte) random.nextInt(256);
+                }
+            } else {
+                final byte[] word = words[random.nextInt(words.length)].getBytes(StandardCharsets.US_ASCII);
+                final int run = Math.min(length - pos, word.length);
+                System.arraycopy(word, 0, data, pos, run);
+                pos += run;
+            }
+        }
+
+        return data;
+    }
+
+    /**
+     * Compress data to a raw deflate stream.
+     *
+     * @param data the data to compress
+     * @param level the compression level
+     * @param flushEvery if more than 0, sync flush after every this many bytes of input, which ends the current block
+     * @return the deflate stream
+     */
+    static byte[] deflate(byte[] data, int level, int flushEvery) {
+        final Deflater deflater = new Deflater(level, true);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[65536];
+
+        try {
+            final int step = flushEvery > 0 ? flushEvery : data.length;
+
+            for (int start = 0; start < data.length; start += step) {
+                deflater.setInput(data, start, Math.min(step, data.length - start));
+
+                if ((start + step) >= data.length) {
+                    deflater.finish();
+
+                    while (!deflater.finished()) {
+                        out.write(buffer, 0, deflater.deflate(buffer));
+                    }
+                } else {
+                    int length;
+
+                    do {
+                        length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                        out.write(buffer, 0, length);
+                    } while (length == buffer.length);
+                }
+            }
+
+            if (data.length == 0) {
+                deflater.finish();
+
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+            }
+
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompress a raw deflate stream.
+     *
+     * @param compressedData the deflate stream
+     * @return the decompressed data
+     */
+    static byte[] inflate(byte[] compressedData) throws IOException {
+        return new InflaterDecompressionBackend(1).inflate(null, compressedData, 0, null);
+    }
+
+    /**
+     * Decompress a raw deflate stream which refers back to a preset dictionary.
+     *
+     * @param dictionary the preset dictionary
+     * @param compressedData the deflate stream
+     * @param uncompressedSize the size of the decompressed data
+     * @return the decompressed data
+     */
+    static byte[] inflate(byte[] dictionary, byte[] compressedData, int uncompressedSize) throws DataFormatException {
+        final Inflater inflater = new Inflater(true);
+
+        try {
+            inflater.setDictionary(dictionary);
+            // Raw inflaters may need an extra byte of input to finish
+            inflater.setInput(Arrays.copyOf(compressedData, compressedData.length + 1));
+            final byte[] output = new byte[uncompressedSize];
+            int length = 0;
+
+            while (!inflater.finished() && (length < output.length)) {
+                length += inflater.inflate(output, length, output.length - length);
+            }
+
+            return Arrays.copyOf(output, length);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class ExtraFieldsTest {
+    private static final byte[] OTHER_FIELD = { 0x01, 0x00, 0x02, 0x00, 0x55, 0x66 };
+
+    @Test
+    void alignsAtOffsetsAroundBoundary() {
+        for (final int alignment : new int[] { 2, 4, 8, 4096, 16384 }) {
+            for (final byte[] extra : new byte[][] { new byte[0], OTHER_FIELD }) {
+                for (long boundary = 0; boundary <= (4L * alignment); boundary += alignment) {
+                    for (long offset = boundary - 10; offset <= (boundary + 10); offset++) {
+                        if (offset < 0) {
+                            continue;
+                        }
+
+                        final byte[] aligned = ExtraFields.align(extra, offset, alignment);
+                        assertEquals(0, (offset + aligned.length) % alignment, "Data should start at a multiple of the alignment");
+
+                        if (((offset + extra.length) % alignment) == 0) {
+                            assertSame(extra, aligned, "Already aligned extra data should be kept as it is");
+                        } else {
+                            final byte[] field = ExtraFields.find(aligned, ExtraFields.ALIGNMENT_HEADER_ID);
+                            assertNotNull(field);
+                            assertEquals(alignment, (field[0] & 0xFF) | ((field[1] & 0xFF) << 8));
+                            assertTrue(field.length >= 2);
+                            assertTrue((aligned.length - extra.length) < (alignment + 6), "Padding should be as small as possible");
+                            assertArrayEquals(extra, ExtraFields.strip(aligned, ExtraFields.ALIGNMENT_HEADER_ID));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void realignsAfterStripping() {
+        final byte[] aligned = ExtraFields.align(OTHER_FIELD, 31, 4096);
+        final byte[] realigned = ExtraFields.align(ExtraFields.strip(aligned, ExtraFields.ALIGNMENT_HEADER_ID), 1000, 4096);
+        assertEquals(0, (1000 + realigned.length) % 4096);
+    }
+
+    @Test
+    void keepsExtraDataWhichCantBeAligned() {
+        final byte[] extra = ExtraFields.append(new byte[0], 0x1234, new byte[0xFFFF - 4 - 10]);
+        assertSame(extra, ExtraFields.align(extra, 0, 4096));
+    }
+
+    @Test
+    void findsAndStripsFields() {
+        byte[] extra = ExtraFields.append(new byte[0], 0x0001, new byte[] { 1, 2 });
+        extra = ExtraFields.append(extra, 0x0002, new byte[0]);
+        extra = ExtraFields.append(extra, 0x0001, new byte[] { 3 });
+        assertArrayEquals(new byte[] { 1, 2 }, ExtraFields.find(extra, 0x0001));
+        assertArrayEquals(new byte[0], ExtraFields.find(extra, 0x0002));
+        assertNull(ExtraFields.find(extra, 0x0003));
+        final byte[] stripped = ExtraFields.strip(extra, 0x0001);
+        assertArrayEquals(new byte[] { 0x02, 0x00, 0x00, 0x00 }, stripped);
+        assertSame(stripped, ExtraFields.strip(stripped, 0x0001));
+    }
+
+    @Test
+    void keepsIncompleteTrailingData() {
+        final byte[] extra = { 0x01, 0x00, 0x01, 0x00, 0x7F, 0x02, 0x00 };
+        assertArrayEquals(new byte[] { 0x02, 0x00 }, ExtraFields.strip(extra, 0x0001));
+        // A field claiming to be longer than the extra data isn't found
+        assertNull(ExtraFields.find(new byte[] { 0x01, 0x00, 0x10, 0x00, 0x7F }, 0x0001));
+    }
+}
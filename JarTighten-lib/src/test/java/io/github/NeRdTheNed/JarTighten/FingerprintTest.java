@@ -0,0 +1,156 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.github.NeRdTheNed.deft4j.util.compression.CompressionUtil.Strategy;
+
+class FingerprintTest {
+    private static final int CRC32 = 0x12345678;
+    private static final int COMPRESSED_SIZE = 1000;
+    private static final int UNCOMPRESSED_SIZE = 3000;
+    private static final int DEFLATED = 8;
+
+    @TempDir
+    Path tempDir;
+
+    private static byte[] create(byte[] settings) {
+        return Fingerprint.create(settings, CRC32, COMPRESSED_SIZE, UNCOMPRESSED_SIZE, DEFLATED);
+    }
+
+    /** Settings with only the given compressors and zopfli iterations enabled */
+    private static byte[] settings(boolean zopfli, boolean jzlib, Strategy mode, int passes) {
+        return Fingerprint.settings(zopfli, false, jzlib, true, true, mode, passes, false, false, false, false, false);
+    }
+
+    private static boolean isAtLeastAsStrong(byte[] recordedSettings, byte[] currentSettings) {
+        return Fingerprint.isAtLeastAsStrong(create(recordedSettings), currentSettings);
+    }
+
+    @Test
+    void sameSettingsAreAtLeastAsStrong() {
+        final byte[] settings = settings(true, true, Strategy.MULTI_CHEAP, 20);
+        assertTrue(isAtLeastAsStrong(settings, settings));
+    }
+
+    @Test
+    void ordersByCompressors() {
+        final byte[] fewer = settings(false, false, Strategy.MULTI_CHEAP, 20);
+        final byte[] more = settings(true, true, Strategy.MULTI_CHEAP, 20);
+        assertTrue(isAtLeastAsStrong(more, fewer));
+        assertFalse(isAtLeastAsStrong(fewer, more));
+        // Neither set of compressors contains the other
+        final byte[] zopfliOnly = settings(true, false, Strategy.MULTI_CHEAP, 20);
+        final byte[] jzlibOnly = settings(false, true, Strategy.MULTI_CHEAP, 20);
+        assertFalse(isAtLeastAsStrong(zopfliOnly, jzlibOnly));
+        assertFalse(isAtLeastAsStrong(jzlibOnly, zopfliOnly));
+    }
+
+    @Test
+    void ordersByOptions() {
+        final byte[] base = Fingerprint.settings(false, false, true, true, false, Strategy.MULTI_CHEAP, 20, false, false, false, false, false);
+        final byte[][] stronger = {
+            Fingerprint.settings(false, false, true, true, false, Strategy.MULTI_CHEAP, 20, true, false, false, false, false),
+            Fingerprint.settings(false, false, true, true, false, Strategy.MULTI_CHEAP, 20, false, true, false, false, false),
+            Fingerprint.settings(false, false, true, true, false, Strategy.MULTI_CHEAP, 20, false, false, true, false, false),
+            Fingerprint.settings(false, false, true, true, false, Strategy.MULTI_CHEAP, 20, false, false, false, true, false),
+            Fingerprint.settings(false, false, true, true, false, Strategy.MULTI_CHEAP, 20, false, false, false, false, true),
+        };
+
+        for (final byte[] settings : stronger) {
+            assertTrue(isAtLeastAsStrong(settings, base));
+            assertFalse(isAtLeastAsStrong(base, settings));
+        }
+    }
+
+    @Test
+    void ordersByMode() {
+        final Strategy[] modes = Strategy.values();
+
+        for (int i = 0; i < modes.length; i++) {
+            for (int j = 0; j < modes.length; j++) {
+                final boolean stronger = isAtLeastAsStrong(settings(false, true, modes[i], 20), settings(false, true, modes[j], 20));
+                assertTrue(stronger == (Fingerprint.modeStrength(modes[i]) >= Fingerprint.modeStrength(modes[j])), modes[i] + " compared to " + modes[j]);
+            }
+        }
+    }
+
+    @Test
+    void ordersByPassesOnlyWithZopfli() {
+        assertTrue(isAtLeastAsStrong(settings(true, false, Strategy.SINGLE, 60), settings(true, false, Strategy.SINGLE, 20)));
+        assertFalse(isAtLeastAsStrong(settings(true, false, Strategy.SINGLE, 20), settings(true, false, Strategy.SINGLE, 60)));
+        // Passes above 255 are stored in two bytes
+        assertTrue(isAtLeastAsStrong(settings(true, false, Strategy.SINGLE, 300), settings(true, false, Strategy.SINGLE, 299)));
+        assertFalse(isAtLeastAsStrong(settings(true, false, Strategy.SINGLE, 299), settings(true, false, Strategy.SINGLE, 300)));
+        // Passes don't matter without zopfli
+        assertTrue(isAtLeastAsStrong(settings(false, true, Strategy.SINGLE, 20), settings(false, true, Strategy.SINGLE, 60)));
+    }
+
+    @Test
+    void rejectsOtherVersions() {
+        final byte[] settings = settings(true, true, Strategy.EXTENSIVE, 20);
+        final byte[] recorded = create(settings);
+        // Version 1 fingerprints checksummed the compressed data instead
+        recorded[1] = (byte) ((recorded[1] & 0x0F) | (1 << 4));
+        assertFalse(Fingerprint.isAtLeastAsStrong(recorded, settings));
+    }
+
+    @Test
+    void ranksModesExplicitly() {
+        assertTrue(Fingerprint.modeStrength(Strategy.SINGLE) < Fingerprint.modeStrength(Strategy.MULTI_CHEAP));
+        assertTrue(Fingerprint.modeStrength(Strategy.MULTI_CHEAP) < Fingerprint.modeStrength(Strategy.EXTENSIVE));
+        // The encoded mode is the rank, not the position in the enum
+        assertEquals(Fingerprint.modeStrength(Strategy.EXTENSIVE), settings(false, true, Strategy.EXTENSIVE, 20)[1] & 3);
+    }
+
+    @Test
+    void matchesEntryValues() {
+        final byte[] fingerprint = create(settings(true, true, Strategy.SINGLE, 20));
+        assertTrue(Fingerprint.matchesEntry(fingerprint, CRC32, COMPRESSED_SIZE, UNCOMPRESSED_SIZE, DEFLATED));
+        // Any changed value means the entry was changed since it was fingerprinted
+        assertFalse(Fingerprint.matchesEntry(fingerprint, CRC32 + 1, COMPRESSED_SIZE, UNCOMPRESSED_SIZE, DEFLATED));
+        assertFalse(Fingerprint.matchesEntry(fingerprint, CRC32, COMPRESSED_SIZE - 1, UNCOMPRESSED_SIZE, DEFLATED));
+        assertFalse(Fingerprint.matchesEntry(fingerprint, CRC32, COMPRESSED_SIZE, UNCOMPRESSED_SIZE + 1, DEFLATED));
+        assertFalse(Fingerprint.matchesEntry(fingerprint, CRC32, COMPRESSED_SIZE, UNCOMPRESSED_SIZE, 0));
+    }
+
+    @Test
+    void roundTripsThroughExtraField() {
+        final byte[] fingerprint = create(settings(true, true, Strategy.SINGLE, 20));
+        final byte[] other = { 0x01, 0x00, 0x00, 0x00 };
+        final byte[] extra = Fingerprint.append(other, fingerprint);
+        assertArrayEquals(fingerprint, Fingerprint.find(extra));
+        assertArrayEquals(other, Fingerprint.strip(extra));
+        assertNull(Fingerprint.find(other));
+        // Fields with the same ID but the wrong length aren't fingerprints
+        assertNull(Fingerprint.find(ExtraFields.append(other, Fingerprint.HEADER_ID, new byte[3])));
+    }
+
+    @Test
+    void recordsFingerprintsMatchingTheCentralDirectory() throws Exception {
+        final Path output = tempDir.resolve("out.jar");
+        Files.write(output, TestJars.toArray(new JarTighten.Builder().fingerprintEntries(true).build().optimiseJar(TestJars.jar(3, 10_000), Cancellation.NONE)));
+
+        try
+            (final ZipFile zip = new ZipFile(output.toFile())) {
+            for (final ZipEntry entry : Collections.list(zip.entries())) {
+                final byte[] fingerprint = Fingerprint.find(entry.getExtra());
+                assertNotNull(fingerprint, entry.getName());
+                assertTrue(Fingerprint.matchesEntry(fingerprint, (int) entry.getCrc(), (int) entry.getCompressedSize(), (int) entry.getSize(), entry.getMethod()), entry.getName());
+            }
+        }
+    }
+}
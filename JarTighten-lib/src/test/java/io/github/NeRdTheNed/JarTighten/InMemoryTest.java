@@ -0,0 +1,110 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class InMemoryTest {
+    private static final JarTighten JAR_TIGHTEN = new JarTighten.Builder().build();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void matchesOptimisingFiles() throws Exception {
+        final byte[] jar = TestJars.jar(5, 20_000);
+        final Path input = tempDir.resolve("in.jar");
+        Files.write(input, jar);
+        final ByteArrayOutputStream fromFile = new ByteArrayOutputStream();
+        assertTrue(JAR_TIGHTEN.optimiseJar(input, fromFile));
+        assertArrayEquals(fromFile.toByteArray(), TestJars.toArray(JAR_TIGHTEN.optimiseJar(jar, Cancellation.NONE)));
+        final ByteArrayOutputStream toChannel = new ByteArrayOutputStream();
+        assertTrue(JAR_TIGHTEN.optimiseJar(ByteBuffer.wrap(jar), Channels.newChannel(toChannel), Cancellation.NONE));
+        assertArrayEquals(fromFile.toByteArray(), toChannel.toByteArray());
+    }
+
+    @Test
+    void readsFromPositionToLimit() throws Exception {
+        final byte[] jar = TestJars.jar(3, 10_000);
+        final byte[] expected = TestJars.toArray(JAR_TIGHTEN.optimiseJar(jar, Cancellation.NONE));
+        final ByteBuffer padded = ByteBuffer.allocateDirect(jar.length + 20);
+        padded.position(10);
+        padded.put(jar);
+        padded.position(10);
+        padded.limit(10 + jar.length);
+        assertArrayEquals(expected, TestJars.toArray(JAR_TIGHTEN.optimiseJar(padded, Cancellation.NONE)));
+        assertEquals(10, padded.position(), "The position of the input shouldn't change");
+        final ByteBuffer slice = ByteBuffer.wrap(new byte[jar.length + 5], 5, jar.length).slice();
+        slice.put(jar).flip();
+        assertArrayEquals(expected, TestJars.toArray(JAR_TIGHTEN.optimiseJar(slice, Cancellation.NONE)));
+    }
+
+    @Test
+    void canBeSharedBetweenThreads() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try {
+            final List<byte[]> jars = new ArrayList<>();
+            final List<Future<ByteBuffer>> results = new ArrayList<>();
+
+            for (int i = 0; i < 8; i++) {
+                final byte[] jar = TestJars.jar(2 + i, 5_000);
+                jars.add(jar);
+                results.add(executor.submit(() -> JAR_TIGHTEN.optimiseJar(jar, Cancellation.NONE)));
+            }
+
+            for (int i = 0; i < jars.size(); i++) {
+                assertArrayEquals(TestJars.toArray(JAR_TIGHTEN.optimiseJar(jars.get(i), Cancellation.NONE)), TestJars.toArray(results.get(i).get()));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void stopsWhenCancelled() throws Exception {
+        final byte[] jar = TestJars.jar(3, 10_000);
+        final Cancellation cancellation = new Cancellation();
+        assertFalse(cancellation.isCancelled());
+        cancellation.cancel();
+        assertTrue(cancellation.isCancelled());
+        assertThrows(CancellationException.class, () -> JAR_TIGHTEN.optimiseJar(jar, cancellation));
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertThrows(CancellationException.class, () -> JAR_TIGHTEN.optimiseJar(ByteBuffer.wrap(jar), Channels.newChannel(output), cancellation));
+    }
+
+    @Test
+    void stopsAfterTimeout() throws Exception {
+        final byte[] jar = TestJars.jar(3, 10_000);
+        final Cancellation timedOut = Cancellation.withTimeout(0, TimeUnit.MILLISECONDS);
+        assertTrue(timedOut.isCancelled());
+        final CancellationException e = assertThrows(CancellationException.class, () -> JAR_TIGHTEN.optimiseJar(jar, timedOut));
+        assertEquals("Optimisation timed out", e.getMessage());
+        // A timeout which hasn't passed doesn't cancel anything
+        assertArrayEquals(TestJars.toArray(JAR_TIGHTEN.optimiseJar(jar, Cancellation.NONE)), TestJars.toArray(JAR_TIGHTEN.optimiseJar(jar, Cancellation.withTimeout(1, TimeUnit.HOURS))));
+    }
+
+    @Test
+    void noneCanNeverBeCancelled() {
+        Cancellation.NONE.cancel();
+        assertFalse(Cancellation.NONE.isCancelled());
+    }
+}
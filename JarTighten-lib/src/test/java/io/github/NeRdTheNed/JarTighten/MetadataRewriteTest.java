@@ -0,0 +1,121 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MetadataRewriteTest {
+    @TempDir
+    Path tempDir;
+
+    /** Settings which never recompress entries, so optimising a jar only rewrites its headers */
+    private static JarTighten.Builder headersOnly() {
+        return new JarTighten.Builder().recompressJZlib(false).recompressStandard(false).recompressStore(false);
+    }
+
+    /** A jar with comments, extra fields, a stored file, duplicate files, and large files which are transferred separately */
+    private static byte[] jar() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try
+            (final ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.setComment("Archive comment");
+            zip.putNextEntry(new ZipEntry("com/example/"));
+            zip.closeEntry();
+            final ZipEntry large = new ZipEntry("com/example/Large.class");
+            large.setComment("Entry comment");
+            large.setExtra(new byte[] { 0x34, 0x12, 2, 0, 7, 7 });
+            zip.putNextEntry(large);
+            zip.write(DeflateTestUtil.testData(200_000, 1));
+            zip.closeEntry();
+            final byte[] storedData = DeflateTestUtil.testData(1000, 2);
+            final CRC32 crc32 = new CRC32();
+            crc32.update(storedData);
+            final ZipEntry stored = new ZipEntry("com/example/Stored.class");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(storedData.length);
+            stored.setCrc(crc32.getValue());
+            zip.putNextEntry(stored);
+            zip.write(storedData);
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("com/example/Duplicate.class"));
+            zip.write(DeflateTestUtil.testData(1000, 3));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+            zip.write("Manifest-Version: 1.0\r\n\r\n".getBytes("UTF-8"));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("com/example/Copy.class"));
+            zip.write(DeflateTestUtil.testData(1000, 3));
+            zip.closeEntry();
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private byte[] rewrite(JarTighten jarTighten, Path input) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertTrue(jarTighten.rewriteMetadata(input, Channels.newChannel(output)));
+        return output.toByteArray();
+    }
+
+    @Test
+    void matchesOptimisingWithoutRecompression() throws Exception {
+        final Path input = tempDir.resolve("in.jar");
+        Files.write(input, jar());
+        final JarTighten[] settings = {
+            headersOnly().build(),
+            headersOnly().removeDirectoryEntries(false).build(),
+            headersOnly().removeTimestamps(true).removeComments(true).removeExtra(true).build(),
+            headersOnly().sortEntries(true).deduplicateEntries(true).build(),
+            headersOnly().removeFileLength(true).removeDirEntryLength(true).removeFileNames(true).removeEOCDInfo(true).build(),
+            headersOnly().zeroLocalFileHeaders(true).makeExecutableJar(true).alignment(4).build(),
+        };
+
+        for (final JarTighten jarTighten : settings) {
+            final byte[] rewritten = rewrite(jarTighten, input);
+            assertArrayEquals(TestJars.toArray(jarTighten.optimiseJar(Files.readAllBytes(input), Cancellation.NONE)), rewritten);
+        }
+
+        final byte[] rewritten = rewrite(headersOnly().build(), input);
+        assertEquals(TestJars.files(jar()).keySet(), TestJars.files(rewritten).keySet());
+
+        for (final String name : TestJars.files(jar()).keySet()) {
+            assertArrayEquals(TestJars.files(jar()).get(name), TestJars.files(rewritten).get(name), name);
+        }
+    }
+
+    @Test
+    void ignoresDataBeforeTheArchive() throws Exception {
+        final byte[] jar = jar();
+        final Path input = tempDir.resolve("in.jar");
+        Files.write(input, jar);
+        final byte[] prefix = "#!/bin/sh\nexec java -jar \"$0\" \"$@\"\n".getBytes("UTF-8");
+        final byte[] prefixed = Arrays.copyOf(prefix, prefix.length + jar.length);
+        System.arraycopy(jar, 0, prefixed, prefix.length, jar.length);
+        final Path prefixedInput = tempDir.resolve("prefixed.jar");
+        Files.write(prefixedInput, prefixed);
+        final JarTighten jarTighten = headersOnly().build();
+        assertArrayEquals(rewrite(jarTighten, input), rewrite(jarTighten, prefixedInput));
+    }
+
+    @Test
+    void rejectsFilesWhichArentZips() throws Exception {
+        final Path input = tempDir.resolve("in.jar");
+        Files.write(input, new byte[100]);
+        assertThrows(IOException.class, () -> rewrite(headersOnly().build(), input));
+    }
+}
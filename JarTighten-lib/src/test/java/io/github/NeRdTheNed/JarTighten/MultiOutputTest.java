@@ -0,0 +1,100 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import software.coley.lljzip.ZipIO;
+import software.coley.lljzip.format.model.ZipArchive;
+
+class MultiOutputTest {
+    private static final JarTighten JAR_TIGHTEN = new JarTighten.Builder().build();
+    private static final List<JarTighten> PROFILES = Arrays.asList(JAR_TIGHTEN, new JarTighten.Builder().removeFileNames(true).zeroLocalFileHeaders(true).build());
+
+    @TempDir
+    Path tempDir;
+
+    /** @return the names of the files in the temporary directory */
+    private Set<String> files() throws IOException {
+        try
+            (final Stream<Path> files = Files.list(tempDir)) {
+            return files.map(path -> path.getFileName().toString()).collect(Collectors.toCollection(TreeSet::new));
+        }
+    }
+
+    private Path input(byte[] jar) throws IOException {
+        final Path input = tempDir.resolve("in.jar");
+        Files.write(input, jar);
+        return input;
+    }
+
+    @Test
+    void writesEveryOutput() throws Exception {
+        final byte[] jar = TestJars.jar(4, 10_000);
+        final Path input = input(jar);
+        assertTrue(JAR_TIGHTEN.optimiseJar(input, PROFILES, Arrays.asList(tempDir.resolve("a.jar"), tempDir.resolve("b.jar")), false));
+        assertEquals(new TreeSet<>(Arrays.asList("a.jar", "b.jar", "in.jar")), files());
+        // The output with the same options as a single output is identical to it
+        final ByteArrayOutputStream single = new ByteArrayOutputStream();
+        assertTrue(JAR_TIGHTEN.optimiseJar(input, single));
+        assertArrayEquals(single.toByteArray(), Files.readAllBytes(tempDir.resolve("a.jar")));
+        assertEquals(TestJars.files(jar).keySet(), TestJars.files(Files.readAllBytes(tempDir.resolve("a.jar"))).keySet());
+    }
+
+    @Test
+    void leavesNothingBehindIfReadingFails() throws Exception {
+        final Path input = input(new byte[100]);
+        assertThrows(IOException.class, () -> JAR_TIGHTEN.optimiseJar(input, PROFILES, Arrays.asList(tempDir.resolve("a.jar"), tempDir.resolve("b.jar")), false));
+        assertEquals(new TreeSet<>(Arrays.asList("in.jar")), files());
+    }
+
+    @Test
+    void leavesNothingBehindIfAnOutputCantBeCreated() throws Exception {
+        final Path input = input(TestJars.jar(2, 1000));
+        assertThrows(IOException.class, () -> JAR_TIGHTEN.optimiseJar(input, PROFILES, Arrays.asList(tempDir.resolve("a.jar"), tempDir.resolve("missing").resolve("b.jar")), false));
+        assertEquals(new TreeSet<>(Arrays.asList("in.jar")), files());
+    }
+
+    @Test
+    void doesntOverwriteExistingOutputs() throws Exception {
+        final Path input = input(TestJars.jar(2, 1000));
+        final byte[] existing = { 1, 2, 3 };
+        Files.write(tempDir.resolve("b.jar"), existing);
+        assertFalse(JAR_TIGHTEN.optimiseJar(input, PROFILES, Arrays.asList(tempDir.resolve("a.jar"), tempDir.resolve("b.jar")), false));
+        assertEquals(new TreeSet<>(Arrays.asList("b.jar", "in.jar")), files());
+        assertArrayEquals(existing, Files.readAllBytes(tempDir.resolve("b.jar")));
+    }
+
+    @Test
+    void failsIfAnOutputStreamFails() throws Exception {
+        final OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Disk full");
+            }
+        };
+
+        try
+            (final ZipArchive archive = ZipIO.readJvm(TestJars.jar(4, 10_000))) {
+            assertThrows(IOException.class, () -> JAR_TIGHTEN.optimiseJar(archive, PROFILES, Arrays.asList(new ByteArrayOutputStream(), failing), Cancellation.NONE));
+            assertThrows(IllegalArgumentException.class, () -> JAR_TIGHTEN.optimiseJar(archive, PROFILES, Arrays.asList(new ByteArrayOutputStream()), Cancellation.NONE));
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+import org.junit.jupiter.api.Test;
+
+class ParallelStreamOptimiserTest {
+    private static final ThreadGovernor GOVERNOR = new ThreadGovernor(4);
+
+    @Test
+    void splitsAndStitchesLargeStreams() throws Exception {
+        final byte[] data = DeflateTestUtil.testData(6 * 1024 * 1024, 1);
+        final byte[] compressedData = DeflateTestUtil.deflate(data, Deflater.BEST_SPEED, 64 * 1024);
+        assertTrue(compressedData.length > (2 * 1024 * 1024), "Stream should be large enough to split into several ranges");
+
+        for (final boolean mergeBlocks : new boolean[] { false, true }) {
+            final ParallelStreamOptimiser optimiser = new ParallelStreamOptimiser(GOVERNOR, mergeBlocks, System.err);
+            final byte[] optimised = optimiser.optimise(compressedData, data, Cancellation.NONE);
+            assertNotNull(optimised);
+            assertArrayEquals(data, DeflateTestUtil.inflate(optimised));
+            // Ranges are only optimised again without merging blocks if merging blocks
+            assertTrue(mergeBlocks || (optimiser.unmergedRanges() == 0));
+        }
+    }
+
+    @Test
+    void doesntSplitSmallStreams() throws Exception {
+        final byte[] data = DeflateTestUtil.testData(100_000, 2);
+        final byte[] compressedData = DeflateTestUtil.deflate(data, Deflater.BEST_SPEED, 10_000);
+        assertNull(new ParallelStreamOptimiser(GOVERNOR, false, System.err).optimise(compressedData, data, Cancellation.NONE));
+    }
+
+    @Test
+    void rejectsMismatchedData() {
+        final byte[] data = DeflateTestUtil.testData(100_000, 3);
+        final byte[] compressedData = DeflateTestUtil.deflate(data, Deflater.BEST_SPEED, 0);
+        assertThrows(IOException.class, () -> new ParallelStreamOptimiser(GOVERNOR, false, System.err).optimise(compressedData, new byte[10], Cancellation.NONE));
+        assertThrows(IOException.class, () -> new ParallelStreamOptimiser(GOVERNOR, false, System.err).optimise(new byte[] { 7 }, data, Cancellation.NONE));
+    }
+}
@@ -0,0 +1,109 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class PathPolicyMatcherTest {
+    private static PathPolicyMatcher matcher(String... patterns) {
+        final List<PathPolicy> rules = new ArrayList<>();
+
+        for (final String pattern : patterns) {
+            rules.add(PathPolicy.parse(pattern));
+        }
+
+        return new PathPolicyMatcher(rules);
+    }
+
+    @Test
+    void matchesFileNamesInAnyDirectory() {
+        final PathPolicyMatcher matcher = matcher("*.class");
+        assertArrayEquals(new int[] { 0 }, matcher.match("Main.class"));
+        assertArrayEquals(new int[] { 0 }, matcher.match("a/b/Main.class"));
+        assertArrayEquals(new int[0], matcher.match("Main.classes"));
+        assertArrayEquals(new int[0], matcher.match("a/Main.txt"));
+    }
+
+    @Test
+    void matchesDirectories() {
+        final PathPolicyMatcher matcher = matcher("META-INF/", "/assets/");
+        assertArrayEquals(new int[] { 0 }, matcher.match("META-INF/MANIFEST.MF"));
+        assertArrayEquals(new int[] { 0 }, matcher.match("META-INF/services/a.b.C"));
+        assertArrayEquals(new int[] { 1 }, matcher.match("assets/models/a.json"));
+        assertArrayEquals(new int[0], matcher.match("a/META-INF/MANIFEST.MF"));
+        assertArrayEquals(new int[0], matcher.match("META-INF"));
+    }
+
+    @Test
+    void matchesWildcards() {
+        final PathPolicyMatcher matcher = matcher("a/*/c.txt", "a/**/d.txt", "**/e?.txt", "*", "x/**");
+        assertArrayEquals(new int[] { 0, 3 }, matcher.match("a/b/c.txt"));
+        assertArrayEquals(new int[] { 3 }, matcher.match("a/b/b/c.txt"));
+        assertArrayEquals(new int[] { 1, 3 }, matcher.match("a/d.txt"));
+        assertArrayEquals(new int[] { 1, 3 }, matcher.match("a/b/b/d.txt"));
+        assertArrayEquals(new int[] { 2, 3 }, matcher.match("e1.txt"));
+        assertArrayEquals(new int[] { 2, 3 }, matcher.match("q/r/e1.txt"));
+        assertArrayEquals(new int[] { 3 }, matcher.match("q/r/e12.txt"));
+        assertArrayEquals(new int[] { 3, 4 }, matcher.match("x/y"));
+    }
+
+    @Test
+    void matchesExactPaths() {
+        final PathPolicyMatcher matcher = new PathPolicyMatcher(Arrays.asList(PathPolicy.exclude("a/*.class"), PathPolicy.parse("a/b.class")));
+        assertArrayEquals(new int[] { 0 }, matcher.match("a/*.class"));
+        assertArrayEquals(new int[] { 1 }, matcher.match("a/b.class"));
+        assertArrayEquals(new int[0], matcher.match("b.class"));
+    }
+
+    @Test
+    void returnsEveryMatchInOrder() {
+        final PathPolicyMatcher matcher = matcher("*.png", "textures/", "**", "textures/*.png", "*.png");
+        assertArrayEquals(new int[] { 0, 1, 2, 3, 4 }, matcher.match("textures/a.png"));
+        assertArrayEquals(new int[] { 0, 2, 4 }, matcher.match("a.png"));
+    }
+
+    @Test
+    void quotesRegexCharacters() {
+        final PathPolicyMatcher matcher = matcher("a+b(1).[ch]$");
+        assertArrayEquals(new int[] { 0 }, matcher.match("x/a+b(1).[ch]$"));
+        assertArrayEquals(new int[0], matcher.match("aab(1).c"));
+    }
+
+    @Test
+    void matchesNothingWithoutRules() {
+        final PathPolicyMatcher matcher = new PathPolicyMatcher(Collections.emptyList());
+        assertArrayEquals(new int[0], matcher.match("a.class"));
+        assertArrayEquals(new int[0], matcher("*").match(null));
+    }
+
+    @Test
+    void matchesLikeSimpleScan() {
+        // Compare the tries with checking every rule
+        final String[] patterns = { "*.class", "a/", "a/b/", "**/*.json", "*.so", "lib/*.so", "b?.txt", "c/**/d/*", "*a*", "META-INF/MANIFEST.MF" };
+        final String[] paths = { "a.class", "a/b.class", "a/b/c.json", "lib/x.so", "lib/y/x.so", "b1.txt", "q/b12.txt", "c/d/e", "c/x/y/d/e", "META-INF/MANIFEST.MF", "", "a", "a/" };
+        final List<PathPolicy> rules = new ArrayList<>();
+
+        for (final String pattern : patterns) {
+            rules.add(PathPolicy.parse(pattern));
+        }
+
+        final PathPolicyMatcher all = new PathPolicyMatcher(rules);
+
+        for (final String path : paths) {
+            final List<Integer> expected = new ArrayList<>();
+
+            for (int i = 0; i < patterns.length; i++) {
+                if (new PathPolicyMatcher(Collections.singletonList(rules.get(i))).match(path).length > 0) {
+                    expected.add(i);
+                }
+            }
+
+            assertArrayEquals(expected.stream().mapToInt(Integer::intValue).toArray(), all.match(path), path);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class StreamInputTest {
+    private static final JarTighten JAR_TIGHTEN = new JarTighten.Builder().build();
+
+    @TempDir
+    Path tempDir;
+
+    private static long spillFiles() throws IOException {
+        try
+            (final Stream<Path> files = Files.list(Paths.get(System.getProperty("java.io.tmpdir")))) {
+            return files.filter(path -> path.getFileName().toString().startsWith("JarTighten-spill-")).count();
+        }
+    }
+
+    @Test
+    void optimisesBufferedStreams() throws Exception {
+        final byte[] jar = TestJars.jar(5, 20_000);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertTrue(JAR_TIGHTEN.optimiseJar(new ByteArrayInputStream(jar), output));
+        // Reading from a stream gives the same output as reading from memory
+        assertArrayEquals(TestJars.toArray(JAR_TIGHTEN.optimiseJar(jar, Cancellation.NONE)), output.toByteArray());
+        final Map<String, byte[]> files = TestJars.files(output.toByteArray());
+        assertEquals(TestJars.files(jar).keySet(), files.keySet());
+        assertTrue(output.size() < jar.length);
+    }
+
+    @Test
+    void spillsLargeStreamsToTemporaryFiles() throws Exception {
+        final byte[] jar = TestJars.jar(5, 20_000);
+        final ByteArrayOutputStream buffered = new ByteArrayOutputStream();
+        assertTrue(JAR_TIGHTEN.optimiseJar(new ByteArrayInputStream(jar), buffered));
+        final long spillFilesBefore = spillFiles();
+
+        for (final int spillThreshold : new int[] { 0, 1000, jar.length - 1 }) {
+            final ByteArrayOutputStream spilled = new ByteArrayOutputStream();
+            assertTrue(JAR_TIGHTEN.optimiseJar(new ByteArrayInputStream(jar), spilled, spillThreshold));
+            assertArrayEquals(buffered.toByteArray(), spilled.toByteArray());
+        }
+
+        assertEquals(spillFilesBefore, spillFiles(), "Spill files should be deleted");
+    }
+
+    @Test
+    void writesStreamsToFiles() throws Exception {
+        final byte[] jar = TestJars.jar(3, 10_000);
+        final Path output = tempDir.resolve("out.jar");
+        assertTrue(JAR_TIGHTEN.optimiseJar(new ByteArrayInputStream(jar), output, false));
+        assertArrayEquals(TestJars.toArray(JAR_TIGHTEN.optimiseJar(jar, Cancellation.NONE)), Files.readAllBytes(output));
+        // Existing outputs are only replaced when overwriting
+        assertFalse(JAR_TIGHTEN.optimiseJar(new ByteArrayInputStream(jar), output, false));
+        assertTrue(JAR_TIGHTEN.optimiseJar(new ByteArrayInputStream(jar), output, true));
+    }
+
+    @Test
+    void leavesNoPartialOutputOnFailure() throws Exception {
+        final Path output = tempDir.resolve("out.jar");
+        assertThrows(Exception.class, () -> JAR_TIGHTEN.optimiseJar(new ByteArrayInputStream(new byte[] { 1, 2, 3 }), output, false));
+
+        try
+            (final Stream<Path> files = Files.list(tempDir)) {
+            assertEquals(0, files.count(), "Neither the output nor its temporary file should be left behind");
+        }
+    }
+}
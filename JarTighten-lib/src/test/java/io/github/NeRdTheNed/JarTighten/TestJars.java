@@ -0,0 +1,91 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/** Helpers for creating test jars and reading them back */
+final class TestJars {
+    private TestJars() {
+        // Static helpers only
+    }
+
+    /**
+     * Create a jar with a directory entry and the given number of quickly compressed files, so they can be recompressed smaller.
+     *
+     * @param files the number of files
+     * @param fileSize the uncompressed size of each file
+     * @return the jar
+     */
+    static byte[] jar(int files, int fileSize) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try
+            (final ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.setLevel(Deflater.BEST_SPEED);
+            zip.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+            zip.write("Manifest-Version: 1.0\r\n\r\n".getBytes("UTF-8"));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("com/example/"));
+            zip.closeEntry();
+
+            for (int i = 0; i < files; i++) {
+                zip.putNextEntry(new ZipEntry("com/example/File" + i + ".class"));
+                zip.write(DeflateTestUtil.testData(fileSize, i));
+                zip.closeEntry();
+            }
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Read the files in a jar, checking their CRC32s.
+     *
+     * @param jar the jar
+     * @return the contents of each file, by name
+     */
+    static Map<String, byte[]> files(byte[] jar) throws IOException {
+        final Map<String, byte[]> files = new LinkedHashMap<>();
+
+        try
+            (final ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(jar))) {
+            ZipEntry entry;
+
+            while ((entry = zip.getNextEntry()) != null) {
+                final ByteArrayOutputStream data = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[8192];
+                int read;
+
+                while ((read = zip.read(buffer)) != -1) {
+                    data.write(buffer, 0, read);
+                }
+
+                if (!entry.isDirectory()) {
+                    files.put(entry.getName(), data.toByteArray());
+                }
+            }
+        }
+
+        return files;
+    }
+
+    /**
+     * Copy the remaining bytes of a buffer to an array.
+     *
+     * @param buffer the buffer
+     * @return the bytes
+     */
+    static byte[] toArray(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
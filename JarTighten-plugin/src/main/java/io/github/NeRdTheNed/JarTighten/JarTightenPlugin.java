@@ -30,6 +30,15 @@ public class JarTightenPlugin implements Plugin<Project> {
                 jarTightenTask.getZeroLocalFileHeaders().convention(false);
                 jarTightenTask.getMakeExecutableJar().convention(false);
                 jarTightenTask.getMergeBlocks().convention(false);
+                jarTightenTask.getMetadataOnly().convention(false);
+                jarTightenTask.getFingerprint().convention(false);
+                jarTightenTask.getDecompressor().convention("lljzip");
+                jarTightenTask.getVerifyCrc32().convention(false);
+                jarTightenTask.getAlign().convention(0);
+                jarTightenTask.getParallelOptimiseThreshold().convention(0L);
+                jarTightenTask.getChunkedCompressThreshold().convention(0L);
+                // Only use a shared thread budget if asked to, so entries are compressed one at a time by default
+                jarTightenTask.getThreads().convention(project.getProviders().gradleProperty("jartighten.threads").map(Integer::valueOf));
                 jarTightenTask.getInputFile().convention(jarTask.getArchiveFile());
                 jarTightenTask.getOutputFile().convention(jarTask.getArchiveFile());
             });
@@ -2,6 +2,7 @@ package io.github.NeRdTheNed.JarTighten;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -11,6 +12,7 @@ import org.gradle.api.provider.ListProperty;
 import org.gradle.api.provider.Property;
 import org.gradle.api.tasks.Input;
 import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.Internal;
 import org.gradle.api.tasks.Optional;
 import org.gradle.api.tasks.OutputFile;
 import org.gradle.api.tasks.TaskAction;
@@ -150,6 +152,16 @@ public abstract class JarTightenTask extends DefaultTask {
     @Optional
     public abstract ListProperty<String> getExcludes();
 
+    /** Rules overriding settings for matching paths, as a path pattern followed by settings. Rules are checked before rules from the policy file. */
+    @Input
+    @Optional
+    public abstract ListProperty<String> getPolicies();
+
+    /** File of rules overriding settings for matching paths, one rule per line */
+    @InputFile
+    @Optional
+    public abstract RegularFileProperty getPolicyFile();
+
     /** Optimise existing deflate streams. Majorly increases time spent optimising files. */
     @Input
     @Optional
@@ -175,12 +187,88 @@ public abstract class JarTightenTask extends DefaultTask {
     @Optional
     public abstract Property<Boolean> getMergeBlocks();
 
+    /** Only rewrite headers, copying compressed data without decompressing or recompressing it. Ignores recompression options. */
+    @Input
+    @Optional
+    public abstract Property<Boolean> getMetadataOnly();
+
+    /**
+     * Record the settings each file was optimised with, and skip recompressing files already optimised with settings at least as strong.
+     * Increases file size by 12 bytes per recompressed file.
+     */
+    @Input
+    @Optional
+    public abstract Property<Boolean> getFingerprint();
+
+    /** Backend used to decompress deflated files before recompressing them. inflater uses the JDK's native zlib, and is usually faster. Valid values: lljzip, inflater */
+    @Input
+    @Optional
+    public abstract Property<String> getDecompressor();
+
+    /** Check the CRC32 of each file while decompressing it, and keep files which don't match as they are */
+    @Input
+    @Optional
+    public abstract Property<Boolean> getVerifyCrc32();
+
+    /** Also recompress files with the named deflate encoders, found with ServiceLoader on the plugin's class path */
+    @Input
+    @Optional
+    public abstract ListProperty<String> getEncoders();
+
+    /** Pad local file headers so the data of stored files starts at a multiple of this many bytes, e.g. 4, or 4096 to memory map files from the jar. Must be a power of two. 0 disables alignment. */
+    @Input
+    @Optional
+    public abstract Property<Integer> getAlign();
+
+    /** Split existing deflate streams larger than this many megabytes at block boundaries, and optimise the parts in parallel. 0 disables splitting. */
+    @Input
+    @Optional
+    public abstract Property<Long> getParallelOptimiseThreshold();
+
+    /** Split files larger than this many megabytes into chunks which are compressed in parallel and joined into one deflate stream. Faster for large files, but usually slightly larger. 0 disables chunking. */
+    @Input
+    @Optional
+    public abstract Property<Long> getChunkedCompressThreshold();
+
+    /**
+     * Maximum number of threads used for compression, shared with every other JarTighten task using the same number in this build.
+     * Overrides recompressMultithread. 1 compresses serially.
+     */
+    @Internal
+    @Optional
+    public abstract Property<Integer> getThreads();
+
+    /**
+     * Maximum estimated heap used by files compressed in parallel in megabytes, shared with every other JarTighten task using the same budget in this build.
+     * Files too large to fit are compressed alone. Defaults to half the maximum heap size.
+     */
+    @Internal
+    @Optional
+    public abstract Property<Long> getHeapBudget();
+
     /** Optimise a jar file with JarTighten */
     @TaskAction
     public void jarTighten() {
         final Path inputPath = getInputFile().getAsFile().get().toPath();
         final Path outputPath = getOutputFile().getAsFile().get().toPath();
         final List<String> excludes = getExcludes().getOrNull();
+        final List<String> policyRules = getPolicies().getOrNull();
+        final List<PathPolicy> policies = new ArrayList<>();
+
+        if (policyRules != null) {
+            for (final String rule : policyRules) {
+                policies.add(PathPolicy.parse(rule));
+            }
+        }
+
+        if (getPolicyFile().isPresent()) {
+            try {
+                policies.addAll(PathPolicy.parseFile(getPolicyFile().getAsFile().get().toPath()));
+            } catch (final IOException e) {
+                throw new TaskExecutionException(this, e);
+            }
+        }
+
         final Strategy mode = convertEnum(getMode().getOrNull());
         final boolean removeTimestamps = getRemoveTimestamps().getOrElse(false);
         final boolean removeFileLength = getRemoveFileLength().getOrElse(false);
@@ -206,11 +294,58 @@ public abstract class JarTightenTask extends DefaultTask {
         final int recompressZopfliPasses = getRecompressZopfliPasses().getOrElse(20);
         final boolean makeExecutableJar = getMakeExecutableJar().getOrElse(false);
         final boolean mergeBlocks = getMergeBlocks().getOrElse(false);
-        final JarTighten jarTighten = new JarTighten(excludes != null ? excludes : Collections.emptyList(), mode, removeTimestamps, removeFileLength, removeDirEntryLength, removeFileNames, removeEOCDInfo, removeComments, removeExtra, removeDirectoryEntries, deduplicateEntries, recompressZopfli, recompressJZopfli, recompressJZlib, recompressStandard, recompressStore, recursiveStore, sortEntries, zeroLocalFileHeaders, optimiseDeflateStreamExisting, optimiseDeflateStreamRecompress, compareDeflateStreamBits, recompressMultithread, recompressZopfliPasses, makeExecutableJar, mergeBlocks);
+        final boolean metadataOnly = getMetadataOnly().getOrElse(false);
+        final boolean fingerprint = getFingerprint().getOrElse(false);
+        final String decompressor = getDecompressor().getOrElse("lljzip");
+        final boolean verifyCrc32 = getVerifyCrc32().getOrElse(false);
+        final List<String> encoders = getEncoders().getOrNull();
+        final int align = getAlign().getOrElse(0);
+        final long parallelOptimiseThreshold = getParallelOptimiseThreshold().getOrElse(0L);
+        final long chunkedCompressThreshold = getChunkedCompressThreshold().getOrElse(0L);
+        final int threads = getThreads().getOrElse(0);
+        final long heapBudget = getHeapBudget().getOrElse(0L);
+        final JarTighten jarTighten = new JarTighten.Builder()
+                                     .excludes(excludes != null ? excludes : Collections.emptyList())
+                                     .policies(policies)
+                                     .mode(mode)
+                                     .removeTimestamps(removeTimestamps)
+                                     .removeFileLength(removeFileLength)
+                                     .removeDirEntryLength(removeDirEntryLength)
+                                     .removeFileNames(removeFileNames)
+                                     .removeEOCDInfo(removeEOCDInfo)
+                                     .removeComments(removeComments)
+                                     .removeExtra(removeExtra)
+                                     .removeDirectoryEntries(removeDirectoryEntries)
+                                     .deduplicateEntries(deduplicateEntries)
+                                     .recompressZopfli(recompressZopfli)
+                                     .recompressJZopfli(recompressJZopfli)
+                                     .recompressJZlib(recompressJZlib)
+                                     .recompressStandard(recompressStandard)
+                                     .recompressStore(recompressStore)
+                                     .recursiveStore(recursiveStore)
+                                     .sortEntries(sortEntries)
+                                     .zeroLocalFileHeaders(zeroLocalFileHeaders)
+                                     .optimiseDeflateStreamExisting(optimiseDeflateStreamExisting)
+                                     .optimiseDeflateStreamRecompress(optimiseDeflateStreamRecompress)
+                                     .compareDeflateStreamBits(compareDeflateStreamBits)
+                                     .recompressMultithread(recompressMultithread)
+                                     .recompressZopfliPasses(recompressZopfliPasses)
+                                     .makeExecutableJar(makeExecutableJar)
+                                     .mergeBlocks(mergeBlocks)
+                                     .threadGovernor(threads > 0 ? ThreadGovernor.shared(threads) : null)
+                                     .heapBudget(heapBudget > 0 ? HeapBudget.shared(heapBudget * 1024 * 1024) : null)
+                                     .fingerprintEntries(fingerprint)
+                                     .decompressionBackend(DecompressionBackend.forName(decompressor))
+                                     .verifyCrc32(verifyCrc32)
+                                     .extraEncoders(encoders != null ? encoders : Collections.emptyList())
+                                     .alignment(align)
+                                     .parallelOptimiseThreshold(parallelOptimiseThreshold * 1024 * 1024)
+                                     .chunkedCompressThreshold(chunkedCompressThreshold * 1024 * 1024)
+                                     .build();
         final boolean didSucceed;
 
         try {
-            didSucceed = jarTighten.optimiseJar(inputPath, outputPath, true);
+            didSucceed = metadataOnly ? jarTighten.rewriteMetadata(inputPath, outputPath, true) : jarTighten.optimiseJar(inputPath, outputPath, true);
         } catch (final IOException e) {
             throw new TaskExecutionException(this, e);
         }
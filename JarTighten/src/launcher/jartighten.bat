@@ -0,0 +1,49 @@
+@echo off
+rem Runs JarTighten with an application class data sharing (AppCDS) archive on Java 13 and later,
+rem which reduces the time spent starting the JVM and loading JarTighten's classes.
+rem The archive is created the first time JarTighten runs with each Java installation, and again if the jar changes.
+rem Set JAVA_HOME to choose the Java installation, JARTIGHTEN_OPTS to pass extra JVM options,
+rem or JARTIGHTEN_CDS=false to run without an archive.
+rem The archive is only used if JAVA_HOME is set, as the Java version is read from its release file.
+
+setlocal
+set APP_HOME=%~dp0
+set JAR=%APP_HOME%@JAR_NAME@
+set JAVACMD=java
+set JAVA_MAJOR=0
+
+if not defined JAVA_HOME goto run
+set JAVACMD=%JAVA_HOME%\bin\java
+if not exist "%JAVA_HOME%\release" goto run
+for /f "tokens=2 delims==" %%v in ('findstr /b "JAVA_VERSION=" "%JAVA_HOME%\release"') do set JAVA_VERSION=%%~v
+for /f "tokens=1 delims=." %%m in ("%JAVA_VERSION%") do set JAVA_MAJOR=%%m
+
+:run
+rem Dynamic archives need Java 13 or later
+if "%JARTIGHTEN_CDS%" == "false" goto plain
+if %JAVA_MAJOR% LSS 13 goto plain
+
+rem Archives only work with the Java installation and jar they were created with
+for %%f in ("%JAR%") do set ARCHIVE_KEY=%JAVA_VERSION%-%%~zf-%%~tf
+set ARCHIVE_KEY=%ARCHIVE_KEY::=%
+set ARCHIVE_KEY=%ARCHIVE_KEY:/=%
+set ARCHIVE_KEY=%ARCHIVE_KEY: =%
+set ARCHIVE=%APP_HOME%JarTighten-cds-%ARCHIVE_KEY%.jsa
+rem Send JVM warnings to stderr, so they can't corrupt a jar written to stdout
+set LOG_OPTS=-Xlog:disable -Xlog:all=warning:stderr
+
+if not exist "%ARCHIVE%" goto dump
+"%JAVACMD%" %LOG_OPTS% -XX:SharedArchiveFile="%ARCHIVE%" %JARTIGHTEN_OPTS% -jar "%JAR%" %*
+exit /b %ERRORLEVEL%
+
+:dump
+rem Create the archive under a temporary name, so runs at the same time never use a partially written archive
+del /q "%APP_HOME%JarTighten-cds-*.jsa" 2>nul
+"%JAVACMD%" %LOG_OPTS% -XX:ArchiveClassesAtExit="%ARCHIVE%.tmp" %JARTIGHTEN_OPTS% -jar "%JAR%" %*
+set STATUS=%ERRORLEVEL%
+if exist "%ARCHIVE%.tmp" move /y "%ARCHIVE%.tmp" "%ARCHIVE%" >nul
+exit /b %STATUS%
+
+:plain
+"%JAVACMD%" %JARTIGHTEN_OPTS% -jar "%JAR%" %*
+exit /b %ERRORLEVEL%
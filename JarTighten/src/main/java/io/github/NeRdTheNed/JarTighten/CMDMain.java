@@ -1,31 +1,69 @@
 package io.github.NeRdTheNed.JarTighten;
 
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Stack;
 import java.util.concurrent.Callable;
 
 import com.github.NeRdTheNed.deft4j.util.compression.CompressionUtil.Strategy;
 
 import picocli.CommandLine;
+import picocli.CommandLine.ArgGroup;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.IParameterConsumer;
+import picocli.CommandLine.Model.ArgSpec;
+import picocli.CommandLine.Model.CommandSpec;
+import picocli.CommandLine.Model.OptionSpec;
 import picocli.CommandLine.Option;
+import picocli.CommandLine.ParameterException;
 import picocli.CommandLine.Parameters;
+import picocli.CommandLine.Spec;
 
 @Command(name = "JarTighten", mixinStandardHelpOptions = true, version = "JarTighten v1.2.12",
          description = "Jar file size optimiser")
 public class CMDMain implements Callable<Integer> {
-    @Parameters(index = "0", description = "The file to optimise")
+    /** File name argument used to read from standard input or write to standard output */
+    private static final String STDIO_FILE_NAME = "-";
+
+    /** The arguments this command was run with, sent to the daemon when running as a client */
+    private final String[] args;
+    /** Directory relative file arguments are resolved against, or null to use the current directory */
+    private final Path baseDirectory;
+    /** Cache of optimised entries shared between daemon jobs, or null if not running as a daemon job */
+    private final ResultCache resultCache;
+    /** Stream the library prints warnings and errors to */
+    private final PrintStream log;
+
+    @Spec
+    CommandSpec spec;
+
+    @Parameters(index = "0", arity = "0..1", description = "The file to optimise, or - to read from standard input")
     private Path inputFile;
 
-    @Parameters(index = "1", description = "The optimised file")
+    @Parameters(index = "1", arity = "0..1", description = "The optimised file, or - to write to standard output")
     private Path outputFile;
 
     @Option(names = { "--exclude", "-e" }, paramLabel = "<filename>", description = "Files to exclude from optimisations which might hide them from standard zip libraries")
     List<String> excludes;
 
+    @Option(names = { "--policy", "-p" }, paramLabel = "<rule>", description = "Rule overriding settings for matching paths, as a path pattern followed by settings, e.g. \"*.class compressors=zopfli passes=50\". Rules are checked before rules from the policy file.")
+    List<String> policyRules;
+
+    @Option(names = { "--policy-file", "-P" }, paramLabel = "<file>", description = "File of rules overriding settings for matching paths, one rule per line")
+    Path policyFile;
+
     @Option(names = { "--mode", "-m" }, defaultValue = "MULTI_CHEAP", description = "Determines which compression strategies are run for each compressor. Improves compression at the cost of running each selected compressor multiple times. Valid values: ${COMPLETION-CANDIDATES}")
     Strategy mode = Strategy.MULTI_CHEAP;
 
@@ -104,22 +142,383 @@ public class CMDMain implements Callable<Integer> {
     @Option(names = { "--merge-blocks", "-b" }, defaultValue = "false", description = "Try merging deflate blocks. May majorly increase time spent optimising files.")
     boolean mergeBlocks = false;
 
+    @Option(names = "--tune", defaultValue = "false", description = "Measure candidate compression settings on a sample of entries from the input file, and recommend settings for the time budget instead of optimising it")
+    boolean tune = false;
+
+    @Option(names = "--tune-budget", defaultValue = "60", description = "Time budget in seconds for optimising the whole input file when recommending settings")
+    double tuneBudget = 60;
+
+    @Option(names = "--tune-sample", defaultValue = "40", description = "Maximum number of entries to sample when tuning")
+    int tuneSample = 40;
+
+    @Option(names = "--tune-format", defaultValue = "CLI", description = "Format to print the recommended settings in. Valid values: ${COMPLETION-CANDIDATES}")
+    TuneFormat tuneFormat = TuneFormat.CLI;
+
+    /** Formats to print recommended settings in */
+    enum TuneFormat {
+        /** Command line flags */
+        CLI,
+        /** A Gradle jartighten block */
+        GRADLE
+    }
+
+    @Option(names = "--metadata-only", defaultValue = "false", description = "Only rewrite headers, copying compressed data without decompressing or recompressing it. Ignores recompression options.")
+    boolean metadataOnly = false;
+
+    @Option(names = "--fingerprint", defaultValue = "false", description = "Record the settings each file was optimised with, and skip recompressing files already optimised with settings at least as strong. Increases file size by 12 bytes per recompressed file.")
+    boolean fingerprint = false;
+
+    @Option(names = "--decompressor", defaultValue = "lljzip", description = "Backend used to decompress deflated files before recompressing them. inflater uses the JDK's native zlib, and is usually faster. Valid values: lljzip, inflater")
+    String decompressor = "lljzip";
+
+    @Option(names = "--verify-crc32", defaultValue = "false", description = "Check the CRC32 of each file while decompressing it, and keep files which don't match as they are")
+    boolean verifyCrc32 = false;
+
+    @Option(names = "--encoder", paramLabel = "<name>", description = "Also recompress files with the named deflate encoder, found with ServiceLoader. May be repeated.")
+    List<String> encoders;
+
+    @Option(names = "--watch", defaultValue = "false", description = "Keep running, and optimise the input file again each time it changes. Files which haven't changed reuse results from previous runs, and the output file is replaced atomically.")
+    boolean watch = false;
+
+    @Option(names = "--watch-debounce", defaultValue = "500", description = "Milliseconds the input file must stay unchanged before optimising it again when watching")
+    long watchDebounce = 500;
+
+    @Option(names = "--watch-cache-size", defaultValue = "256", description = "Maximum size of optimised entries kept between runs when watching in megabytes")
+    int watchCacheSize = 256;
+
+    @Option(names = "--align", defaultValue = "0", description = "Pad local file headers so the data of stored files starts at a multiple of this many bytes, e.g. 4, or 4096 to memory map files from the jar. Must be a power of two. 0 disables alignment.")
+    int align = 0;
+
+    @Option(names = "--parallel-optimise-threshold", defaultValue = "0", description = "Split existing deflate streams larger than this many megabytes at block boundaries, and optimise the parts in parallel. Faster for large streams, but can be larger. 0 disables splitting.")
+    long parallelOptimiseThreshold = 0;
+
+    @Option(names = "--chunked-compress-threshold", defaultValue = "0", description = "Split files larger than this many megabytes into chunks which are compressed in parallel and joined into one deflate stream. Faster for large files, but usually slightly larger. 0 disables chunking.")
+    long chunkedCompressThreshold = 0;
+
+    /** An extra output file, and the options used to write it */
+    static class ExtraOutput {
+        @Option(names = "--extra-output", required = true, paramLabel = "<file>", description = "Also write the optimised file to another file with its own header and metadata options, reusing the same recompressed files. Compression options given for extra outputs are ignored.")
+        Path file;
+
+        @Option(names = "--extra-output-options", paramLabel = "<options>", parameterConsumer = VerbatimParameter.class, description = "The options for the preceding extra output, separated by spaces, e.g. \"-n -Z -i\"")
+        String options;
+    }
+
+    /** Uses the next argument as the option's value, even if it looks like an option */
+    static class VerbatimParameter implements IParameterConsumer {
+        @Override
+        public void consumeParameters(Stack<String> args, ArgSpec argSpec, CommandSpec commandSpec) {
+            if (args.isEmpty()) {
+                throw new ParameterException(commandSpec.commandLine(), "Missing value for " + ((OptionSpec) argSpec).longestName());
+            }
+
+            argSpec.setValue(args.pop());
+        }
+    }
+
+    @ArgGroup(exclusive = false, multiplicity = "0..*")
+    List<ExtraOutput> extraOutputs;
+
+    @Option(names = "--daemon", defaultValue = "false", description = "Start a daemon on a loopback port which runs jobs sent by clients, keeping compiled code and optimised entries cached between jobs")
+    boolean daemon = false;
+
+    @Option(names = "--client", defaultValue = "false", description = "Send this job to a running daemon instead of running it in this process")
+    boolean client = false;
+
+    @Option(names = "--stop-daemon", defaultValue = "false", description = "Stop a running daemon")
+    boolean stopDaemon = false;
+
+    @Option(names = "--daemon-port", defaultValue = "7396", description = "Loopback port the daemon listens on and clients connect to")
+    int daemonPort = 7396;
+
+    @Option(names = "--daemon-jobs", defaultValue = "2", description = "Maximum number of jobs the daemon runs at the same time")
+    int daemonJobs = 2;
+
+    @Option(names = "--daemon-idle-timeout", defaultValue = "900", description = "Seconds the daemon waits without any jobs before shutting down. 0 never shuts down.")
+    int daemonIdleTimeout = 900;
+
+    @Option(names = "--daemon-cache-size", defaultValue = "256", description = "Maximum size of optimised entries cached by the daemon in megabytes")
+    int daemonCacheSize = 256;
+
+    @Option(names = "--workers", defaultValue = "0", description = "Number of worker processes to recompress entries in, each with its own heap. 0 recompresses entries in this process.")
+    int workers = 0;
+
+    @Option(names = "--threads", defaultValue = "0", description = "Maximum number of threads used for compression, shared between files and compressors. Overrides --recompress-multithread. 1 compresses serially, 0 uses --recompress-multithread.")
+    int threads = 0;
+
+    @Option(names = "--heap-budget", defaultValue = "0", description = "Maximum estimated heap used by files compressed in parallel in megabytes, shared with other runs using the same budget. Files too large to fit are compressed alone. 0 uses half the maximum heap size.")
+    long heapBudget = 0;
+
+    public CMDMain() {
+        this(new String[] { }, null, null, System.err);
+    }
+
+    /**
+     * Creates a command to run with the given arguments.
+     *
+     * @param args the arguments the command is run with
+     * @param baseDirectory directory relative file arguments are resolved against, or null to use the current directory
+     * @param resultCache cache of optimised entries to use, or null to not cache entries
+     * @param log stream the library prints warnings and errors to
+     */
+    CMDMain(String[] args, Path baseDirectory, ResultCache resultCache, PrintStream log) {
+        this.args = args;
+        this.baseDirectory = baseDirectory;
+        this.resultCache = resultCache;
+        this.log = log;
+    }
+
     @Override
     public Integer call() throws Exception {
-        if (!Files.isRegularFile(inputFile)) {
+        final boolean isDaemonJob = baseDirectory != null;
+
+        if (isDaemonJob && (daemon || stopDaemon)) {
+            throw new IllegalArgumentException("Daemon jobs cannot start or stop a daemon!");
+        }
+
+        if (daemon) {
+            if (daemonIdleTimeout < 0) {
+                throw new ParameterException(spec.commandLine(), "--daemon-idle-timeout must be 0 or more");
+            }
+
+            return new JarTightenDaemon(daemonPort, daemonJobs, daemonIdleTimeout * 1000L, daemonCacheSize * 1024L * 1024L).run();
+        }
+
+        if (stopDaemon) {
+            return JarTightenDaemon.stop(daemonPort);
+        }
+
+        if ((inputFile == null) || ((outputFile == null) && !tune)) {
+            throw new ParameterException(spec.commandLine(), tune ? "Missing required parameter: <inputFile>" : "Missing required parameters: <inputFile> <outputFile>");
+        }
+
+        if (client && !isDaemonJob) {
+            return JarTightenDaemon.submit(daemonPort, args);
+        }
+
+        if (tune) {
+            return tune(isDaemonJob ? baseDirectory.resolve(inputFile) : inputFile);
+        }
+
+        final boolean stdin = STDIO_FILE_NAME.equals(inputFile.toString());
+        final boolean stdout = STDIO_FILE_NAME.equals(outputFile.toString());
+
+        if (isDaemonJob) {
+            if (stdin || stdout) {
+                throw new IllegalArgumentException("Daemon jobs cannot use standard input or output!");
+            }
+
+            inputFile = baseDirectory.resolve(inputFile);
+            outputFile = baseDirectory.resolve(outputFile);
+        }
+
+        if (!stdin && !Files.isRegularFile(inputFile)) {
             throw new FileNotFoundException("Input file name argument " + inputFile.getFileName() + " is not a file!");
         }
 
-        if (!overwrite && Files.isRegularFile(outputFile)) {
+        if (!stdout && !overwrite && Files.isRegularFile(outputFile)) {
             throw new IllegalArgumentException("Output file name argument " + outputFile.getFileName() + " is already a file!");
         }
 
-        final JarTighten jarTighten = new JarTighten(excludes != null ? excludes : Collections.emptyList(), mode, removeTimestamps, removeFileLength, removeDirEntryLength, removeFileNames, removeEOCDInfo, removeComments, removeExtra, removeDirectoryEntries, deduplicateEntries, recompressZopfli, recompressJZopfli, recompressJZlib, recompressStandard, recompressStore, recursiveStore, sortEntries, zeroLocalFileHeaders, optimiseDeflateStreamExisting, optimiseDeflateStreamRecompress, compareDeflateStreamBits, recompressMultithread, recompressZopfliPasses, makeExecutableJar, mergeBlocks);
-        return !jarTighten.optimiseJar(inputFile, outputFile, overwrite) ? 1 : CommandLine.ExitCode.OK;
+        final List<PathPolicy> policies = readPolicies();
+        final boolean hasExtraOutputs = (extraOutputs != null) && !extraOutputs.isEmpty();
+
+        if (hasExtraOutputs && (stdin || stdout || watch || metadataOnly)) {
+            throw new ParameterException(spec.commandLine(), "--extra-output requires an input file and an output file, and can't be used with --watch or --metadata-only");
+        }
+
+        if (watch) {
+            if (isDaemonJob) {
+                throw new IllegalArgumentException("Daemon jobs cannot watch files!");
+            }
+
+            if (stdin || stdout) {
+                throw new ParameterException(spec.commandLine(), "--watch requires an input file and an output file, not standard input or output");
+            }
+
+            if (inputFile.toAbsolutePath().normalize().equals(outputFile.toAbsolutePath().normalize())) {
+                throw new ParameterException(spec.commandLine(), "--watch requires the output file to be different from the input file");
+            }
+        }
+
+        // Keep optimised entries between runs when watching
+        final ResultCache entryCache = watch ? new ResultCache(watchCacheSize * 1024L * 1024L) : resultCache;
+        final JarTighten jarTighten = createJarTighten(policies, entryCache);
+
+        if (hasExtraOutputs) {
+            return optimiseToExtraOutputs(jarTighten);
+        }
+
+        if (watch) {
+            return new JarTightenWatcher(inputFile, outputFile, watchDebounce, metadataOnly, jarTighten, spec.commandLine().getOut(), spec.commandLine().getErr()).run();
+        }
+
+        if (metadataOnly) {
+            if (stdin) {
+                throw new ParameterException(spec.commandLine(), "--metadata-only requires an input file, not standard input");
+            }
+
+            if (stdout) {
+                try
+                    (final FileChannel outputChannel = new FileOutputStream(FileDescriptor.out).getChannel()) {
+                    return !jarTighten.rewriteMetadata(inputFile, outputChannel) ? 1 : CommandLine.ExitCode.OK;
+                }
+            }
+
+            return !jarTighten.rewriteMetadata(inputFile, outputFile, overwrite) ? 1 : CommandLine.ExitCode.OK;
+        }
+
+        if (!stdin && !stdout) {
+            return !jarTighten.optimiseJar(inputFile, outputFile, overwrite) ? 1 : CommandLine.ExitCode.OK;
+        }
+
+        if (!stdout) {
+            return !jarTighten.optimiseJar(System.in, outputFile, overwrite) ? 1 : CommandLine.ExitCode.OK;
+        }
+
+        final boolean didSucceed;
+
+        try
+            (final OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out))) {
+            didSucceed = stdin ? jarTighten.optimiseJar(System.in, outputStream) : jarTighten.optimiseJar(inputFile, outputStream);
+        }
+
+        return !didSucceed ? 1 : CommandLine.ExitCode.OK;
+    }
+
+    /**
+     * Read the policy rules given as options and in the policy file.
+     *
+     * @return the policy rules
+     */
+    private List<PathPolicy> readPolicies() throws IOException {
+        final List<PathPolicy> policies = new ArrayList<>();
+
+        if (policyRules != null) {
+            for (final String rule : policyRules) {
+                policies.add(PathPolicy.parse(rule));
+            }
+        }
+
+        if (policyFile != null) {
+            policies.addAll(PathPolicy.parseFile(baseDirectory != null ? baseDirectory.resolve(policyFile) : policyFile));
+        }
+
+        return policies;
+    }
+
+    /**
+     * Create a JarTighten instance with the options of this command.
+     *
+     * @param policies the policy rules
+     * @param entryCache cache of optimised entries to use, or null to not cache entries
+     * @return the instance
+     */
+    private JarTighten createJarTighten(List<PathPolicy> policies, ResultCache entryCache) {
+        return new JarTighten.Builder()
+                   .excludes(excludes != null ? excludes : Collections.emptyList())
+                   .policies(policies)
+                   .mode(mode)
+                   .removeTimestamps(removeTimestamps)
+                   .removeFileLength(removeFileLength)
+                   .removeDirEntryLength(removeDirEntryLength)
+                   .removeFileNames(removeFileNames)
+                   .removeEOCDInfo(removeEOCDInfo)
+                   .removeComments(removeComments)
+                   .removeExtra(removeExtra)
+                   .removeDirectoryEntries(removeDirectoryEntries)
+                   .deduplicateEntries(deduplicateEntries)
+                   .recompressZopfli(recompressZopfli)
+                   .recompressJZopfli(recompressJZopfli)
+                   .recompressJZlib(recompressJZlib)
+                   .recompressStandard(recompressStandard)
+                   .recompressStore(recompressStore)
+                   .recursiveStore(recursiveStore)
+                   .sortEntries(sortEntries)
+                   .zeroLocalFileHeaders(zeroLocalFileHeaders)
+                   .optimiseDeflateStreamExisting(optimiseDeflateStreamExisting)
+                   .optimiseDeflateStreamRecompress(optimiseDeflateStreamRecompress)
+                   .compareDeflateStreamBits(compareDeflateStreamBits)
+                   .recompressMultithread(recompressMultithread)
+                   .recompressZopfliPasses(recompressZopfliPasses)
+                   .makeExecutableJar(makeExecutableJar)
+                   .mergeBlocks(mergeBlocks)
+                   .resultCache(entryCache)
+                   .shardWorkers(workers)
+                   .threadGovernor(threads > 0 ? ThreadGovernor.shared(threads) : null)
+                   .heapBudget(heapBudget > 0 ? HeapBudget.shared(heapBudget * 1024 * 1024) : null)
+                   .fingerprintEntries(fingerprint)
+                   .decompressionBackend(DecompressionBackend.forName(decompressor))
+                   .verifyCrc32(verifyCrc32)
+                   .extraEncoders(encoders != null ? encoders : Collections.emptyList())
+                   .alignment(align)
+                   .parallelOptimiseThreshold(parallelOptimiseThreshold * 1024 * 1024)
+                   .chunkedCompressThreshold(chunkedCompressThreshold * 1024 * 1024)
+                   .log(log)
+                   .build();
+    }
+
+    /**
+     * Optimise the input file once, and write it to the output file and every extra output.
+     *
+     * @param jarTighten the instance for the output file, which also optimises the input file
+     * @return the exit code
+     */
+    private int optimiseToExtraOutputs(JarTighten jarTighten) throws Exception {
+        final List<JarTighten> profiles = new ArrayList<>();
+        final List<Path> outputs = new ArrayList<>();
+        profiles.add(jarTighten);
+        outputs.add(outputFile);
+
+        for (final ExtraOutput extraOutput : extraOutputs) {
+            final CMDMain profileCommand = new CMDMain(new String[] { }, baseDirectory, null, log);
+            final String options = extraOutput.options != null ? extraOutput.options.trim() : "";
+            new CommandLine(profileCommand).parseArgs(options.isEmpty() ? new String[0] : options.split("\\s+"));
+            final Path output = baseDirectory != null ? baseDirectory.resolve(extraOutput.file) : extraOutput.file;
+
+            if (!overwrite && Files.isRegularFile(output)) {
+                throw new IllegalArgumentException("Extra output file name argument " + output.getFileName() + " is already a file!");
+            }
+
+            profiles.add(profileCommand.createJarTighten(profileCommand.readPolicies(), null));
+            outputs.add(output);
+        }
+
+        return !jarTighten.optimiseJar(inputFile, profiles, outputs, overwrite) ? 1 : CommandLine.ExitCode.OK;
+    }
+
+    /**
+     * Measure candidate compression settings on the given file, and print the Pareto frontier and recommended settings.
+     *
+     * @param file the file to sample
+     * @return the exit code
+     */
+    private int tune(Path file) throws Exception {
+        if (!Files.isRegularFile(file)) {
+            throw new FileNotFoundException("Input file name argument " + file.getFileName() + " is not a file!");
+        }
+
+        final PrintWriter out = spec.commandLine().getOut();
+        final OptionTuner tuner = new OptionTuner(tuneSample, Runtime.getRuntime().availableProcessors());
+        final List<OptionTuner.Result> results = tuner.measure(file, OptionTuner.defaultCandidates());
+        final List<OptionTuner.Result> frontier = OptionTuner.paretoFrontier(results);
+        out.printf("Measured %d configurations on %d bytes of sampled entries%n", results.size(), results.get(0).sampleUncompressedSize);
+        out.println("Pareto frontier (estimated for the whole file):");
+        out.printf("%12s %14s  %s%n", "Time (s)", "Size (bytes)", "Settings");
+
+        for (final OptionTuner.Result result : frontier) {
+            out.printf("%12.2f %14d  %s%n", result.estimatedSeconds, result.estimatedSize, result.candidate.toCommandLineFlags());
+        }
+
+        final OptionTuner.Result recommended = OptionTuner.recommend(frontier, tuneBudget);
+        out.printf("Recommended for a budget of %.0f seconds:%n", tuneBudget);
+        out.println(tuneFormat == TuneFormat.GRADLE ? recommended.candidate.toGradleBlock() : recommended.candidate.toCommandLineFlags());
+        out.flush();
+        return CommandLine.ExitCode.OK;
     }
 
     public static void main(String[] args) {
-        final int exitCode = new CommandLine(new CMDMain()).execute(args);
+        final int exitCode = new CommandLine(new CMDMain(args, null, null, System.err)).execute(args);
         System.exit(exitCode);
     }
 }
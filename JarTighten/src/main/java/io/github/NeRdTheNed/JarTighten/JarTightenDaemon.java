@@ -0,0 +1,399 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.AclEntry;
+import java.nio.file.attribute.AclEntryPermission;
+import java.nio.file.attribute.AclEntryType;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import picocli.CommandLine;
+
+/**
+ * Runs JarTighten jobs sent by clients over a loopback socket,
+ * so that JVM startup, class loading and JIT compilation are only paid for once,
+ * and optimised entries can be reused between jobs.
+ * Clients authenticate with a random token, which the daemon writes to a file only readable by its user,
+ * so other local users able to connect to the port can't submit jobs.
+ */
+final class JarTightenDaemon {
+    /** Sent at the start of every request, to reject connections from anything other than a JarTighten client */
+    private static final int PROTOCOL_MAGIC = 0x4A544430;
+    /** Request to run a job */
+    private static final int REQUEST_JOB = 0;
+    /** Request to stop the daemon */
+    private static final int REQUEST_STOP = 1;
+    /** Maximum time between checks for the idle timeout in milliseconds */
+    private static final int IDLE_CHECK_INTERVAL = 1000;
+    /** Maximum time to wait for a client to send each part of its request in milliseconds */
+    private static final int REQUEST_TIMEOUT = 30 * 1000;
+    /** Length of the authentication token in bytes */
+    private static final int TOKEN_LENGTH = 32;
+    /** Maximum length of a string in a request in bytes */
+    private static final int MAX_REQUEST_STRING_LENGTH = 64 * 1024;
+    /** Maximum number of arguments in a request */
+    private static final int MAX_REQUEST_ARGS = 1024;
+    /** Maximum length of a string in a response in bytes */
+    private static final int MAX_RESPONSE_STRING_LENGTH = 64 * 1024 * 1024;
+
+    /** Loopback port to listen on */
+    private final int port;
+    /** Maximum number of jobs to run at the same time */
+    private final int maxJobs;
+    /** Time without any jobs before shutting down in milliseconds, or 0 to never shut down when idle */
+    private final long idleTimeout;
+    /** Cache of optimised entries shared between jobs */
+    private final ResultCache resultCache;
+    /** Number of jobs which have been received and are running */
+    private final AtomicInteger activeJobs = new AtomicInteger();
+    /** Time the last connection was accepted or the last job finished */
+    private volatile long lastActivity = System.currentTimeMillis();
+    /** Set when a client has requested the daemon to stop */
+    private volatile boolean stopping = false;
+
+    /**
+     * Creates a daemon with the given settings.
+     *
+     * @param port loopback port to listen on
+     * @param maxJobs maximum number of jobs to run at the same time
+     * @param idleTimeout time without any jobs before shutting down in milliseconds, or 0 to never shut down when idle
+     * @param cacheSize maximum size of cached optimised entries in bytes
+     */
+    JarTightenDaemon(int port, int maxJobs, long idleTimeout, long cacheSize) {
+        this.port = port;
+        this.maxJobs = Math.max(1, maxJobs);
+        this.idleTimeout = Math.max(0, idleTimeout);
+        resultCache = new ResultCache(cacheSize);
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in, int maxLength) throws IOException {
+        final int length = in.readInt();
+
+        if ((length < 0) || (length > maxLength)) {
+            throw new IOException("Invalid string length " + length + ", must be at most " + maxLength);
+        }
+
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeResponse(DataOutputStream out, int exitCode, String outText, String errText) throws IOException {
+        out.writeInt(exitCode);
+        writeString(out, outText);
+        writeString(out, errText);
+        out.flush();
+    }
+
+    /**
+     * Get the file the authentication token for the daemon on the given port is stored in,
+     * in a directory in the user's home directory.
+     *
+     * @param port the loopback port the daemon listens on
+     * @return the token file
+     */
+    private static Path tokenFile(int port) {
+        return Paths.get(System.getProperty("user.home"), ".jartighten", "daemon-" + port + ".token");
+    }
+
+    /**
+     * Create a new random authentication token, and write it to a file only readable by the current user.
+     *
+     * @param file the token file
+     * @return the token
+     */
+    private static byte[] writeToken(Path file) throws IOException {
+        final byte[] token = new byte[TOKEN_LENGTH];
+        new SecureRandom().nextBytes(token);
+        final Path directory = file.getParent();
+        final boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+        if (posix) {
+            if (!Files.isDirectory(directory)) {
+                Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            }
+
+            Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("rwx------"));
+            Files.deleteIfExists(file);
+            // Created with its permissions, so it's never readable by other users
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createDirectories(directory);
+            Files.deleteIfExists(file);
+            Files.createFile(file);
+            final AclFileAttributeView acl = Files.getFileAttributeView(file, AclFileAttributeView.class);
+
+            if (acl == null) {
+                Files.deleteIfExists(file);
+                throw new IOException("Could not restrict permissions of daemon token file " + file);
+            }
+
+            // Only the owner can access the file
+            acl.setAcl(Collections.singletonList(AclEntry.newBuilder().setType(AclEntryType.ALLOW).setPrincipal(acl.getOwner()).setPermissions(EnumSet.allOf(AclEntryPermission.class)).build()));
+        }
+
+        Files.write(file, token);
+        return token;
+    }
+
+    /**
+     * Read the authentication token of the daemon listening on the given port.
+     *
+     * @param port the loopback port the daemon listens on
+     * @return the token
+     */
+    private static byte[] readToken(int port) throws IOException {
+        final Path file = tokenFile(port);
+
+        try {
+            final byte[] token = Files.readAllBytes(file);
+
+            if (token.length != TOKEN_LENGTH) {
+                throw new IOException("Invalid JarTighten daemon token file " + file);
+            }
+
+            return token;
+        } catch (final NoSuchFileException e) {
+            throw new IOException("No JarTighten daemon is running on port " + port + " for this user, start one with --daemon", e);
+        }
+    }
+
+    /**
+     * Handle a single request from a client.
+     *
+     * @param socket the client connection
+     */
+    private void handle(Socket socket, byte[] token) {
+        try
+            (final Socket closeSocket = socket;
+                    final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            if (in.readInt() != PROTOCOL_MAGIC) {
+                return;
+            }
+
+            final byte[] clientToken = new byte[TOKEN_LENGTH];
+            in.readFully(clientToken);
+
+            if (!MessageDigest.isEqual(token, clientToken)) {
+                System.err.println("Rejected JarTighten daemon request with an invalid token");
+                return;
+            }
+
+            if (in.readInt() == REQUEST_STOP) {
+                stopping = true;
+                writeResponse(out, CommandLine.ExitCode.OK, "", "Stopping JarTighten daemon\n");
+                return;
+            }
+
+            final Path workingDirectory = Paths.get(readString(in, MAX_REQUEST_STRING_LENGTH));
+            final int argCount = in.readInt();
+
+            if ((argCount < 0) || (argCount > MAX_REQUEST_ARGS)) {
+                throw new IOException("Invalid argument count " + argCount + ", must be at most " + MAX_REQUEST_ARGS);
+            }
+
+            final String[] args = new String[argCount];
+
+            for (int i = 0; i < args.length; i++) {
+                args[i] = readString(in, MAX_REQUEST_STRING_LENGTH);
+            }
+
+            // Only count the job once its request has been received, so idle clients don't stop the daemon shutting down
+            activeJobs.incrementAndGet();
+
+            try {
+                final StringWriter outText = new StringWriter();
+                // Warnings printed by the library are sent to the client along with the job's own errors
+                final ByteArrayOutputStream errBytes = new ByteArrayOutputStream();
+                final PrintStream errStream = new PrintStream(errBytes, true, StandardCharsets.UTF_8.name());
+                final CommandLine job = new CommandLine(new CMDMain(args, workingDirectory, resultCache, errStream));
+                job.setOut(new PrintWriter(outText, true));
+                final PrintWriter errWriter = new PrintWriter(new OutputStreamWriter(errStream, StandardCharsets.UTF_8), true);
+                job.setErr(errWriter);
+                final int exitCode = job.execute(args);
+                errWriter.flush();
+                writeResponse(out, exitCode, outText.toString(), new String(errBytes.toByteArray(), StandardCharsets.UTF_8));
+            } finally {
+                activeJobs.decrementAndGet();
+            }
+        } catch (final SocketTimeoutException e) {
+            System.err.println("Timed out waiting for JarTighten daemon request");
+        } catch (final IOException e) {
+            System.err.println("Issue handling JarTighten daemon request");
+            e.printStackTrace();
+        } finally {
+            lastActivity = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Accept and run jobs until stopped or idle for longer than the idle timeout.
+     * The authentication token is written once listening, and deleted when stopping.
+     *
+     * @return the exit code
+     */
+    int run() throws IOException {
+        final ExecutorService jobExecutor = Executors.newFixedThreadPool(maxJobs);
+        final Path tokenFile = tokenFile(port);
+
+        try
+            (final ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            // Wake up periodically to check if stopping or idle
+            server.setSoTimeout(idleTimeout > 0 ? (int) Math.max(1, Math.min(IDLE_CHECK_INTERVAL, idleTimeout)) : IDLE_CHECK_INTERVAL);
+            final byte[] token = writeToken(tokenFile);
+            System.err.println("JarTighten daemon listening on " + server.getLocalSocketAddress());
+
+            while (!stopping) {
+                final Socket socket;
+
+                try {
+                    socket = server.accept();
+                } catch (final SocketTimeoutException e) {
+                    if ((idleTimeout > 0) && (activeJobs.get() == 0) && ((System.currentTimeMillis() - lastActivity) >= idleTimeout)) {
+                        System.err.println("JarTighten daemon idle, shutting down");
+                        break;
+                    }
+
+                    continue;
+                }
+
+                lastActivity = System.currentTimeMillis();
+
+                try {
+                    // Don't let a client which never sends its request hold a job slot forever
+                    socket.setSoTimeout(REQUEST_TIMEOUT);
+                } catch (final IOException e) {
+                    System.err.println("Issue setting JarTighten daemon request timeout");
+                    e.printStackTrace();
+                    socket.close();
+                    continue;
+                }
+
+                jobExecutor.execute(() -> handle(socket, token));
+            }
+        } finally {
+            try {
+                Files.deleteIfExists(tokenFile);
+            } catch (final IOException e) {
+                System.err.println("Issue deleting daemon token file " + tokenFile);
+                e.printStackTrace();
+            }
+
+            jobExecutor.shutdown();
+
+            try {
+                jobExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return CommandLine.ExitCode.OK;
+    }
+
+    /**
+     * Open a connection to the daemon on the given port.
+     *
+     * @param port the loopback port the daemon listens on
+     * @return the connection
+     */
+    private static Socket connect(int port) throws IOException {
+        try {
+            return new Socket(InetAddress.getLoopbackAddress(), port);
+        } catch (final ConnectException e) {
+            throw new IOException("No JarTighten daemon is running on port " + port + ", start one with --daemon", e);
+        }
+    }
+
+    /**
+     * Send a request to the daemon, and print its output.
+     *
+     * @param port the loopback port the daemon listens on
+     * @param request the request type
+     * @param args the job arguments, if running a job
+     * @return the exit code of the request
+     */
+    private static int send(int port, int request, String[] args) throws IOException {
+        final byte[] token = readToken(port);
+
+        try
+            (final Socket socket = connect(port);
+                    final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            out.writeInt(PROTOCOL_MAGIC);
+            out.write(token);
+            out.writeInt(request);
+
+            if (request == REQUEST_JOB) {
+                writeString(out, System.getProperty("user.dir"));
+                out.writeInt(args.length);
+
+                for (final String arg : args) {
+                    writeString(out, arg);
+                }
+            }
+
+            out.flush();
+            final int exitCode = in.readInt();
+            System.out.print(readString(in, MAX_RESPONSE_STRING_LENGTH));
+            System.err.print(readString(in, MAX_RESPONSE_STRING_LENGTH));
+            return exitCode;
+        }
+    }
+
+    /**
+     * Run a job on the daemon listening on the given port.
+     *
+     * @param port the loopback port the daemon listens on
+     * @param args the job arguments, resolved against the current directory
+     * @return the exit code of the job
+     */
+    static int submit(int port, String[] args) throws IOException {
+        return send(port, REQUEST_JOB, args);
+    }
+
+    /**
+     * Stop the daemon listening on the given port, once its current jobs have finished.
+     *
+     * @param port the loopback port the daemon listens on
+     * @return the exit code
+     */
+    static int stop(int port) throws IOException {
+        return send(port, REQUEST_STOP, null);
+    }
+}
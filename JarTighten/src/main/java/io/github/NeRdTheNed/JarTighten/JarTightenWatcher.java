@@ -0,0 +1,164 @@
+package io.github.NeRdTheNed.JarTighten;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import picocli.CommandLine;
+
+/**
+ * Optimises a jar file again each time it changes, to keep an optimised jar up to date during development.
+ * Changes are debounced so a jar is only optimised once its build has finished writing it,
+ * entries which haven't changed reuse the results cached by the JarTighten instance,
+ * and the output file is replaced atomically so it's never seen partially written.
+ */
+final class JarTightenWatcher {
+    /** The file to optimise */
+    private final Path inputFile;
+    /** The optimised file */
+    private final Path outputFile;
+    /** Time without any changes to the input file before optimising it in milliseconds */
+    private final long debounce;
+    /** Only rewrite headers instead of optimising */
+    private final boolean metadataOnly;
+    /** Optimises the input file, with a result cache kept between runs */
+    private final JarTighten jarTighten;
+    /** Output for status messages */
+    private final PrintWriter out;
+    /** Output for errors */
+    private final PrintWriter err;
+
+    /**
+     * Creates a watcher with the given settings.
+     *
+     * @param inputFile the file to optimise
+     * @param outputFile the optimised file
+     * @param debounce time without any changes to the input file before optimising it in milliseconds
+     * @param metadataOnly only rewrite headers instead of optimising
+     * @param jarTighten optimises the input file. Should have a result cache, so unchanged entries aren't recompressed.
+     * @param out output for status messages
+     * @param err output for errors
+     */
+    JarTightenWatcher(Path inputFile, Path outputFile, long debounce, boolean metadataOnly, JarTighten jarTighten, PrintWriter out, PrintWriter err) {
+        this.inputFile = inputFile.toAbsolutePath();
+        this.outputFile = outputFile.toAbsolutePath();
+        this.debounce = Math.max(0, debounce);
+        this.metadataOnly = metadataOnly;
+        this.jarTighten = jarTighten;
+        this.out = out;
+        this.err = err;
+    }
+
+    /**
+     * Check the events of a watch key for changes to the input file, and reset the key.
+     *
+     * @param key the watch key
+     * @return true if the input file may have changed
+     */
+    private boolean pollChanges(WatchKey key) throws IOException {
+        boolean changed = false;
+
+        for (final WatchEvent<?> event : key.pollEvents()) {
+            // Events may have been lost, so the input file may have changed
+            if ((event.kind() == StandardWatchEventKinds.OVERFLOW) || inputFile.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+
+        if (!key.reset()) {
+            throw new IOException("Directory " + inputFile.getParent() + " can no longer be watched");
+        }
+
+        return changed;
+    }
+
+    /** Move a file over the output file, atomically if supported. */
+    private void replaceOutput(Path file) throws IOException {
+        try {
+            Files.move(file, outputFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (final AtomicMoveNotSupportedException e) {
+            Files.move(file, outputFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** Optimise the input file, replacing the output file if successful. */
+    private void optimise() {
+        final long start = System.nanoTime();
+        Path tempFile = null;
+
+        try {
+            // Create the temporary file next to the output file, so it can be moved atomically
+            tempFile = Files.createTempFile(outputFile.getParent(), outputFile.getFileName().toString() + ".", ".tmp");
+            final boolean didSucceed = metadataOnly ? jarTighten.rewriteMetadata(inputFile, tempFile, true) : jarTighten.optimiseJar(inputFile, tempFile, true);
+
+            if (didSucceed) {
+                replaceOutput(tempFile);
+                out.printf("Optimised %s in %d ms%n", inputFile.getFileName(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            } else {
+                err.printf("Failed to optimise %s, keeping the previous output%n", inputFile.getFileName());
+            }
+        } catch (final Exception e) {
+            // The input file may have been read while it was being written, the next change will try again
+            err.printf("Failed to optimise %s, keeping the previous output: %s%n", inputFile.getFileName(), e);
+        } finally {
+            if (tempFile != null) {
+                try {
+                    Files.deleteIfExists(tempFile);
+                } catch (final IOException e) {
+                    err.println("Issue deleting temporary file " + tempFile);
+                }
+            }
+
+            out.flush();
+            err.flush();
+        }
+    }
+
+    /**
+     * Optimise the input file, then optimise it again each time it changes until interrupted.
+     *
+     * @return the exit code
+     */
+    int run() throws IOException {
+        final Path directory = inputFile.getParent();
+
+        try
+            (final WatchService watchService = directory.getFileSystem().newWatchService()) {
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            optimise();
+            out.printf("Watching %s for changes%n", inputFile);
+            out.flush();
+
+            while (true) {
+                if (!pollChanges(watchService.take())) {
+                    continue;
+                }
+
+                // Wait until the input file hasn't changed for the debounce time
+                long lastChange = System.nanoTime();
+                long remaining;
+
+                while ((remaining = debounce - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastChange)) > 0) {
+                    final WatchKey key = watchService.poll(remaining, TimeUnit.MILLISECONDS);
+
+                    if ((key != null) && pollChanges(key)) {
+                        lastChange = System.nanoTime();
+                    }
+                }
+
+                optimise();
+            }
+        } catch (final InterruptedException | ClosedWatchServiceException e) {
+            return CommandLine.ExitCode.OK;
+        }
+    }
+}